@@ -30,34 +30,66 @@ import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
 import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.stream.Collectors;
 import org.opendatakit.briefcase.model.BriefcasePreferences;
+import org.opendatakit.briefcase.model.ExportType;
+import org.opendatakit.briefcase.util.ExportPartitioning;
+import org.opendatakit.briefcase.util.SubmissionFilter;
 
 public class ExportConfiguration {
   private static final String EXPORT_DIR = "exportDir";
   private static final String PEM_FILE = "pemFile";
   private static final String START_DATE = "startDate";
   private static final String END_DATE = "endDate";
+  private static final String INCREMENTAL = "incremental";
+  private static final String EXPORT_TYPE = "exportType";
+  private static final String JDBC_URL = "jdbcUrl";
+  private static final String COLUMNS = "columns";
+  private static final String FILTER = "filter";
+  private static final String ADDITIONAL_EXPORT_TYPES = "additionalExportTypes";
+  private static final String PARTITIONING = "partitioning";
   private Optional<Path> exportDir;
   private Optional<Path> pemFile;
   private Optional<LocalDate> startDate;
   private Optional<LocalDate> endDate;
+  private Optional<Boolean> incremental;
+  private Optional<ExportType> exportType;
+  private Optional<String> jdbcUrl;
+  private Optional<List<String>> columns;
+  private Optional<String> filter;
+  private Optional<List<ExportType>> additionalExportTypes;
+  private Optional<String> partitioning;
 
   public ExportConfiguration(Optional<Path> exportDir, Optional<Path> pemFile, Optional<LocalDate> startDate, Optional<LocalDate> endDate) {
+    this(exportDir, pemFile, startDate, endDate, Optional.empty(), Optional.empty(), Optional.empty(), Optional.empty(), Optional.empty(), Optional.empty(), Optional.empty());
+  }
+
+  private ExportConfiguration(Optional<Path> exportDir, Optional<Path> pemFile, Optional<LocalDate> startDate, Optional<LocalDate> endDate, Optional<Boolean> incremental, Optional<ExportType> exportType, Optional<String> jdbcUrl, Optional<List<String>> columns, Optional<String> filter, Optional<List<ExportType>> additionalExportTypes, Optional<String> partitioning) {
     this.exportDir = exportDir;
     this.pemFile = pemFile;
     this.startDate = startDate;
     this.endDate = endDate;
+    this.incremental = incremental;
+    this.exportType = exportType;
+    this.jdbcUrl = jdbcUrl;
+    this.columns = columns;
+    this.filter = filter;
+    this.additionalExportTypes = additionalExportTypes;
+    this.partitioning = partitioning;
   }
 
   public static ExportConfiguration empty() {
-    return new ExportConfiguration(Optional.empty(), Optional.empty(), Optional.empty(), Optional.empty());
+    return new ExportConfiguration(Optional.empty(), Optional.empty(), Optional.empty(), Optional.empty(), Optional.empty(), Optional.empty(), Optional.empty(), Optional.empty(), Optional.empty(), Optional.empty(), Optional.empty());
   }
 
   public static ExportConfiguration load(BriefcasePreferences prefs) {
@@ -65,7 +97,14 @@ public class ExportConfiguration {
         prefs.nullSafeGet(EXPORT_DIR).map(Paths::get),
         prefs.nullSafeGet(PEM_FILE).map(Paths::get),
         prefs.nullSafeGet(START_DATE).map(LocalDate::parse),
-        prefs.nullSafeGet(END_DATE).map(LocalDate::parse)
+        prefs.nullSafeGet(END_DATE).map(LocalDate::parse),
+        prefs.nullSafeGet(INCREMENTAL).map(Boolean::valueOf),
+        prefs.nullSafeGet(EXPORT_TYPE).map(ExportType::valueOf),
+        prefs.nullSafeGet(JDBC_URL),
+        prefs.nullSafeGet(COLUMNS).map(ExportConfiguration::parseColumns),
+        prefs.nullSafeGet(FILTER),
+        prefs.nullSafeGet(ADDITIONAL_EXPORT_TYPES).map(ExportConfiguration::parseExportTypes),
+        prefs.nullSafeGet(PARTITIONING)
     );
   }
 
@@ -74,7 +113,14 @@ public class ExportConfiguration {
         prefs.nullSafeGet(keyPrefix + EXPORT_DIR).map(Paths::get),
         prefs.nullSafeGet(keyPrefix + PEM_FILE).map(Paths::get),
         prefs.nullSafeGet(keyPrefix + START_DATE).map(LocalDate::parse),
-        prefs.nullSafeGet(keyPrefix + END_DATE).map(LocalDate::parse)
+        prefs.nullSafeGet(keyPrefix + END_DATE).map(LocalDate::parse),
+        prefs.nullSafeGet(keyPrefix + INCREMENTAL).map(Boolean::valueOf),
+        prefs.nullSafeGet(keyPrefix + EXPORT_TYPE).map(ExportType::valueOf),
+        prefs.nullSafeGet(keyPrefix + JDBC_URL),
+        prefs.nullSafeGet(keyPrefix + COLUMNS).map(ExportConfiguration::parseColumns),
+        prefs.nullSafeGet(keyPrefix + FILTER),
+        prefs.nullSafeGet(keyPrefix + ADDITIONAL_EXPORT_TYPES).map(ExportConfiguration::parseExportTypes),
+        prefs.nullSafeGet(keyPrefix + PARTITIONING)
     );
   }
 
@@ -87,7 +133,14 @@ public class ExportConfiguration {
         keyPrefix + EXPORT_DIR,
         keyPrefix + PEM_FILE,
         keyPrefix + START_DATE,
-        keyPrefix + END_DATE
+        keyPrefix + END_DATE,
+        keyPrefix + INCREMENTAL,
+        keyPrefix + EXPORT_TYPE,
+        keyPrefix + JDBC_URL,
+        keyPrefix + COLUMNS,
+        keyPrefix + FILTER,
+        keyPrefix + ADDITIONAL_EXPORT_TYPES,
+        keyPrefix + PARTITIONING
     );
   }
 
@@ -103,6 +156,13 @@ public class ExportConfiguration {
     pemFile.ifPresent(value -> map.put(keyPrefix + PEM_FILE, value.toString()));
     startDate.ifPresent(value -> map.put(keyPrefix + START_DATE, value.format(DateTimeFormatter.ISO_DATE)));
     endDate.ifPresent(value -> map.put(keyPrefix + END_DATE, value.format(DateTimeFormatter.ISO_DATE)));
+    incremental.ifPresent(value -> map.put(keyPrefix + INCREMENTAL, value.toString()));
+    exportType.ifPresent(value -> map.put(keyPrefix + EXPORT_TYPE, value.name()));
+    jdbcUrl.ifPresent(value -> map.put(keyPrefix + JDBC_URL, value));
+    columns.ifPresent(value -> map.put(keyPrefix + COLUMNS, String.join(",", value)));
+    filter.ifPresent(value -> map.put(keyPrefix + FILTER, value));
+    additionalExportTypes.ifPresent(value -> map.put(keyPrefix + ADDITIONAL_EXPORT_TYPES, value.stream().map(ExportType::name).collect(Collectors.joining(","))));
+    partitioning.ifPresent(value -> map.put(keyPrefix + PARTITIONING, value));
     return map;
   }
 
@@ -111,7 +171,14 @@ public class ExportConfiguration {
         exportDir,
         pemFile,
         startDate,
-        endDate
+        endDate,
+        incremental,
+        exportType,
+        jdbcUrl,
+        columns,
+        filter,
+        additionalExportTypes,
+        partitioning
     );
   }
 
@@ -139,6 +206,166 @@ public class ExportConfiguration {
     this.endDate = Optional.ofNullable(date);
   }
 
+  public Optional<Boolean> getIncremental() {
+    return incremental;
+  }
+
+  public void setIncremental(Boolean value) {
+    this.incremental = Optional.ofNullable(value);
+  }
+
+  /**
+   * Returns whether only the submissions that weren't exported before
+   * should be appended to the output files.
+   */
+  public boolean isIncremental() {
+    return incremental.orElse(false);
+  }
+
+  public Optional<ExportType> getExportType() {
+    return exportType;
+  }
+
+  public void setExportType(ExportType value) {
+    this.exportType = Optional.ofNullable(value);
+  }
+
+  /**
+   * Returns the type of export to run, which is a csv export unless
+   * something else has been chosen.
+   */
+  public ExportType getExportTypeOrDefault() {
+    return exportType.orElse(ExportType.CSV);
+  }
+
+  public Optional<List<ExportType>> getAdditionalExportTypes() {
+    return additionalExportTypes;
+  }
+
+  public void setAdditionalExportTypes(List<ExportType> value) {
+    this.additionalExportTypes = Optional.ofNullable(value).filter(list -> !list.isEmpty());
+  }
+
+  /**
+   * Returns the types of export to run, the chosen one followed by the ones
+   * to write along with it while reading the submissions once.
+   */
+  public List<ExportType> getExportTypes() {
+    Set<ExportType> types = new LinkedHashSet<>();
+    types.add(getExportTypeOrDefault());
+    additionalExportTypes.ifPresent(types::addAll);
+    return new ArrayList<>(types);
+  }
+
+  /**
+   * Parses a comma separated list of export types, as in
+   * {@code json_lines,database}.
+   *
+   * @throws IllegalArgumentException if one of them is not an export type
+   */
+  public static List<ExportType> parseExportTypes(String value) {
+    return Arrays.stream(value.split(","))
+        .map(String::trim)
+        .filter(type -> !type.isEmpty())
+        .map(type -> ExportType.valueOf(type.toUpperCase()))
+        .distinct()
+        .collect(Collectors.toList());
+  }
+
+  public Optional<String> getJdbcUrl() {
+    return jdbcUrl;
+  }
+
+  public void setJdbcUrl(String value) {
+    this.jdbcUrl = Optional.ofNullable(value).filter(url -> !url.trim().isEmpty());
+  }
+
+  public Optional<List<String>> getColumns() {
+    return columns;
+  }
+
+  public void setColumns(List<String> value) {
+    this.columns = Optional.ofNullable(value).filter(list -> !list.isEmpty());
+  }
+
+  /**
+   * Returns the full names of the fields to export, or an empty list if all
+   * of them should be exported.
+   */
+  public List<String> getColumnsOrAll() {
+    return columns.orElse(Collections.emptyList());
+  }
+
+  /**
+   * Parses a comma separated list of the full names of fields, as in the
+   * headers of the csv file of the submissions.
+   */
+  public static List<String> parseColumns(String value) {
+    return Arrays.stream(value.split(","))
+        .map(String::trim)
+        .filter(column -> !column.isEmpty())
+        .distinct()
+        .collect(Collectors.toList());
+  }
+
+  public Optional<String> getFilter() {
+    return filter;
+  }
+
+  public void setFilter(String value) {
+    this.filter = Optional.ofNullable(value).filter(expression -> !expression.trim().isEmpty());
+  }
+
+  /**
+   * Returns the filter of the submissions to export, which lets all of them
+   * through unless a filter has been given.
+   *
+   * @throws IllegalArgumentException if the filter is not valid
+   */
+  public SubmissionFilter getSubmissionFilter() {
+    return filter.map(SubmissionFilter::parse).orElse(SubmissionFilter.none());
+  }
+
+  public Optional<String> getPartitioning() {
+    return partitioning;
+  }
+
+  public void setPartitioning(String value) {
+    this.partitioning = Optional.ofNullable(value).filter(partitions -> !partitions.trim().isEmpty());
+  }
+
+  /**
+   * Returns how to split the csv files of the export, which aren't split
+   * unless a partitioning has been given.
+   *
+   * @throws IllegalArgumentException if the partitioning is not valid
+   */
+  public ExportPartitioning getExportPartitioning() {
+    return partitioning.map(ExportPartitioning::parse).orElse(ExportPartitioning.none());
+  }
+
+  private Optional<String> getPartitioningError() {
+    try {
+      getExportPartitioning();
+      return Optional.empty();
+    } catch (IllegalArgumentException e) {
+      return Optional.of("The partitioning is not valid. " + e.getMessage());
+    }
+  }
+
+  private Optional<String> getFilterError() {
+    try {
+      getSubmissionFilter();
+      return Optional.empty();
+    } catch (IllegalArgumentException e) {
+      return Optional.of("The filter is not valid. " + e.getMessage());
+    }
+  }
+
+  private boolean isJdbcUrlValid() {
+    return !jdbcUrl.isPresent() || jdbcUrl.get().startsWith("jdbc:");
+  }
+
   private boolean isDateRangeValid() {
     return !startDate.isPresent() || !endDate.isPresent() || startDate.get().isBefore(endDate.get());
   }
@@ -167,6 +394,34 @@ public class ExportConfiguration {
     endDate.ifPresent(consumer);
   }
 
+  public void ifIncrementalPresent(Consumer<Boolean> consumer) {
+    incremental.ifPresent(consumer);
+  }
+
+  public void ifExportTypePresent(Consumer<ExportType> consumer) {
+    exportType.ifPresent(consumer);
+  }
+
+  public void ifJdbcUrlPresent(Consumer<String> consumer) {
+    jdbcUrl.ifPresent(consumer);
+  }
+
+  public void ifColumnsPresent(Consumer<List<String>> consumer) {
+    columns.ifPresent(consumer);
+  }
+
+  public void ifFilterPresent(Consumer<String> consumer) {
+    filter.ifPresent(consumer);
+  }
+
+  public void ifAdditionalExportTypesPresent(Consumer<List<ExportType>> consumer) {
+    additionalExportTypes.ifPresent(consumer);
+  }
+
+  public void ifPartitioningPresent(Consumer<String> consumer) {
+    partitioning.ifPresent(consumer);
+  }
+
   private List<String> getErrors() {
     List<String> errors = new ArrayList<>();
 
@@ -191,6 +446,10 @@ public class ExportConfiguration {
       errors.add("Missing date range start definition");
     if (!isDateRangeValid())
       errors.add(INVALID_DATE_RANGE_MESSAGE);
+    if (!isJdbcUrlValid())
+      errors.add("The JDBC URL must start with jdbc:");
+    getFilterError().ifPresent(errors::add);
+    getPartitioningError().ifPresent(errors::add);
     return errors;
   }
 
@@ -215,6 +474,10 @@ public class ExportConfiguration {
       errors.add("Missing date range start definition");
     if (!isDateRangeValid())
       errors.add(INVALID_DATE_RANGE_MESSAGE);
+    if (!isJdbcUrlValid())
+      errors.add("The JDBC URL must start with jdbc:");
+    getFilterError().ifPresent(errors::add);
+    getPartitioningError().ifPresent(errors::add);
 
     return errors;
   }
@@ -223,7 +486,14 @@ public class ExportConfiguration {
     return !exportDir.isPresent()
         && !pemFile.isPresent()
         && !startDate.isPresent()
-        && !endDate.isPresent();
+        && !endDate.isPresent()
+        && !incremental.isPresent()
+        && !exportType.isPresent()
+        && !jdbcUrl.isPresent()
+        && !columns.isPresent()
+        && !filter.isPresent()
+        && !additionalExportTypes.isPresent()
+        && !partitioning.isPresent();
   }
 
   public boolean isValid() {
@@ -255,7 +525,14 @@ public class ExportConfiguration {
         exportDir.isPresent() ? exportDir : fallbackConfiguration.exportDir,
         pemFile.isPresent() ? pemFile : fallbackConfiguration.pemFile,
         startDate.isPresent() ? startDate : fallbackConfiguration.startDate,
-        endDate.isPresent() ? endDate : fallbackConfiguration.endDate
+        endDate.isPresent() ? endDate : fallbackConfiguration.endDate,
+        incremental.isPresent() ? incremental : fallbackConfiguration.incremental,
+        exportType.isPresent() ? exportType : fallbackConfiguration.exportType,
+        jdbcUrl.isPresent() ? jdbcUrl : fallbackConfiguration.jdbcUrl,
+        columns.isPresent() ? columns : fallbackConfiguration.columns,
+        filter.isPresent() ? filter : fallbackConfiguration.filter,
+        additionalExportTypes.isPresent() ? additionalExportTypes : fallbackConfiguration.additionalExportTypes,
+        partitioning.isPresent() ? partitioning : fallbackConfiguration.partitioning
     );
   }
 
@@ -266,6 +543,13 @@ public class ExportConfiguration {
         ", pemFile=" + pemFile +
         ", startDate=" + startDate +
         ", endDate=" + endDate +
+        ", incremental=" + incremental +
+        ", exportType=" + exportType +
+        ", jdbcUrl=" + jdbcUrl +
+        ", columns=" + columns +
+        ", filter=" + filter +
+        ", additionalExportTypes=" + additionalExportTypes +
+        ", partitioning=" + partitioning +
         '}';
   }
 
@@ -279,11 +563,18 @@ public class ExportConfiguration {
     return Objects.equals(exportDir, that.exportDir) &&
         Objects.equals(pemFile, that.pemFile) &&
         Objects.equals(startDate, that.startDate) &&
-        Objects.equals(endDate, that.endDate);
+        Objects.equals(endDate, that.endDate) &&
+        Objects.equals(incremental, that.incremental) &&
+        Objects.equals(exportType, that.exportType) &&
+        Objects.equals(jdbcUrl, that.jdbcUrl) &&
+        Objects.equals(columns, that.columns) &&
+        Objects.equals(filter, that.filter) &&
+        Objects.equals(additionalExportTypes, that.additionalExportTypes) &&
+        Objects.equals(partitioning, that.partitioning);
   }
 
   @Override
   public int hashCode() {
-    return Objects.hash(exportDir, pemFile, startDate, endDate);
+    return Objects.hash(exportDir, pemFile, startDate, endDate, incremental, exportType, jdbcUrl, columns, filter, additionalExportTypes, partitioning);
   }
 }
@@ -46,6 +46,12 @@ public class BriefcasePreferences {
     private static final String BRIEFCASE_PROXY_HOST_PROPERTY = "briefcaseProxyHost";
     private static final String BRIEFCASE_PROXY_PORT_PROPERTY = "briefcaseProxyPort";
     private static final String BRIEFCASE_PARALLEL_PULLS_PROPERTY = "briefcaseParallelPulls";
+    private static final String BRIEFCASE_PARALLEL_EXPORTS_PROPERTY = "briefcaseParallelExports";
+    private static final String BRIEFCASE_LINK_MEDIA_EXPORTS_PROPERTY = "briefcaseLinkMediaExports";
+    private static final String BRIEFCASE_MAX_CONCURRENT_EXPORTS_PROPERTY = "briefcaseMaxConcurrentExports";
+    public static final int DEFAULT_MAX_CONCURRENT_EXPORTS = 2;
+    private static final String BRIEFCASE_MAX_PULL_CONNECTIONS_PROPERTY = "briefcaseMaxPullConnections";
+    public static final int DEFAULT_MAX_PULL_CONNECTIONS = 1;
     private static final String BRIEFCASE_TRACKING_CONSENT_PROPERTY = "briefcaseTrackingConsent";
     private static final String BRIEFCASE_STORE_PASSWORDS_CONSENT_PROPERTY = "briefcaseStorePasswordsConsent";
     private static final String BRIEFCASE_UNIQUE_USER_ID_PROPERTY = "uniqueUserID";
@@ -200,6 +206,68 @@ public class BriefcasePreferences {
         );
     }
 
+    public static void setBriefcaseParallelExportsProperty(Boolean value) {
+        if (value == null) {
+            Preference.APPLICATION_SCOPED.remove(BRIEFCASE_PARALLEL_EXPORTS_PROPERTY);
+        } else {
+            Preference.APPLICATION_SCOPED.put(BRIEFCASE_PARALLEL_EXPORTS_PROPERTY, value.toString());
+        }
+    }
+
+    public static Boolean getBriefcaseParallelExportsProperty() {
+        return Boolean.valueOf(
+                Preference.APPLICATION_SCOPED.get(BRIEFCASE_PARALLEL_EXPORTS_PROPERTY, Boolean.FALSE.toString())
+        );
+    }
+
+    public static void setBriefcaseLinkMediaExportsProperty(Boolean value) {
+        if (value == null) {
+            Preference.APPLICATION_SCOPED.remove(BRIEFCASE_LINK_MEDIA_EXPORTS_PROPERTY);
+        } else {
+            Preference.APPLICATION_SCOPED.put(BRIEFCASE_LINK_MEDIA_EXPORTS_PROPERTY, value.toString());
+        }
+    }
+
+    public static Boolean getBriefcaseLinkMediaExportsProperty() {
+        return Boolean.valueOf(
+                Preference.APPLICATION_SCOPED.get(BRIEFCASE_LINK_MEDIA_EXPORTS_PROPERTY, Boolean.FALSE.toString())
+        );
+    }
+
+    public static void setBriefcaseMaxConcurrentExportsProperty(Integer value) {
+        if (value == null) {
+            Preference.APPLICATION_SCOPED.remove(BRIEFCASE_MAX_CONCURRENT_EXPORTS_PROPERTY);
+        } else {
+            Preference.APPLICATION_SCOPED.put(BRIEFCASE_MAX_CONCURRENT_EXPORTS_PROPERTY, value.toString());
+        }
+    }
+
+    public static int getBriefcaseMaxConcurrentExportsProperty() {
+        try {
+            return Integer.parseInt(Preference.APPLICATION_SCOPED.get(BRIEFCASE_MAX_CONCURRENT_EXPORTS_PROPERTY,
+                Integer.toString(DEFAULT_MAX_CONCURRENT_EXPORTS)));
+        } catch (NumberFormatException e) {
+            return DEFAULT_MAX_CONCURRENT_EXPORTS;
+        }
+    }
+
+    public static void setBriefcaseMaxPullConnectionsProperty(Integer value) {
+        if (value == null) {
+            Preference.APPLICATION_SCOPED.remove(BRIEFCASE_MAX_PULL_CONNECTIONS_PROPERTY);
+        } else {
+            Preference.APPLICATION_SCOPED.put(BRIEFCASE_MAX_PULL_CONNECTIONS_PROPERTY, value.toString());
+        }
+    }
+
+    public static int getBriefcaseMaxPullConnectionsProperty() {
+        try {
+            return Integer.parseInt(Preference.APPLICATION_SCOPED.get(BRIEFCASE_MAX_PULL_CONNECTIONS_PROPERTY,
+                Integer.toString(DEFAULT_MAX_PULL_CONNECTIONS)));
+        } catch (NumberFormatException e) {
+            return DEFAULT_MAX_PULL_CONNECTIONS;
+        }
+    }
+
     /**
      * Enum that implements the strategies, to create differently scoped preferences.
      */
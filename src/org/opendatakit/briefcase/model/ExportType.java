@@ -17,7 +17,9 @@
 package org.opendatakit.briefcase.model;
 
 public enum ExportType {
-    CSV(".csv and media files"); // CSV output type
+    CSV(".csv and media files"), // CSV output type
+    DATABASE("database tables"), // HSQLDB or any other JDBC database
+    JSON_LINES(".jsonl and media files"); // one JSON object per submission
 
     private String displayString;
 
@@ -23,7 +23,22 @@ public class TransmissionException extends Exception {
    */
   private static final long serialVersionUID = -2163450446028219296L;
 
+  private final int statusCode;
+
   public TransmissionException(String message) {
+    this(message, 0);
+  }
+
+  public TransmissionException(String message, int statusCode) {
     super(message);
+    this.statusCode = statusCode;
+  }
+
+  /**
+   * The HTTP status the server answered with, or 0 if it didn't answer or the
+   * answer was unexpected for other reasons.
+   */
+  public int getStatusCode() {
+    return statusCode;
   }
 }
\ No newline at end of file
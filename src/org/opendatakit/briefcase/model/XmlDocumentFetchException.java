@@ -23,7 +23,27 @@ public class XmlDocumentFetchException extends Exception {
    */
   private static final long serialVersionUID = -2163850446028219296L;
 
+  private final int statusCode;
+
   public XmlDocumentFetchException(String message) {
+    this(message, 0);
+  }
+
+  public XmlDocumentFetchException(String message, int statusCode) {
     super(message);
+    this.statusCode = statusCode;
+  }
+
+  public XmlDocumentFetchException(String message, Throwable cause) {
+    super(message, cause);
+    this.statusCode = 0;
+  }
+
+  /**
+   * The HTTP status the server answered with, or 0 if it didn't answer or the
+   * answer was unexpected for other reasons.
+   */
+  public int getStatusCode() {
+    return statusCode;
   }
 }
\ No newline at end of file
@@ -16,6 +16,7 @@
 package org.opendatakit.briefcase.operations;
 
 import static java.time.format.DateTimeFormatter.ISO_DATE_TIME;
+import static java.util.stream.Collectors.toList;
 import static org.opendatakit.briefcase.export.ExportForms.buildExportDateTimePrefix;
 import static org.opendatakit.briefcase.operations.Common.FORM_ID;
 import static org.opendatakit.briefcase.operations.Common.STORAGE_DIR;
@@ -32,29 +33,39 @@ import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.bouncycastle.openssl.PEMReader;
 import org.bushe.swing.event.EventBus;
+import org.opendatakit.briefcase.export.ExportConfiguration;
 import org.opendatakit.briefcase.model.BriefcaseFormDefinition;
 import org.opendatakit.briefcase.model.BriefcasePreferences;
 import org.opendatakit.briefcase.model.ExportFailedEvent;
 import org.opendatakit.briefcase.model.ExportProgressEvent;
+import org.opendatakit.briefcase.model.ExportType;
 import org.opendatakit.briefcase.model.TerminationFuture;
 import org.opendatakit.briefcase.ui.export.ExportPanel;
-import org.opendatakit.briefcase.util.ExportToCsv;
+import org.opendatakit.briefcase.util.ExportAction;
+import org.opendatakit.briefcase.util.ExportOptions;
+import org.opendatakit.briefcase.util.ExportPartitioning;
+import org.opendatakit.briefcase.util.ExportScheduler;
 import org.opendatakit.briefcase.util.FileSystemUtils;
+import org.opendatakit.briefcase.util.ITransformFormAction;
+import org.opendatakit.briefcase.util.SubmissionFilter;
 import org.opendatakit.common.cli.Operation;
 import org.opendatakit.common.cli.Param;
 
 public class Export {
   private static final Log LOGGER = LogFactory.getLog(Export.class);
   private static final DateFormat DATE_FORMAT = new SimpleDateFormat("yyyy/MM/dd");
-  private static final Param<Void> EXPORT = Param.flag("e", "export", "Export a form");
+  private static final Param<Void> EXPORT = Param.flag("e", "export", "Export a form, or several with comma separated form IDs");
   private static final Param<String> EXPORT_DIR = Param.arg("ed", "export_directory", "Export directory");
   private static final Param<String> FILE = Param.arg("f", "export_filename", "Filename for export operation");
   private static final Param<Date> START = Param.arg("start", "export_start_date", "Export start date", Export::toDate);
@@ -62,6 +73,13 @@ public class Export {
   private static final Param<Void> EXCLUDE_MEDIA = Param.flag("em", "exclude_media_export", "Exclude media in export");
   private static final Param<Void> OVERWRITE = Param.flag("oc", "overwrite_csv_export", "Overwrite files during export");
   private static final Param<String> PEM_FILE = Param.arg("pf", "pem_file", "PEM file for form decryption");
+  private static final Param<Void> INCREMENTAL = Param.flag("inc", "incremental_export", "Export only the submissions that weren't exported before");
+  private static final Param<List<ExportType>> EXPORT_TYPE = Param.arg("et", "export_type", "Export format: csv (default), database or json_lines. Several comma separated ones are written reading the submissions once", ExportConfiguration::parseExportTypes);
+  private static final Param<Integer> MAX_CONCURRENT_EXPORTS = Param.arg("mce", "max_concurrent_exports", "How many forms are exported at the same time", Integer::parseInt);
+  private static final Param<String> JDBC_URL = Param.arg("jdbc", "jdbc_url", "JDBC URL of the database to export to (defaults to an HSQLDB database in the export directory)");
+  private static final Param<List<String>> COLUMNS = Param.arg("cols", "export_columns", "Comma separated full names of the fields to export (defaults to all of them)", ExportConfiguration::parseColumns);
+  private static final Param<ExportPartitioning> PARTITIONING = Param.arg("part", "export_partitioning", "Split the csv files by submission month or day, every number of submissions or once they reach a size, such as month,rows=100000,size=1g", ExportPartitioning::parse);
+  private static final Param<SubmissionFilter> FILTER = Param.arg("flt", "export_filter", "Export only the submissions matching a filter such as @version=2;deviceid!=imei:123|imei:456", SubmissionFilter::parse);
 
   public static Date toDate(String s) {
     try {
@@ -78,101 +96,145 @@ public class Export {
       args -> export(
           args.get(STORAGE_DIR),
           args.get(FORM_ID),
-          args.get(FILE),
           args.get(EXPORT_DIR),
-          args.getOrNull(START),
-          args.getOrNull(END),
-          !args.has(EXCLUDE_MEDIA),
-          args.has(OVERWRITE),
-          args.getOptional(PEM_FILE)
+          args.getOptional(PEM_FILE),
+          args.getOptional(EXPORT_TYPE).filter(types -> !types.isEmpty()).orElse(Collections.singletonList(ExportType.CSV)),
+          args.getOptional(MAX_CONCURRENT_EXPORTS),
+          ExportOptions.defaults()
+              .withFilename(args.get(FILE))
+              .withDateRange(args.getOrNull(START), args.getOrNull(END))
+              .withExportMedia(!args.has(EXCLUDE_MEDIA))
+              .withOverwrite(args.has(OVERWRITE))
+              .withIncremental(args.has(INCREMENTAL))
+              .withJdbcUrl(args.getOptional(JDBC_URL).orElse(null))
+              .withColumns(args.getOptional(COLUMNS).orElse(Collections.emptyList()))
+              .withFilter(args.getOptional(FILTER).orElse(SubmissionFilter.none()))
+              .withPartitioning(args.getOptional(PARTITIONING).orElse(ExportPartitioning.none()))
       ),
       Arrays.asList(STORAGE_DIR, FORM_ID, FILE, EXPORT_DIR),
-      Arrays.asList(PEM_FILE, EXCLUDE_MEDIA, OVERWRITE, START, END)
+      Arrays.asList(PEM_FILE, EXCLUDE_MEDIA, OVERWRITE, INCREMENTAL, START, END, EXPORT_TYPE, JDBC_URL, MAX_CONCURRENT_EXPORTS, COLUMNS, FILTER, PARTITIONING)
   );
 
   public static void export(String storageDir, String formid, String fileName, String exportPath, Date startDateString, Date endDateString, boolean exportMedia, boolean overwrite, Optional<String> pemKeyFile) {
+    export(storageDir, formid, exportPath, pemKeyFile, Collections.singletonList(ExportType.CSV), Optional.empty(),
+        ExportOptions.defaults()
+            .withFilename(fileName)
+            .withDateRange(startDateString, endDateString)
+            .withExportMedia(exportMedia)
+            .withOverwrite(overwrite));
+  }
+
+  /**
+   * Exports one form, or several ones when given comma separated form IDs,
+   * through the {@link ExportScheduler}, and waits for them to be exported.
+   * Each form of a multi-form export gets its form ID appended to the
+   * filename of the options. When given several export types, the outputs
+   * of each form are written in a single pass over its submissions.
+   */
+  public static void export(String storageDir, String formids, String exportPath, Optional<String> pemKeyFile, List<ExportType> exportTypes, Optional<Integer> maxConcurrentExports, ExportOptions options) {
     bootCache(storageDir);
-    BriefcaseFormDefinition formDefinition = null;
+    List<String> formIds = Arrays.stream(formids.split(",")).map(String::trim).filter(id -> !id.isEmpty()).collect(toList());
     List<BriefcaseFormDefinition> forms = FileSystemUtils.getBriefcaseFormList();
-    for (int i = 0; i < forms.size(); i++) {
-      BriefcaseFormDefinition x = forms.get(i);
-      if (formid.equals(x.getFormId())) {
-        formDefinition = x;
-        break;
+
+    TerminationFuture terminationFuture = new TerminationFuture();
+    terminationFuture.reset();
+    File dir = new File(exportPath);
+    LOGGER.info("exporting to : " + dir.getAbsolutePath());
+
+    List<BriefcaseFormDefinition> formDefinitions = new ArrayList<>();
+    List<ITransformFormAction> actions = new ArrayList<>();
+    for (String formid : formIds) {
+      BriefcaseFormDefinition formDefinition = null;
+      for (int i = 0; i < forms.size(); i++) {
+        BriefcaseFormDefinition x = forms.get(i);
+        if (formid.equals(x.getFormId())) {
+          formDefinition = x;
+          break;
+        }
       }
-    }
 
-    if (formDefinition == null) {
-      LOGGER.error("Form not found");
-      return;
-    }
+      if (formDefinition == null) {
+        LOGGER.error("Form not found: " + formid);
+        continue;
+      }
 
-    if (formDefinition.isFileEncryptedForm() || formDefinition.isFieldEncryptedForm()) {
-      File pemFile;
-      if (!pemKeyFile.isPresent()) {
-        LOGGER.error("Briefcase action failed: No specified PrivateKey file for encrypted form");
-        return;
+      if ((formDefinition.isFileEncryptedForm() || formDefinition.isFieldEncryptedForm()) && !readPrivateKey(formDefinition, pemKeyFile)) {
+        continue;
       }
-      pemFile = new File(pemKeyFile.get());
-      if (!pemFile.exists()) {
-        LOGGER.error("Briefcase action failed: No PrivateKey file for encrypted form");
-        return;
+
+      String fileName = options.getFilename(formDefinition);
+      String formFileName = formIds.size() == 1 ? fileName : fileName + "-" + formid;
+      formDefinitions.add(formDefinition);
+      actions.add(ExportAction.actionFor(dir, exportTypes, formDefinition, terminationFuture, options.withFilename(formFileName)));
+    }
+
+    ExportScheduler scheduler = ExportScheduler.get();
+    maxConcurrentExports.ifPresent(scheduler::setMaxConcurrentExports);
+    List<CompletableFuture<Boolean>> results = scheduler.scheduleAll(actions, terminationFuture);
+    for (int i = 0; i < results.size(); i++) {
+      if (results.get(i).join()) {
+        BriefcasePreferences.forClass(ExportPanel.class).put(buildExportDateTimePrefix(formDefinitions.get(i).getFormId()), LocalDateTime.now().format(ISO_DATE_TIME));
       }
+    }
+  }
 
-      String errorMsg = null;
-      boolean success = false;
-      for (; ; ) /* this only executes once... */ {
+  private static boolean readPrivateKey(BriefcaseFormDefinition formDefinition, Optional<String> pemKeyFile) {
+    File pemFile;
+    if (!pemKeyFile.isPresent()) {
+      LOGGER.error("Briefcase action failed: No specified PrivateKey file for encrypted form");
+      return false;
+    }
+    pemFile = new File(pemKeyFile.get());
+    if (!pemFile.exists()) {
+      LOGGER.error("Briefcase action failed: No PrivateKey file for encrypted form");
+      return false;
+    }
+
+    String errorMsg = null;
+    boolean success = false;
+    for (; ; ) /* this only executes once... */ {
+      try {
+        BufferedReader br = new BufferedReader(new InputStreamReader(
+            new FileInputStream(pemFile), "UTF-8"));
+        PEMReader rdr = new PEMReader(br);
+        Object o = rdr.readObject();
         try {
-          BufferedReader br = new BufferedReader(new InputStreamReader(
-              new FileInputStream(pemFile), "UTF-8"));
-          PEMReader rdr = new PEMReader(br);
-          Object o = rdr.readObject();
-          try {
-            rdr.close();
-          } catch (IOException e) {
-            // ignore.
-          }
-          if (o == null) {
-            errorMsg = "The supplied file is not in PEM format.";
-            System.err.println(errorMsg);
-            break;
-          }
-          PrivateKey privKey;
-          if (o instanceof KeyPair) {
-            KeyPair kp = (KeyPair) o;
-            privKey = kp.getPrivate();
-          } else if (o instanceof PrivateKey) {
-            privKey = (PrivateKey) o;
-          } else {
-            privKey = null;
-          }
-          if (privKey == null) {
-            errorMsg = "The supplied file does not contain a private key.";
-            System.err.println(errorMsg);
-            break;
-          }
-          formDefinition.setPrivateKey(privKey);
-          success = true;
-          break;
+          rdr.close();
         } catch (IOException e) {
-          System.err.println("The supplied PEM file could not be parsed.");
-          e.printStackTrace();
+          // ignore.
+        }
+        if (o == null) {
+          errorMsg = "The supplied file is not in PEM format.";
+          System.err.println(errorMsg);
           break;
         }
-      }
-      if (!success) {
-        EventBus.publish(new ExportProgressEvent(errorMsg, formDefinition));
-        EventBus.publish(new ExportFailedEvent(formDefinition));
-        return;
+        PrivateKey privKey;
+        if (o instanceof KeyPair) {
+          KeyPair kp = (KeyPair) o;
+          privKey = kp.getPrivate();
+        } else if (o instanceof PrivateKey) {
+          privKey = (PrivateKey) o;
+        } else {
+          privKey = null;
+        }
+        if (privKey == null) {
+          errorMsg = "The supplied file does not contain a private key.";
+          System.err.println(errorMsg);
+          break;
+        }
+        formDefinition.setPrivateKey(privKey);
+        success = true;
+        break;
+      } catch (IOException e) {
+        System.err.println("The supplied PEM file could not be parsed.");
+        e.printStackTrace();
+        break;
       }
     }
-
-    TerminationFuture terminationFuture = new TerminationFuture();
-    terminationFuture.reset();
-    File dir = new File(exportPath);
-    LOGGER.info("exporting to : " + dir.getAbsolutePath());
-    ExportToCsv exp = new ExportToCsv(dir, formDefinition, terminationFuture, fileName, exportMedia, overwrite, startDateString, endDateString);
-    exp.doAction();
-    BriefcasePreferences.forClass(ExportPanel.class).put(buildExportDateTimePrefix(formDefinition.getFormId()), LocalDateTime.now().format(ISO_DATE_TIME));
+    if (!success) {
+      EventBus.publish(new ExportProgressEvent(errorMsg, formDefinition));
+      EventBus.publish(new ExportFailedEvent(formDefinition));
+    }
+    return success;
   }
 }
@@ -22,6 +22,7 @@ import static org.opendatakit.briefcase.operations.Common.bootCache;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Optional;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.opendatakit.briefcase.model.FormStatus;
@@ -41,6 +42,8 @@ public class PullFormFromAggregate {
   private static final Param<String> ODK_USERNAME = Param.arg("u", "odk_username", "ODK Username");
   private static final Param<String> ODK_PASSWORD = Param.arg("p", "odk_password", "ODK Password");
   private static final Param<String> AGGREGATE_SERVER = Param.arg("url", "aggregate_url", "Aggregate server URL");
+  private static final Param<Integer> MAX_PULL_CONNECTIONS = Param.arg("mpc", "max_pull_connections", "How many connections to the server can be open at the same time, at most (defaults to the one in the settings)", Integer::parseInt);
+  private static final Param<Void> RECONCILE = Param.flag("rec", "reconcile_pull", "Go through all the submissions on the server instead of just the ones since the last pull, to get the ones edited since (done weekly anyway)");
 
   public static Operation PULL_FORM_FROM_AGGREGATE = Operation.of(
       PULL_AGGREGATE,
@@ -49,12 +52,19 @@ public class PullFormFromAggregate {
           args.get(FORM_ID),
           args.get(ODK_USERNAME),
           args.get(ODK_PASSWORD),
-          args.get(AGGREGATE_SERVER)
+          args.get(AGGREGATE_SERVER),
+          args.getOptional(MAX_PULL_CONNECTIONS),
+          args.has(RECONCILE)
       ),
-      Arrays.asList(STORAGE_DIR, FORM_ID, ODK_USERNAME, ODK_PASSWORD, AGGREGATE_SERVER)
+      Arrays.asList(STORAGE_DIR, FORM_ID, ODK_USERNAME, ODK_PASSWORD, AGGREGATE_SERVER),
+      Arrays.asList(MAX_PULL_CONNECTIONS, RECONCILE)
   );
 
   public static void pullFormFromAggregate(String storageDir, String formid, String username, String password, String server) {
+    pullFormFromAggregate(storageDir, formid, username, password, server, Optional.empty(), false);
+  }
+
+  public static void pullFormFromAggregate(String storageDir, String formid, String username, String password, String server, Optional<Integer> maxConnections, boolean reconcile) {
     bootCache(storageDir);
     TerminationFuture terminationFuture = new TerminationFuture();
     ServerConnectionInfo sci = new ServerConnectionInfo(server, username, password.toCharArray());
@@ -99,7 +109,7 @@ public class PullFormFromAggregate {
     List<FormStatus> formsToTransfer = new ArrayList<FormStatus>();
     formsToTransfer.add(toDl);
 
-    TransferFromServer serverSource = new TransferFromServer(sci, terminationFuture, formsToTransfer);
+    TransferFromServer serverSource = new TransferFromServer(sci, terminationFuture, formsToTransfer, maxConnections, reconcile);
 
     boolean status = serverSource.doAction();
   }
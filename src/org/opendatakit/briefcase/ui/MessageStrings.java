@@ -72,6 +72,10 @@ public class MessageStrings {
       "If you are behind a proxy, try setting up your proxy details through 'Settings' tab.";
 
   public static final String PARALLEL_PULLS = "Pull submissions in parallel (experimental)";
+  public static final String PARALLEL_EXPORTS = "Export submissions in parallel (experimental)";
+  public static final String MAX_CONCURRENT_EXPORTS = "Forms exported at the same time";
+  public static final String MAX_PULL_CONNECTIONS = "Submissions downloaded at the same time, at most";
+  public static final String LINK_MEDIA_EXPORTS = "Link exported media files instead of copying them, when on the same drive";
   static final String TRACKING_CONSENT_EXPLANATION =
           "Please help the ODK Community of volunteers and our mission to build software that\n" +
           "better meets your needs. We use third-party analytics tools to gather anonymous\n" +
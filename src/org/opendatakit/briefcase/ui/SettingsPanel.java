@@ -11,12 +11,14 @@ import javax.swing.JFileChooser;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
 import javax.swing.JSpinner;
+import javax.swing.SpinnerNumberModel;
 import javax.swing.JTextField;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
 import org.apache.http.HttpHost;
 import org.opendatakit.briefcase.model.BriefcaseAnalytics;
 import org.opendatakit.briefcase.model.BriefcasePreferences;
+import org.opendatakit.briefcase.util.ExportScheduler;
 import org.opendatakit.briefcase.util.FileSystemUtils;
 import org.opendatakit.briefcase.util.StringUtils;
 
@@ -29,6 +31,12 @@ public class SettingsPanel extends JPanel {
   private final JTextField txtHost = new JTextField();
   private final JSpinner spinPort = new JIntegerSpinner(8080, 0, 65535, 1);
   private final JCheckBox chkParallel = new JCheckBox(MessageStrings.PARALLEL_PULLS);
+  private final JCheckBox chkParallelExports = new JCheckBox(MessageStrings.PARALLEL_EXPORTS);
+  private final JCheckBox chkLinkMediaExports = new JCheckBox(MessageStrings.LINK_MEDIA_EXPORTS);
+  private final JSpinner spinMaxPullConnections = new JSpinner(new SpinnerNumberModel(
+      BriefcasePreferences.getBriefcaseMaxPullConnectionsProperty(), 1, 32, 1));
+  private final JSpinner spinMaxConcurrentExports = new JSpinner(new SpinnerNumberModel(
+      BriefcasePreferences.getBriefcaseMaxConcurrentExportsProperty(), 1, 16, 1));
   private final JCheckBox chkTrackingConsent = new JCheckBox(MessageStrings.TRACKING_CONSENT);
   private final JCheckBox chkStorePasswordsConsent = new JCheckBox("Remember passwords (unencrypted)");
 
@@ -87,6 +95,23 @@ public class SettingsPanel extends JPanel {
     chkParallel.setSelected(BriefcasePreferences.getBriefcaseParallelPullsProperty());
     chkParallel.addActionListener(new ParallelPullToggleListener());
 
+    // parallel pulls open as many connections as the server copes with
+    spinMaxPullConnections.setEnabled(!chkParallel.isSelected());
+    spinMaxPullConnections.addChangeListener(e -> BriefcasePreferences.setBriefcaseMaxPullConnectionsProperty(
+        (Integer) spinMaxPullConnections.getValue()));
+
+    chkParallelExports.setSelected(BriefcasePreferences.getBriefcaseParallelExportsProperty());
+    chkParallelExports.addActionListener(new ParallelExportToggleListener());
+
+    chkLinkMediaExports.setSelected(BriefcasePreferences.getBriefcaseLinkMediaExportsProperty());
+    chkLinkMediaExports.addActionListener(new LinkMediaExportToggleListener());
+
+    spinMaxConcurrentExports.addChangeListener(e -> {
+      int maxConcurrentExports = (Integer) spinMaxConcurrentExports.getValue();
+      BriefcasePreferences.setBriefcaseMaxConcurrentExportsProperty(maxConcurrentExports);
+      ExportScheduler.get().setMaxConcurrentExports(maxConcurrentExports);
+    });
+
     chkTrackingConsent.setSelected(BriefcasePreferences.getBriefcaseTrackingConsentProperty());
     chkTrackingConsent.addActionListener(new TrackingConsentToggleListener(parentWindow.briefcaseAnalytics));
 
@@ -106,6 +131,8 @@ public class SettingsPanel extends JPanel {
     final JLabel lblBriefcaseDir = new JLabel(MessageStrings.BRIEFCASE_STORAGE_LOCATION);
     final JLabel lblHost = new JLabel(MessageStrings.PROXY_HOST);
     final JLabel lblPort = new JLabel(MessageStrings.PROXY_PORT);
+    final JLabel lblMaxPullConnections = new JLabel(MessageStrings.MAX_PULL_CONNECTIONS);
+    final JLabel lblMaxConcurrentExports = new JLabel(MessageStrings.MAX_CONCURRENT_EXPORTS);
 
     lblBriefcaseDir.setText("Storage Location");
 
@@ -126,6 +153,16 @@ public class SettingsPanel extends JPanel {
                         .addGroup(layout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING)
                             .addComponent(chkProxy)
                             .addComponent(chkParallel)
+                            .addGroup(layout.createSequentialGroup()
+                                .addComponent(lblMaxPullConnections)
+                                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                                .addComponent(spinMaxPullConnections, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE))
+                            .addComponent(chkParallelExports)
+                            .addComponent(chkLinkMediaExports)
+                            .addGroup(layout.createSequentialGroup()
+                                .addComponent(lblMaxConcurrentExports)
+                                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                                .addComponent(spinMaxConcurrentExports, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE))
                             .addComponent(chkStorePasswordsConsent)
                             .addGroup(layout.createSequentialGroup()
                                 .addGap(29, 29, 29)
@@ -152,6 +189,18 @@ public class SettingsPanel extends JPanel {
                 .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
                 .addComponent(chkParallel)
                 .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addGroup(layout.createParallelGroup(javax.swing.GroupLayout.Alignment.BASELINE)
+                    .addComponent(lblMaxPullConnections)
+                    .addComponent(spinMaxPullConnections, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE))
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addComponent(chkParallelExports)
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addComponent(chkLinkMediaExports)
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addGroup(layout.createParallelGroup(javax.swing.GroupLayout.Alignment.BASELINE)
+                    .addComponent(lblMaxConcurrentExports)
+                    .addComponent(spinMaxConcurrentExports, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE))
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
                 .addComponent(chkStorePasswordsConsent)
                 .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
                 .addComponent(chkProxy)
@@ -236,6 +285,27 @@ public class SettingsPanel extends JPanel {
       if (e.getSource() == chkParallel) {
         BriefcasePreferences.setBriefcaseParallelPullsProperty(
             !BriefcasePreferences.getBriefcaseParallelPullsProperty());
+        spinMaxPullConnections.setEnabled(!chkParallel.isSelected());
+      }
+    }
+  }
+
+  private class ParallelExportToggleListener implements ActionListener {
+    @Override
+    public void actionPerformed(ActionEvent e) {
+      if (e.getSource() == chkParallelExports) {
+        BriefcasePreferences.setBriefcaseParallelExportsProperty(
+            !BriefcasePreferences.getBriefcaseParallelExportsProperty());
+      }
+    }
+  }
+
+  private class LinkMediaExportToggleListener implements ActionListener {
+    @Override
+    public void actionPerformed(ActionEvent e) {
+      if (e.getSource() == chkLinkMediaExports) {
+        BriefcasePreferences.setBriefcaseLinkMediaExportsProperty(
+            !BriefcasePreferences.getBriefcaseLinkMediaExportsProperty());
       }
     }
   }
@@ -23,7 +23,10 @@ import static org.opendatakit.briefcase.model.FormStatus.TransferType.EXPORT;
 import static org.opendatakit.briefcase.ui.ODKOptionPane.showErrorDialog;
 
 import java.time.LocalDateTime;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import javax.swing.SwingUtilities;
 import org.bushe.swing.event.annotation.AnnotationProcessor;
 import org.bushe.swing.event.annotation.EventSubscriber;
 import org.opendatakit.briefcase.export.ExportConfiguration;
@@ -90,13 +93,15 @@ public class ExportPanel {
 
 
     form.onExport(() -> new Thread(() -> {
+      // preparing the exports reads the forms and their submissions, so it
+      // stays off the event thread, as do the exports on the export scheduler
       List<String> errors = export();
       if (!errors.isEmpty()) {
         String message = String.format(
             "%s\n\n%s", "We have found some errors while performing the requested export actions:",
             errors.stream().map(e -> "- " + e).collect(joining("\n"))
         );
-        showErrorDialog(form.getContainer(), message, "Export error report");
+        SwingUtilities.invokeLater(() -> showErrorDialog(form.getContainer(), message, "Export error report"));
       }
     }).start());
   }
@@ -132,11 +137,12 @@ public class ExportPanel {
   private List<String> export() {
     form.disableUI();
     terminationFuture.reset();
-    List<String> errors = forms.getSelectedForms().parallelStream()
+    Map<BriefcaseFormDefinition, ExportConfiguration> selectedForms = new LinkedHashMap<>();
+    forms.getSelectedForms().stream()
         .peek(FormStatus::clearStatusHistory)
         .map(formStatus -> (BriefcaseFormDefinition) formStatus.getFormDefinition())
-        .flatMap(formDefinition -> ExportAction.export(formDefinition, forms.getConfiguration(formDefinition.getFormId()), terminationFuture).stream())
-        .collect(toList());
+        .forEach(formDefinition -> selectedForms.put(formDefinition, forms.getConfiguration(formDefinition.getFormId())));
+    List<String> errors = ExportAction.export(selectedForms, terminationFuture);
     form.enableUI();
     return errors;
   }
@@ -32,6 +32,13 @@ public class ConfigurationPanel {
     configuration.ifPemFilePresent(form::setPemFile);
     configuration.ifStartDatePresent(form::setStartDate);
     configuration.ifEndDatePresent(form::setEndDate);
+    configuration.ifIncrementalPresent(form::setIncremental);
+    configuration.ifExportTypePresent(form::setExportType);
+    configuration.ifJdbcUrlPresent(form::setJdbcUrl);
+    configuration.ifColumnsPresent(form::setColumns);
+    configuration.ifFilterPresent(form::setFilter);
+    configuration.ifAdditionalExportTypesPresent(form::setAdditionalExportTypes);
+    configuration.ifPartitioningPresent(form::setPartitioning);
 
     form.onSelectExportDir(path -> {
       configuration.setExportDir(path);
@@ -49,6 +56,34 @@ public class ConfigurationPanel {
       configuration.setEndDate(date);
       triggerOnChange();
     });
+    form.onChangeIncremental(value -> {
+      configuration.setIncremental(value);
+      triggerOnChange();
+    });
+    form.onSelectExportType(value -> {
+      configuration.setExportType(value);
+      triggerOnChange();
+    });
+    form.onChangeJdbcUrl(value -> {
+      configuration.setJdbcUrl(value);
+      triggerOnChange();
+    });
+    form.onChangeColumns(value -> {
+      configuration.setColumns(value);
+      triggerOnChange();
+    });
+    form.onChangeFilter(value -> {
+      configuration.setFilter(value);
+      triggerOnChange();
+    });
+    form.onChangeAdditionalExportTypes(value -> {
+      configuration.setAdditionalExportTypes(value);
+      triggerOnChange();
+    });
+    form.onChangePartitioning(value -> {
+      configuration.setPartitioning(value);
+      triggerOnChange();
+    });
   }
 
   public static ConfigurationPanel from(ExportConfiguration config, boolean cleanableExportDir) {
@@ -35,12 +35,20 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
 import java.util.function.Consumer;
+import java.util.stream.Collectors;
 import javax.swing.JButton;
+import javax.swing.DefaultComboBoxModel;
+import javax.swing.JCheckBox;
+import javax.swing.JComboBox;
 import javax.swing.JComponent;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
 import javax.swing.JTextField;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 
+import org.opendatakit.briefcase.export.ExportConfiguration;
+import org.opendatakit.briefcase.model.ExportType;
 import org.opendatakit.briefcase.ui.reused.FileChooser;
 import org.opendatakit.briefcase.util.StringUtils;
 
@@ -61,10 +69,31 @@ public class ConfigurationPanelForm extends JComponent {
   protected JButton pemFileClearButton;
   private JPanel exportDirButtons;
   private JButton exportDirCleanButton;
+  private JLabel incrementalLabel;
+  protected JCheckBox incrementalField;
+  private JLabel exportTypeLabel;
+  protected JComboBox<ExportType> exportTypeField;
+  private JLabel jdbcUrlLabel;
+  protected JTextField jdbcUrlField;
+  private JLabel columnsLabel;
+  protected JTextField columnsField;
+  private JLabel filterLabel;
+  protected JTextField filterField;
+  private JLabel additionalExportTypesLabel;
+  protected JTextField additionalExportTypesField;
+  private JLabel partitioningLabel;
+  protected JTextField partitioningField;
   private final List<Consumer<Path>> onSelectExportDirCallbacks = new ArrayList<>();
   private final List<Consumer<Path>> onSelectPemFileCallbacks = new ArrayList<>();
   private final List<Consumer<LocalDate>> onSelectStartDateCallbacks = new ArrayList<>();
   private final List<Consumer<LocalDate>> onSelectEndDateCallbacks = new ArrayList<>();
+  private final List<Consumer<Boolean>> onChangeIncrementalCallbacks = new ArrayList<>();
+  private final List<Consumer<ExportType>> onSelectExportTypeCallbacks = new ArrayList<>();
+  private final List<Consumer<String>> onChangeJdbcUrlCallbacks = new ArrayList<>();
+  private final List<Consumer<List<String>>> onChangeColumnsCallbacks = new ArrayList<>();
+  private final List<Consumer<String>> onChangeFilterCallbacks = new ArrayList<>();
+  private final List<Consumer<List<ExportType>>> onChangeAdditionalExportTypesCallbacks = new ArrayList<>();
+  private final List<Consumer<String>> onChangePartitioningCallbacks = new ArrayList<>();
   private boolean clearableExportDir;
 
   ConfigurationPanelForm(boolean clearableExportDir) {
@@ -97,6 +126,110 @@ public class ConfigurationPanelForm extends JComponent {
       startDatePicker.getSettings().setDateRangeLimits(null, event.getNewDate());
       onSelectEndDateCallbacks.forEach(consumer -> consumer.accept(event.getNewDate()));
     });
+
+    incrementalField.addActionListener(__ ->
+        onChangeIncrementalCallbacks.forEach(consumer -> consumer.accept(incrementalField.isSelected()))
+    );
+
+    exportTypeField.addActionListener(__ ->
+        onSelectExportTypeCallbacks.forEach(consumer -> consumer.accept((ExportType) exportTypeField.getSelectedItem()))
+    );
+
+    jdbcUrlField.getDocument().addDocumentListener(new DocumentListener() {
+      @Override
+      public void insertUpdate(DocumentEvent e) {
+        onChangeJdbcUrlCallbacks.forEach(consumer -> consumer.accept(jdbcUrlField.getText()));
+      }
+
+      @Override
+      public void removeUpdate(DocumentEvent e) {
+        onChangeJdbcUrlCallbacks.forEach(consumer -> consumer.accept(jdbcUrlField.getText()));
+      }
+
+      @Override
+      public void changedUpdate(DocumentEvent e) {
+        // plain text fields don't fire these
+      }
+    });
+
+    columnsField.getDocument().addDocumentListener(new DocumentListener() {
+      @Override
+      public void insertUpdate(DocumentEvent e) {
+        onChangeColumnsCallbacks.forEach(consumer -> consumer.accept(ExportConfiguration.parseColumns(columnsField.getText())));
+      }
+
+      @Override
+      public void removeUpdate(DocumentEvent e) {
+        onChangeColumnsCallbacks.forEach(consumer -> consumer.accept(ExportConfiguration.parseColumns(columnsField.getText())));
+      }
+
+      @Override
+      public void changedUpdate(DocumentEvent e) {
+        // plain text fields don't fire these
+      }
+    });
+
+    filterField.getDocument().addDocumentListener(new DocumentListener() {
+      @Override
+      public void insertUpdate(DocumentEvent e) {
+        onChangeFilterCallbacks.forEach(consumer -> consumer.accept(filterField.getText()));
+      }
+
+      @Override
+      public void removeUpdate(DocumentEvent e) {
+        onChangeFilterCallbacks.forEach(consumer -> consumer.accept(filterField.getText()));
+      }
+
+      @Override
+      public void changedUpdate(DocumentEvent e) {
+        // plain text fields don't fire these
+      }
+    });
+
+    additionalExportTypesField.getDocument().addDocumentListener(new DocumentListener() {
+      @Override
+      public void insertUpdate(DocumentEvent e) {
+        triggerChangeAdditionalExportTypes();
+      }
+
+      @Override
+      public void removeUpdate(DocumentEvent e) {
+        triggerChangeAdditionalExportTypes();
+      }
+
+      @Override
+      public void changedUpdate(DocumentEvent e) {
+        // plain text fields don't fire these
+      }
+    });
+
+    partitioningField.getDocument().addDocumentListener(new DocumentListener() {
+      @Override
+      public void insertUpdate(DocumentEvent e) {
+        onChangePartitioningCallbacks.forEach(consumer -> consumer.accept(partitioningField.getText()));
+      }
+
+      @Override
+      public void removeUpdate(DocumentEvent e) {
+        onChangePartitioningCallbacks.forEach(consumer -> consumer.accept(partitioningField.getText()));
+      }
+
+      @Override
+      public void changedUpdate(DocumentEvent e) {
+        // plain text fields don't fire these
+      }
+    });
+  }
+
+  private void triggerChangeAdditionalExportTypes() {
+    List<ExportType> types;
+    try {
+      types = ExportConfiguration.parseExportTypes(additionalExportTypesField.getText());
+    } catch (IllegalArgumentException e) {
+      // keep the last valid types while a name is being typed
+      return;
+    }
+    onChangeAdditionalExportTypesCallbacks.forEach(consumer -> consumer.accept(types));
   }
 
   @Override
@@ -154,6 +287,41 @@ public class ConfigurationPanelForm extends JComponent {
     endDatePicker.setDate(LocalDate.of(date.getYear(), date.getMonthValue(), date.getDayOfMonth()));
   }
 
+  void setIncremental(boolean value) {
+    incrementalField.setSelected(value);
+    onChangeIncrementalCallbacks.forEach(consumer -> consumer.accept(value));
+  }
+
+  void setExportType(ExportType value) {
+    // Route the change through the combo box to avoid repeated set calls
+    exportTypeField.setSelectedItem(value);
+  }
+
+  void setJdbcUrl(String value) {
+    // Route the change through the text field to avoid repeated set calls
+    jdbcUrlField.setText(value);
+  }
+
+  void setColumns(List<String> value) {
+    // Route the change through the text field to avoid repeated set calls
+    columnsField.setText(String.join(",", value));
+  }
+
+  void setFilter(String value) {
+    // Route the change through the text field to avoid repeated set calls
+    filterField.setText(value);
+  }
+
+  void setAdditionalExportTypes(List<ExportType> value) {
+    // Route the change through the text field to avoid repeated set calls
+    additionalExportTypesField.setText(value.stream().map(type -> type.name().toLowerCase()).collect(Collectors.joining(",")));
+  }
+
+  void setPartitioning(String value) {
+    // Route the change through the text field to avoid repeated set calls
+    partitioningField.setText(value);
+  }
+
   void onSelectExportDir(Consumer<Path> callback) {
     onSelectExportDirCallbacks.add(callback);
   }
@@ -170,6 +338,34 @@ public class ConfigurationPanelForm extends JComponent {
     onSelectEndDateCallbacks.add(callback);
   }
 
+  void onChangeIncremental(Consumer<Boolean> callback) {
+    onChangeIncrementalCallbacks.add(callback);
+  }
+
+  void onSelectExportType(Consumer<ExportType> callback) {
+    onSelectExportTypeCallbacks.add(callback);
+  }
+
+  void onChangeJdbcUrl(Consumer<String> callback) {
+    onChangeJdbcUrlCallbacks.add(callback);
+  }
+
+  void onChangeColumns(Consumer<List<String>> callback) {
+    onChangeColumnsCallbacks.add(callback);
+  }
+
+  void onChangeFilter(Consumer<String> callback) {
+    onChangeFilterCallbacks.add(callback);
+  }
+
+  void onChangeAdditionalExportTypes(Consumer<List<ExportType>> callback) {
+    onChangeAdditionalExportTypesCallbacks.add(callback);
+  }
+
+  void onChangePartitioning(Consumer<String> callback) {
+    onChangePartitioningCallbacks.add(callback);
+  }
+
   private void createUIComponents() {
     // Custom creation of components occurs inside the constructor
   }
@@ -337,6 +533,169 @@ public class ConfigurationPanelForm extends JComponent {
     exportDirCleanButton.setText("Clear");
     exportDirCleanButton.setVisible(false);
     exportDirButtons.add(exportDirCleanButton);
+    incrementalLabel = new JLabel();
+    incrementalLabel.setText("Incremental");
+    gbc = new GridBagConstraints();
+    gbc.gridx = 0;
+    gbc.gridy = 4;
+    gbc.anchor = GridBagConstraints.EAST;
+    container.add(incrementalLabel, gbc);
+    final JPanel spacer5 = new JPanel();
+    gbc = new GridBagConstraints();
+    gbc.gridx = 1;
+    gbc.gridy = 4;
+    gbc.fill = GridBagConstraints.HORIZONTAL;
+    container.add(spacer5, gbc);
+    incrementalField = new JCheckBox();
+    incrementalField.setText("Export only new submissions");
+    gbc = new GridBagConstraints();
+    gbc.gridx = 2;
+    gbc.gridy = 4;
+    gbc.gridwidth = 2;
+    gbc.anchor = GridBagConstraints.WEST;
+    container.add(incrementalField, gbc);
+    exportTypeLabel = new JLabel();
+    exportTypeLabel.setText("Export format");
+    gbc = new GridBagConstraints();
+    gbc.gridx = 0;
+    gbc.gridy = 5;
+    gbc.anchor = GridBagConstraints.EAST;
+    container.add(exportTypeLabel, gbc);
+    final JPanel spacer6 = new JPanel();
+    gbc = new GridBagConstraints();
+    gbc.gridx = 1;
+    gbc.gridy = 5;
+    gbc.fill = GridBagConstraints.HORIZONTAL;
+    container.add(spacer6, gbc);
+    exportTypeField = new JComboBox();
+    final DefaultComboBoxModel defaultComboBoxModel1 = new DefaultComboBoxModel(ExportType.values());
+    exportTypeField.setModel(defaultComboBoxModel1);
+    gbc = new GridBagConstraints();
+    gbc.gridx = 2;
+    gbc.gridy = 5;
+    gbc.gridwidth = 2;
+    gbc.anchor = GridBagConstraints.WEST;
+    container.add(exportTypeField, gbc);
+    jdbcUrlLabel = new JLabel();
+    jdbcUrlLabel.setText("JDBC URL");
+    gbc = new GridBagConstraints();
+    gbc.gridx = 0;
+    gbc.gridy = 6;
+    gbc.anchor = GridBagConstraints.EAST;
+    container.add(jdbcUrlLabel, gbc);
+    final JPanel spacer7 = new JPanel();
+    gbc = new GridBagConstraints();
+    gbc.gridx = 1;
+    gbc.gridy = 6;
+    gbc.fill = GridBagConstraints.HORIZONTAL;
+    container.add(spacer7, gbc);
+    jdbcUrlField = new JTextField();
+    jdbcUrlField.setName("jdbcUrl");
+    jdbcUrlField.setToolTipText("Database exports only. Leave empty to create an HSQLDB database in the export directory");
+    gbc = new GridBagConstraints();
+    gbc.gridx = 2;
+    gbc.gridy = 6;
+    gbc.gridwidth = 2;
+    gbc.weightx = 1.0;
+    gbc.anchor = GridBagConstraints.WEST;
+    gbc.fill = GridBagConstraints.HORIZONTAL;
+    container.add(jdbcUrlField, gbc);
+    columnsLabel = new JLabel();
+    columnsLabel.setText("Columns");
+    gbc = new GridBagConstraints();
+    gbc.gridx = 0;
+    gbc.gridy = 7;
+    gbc.anchor = GridBagConstraints.EAST;
+    container.add(columnsLabel, gbc);
+    final JPanel spacer8 = new JPanel();
+    gbc = new GridBagConstraints();
+    gbc.gridx = 1;
+    gbc.gridy = 7;
+    gbc.fill = GridBagConstraints.HORIZONTAL;
+    container.add(spacer8, gbc);
+    columnsField = new JTextField();
+    columnsField.setName("columns");
+    columnsField.setToolTipText("Comma separated full names of the fields to export, as in the csv headers. Leave empty to export all of them");
+    gbc = new GridBagConstraints();
+    gbc.gridx = 2;
+    gbc.gridy = 7;
+    gbc.gridwidth = 2;
+    gbc.weightx = 1.0;
+    gbc.anchor = GridBagConstraints.WEST;
+    gbc.fill = GridBagConstraints.HORIZONTAL;
+    container.add(columnsField, gbc);
+    filterLabel = new JLabel();
+    filterLabel.setText("Filter");
+    gbc = new GridBagConstraints();
+    gbc.gridx = 0;
+    gbc.gridy = 8;
+    gbc.anchor = GridBagConstraints.EAST;
+    container.add(filterLabel, gbc);
+    final JPanel spacer9 = new JPanel();
+    gbc = new GridBagConstraints();
+    gbc.gridx = 1;
+    gbc.gridy = 8;
+    gbc.fill = GridBagConstraints.HORIZONTAL;
+    container.add(spacer9, gbc);
+    filterField = new JTextField();
+    filterField.setName("filter");
+    filterField.setToolTipText("Export only the submissions matching conditions on root attributes (@name) or top-level fields, separated by ;, such as @version=2;deviceid!=imei:123|imei:456");
+    gbc = new GridBagConstraints();
+    gbc.gridx = 2;
+    gbc.gridy = 8;
+    gbc.gridwidth = 2;
+    gbc.weightx = 1.0;
+    gbc.anchor = GridBagConstraints.WEST;
+    gbc.fill = GridBagConstraints.HORIZONTAL;
+    container.add(filterField, gbc);
+    additionalExportTypesLabel = new JLabel();
+    additionalExportTypesLabel.setText("Also export as");
+    gbc = new GridBagConstraints();
+    gbc.gridx = 0;
+    gbc.gridy = 9;
+    gbc.anchor = GridBagConstraints.EAST;
+    container.add(additionalExportTypesLabel, gbc);
+    final JPanel spacer10 = new JPanel();
+    gbc = new GridBagConstraints();
+    gbc.gridx = 1;
+    gbc.gridy = 9;
+    gbc.fill = GridBagConstraints.HORIZONTAL;
+    container.add(spacer10, gbc);
+    additionalExportTypesField = new JTextField();
+    additionalExportTypesField.setName("additionalExportTypes");
+    additionalExportTypesField.setToolTipText("Comma separated formats to export along with the chosen one, reading the submissions once: csv, database or json_lines");
+    gbc = new GridBagConstraints();
+    gbc.gridx = 2;
+    gbc.gridy = 9;
+    gbc.gridwidth = 2;
+    gbc.weightx = 1.0;
+    gbc.anchor = GridBagConstraints.WEST;
+    gbc.fill = GridBagConstraints.HORIZONTAL;
+    container.add(additionalExportTypesField, gbc);
+    partitioningLabel = new JLabel();
+    partitioningLabel.setText("Split files");
+    gbc = new GridBagConstraints();
+    gbc.gridx = 0;
+    gbc.gridy = 10;
+    gbc.anchor = GridBagConstraints.EAST;
+    container.add(partitioningLabel, gbc);
+    final JPanel spacer11 = new JPanel();
+    gbc = new GridBagConstraints();
+    gbc.gridx = 1;
+    gbc.gridy = 10;
+    gbc.fill = GridBagConstraints.HORIZONTAL;
+    container.add(spacer11, gbc);
+    partitioningField = new JTextField();
+    partitioningField.setName("partitioning");
+    partitioningField.setToolTipText("Split the csv files by submission month or day, every number of submissions or once they reach a size, such as month,rows=100000,size=1g. Leave empty to write a single file");
+    gbc = new GridBagConstraints();
+    gbc.gridx = 2;
+    gbc.gridy = 10;
+    gbc.gridwidth = 2;
+    gbc.weightx = 1.0;
+    gbc.anchor = GridBagConstraints.WEST;
+    gbc.fill = GridBagConstraints.HORIZONTAL;
+    container.add(partitioningField, gbc);
   }
 
   /**
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2018 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.briefcase.util;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Adapts how many requests to a server are in flight at once to what the
+ * server and the link can take, the way TCP congestion control does.
+ * <p>
+ * The window of requests starts small and doubles every round trip until
+ * the first sign of congestion, and from then on grows by one request every
+ * window of requests that go well. It's halved when a request fails with a
+ * server error or times out, or when the latency of the requests climbs well
+ * over the lowest one among the last ones: by then the server is queueing
+ * requests, and with the window full, each request taking longer means
+ * fewer of them complete per second. It's halved once per round trip at
+ * most, as the requests in flight all saw the same congestion, and never
+ * goes over the given ceiling.
+ * <p>
+ * The lowest latency is only taken over the last requests, so that a single
+ * fast one, or a server that got slower for good, doesn't keep the window
+ * small for the rest of the pull.
+ */
+class AdaptiveConcurrencyLimit {
+
+  /** How many times the lowest latency the requests can take before it's congestion */
+  private static final double LATENCY_TOLERANCE = 2.0;
+  /** How much the latency can go over the lowest one anyway, as it's just noise on fast links */
+  private static final double LATENCY_MARGIN_MILLIS = 100;
+  /** The weight of each request in the smoothed latency */
+  private static final double SMOOTHING = 0.1;
+  /** How many of the last requests the lowest latency is taken over */
+  private static final int LATENCY_SAMPLES = 50;
+
+  enum Outcome {
+    /** The request succeeded */
+    SUCCESS,
+    /** The request succeeded, but took as long as its download was big, so its latency tells nothing */
+    TRANSFER,
+    /** The request failed with a server error or timed out */
+    OVERLOAD,
+    /** The request failed for some other reason, which has nothing to do with the load */
+    FAILURE
+  }
+
+  private final int ceiling;
+  private final LongSupplier nanoTime;
+  private double window;
+  private boolean slowStart = true;
+  private int inFlight = 0;
+  /** The latencies of the last requests, oldest overwritten first */
+  private final double[] latencySamples = new double[LATENCY_SAMPLES];
+  private int latencyCount = 0;
+  private int nextLatencySample = 0;
+  private double smoothedLatencyMillis = 0;
+  /** When the window was last halved, so that requests started before don't halve it again */
+  private long lastDecrease = Long.MIN_VALUE;
+
+  /**
+   * @param ceiling the most requests ever in flight at once
+   */
+  AdaptiveConcurrencyLimit(int ceiling) {
+    this(ceiling, System::nanoTime);
+  }
+
+  /**
+   * @param nanoTime the clock the latency of the requests is measured with
+   */
+  AdaptiveConcurrencyLimit(int ceiling, LongSupplier nanoTime) {
+    this.ceiling = Math.max(1, ceiling);
+    this.nanoTime = nanoTime;
+    this.window = Math.min(this.ceiling, 2);
+  }
+
+  /**
+   * Waits until the window has room for another request.
+   *
+   * @return the start of the request, to be given back to {@link #release}
+   */
+  synchronized long acquire() {
+    boolean interrupted = false;
+    while (inFlight >= (int) window) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        // cancellations go through the termination future
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    inFlight++;
+    return nanoTime.getAsLong();
+  }
+
+  /**
+   * Records how a request went, adapting the window to it.
+   *
+   * @param start what {@link #acquire} returned for the request
+   */
+  synchronized void release(long start, Outcome outcome) {
+    boolean windowLimited = inFlight >= (int) window;
+    inFlight--;
+    long now = nanoTime.getAsLong();
+
+    switch (outcome) {
+    case OVERLOAD:
+      decrease(start, now);
+      break;
+    case SUCCESS:
+      double latencyMillis = (now - start) / 1e6;
+      double minLatencyMillis = recordLatency(latencyMillis);
+      smoothedLatencyMillis = smoothedLatencyMillis == 0
+          ? latencyMillis
+          : smoothedLatencyMillis + SMOOTHING * (latencyMillis - smoothedLatencyMillis);
+      if (smoothedLatencyMillis > Math.max(minLatencyMillis * LATENCY_TOLERANCE, minLatencyMillis + LATENCY_MARGIN_MILLIS)) {
+        decrease(start, now);
+      } else if (windowLimited) {
+        increase();
+      }
+      break;
+    case TRANSFER:
+      if (windowLimited) {
+        increase();
+      }
+      break;
+    default:
+      break;
+    }
+    notifyAll();
+  }
+
+  /**
+   * Keeps the latency of a request among the last ones.
+   *
+   * @return the lowest latency among the last requests
+   */
+  private double recordLatency(double latencyMillis) {
+    latencySamples[nextLatencySample] = latencyMillis;
+    nextLatencySample = (nextLatencySample + 1) % LATENCY_SAMPLES;
+    latencyCount = Math.min(latencyCount + 1, LATENCY_SAMPLES);
+    double min = Double.MAX_VALUE;
+    for (int i = 0; i < latencyCount; i++) {
+      min = Math.min(min, latencySamples[i]);
+    }
+    return min;
+  }
+
+  private void increase() {
+    // only while the window is in use, or it would grow past what's been tried
+    window = Math.min(ceiling, slowStart ? window + 1 : window + 1 / window);
+  }
+
+  private void decrease(long start, long now) {
+    if (start > lastDecrease) {
+      window = Math.max(1, window / 2);
+      slowStart = false;
+      lastDecrease = now;
+    }
+  }
+
+  /**
+   * How many requests can be in flight at once at the moment.
+   */
+  synchronized int getWindow() {
+    return (int) window;
+  }
+}
@@ -53,12 +53,14 @@ import org.opendatakit.briefcase.model.DocumentDescription;
 import org.opendatakit.briefcase.model.FormStatus;
 import org.opendatakit.briefcase.model.FormStatusEvent;
 import org.opendatakit.briefcase.model.MetadataUpdateException;
+import org.opendatakit.briefcase.model.ParsingException;
 import org.opendatakit.briefcase.model.ServerConnectionInfo;
 import org.opendatakit.briefcase.model.TerminationFuture;
 import org.opendatakit.briefcase.model.TransmissionException;
 import org.opendatakit.briefcase.model.XmlDocumentFetchException;
 import org.opendatakit.briefcase.util.ServerUploader.SubmissionResponseAction;
 import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
 
 public class AggregateUtils {
 
@@ -74,6 +76,14 @@ public class AggregateUtils {
     void doAction(DocumentFetchResult result) throws MetadataUpdateException;
   }
 
+  /**
+   * Reads the xml body of a response as it arrives, see
+   * {@link AggregateUtils#streamXmlDocument}.
+   */
+  public static interface ResponseReader<T> {
+    T read(XmlPullParser parser) throws XmlPullParserException, IOException, ParsingException;
+  }
+
   public static class DocumentFetchResult {
     public final Document doc;
     public final boolean isOpenRosaResponse;
@@ -134,7 +144,7 @@ public class AggregateUtils {
             + response.getStatusLine().getReasonPhrase() + " (" + statusCode + ")";
         log.error(errMsg);
         flushEntityBytes(response.getEntity());
-        throw new TransmissionException(errMsg);
+        throw new TransmissionException(errMsg, statusCode);
       }
 
       // write connection to file
@@ -193,6 +203,28 @@ public class AggregateUtils {
         description, action);
   }
 
+  /**
+   * Like {@link #getXmlDocument}, but hands the body of the response to the
+   * reader as it arrives instead of parsing it whole, so that big documents
+   * are never held in memory.
+   */
+  public static final <T> T streamXmlDocument(String urlString, ServerConnectionInfo serverInfo,
+      DocumentDescription description, ResponseReader<T> reader) throws XmlDocumentFetchException {
+    URI u;
+    try {
+      u = new URL(urlString).toURI();
+    } catch (MalformedURLException | URISyntaxException e) {
+      String msg = description.getFetchDocFailed() + "Invalid url: " + urlString + ".\nFailed with error: " + e.getMessage();
+      log.warn(msg, e);
+      throw new XmlDocumentFetchException(msg);
+    }
+
+    int[] validStatusList = { 200 };
+
+    return httpRetrieveXml(WebUtils.createOpenRosaHttpGet(u), validStatusList, serverInfo, false,
+        description, reader).body;
+  }
+
   private static final void flushEntityBytes(HttpEntity entity) {
     if (entity != null) {
       // something is amiss -- read and discard any response body.
@@ -225,6 +257,43 @@ public class AggregateUtils {
       DocumentDescription description, 
       ResponseAction action) throws XmlDocumentFetchException {
 
+    XmlResponse<Document> response = httpRetrieveXml(request, validStatusList, serverInfo,
+        alwaysResetCredentials, description, parser -> {
+          Document doc = new Document();
+          doc.parse(parser);
+          return doc;
+        });
+    DocumentFetchResult result = new DocumentFetchResult(response.body, response.isOpenRosaResponse);
+    if (action != null) {
+      try {
+        action.doAction(result);
+      } catch (MetadataUpdateException e) {
+        String msg = description.getFetchDocFailed() + "Unexpected exception: " + e;
+        log.warn(msg, e);
+        throw new XmlDocumentFetchException(msg);
+      }
+    }
+    return result;
+  }
+
+  private static class XmlResponse<T> {
+    final T body;
+    final boolean isOpenRosaResponse;
+
+    XmlResponse(T body, boolean isOpenRosaResponse) {
+      this.body = body;
+      this.isOpenRosaResponse = isOpenRosaResponse;
+    }
+  }
+
+  /**
+   * Sends the request and hands the body of the response to the reader, once
+   * the response is checked to be an xml document.
+   */
+  private static final <T> XmlResponse<T> httpRetrieveXml(HttpUriRequest request,
+      int[] validStatusList, ServerConnectionInfo serverInfo, boolean alwaysResetCredentials,
+      DocumentDescription description, ResponseReader<T> reader) throws XmlDocumentFetchException {
+
     HttpClient httpClient = WebUtils.createHttpClient();
 
     // get shared HttpContext so that authentication and cookies are retained.
@@ -263,14 +332,15 @@ public class AggregateUtils {
         if (statusCode == 400) {
           ex = new XmlDocumentFetchException(description.getFetchDocFailed() + webError + " while accessing: "
               + uri.toString() + "\nPlease verify that the " + description.getDocumentDescriptionType()
-              + " that is being uploaded is well-formed.");
+              + " that is being uploaded is well-formed.", statusCode);
         } else {
           ex = new XmlDocumentFetchException(
               description.getFetchDocFailed()
                   + webError
                   + " while accessing: "
                   + uri.toString()
-                  + "\nPlease verify that the URL, your user credentials and your permissions are all correct.");
+                  + "\nPlease verify that the URL, your user credentials and your permissions are all correct.",
+              statusCode);
         }
       } else if (entity == null) {
         log.warn("No entity body returned from: " + uri.toString() + " is not text/xml");
@@ -292,18 +362,17 @@ public class AggregateUtils {
       }
 
       // parse the xml document...
-      Document doc = null;
+      T body = null;
       try {
         InputStream is = null;
         InputStreamReader isr = null;
         try {
           is = entity.getContent();
           isr = new InputStreamReader(is, "UTF-8");
-          doc = new Document();
           KXmlParser parser = new KXmlParser();
           parser.setInput(isr);
           parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
-          doc.parse(parser);
+          body = reader.read(parser);
           isr.close();
         } finally {
           if (isr != null) {
@@ -323,7 +392,7 @@ public class AggregateUtils {
         }
       } catch (Exception e) {
         log.warn("Parsing failed with " + e.getMessage(), e);
-        throw new XmlDocumentFetchException(description.getFetchDocFailed() + " while accessing: " + uri.toString());
+        throw new XmlDocumentFetchException(description.getFetchDocFailed() + " while accessing: " + uri.toString(), e);
       }
 
       // examine header fields...
@@ -378,19 +447,15 @@ public class AggregateUtils {
           throw new XmlDocumentFetchException(msg);
         }
       }
-      DocumentFetchResult result = new DocumentFetchResult(doc, isOR);
-      if (action != null) {
-        action.doAction(result);
-      }
-      return result;
+      return new XmlResponse<T>(body, isOR);
     } catch (UnknownHostException e) {
       String msg = description.getFetchDocFailed() + "Unknown host: " + e.getMessage();
       log.warn(msg, e);
       throw new XmlDocumentFetchException(msg);
-    } catch (IOException | MetadataUpdateException e) {
+    } catch (IOException e) {
       String msg = description.getFetchDocFailed() + "Unexpected exception: " + e;
       log.warn(msg, e);
-      throw new XmlDocumentFetchException(msg);
+      throw new XmlDocumentFetchException(msg, e);
     }
   }
 
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2018 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.briefcase.util;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.bushe.swing.event.EventBus;
+import org.opendatakit.briefcase.model.BriefcaseFormDefinition;
+import org.opendatakit.briefcase.model.ExportProgressEvent;
+import org.opendatakit.briefcase.model.FileSystemException;
+
+/**
+ * Skips an export when nothing changed since it last succeeded, as when it's
+ * run again by hand or by a schedule before new submissions arrive.
+ * <p>
+ * After an export that succeeded without skipping any submission, a
+ * fingerprint of its inputs is kept next to its outputs: the form
+ * definition, the size and modification time of the submissions and the
+ * options of the export. The size and modification time
+ * of each file the export wrote are kept along with it, so that they get
+ * written again if they are moved, edited or deleted. Database tables aren't
+ * looked at.
+ */
+class CachedExport implements ITransformFormAction {
+
+  private static final Log log = LogFactory.getLog(CachedExport.class);
+
+  private final File outputDir;
+  private final String baseFilename;
+  private final ITransformFormAction export;
+  private final String options;
+  private boolean upToDate = false;
+
+  /**
+   * @param baseFilename the name the export gives its outputs, after which
+   *                     the fingerprint is named
+   * @param options      everything, besides the submissions, that changes
+   *                     what the export writes
+   */
+  CachedExport(File outputDir, String baseFilename, ITransformFormAction export, String options) {
+    this.outputDir = outputDir;
+    this.baseFilename = StringUtils.stripIllegalChars(baseFilename);
+    this.export = export;
+    this.options = options;
+  }
+
+  static File fileFor(File outputDir, String baseFilename) {
+    return new File(outputDir, "." + baseFilename + ".fingerprint");
+  }
+
+  @Override
+  public boolean doAction() {
+    BriefcaseFormDefinition lfd = export.getFormDefinition();
+    File fingerprintFile = fileFor(outputDir, baseFilename);
+
+    String inputs;
+    try {
+      inputs = inputsFingerprint(lfd);
+    } catch (IOException | FileSystemException e) {
+      log.warn("unable to fingerprint the submissions, exporting them anyway", e);
+      return export.doAction();
+    }
+
+    try {
+      if (fingerprintFile.exists()) {
+        List<String> saved = Files.readAllLines(fingerprintFile.toPath(), UTF_8);
+        if (!saved.isEmpty() && saved.get(0).equals(inputs)
+            && outputsUnchanged(saved.subList(1, saved.size()))) {
+          upToDate = true;
+          EventBus.publish(new ExportProgressEvent("Nothing changed since the last export, it's up to date", lfd));
+          return true;
+        }
+      }
+      // a failed or cancelled export is never taken for up to date
+      Files.deleteIfExists(fingerprintFile.toPath());
+    } catch (IOException e) {
+      log.warn("unable to read the fingerprint of the last export", e);
+    }
+
+    boolean successful = export.doAction();
+
+    // submissions skipped for a wrong key or a missing file must be tried
+    // again by the next export
+    if (successful && export.totalFilesSkipped() == FilesSkipped.NONE) {
+      try {
+        StringBuilder fingerprint = new StringBuilder(inputs).append('\n');
+        for (File output : export.getOutputFiles()) {
+          fingerprint.append(describe(output.getName())).append('\n');
+        }
+        save(fingerprintFile, fingerprint.toString());
+      } catch (IOException e) {
+        // the next export just won't be skipped
+        log.warn("unable to save the fingerprint of the export", e);
+      }
+    }
+    return successful;
+  }
+
+  /**
+   * A digest of the options, the form definition and the size and
+   * modification time of the files of every submission. The submissions
+   * themselves aren't read.
+   */
+  private String inputsFingerprint(BriefcaseFormDefinition lfd) throws IOException, FileSystemException {
+    MessageDigest digest = newDigest();
+    update(digest, options);
+    update(digest, FileSystemUtils.getMd5Hash(lfd.getFormDefinitionFile()));
+    File instancesDir = FileSystemUtils.getFormInstancesDirectory(lfd.getFormDirectory());
+    File[] instances = instancesDir.listFiles(File::isDirectory);
+    if (instances == null) {
+      throw new IOException("Unable to list the submissions in " + instancesDir.getPath());
+    }
+    Arrays.sort(instances, Comparator.comparing(File::getName));
+    for (File instanceDir : instances) {
+      File submission = new File(instanceDir, "submission.xml");
+      // media files added to a submission change the modification time of
+      // its directory
+      update(digest, instanceDir.getName() + "\t" + instanceDir.lastModified()
+          + "\t" + submission.length() + "\t" + submission.lastModified());
+    }
+    return toHex(digest);
+  }
+
+  /**
+   * Whether the files written by the last export are still as it left them,
+   * given their saved descriptions.
+   */
+  private boolean outputsUnchanged(List<String> savedOutputs) {
+    for (String saved : savedOutputs) {
+      String name = saved.substring(0, Math.max(0, saved.indexOf('\t')));
+      if (!saved.equals(describe(name))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * The name, size and modification time of an output file, which are both
+   * 0 if it doesn't exist.
+   */
+  private String describe(String name) {
+    File output = new File(outputDir, name);
+    return name + "\t" + output.length() + "\t" + output.lastModified();
+  }
+
+  private static void save(File fingerprintFile, String fingerprint) throws IOException {
+    File temp = new File(fingerprintFile.getParentFile(), fingerprintFile.getName() + ".tmp");
+    Files.write(temp.toPath(), fingerprint.getBytes(UTF_8));
+    try {
+      Files.move(temp.toPath(), fingerprintFile.toPath(), ATOMIC_MOVE, REPLACE_EXISTING);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(temp.toPath(), fingerprintFile.toPath(), REPLACE_EXISTING);
+    }
+  }
+
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is not available", e);
+    }
+  }
+
+  private static void update(MessageDigest digest, String value) {
+    digest.update(String.valueOf(value).getBytes(UTF_8));
+    digest.update((byte) '\n');
+  }
+
+  private static String toHex(MessageDigest digest) {
+    return String.format("%064x", new BigInteger(1, digest.digest()));
+  }
+
+  @Override
+  public BriefcaseFormDefinition getFormDefinition() {
+    return export.getFormDefinition();
+  }
+
+  @Override
+  public FilesSkipped totalFilesSkipped() {
+    return upToDate ? FilesSkipped.NONE : export.totalFilesSkipped();
+  }
+}
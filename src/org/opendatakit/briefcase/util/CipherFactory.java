@@ -21,8 +21,11 @@ import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
 
+import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
@@ -34,6 +37,10 @@ import org.opendatakit.briefcase.model.CryptoException;
 /**
  * Handles the initialization of Cipher objects for the decryption of submission
  * and media files.
+ * <p>
+ * Looking up a cipher costs far more than initializing it again, so each
+ * thread keeps its own ciphers and reuses them. A cipher returned by this
+ * factory is only valid until the next one is asked for on the same thread.
  * 
  * @author mitchellsundt@gmail.com
  * 
@@ -44,8 +51,16 @@ public final class CipherFactory {
   private static final String SYMMETRIC_ALGORITHM = "AES/CFB/PKCS5Padding";
   private static final int IV_BYTE_LENGTH = 16;
 
+  private static final ThreadLocal<Cipher> symmetricCiphers = new ThreadLocal<Cipher>();
+  private static final ThreadLocal<AsymmetricCipher> asymmetricCiphers = new ThreadLocal<AsymmetricCipher>();
+
+  private static final ThreadLocal<MessageDigest> fieldDigests = new ThreadLocal<MessageDigest>();
+
   private final String instanceId;
   private final SecretKeySpec symmetricKey;
+  /** Kept for the ivs of the fields, which would otherwise encode them for every field */
+  private final byte[] instanceIdBytes;
+  private final byte[] symmetricKeyBytes;
   private final byte[] ivSeedArray;
   private int ivCounter = 0;
 
@@ -53,11 +68,13 @@ public final class CipherFactory {
 
     this.instanceId = instanceId;
     symmetricKey = new SecretKeySpec(symmetricKeyBytes, SYMMETRIC_ALGORITHM);
+    this.symmetricKeyBytes = symmetricKeyBytes.clone();
     // construct the fixed portion of the iv -- the ivSeedArray
     // this is the md5 hash of the instanceID and the symmetric key
     try {
+      instanceIdBytes = instanceId.getBytes("UTF-8");
       MessageDigest md = MessageDigest.getInstance("MD5");
-      md.update(instanceId.getBytes("UTF-8"));
+      md.update(instanceIdBytes);
       md.update(symmetricKeyBytes);
       byte[] messageDigest = md.digest();
       ivSeedArray = new byte[IV_BYTE_LENGTH];
@@ -71,12 +88,30 @@ public final class CipherFactory {
     }
   }
 
+  private CipherFactory(CipherFactory other) {
+    this.instanceId = other.instanceId;
+    this.symmetricKey = other.symmetricKey;
+    this.instanceIdBytes = other.instanceIdBytes;
+    this.symmetricKeyBytes = other.symmetricKeyBytes;
+    this.ivSeedArray = other.ivSeedArray.clone();
+    this.ivCounter = other.ivCounter;
+  }
+
+  /**
+   * Returns a factory that hands out the same ciphers as this one from now
+   * on, so that files can be decrypted out of the order they were encrypted
+   * in without decrypting the symmetric key again.
+   */
+  public CipherFactory copy() {
+    return new CipherFactory(this);
+  }
+
   public Cipher getCipher(String context) throws InvalidKeyException,
       InvalidAlgorithmParameterException, NoSuchAlgorithmException, NoSuchPaddingException {
     ++ivSeedArray[ivCounter % ivSeedArray.length];
     ++ivCounter;
     IvParameterSpec baseIv = new IvParameterSpec(ivSeedArray);
-    Cipher c = Cipher.getInstance(SYMMETRIC_ALGORITHM);
+    Cipher c = symmetricCipher();
 
     c.init(Cipher.DECRYPT_MODE, symmetricKey, baseIv);
     return c;
@@ -85,18 +120,78 @@ public final class CipherFactory {
   public Cipher getCipher(String context, String fieldName) throws InvalidKeyException,
       InvalidAlgorithmParameterException, NoSuchAlgorithmException, NoSuchPaddingException,
       UnsupportedEncodingException {
-    MessageDigest md = MessageDigest.getInstance("MD5");
-    md.update(instanceId.getBytes("UTF-8"));
-    md.update(symmetricKey.getEncoded());
+    MessageDigest md = fieldDigest();
+    md.update(instanceIdBytes);
+    md.update(symmetricKeyBytes);
     md.update(fieldName.getBytes("UTF-8"));
     byte[] messageDigest = md.digest();
     for (int i = 0; i < IV_BYTE_LENGTH; ++i) {
       ivSeedArray[i] = messageDigest[(i % messageDigest.length)];
     }
     IvParameterSpec baseIv = new IvParameterSpec(ivSeedArray);
-    Cipher c = Cipher.getInstance(SYMMETRIC_ALGORITHM);
+    Cipher c = symmetricCipher();
 
     c.init(Cipher.DECRYPT_MODE, symmetricKey, baseIv);
     return c;
   }
-}
\ No newline at end of file
+
+  private static MessageDigest fieldDigest() throws NoSuchAlgorithmException {
+    MessageDigest md = fieldDigests.get();
+    if (md == null) {
+      md = MessageDigest.getInstance("MD5");
+      fieldDigests.set(md);
+    }
+    // digest() resets it, but not an update that failed halfway
+    md.reset();
+    return md;
+  }
+
+  private static Cipher symmetricCipher() throws NoSuchAlgorithmException, NoSuchPaddingException {
+    Cipher c = symmetricCiphers.get();
+    if (c == null) {
+      c = Cipher.getInstance(SYMMETRIC_ALGORITHM);
+      symmetricCiphers.set(c);
+    }
+    return c;
+  }
+
+  /**
+   * Decrypts something encrypted with the public key of a form, such as the
+   * symmetric key or the signature of a submission.
+   */
+  static byte[] decryptWithPrivateKey(PrivateKey rsaPrivateKey, byte[] encrypted) throws NoSuchAlgorithmException,
+      NoSuchPaddingException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException {
+    AsymmetricCipher holder = asymmetricCiphers.get();
+    if (holder == null) {
+      holder = new AsymmetricCipher(Cipher.getInstance(FileSystemUtils.ASYMMETRIC_ALGORITHM));
+      asymmetricCiphers.set(holder);
+    }
+    return holder.decrypt(rsaPrivateKey, encrypted);
+  }
+
+  private static class AsymmetricCipher {
+    private final Cipher cipher;
+    /** The key the cipher was last initialized with, as doFinal leaves it ready for another use */
+    private PrivateKey key;
+
+    AsymmetricCipher(Cipher cipher) {
+      this.cipher = cipher;
+    }
+
+    byte[] decrypt(PrivateKey rsaPrivateKey, byte[] encrypted) throws InvalidKeyException,
+        BadPaddingException, IllegalBlockSizeException {
+      if (key != rsaPrivateKey) {
+        key = null;
+        cipher.init(Cipher.DECRYPT_MODE, rsaPrivateKey);
+        key = rsaPrivateKey;
+      }
+      try {
+        return cipher.doFinal(encrypted);
+      } catch (BadPaddingException | IllegalBlockSizeException | RuntimeException e) {
+        // don't count on the state of the cipher after a failure
+        key = null;
+        throw e;
+      }
+    }
+  }
+}
@@ -0,0 +1,476 @@
+/*
+ * Copyright (C) 2018 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.briefcase.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Supplier;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.javarosa.core.model.instance.AbstractTreeElement;
+import org.javarosa.core.model.instance.TreeElement;
+import org.opendatakit.briefcase.model.BriefcaseFormDefinition;
+
+/**
+ * The columns of the csv files of an export, compiled once per form version
+ * from its {@link FieldPlan}: one {@link Table} for the submissions and one
+ * for every repeat group, each with its columns in order.
+ * <p>
+ * Plans are immutable, so they are cached and shared between exports and
+ * between the threads of an export. Only the plans used last are kept, as
+ * each edit of a form definition or change of the exported fields makes a
+ * new one.
+ * <p>
+ * A plan can be projected on some of the fields of the form, named by their
+ * full names from the submission down, as in the headers of the submissions
+ * file. Naming a group or a repeat group selects all of its fields. The
+ * fields left out aren't read from the submissions at all, and repeat groups
+ * left out don't get a file.
+ */
+class ColumnPlan {
+
+  private static final Log log = LogFactory.getLog(ColumnPlan.class);
+
+  /** How many plans are kept, at most */
+  private static final int CACHE_SIZE = 16;
+
+  private static final Map<String, ColumnPlan> cache = new LinkedHashMap<String, ColumnPlan>(CACHE_SIZE, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, ColumnPlan> eldest) {
+      return size() > CACHE_SIZE;
+    }
+  };
+
+  private final FieldPlan fieldPlan;
+  private final Table submissionTable;
+  private final List<Table> repeatTables;
+
+  private ColumnPlan(FieldPlan fieldPlan, Table submissionTable, List<Table> repeatTables) {
+    this.fieldPlan = fieldPlan;
+    this.submissionTable = submissionTable;
+    this.repeatTables = Collections.unmodifiableList(repeatTables);
+  }
+
+  /**
+   * Returns the plan of the given form, compiling it only the first time
+   * this version of the form definition is exported.
+   */
+  static ColumnPlan forForm(BriefcaseFormDefinition lfd) {
+    return forForm(lfd, Collections.<String>emptySet());
+  }
+
+  /**
+   * Returns the plan of the given form projected on the given fields, or of
+   * all of them if none is given.
+   */
+  static ColumnPlan forForm(BriefcaseFormDefinition lfd, Collection<String> columns) {
+    File formFile = lfd.getFormDefinitionFile();
+    Set<String> selection = new TreeSet<String>(columns);
+    String key = lfd.getFormId() + "|" + lfd.getVersionString()
+        + "|" + formFile.getAbsolutePath() + "|" + formFile.lastModified()
+        + "|" + String.join(",", selection);
+    synchronized (cache) {
+      ColumnPlan plan = cache.get(key);
+      if (plan != null) {
+        return plan;
+      }
+    }
+    // compiled outside of the lock so that exports of other forms don't wait
+    // for it, at the cost of compiling it twice once in a while
+    ColumnPlan plan = compile(lfd.getSubmissionElement(), selection);
+    synchronized (cache) {
+      cache.put(key, plan);
+    }
+    return plan;
+  }
+
+  static ColumnPlan compile(TreeElement submissionElement) {
+    return build(FieldPlan.compile(submissionElement));
+  }
+
+  static ColumnPlan compile(TreeElement submissionElement, Set<String> columns) {
+    if (columns.isEmpty()) {
+      return compile(submissionElement);
+    }
+    Set<TreeElement> included = Collections.newSetFromMap(new IdentityHashMap<TreeElement, Boolean>());
+    Set<String> found = new HashSet<String>();
+    select(submissionElement, submissionElement, false, columns, included, found);
+    for (String column : columns) {
+      if (!found.contains(column)) {
+        log.warn("the form " + submissionElement.getName() + " has no field " + column + " to export");
+      }
+    }
+    return build(FieldPlan.compile(submissionElement, included::contains));
+  }
+
+  /**
+   * Collects the elements under the given one that are selected, that are in
+   * a selected group, or that have selected elements in them.
+   *
+   * @return whether any element under the given one was collected
+   */
+  private static boolean select(TreeElement element, TreeElement submissionElement, boolean groupSelected,
+      Set<String> columns, Set<TreeElement> included, Set<String> found) {
+    boolean any = false;
+    for (int i = 0; i < element.getNumChildren(); ++i) {
+      TreeElement child = element.getChildAt(i);
+      String fullName = getFullName(child, submissionElement);
+      boolean selected = columns.contains(fullName);
+      if (selected) {
+        found.add(fullName);
+      }
+      if (select(child, submissionElement, groupSelected || selected, columns, included, found)
+          || groupSelected || selected) {
+        included.add(child);
+        any = true;
+      }
+    }
+    return any;
+  }
+
+  private static ColumnPlan build(FieldPlan fieldPlan) {
+    List<Table> repeatTables = new ArrayList<Table>();
+    Table submissionTable = compileTable(fieldPlan.getRoot(), null, repeatTables);
+    return new ColumnPlan(fieldPlan, submissionTable, repeatTables);
+  }
+
+  private static Table compileTable(FieldPlan.Node group, String name, List<Table> repeatTables) {
+    List<Column> columns = new ArrayList<Column>();
+    addColumns(group, group, new ArrayList<FieldPlan.Node>(), columns, repeatTables);
+    return new Table(group, name, columns.toArray(new Column[columns.size()]));
+  }
+
+  private static void addColumns(FieldPlan.Node primarySet, FieldPlan.Node group, List<FieldPlan.Node> groupPath,
+      List<Column> columns, List<Table> repeatTables) {
+    for (FieldPlan.Node node : group.getChildren()) {
+      String fullName = getFullName(node.element, primarySet.element);
+      switch (node.kind) {
+      case VALUE:
+        columns.add(new Column(node, groupPath, fullName, Type.of(node.element), null));
+        break;
+      case REPEAT:
+        // the table goes before the tables of its nested repeat groups
+        int index = repeatTables.size();
+        repeatTables.add(null);
+        Table table = compileTable(node, fullName, repeatTables);
+        repeatTables.set(index, table);
+        columns.add(new Column(node, groupPath, fullName, Type.REPEAT, table));
+        break;
+      case GROUP:
+        List<FieldPlan.Node> nestedPath = new ArrayList<FieldPlan.Node>(groupPath);
+        nestedPath.add(node);
+        addColumns(primarySet, node, nestedPath, columns, repeatTables);
+        break;
+      }
+    }
+  }
+
+  static String getFullName(AbstractTreeElement e, TreeElement group) {
+    List<String> names = new ArrayList<String>();
+    while (e != null && e != group) {
+      names.add(e.getName());
+      e = e.getParent();
+    }
+    StringBuilder b = new StringBuilder();
+    Collections.reverse(names);
+    boolean first = true;
+    for (String s : names) {
+      if (!first) {
+        b.append("-");
+      }
+      first = false;
+      b.append(s);
+    }
+
+    return b.toString();
+  }
+
+  FieldPlan getFieldPlan() {
+    return fieldPlan;
+  }
+
+  /**
+   * Whether any of the columns of the plan, in any table, is a media file.
+   */
+  boolean hasMediaColumns() {
+    if (submissionTable.hasMediaColumns()) {
+      return true;
+    }
+    for (Table table : repeatTables) {
+      if (table.hasMediaColumns()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  Table getSubmissionTable() {
+    return submissionTable;
+  }
+
+  /**
+   * The tables of all the repeat groups of the form, nested ones included,
+   * in the order their columns appear.
+   */
+  List<Table> getRepeatTables() {
+    return repeatTables;
+  }
+
+  /**
+   * The csv file of the submissions or of a repeat group.
+   */
+  static class Table {
+    final FieldPlan.Node group;
+    /** The full name of the repeat group, or null for the submissions. */
+    final String name;
+    private final Column[] columns;
+
+    private Table(FieldPlan.Node group, String name, Column[] columns) {
+      this.group = group;
+      this.name = name;
+      this.columns = columns;
+    }
+
+    List<Column> getColumns() {
+      return Collections.unmodifiableList(Arrays.asList(columns));
+    }
+
+    private boolean hasMediaColumns() {
+      for (Column column : columns) {
+        if (column.type == Type.BINARY) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    /**
+     * Emits the headers of the columns of this table, without the ones the
+     * export adds around them.
+     */
+    boolean emitHeaders(Appendable out, boolean first) throws IOException {
+      for (Column column : columns) {
+        first = column.type.emitHeaders(out, first, column.fullName);
+      }
+      return first;
+    }
+
+    /**
+     * Emits the cells of the columns of this table for one row, without the
+     * ones the export adds around them.
+     */
+    boolean emitRow(Row row, boolean first) throws IOException {
+      for (Column column : columns) {
+        first = column.type.emit(row, column, first);
+      }
+      return first;
+    }
+  }
+
+  /**
+   * A field of the form and where to find its value in the values of a row.
+   */
+  static class Column {
+    final FieldPlan.Node node;
+    final String fullName;
+    final Type type;
+    final boolean encryptedField;
+    /** The table of the repeat group, for repeat columns. */
+    final Table repeatTable;
+    private final FieldPlan.Node[] groupPath;
+
+    private Column(FieldPlan.Node node, List<FieldPlan.Node> groupPath, String fullName, Type type, Table repeatTable) {
+      this.node = node;
+      this.groupPath = groupPath.toArray(new FieldPlan.Node[groupPath.size()]);
+      this.fullName = fullName;
+      this.type = type;
+      this.encryptedField = JavaRosaParserWrapper.isEncryptedField(node.element);
+      this.repeatTable = repeatTable;
+    }
+
+    private Object[] groupValues(Object[] rowValues) {
+      Object[] values = rowValues;
+      for (FieldPlan.Node group : groupPath) {
+        values = group.getGroupValues(values);
+      }
+      return values;
+    }
+
+    String getRawValue(Object[] rowValues) {
+      return node.getValue(groupValues(rowValues));
+    }
+
+    List<Object[]> getRepeatValues(Object[] rowValues) {
+      return node.getRepeatValues(groupValues(rowValues));
+    }
+  }
+
+  /**
+   * The row being written, as seen by the {@link Type} of each column.
+   */
+  interface Row {
+    /**
+     * The value of the column, decrypted if needed, or null if the submission
+     * doesn't have it.
+     */
+    String getValue(Column column);
+
+    List<Object[]> getRepeatValues(Column column);
+
+    void emit(boolean first, String value) throws IOException;
+
+    void emitMedia(boolean first, String binaryFilename) throws IOException;
+
+    /**
+     * Emits the cell of a repeat group, which refers to the rows of its
+     * instances in the table of the repeat group.
+     */
+    void emitRepeat(boolean first, Column column, List<Object[]> instances) throws IOException;
+  }
+
+  /**
+   * How the columns of each data type are headed and written.
+   */
+  enum Type {
+    TEXT,
+    DATE(DateFormat::getDateInstance),
+    TIME(DateFormat::getTimeInstance),
+    DATE_TIME(DateFormat::getDateTimeInstance),
+    GEOPOINT {
+      @Override
+      boolean emitHeaders(Appendable out, boolean first, String fullName) throws IOException {
+        ExportToCsv.emitString(out, first, fullName + "-Latitude");
+        ExportToCsv.emitString(out, false, fullName + "-Longitude");
+        ExportToCsv.emitString(out, false, fullName + "-Altitude");
+        ExportToCsv.emitString(out, false, fullName + "-Accuracy");
+        return false;
+      }
+
+      @Override
+      boolean emit(Row row, Column column, boolean first) throws IOException {
+        String compositeValue = row.getValue(column);
+        compositeValue = (compositeValue == null) ? null : compositeValue.trim();
+
+        // emit separate lat, long, alt, acc columns...
+        if (compositeValue == null || compositeValue.length() == 0) {
+          for (int count = 0; count < 4; ++count) {
+            row.emit(first, null);
+            first = false;
+          }
+        } else {
+          String[] values = compositeValue.split(" ");
+          for (String value : values) {
+            row.emit(first, value);
+            first = false;
+          }
+          for (int count = values.length; count < 4; ++count) {
+            row.emit(first, null);
+            first = false;
+          }
+        }
+        return first;
+      }
+    },
+    BINARY {
+      @Override
+      boolean emit(Row row, Column column, boolean first) throws IOException {
+        String binaryFilename = row.getValue(column);
+        if (binaryFilename == null || binaryFilename.length() == 0) {
+          row.emit(first, null);
+        } else {
+          row.emitMedia(first, binaryFilename);
+        }
+        return false;
+      }
+    },
+    REPEAT {
+      @Override
+      boolean emitHeaders(Appendable out, boolean first, String fullName) throws IOException {
+        ExportToCsv.emitString(out, first, "SET-OF-" + fullName);
+        return false;
+      }
+
+      @Override
+      boolean emit(Row row, Column column, boolean first) throws IOException {
+        List<Object[]> instances = row.getRepeatValues(column);
+        if (instances == null) {
+          row.emit(first, null);
+        } else {
+          row.emitRepeat(first, column, instances);
+        }
+        return false;
+      }
+    };
+
+    private final ThreadLocal<DateFormat> formatter;
+
+    Type() {
+      this.formatter = null;
+    }
+
+    Type(Supplier<DateFormat> formatter) {
+      // DateFormat isn't thread safe, and rows are written by several threads
+      this.formatter = ThreadLocal.withInitial(formatter);
+    }
+
+    static Type of(TreeElement element) {
+      switch (element.getDataType()) {
+      case org.javarosa.core.model.Constants.DATATYPE_DATE:
+        return DATE;
+      case org.javarosa.core.model.Constants.DATATYPE_TIME:
+        return TIME;
+      case org.javarosa.core.model.Constants.DATATYPE_DATE_TIME:
+        return DATE_TIME;
+      case org.javarosa.core.model.Constants.DATATYPE_GEOPOINT:
+        return GEOPOINT;
+      case org.javarosa.core.model.Constants.DATATYPE_BINARY:
+        return BINARY;
+      default:
+        return TEXT;
+      }
+    }
+
+    boolean emitHeaders(Appendable out, boolean first, String fullName) throws IOException {
+      ExportToCsv.emitString(out, first, fullName);
+      return false;
+    }
+
+    boolean emit(Row row, Column column, boolean first) throws IOException {
+      String value = row.getValue(column);
+      if (formatter != null) {
+        value = (value == null || value.length() == 0)
+            ? null
+            : formatter.get().format(WebUtils.parseDate(value));
+      }
+      row.emit(first, value);
+      return false;
+    }
+  }
+}
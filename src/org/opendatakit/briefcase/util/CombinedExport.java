@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2018 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.briefcase.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.bushe.swing.event.EventBus;
+import org.opendatakit.briefcase.model.BriefcaseFormDefinition;
+import org.opendatakit.briefcase.model.BriefcasePreferences;
+import org.opendatakit.briefcase.model.ExportProgressEvent;
+import org.opendatakit.briefcase.model.ExportProgressPercentageEvent;
+import org.opendatakit.briefcase.model.FileSystemException;
+import org.opendatakit.briefcase.model.TerminationFuture;
+
+/**
+ * Exports a form to several outputs at once, as csv files and database
+ * tables, reading the submissions once: each submission is parsed,
+ * decrypted and has its values extracted a single time, and is then written
+ * to every output that still lacks it.
+ * <p>
+ * The outputs share the columns, the date range and the filter of the
+ * export, and the media directory of its output directory, but each one
+ * keeps its own writer and options, such as the filename or whether it's
+ * exported incrementally.
+ */
+public class CombinedExport implements ITransformFormAction {
+
+  private static final Log log = LogFactory.getLog(CombinedExport.class);
+
+  private final File outputDir;
+  private final BriefcaseFormDefinition briefcaseLfd;
+  private final TerminationFuture terminationFuture;
+  private final Date startDate;
+  private final Date endDate;
+  private final List<String> columns;
+  private final SubmissionFilter filter;
+  private final List<ExportSink> sinks = new ArrayList<ExportSink>();
+  private int totalFilesSkipped = 0;
+  private int totalInstances = 0;
+
+  /**
+   * @param columns the full names of the fields to export, or none to export them all
+   * @param filter  which submissions to export, besides the date range
+   * @param actions the exports of the form whose outputs get written, which
+   *                must all be able to share the pass over its submissions
+   * @throws IllegalArgumentException if one of the actions can only run by
+   *                                  itself or exports another form
+   */
+  public CombinedExport(File outputDir, BriefcaseFormDefinition lfd, TerminationFuture terminationFuture, Date start, Date end,
+      List<String> columns, SubmissionFilter filter, List<? extends ITransformFormAction> actions) {
+    this.outputDir = outputDir;
+    this.briefcaseLfd = lfd;
+    this.terminationFuture = terminationFuture;
+    this.startDate = start;
+    this.endDate = end;
+    this.columns = columns;
+    this.filter = filter;
+    for (ITransformFormAction action : actions) {
+      if (action.getFormDefinition() != lfd) {
+        throw new IllegalArgumentException("Can't combine the exports of different forms");
+      }
+      sinks.add(action.getSink().orElseThrow(() ->
+          new IllegalArgumentException("Can't combine " + action.getClass().getSimpleName() + " with other exports")));
+    }
+  }
+
+  CombinedExport(File outputDir, BriefcaseFormDefinition lfd, TerminationFuture terminationFuture, Date start, Date end,
+      List<String> columns, SubmissionFilter filter, ExportSink sink) {
+    this(outputDir, lfd, terminationFuture, start, end, columns, filter, Collections.<ITransformFormAction>emptyList());
+    sinks.add(sink);
+  }
+
+  @Override
+  public boolean doAction() {
+    File instancesDir;
+    try {
+      instancesDir = FileSystemUtils.getFormInstancesDirectory(briefcaseLfd.getFormDirectory());
+    } catch (FileSystemException e) {
+      String msg = "Unable to access instances directory of form";
+      log.error(msg, e);
+      EventBus.publish(new ExportProgressEvent(msg, briefcaseLfd));
+      return false;
+    }
+
+    if (!outputDir.exists()) {
+      if (!outputDir.mkdir()) {
+        EventBus.publish(new ExportProgressEvent("Unable to create destination directory", briefcaseLfd));
+        return false;
+      }
+    }
+
+    ColumnPlan columnPlan = ColumnPlan.forForm(briefcaseLfd, columns);
+    MediaFileExporter mediaExporter = new MediaFileExporter(outputDir, briefcaseLfd);
+    List<ExportSink> opened = new ArrayList<ExportSink>();
+    boolean allSuccessful = true;
+    try {
+      for (ExportSink sink : sinks) {
+        if (!sink.open(columnPlan, mediaExporter)) {
+          allSuccessful = false;
+          break;
+        }
+        opened.add(sink);
+      }
+      if (allSuccessful) {
+        allSuccessful = processInstances(instancesDir, columnPlan, opened);
+      }
+    } finally {
+      boolean complete = allSuccessful;
+      for (ExportSink sink : opened) {
+        allSuccessful = sink.close(complete) && allSuccessful;
+      }
+    }
+
+    try {
+      mediaExporter.save();
+    } catch (IOException e) {
+      // the media files get hashed again on the next export
+      log.warn("Unable to save the media index", e);
+    }
+
+    return allSuccessful;
+  }
+
+  private boolean processInstances(File instancesDir, ColumnPlan columnPlan, List<ExportSink> opened) {
+    boolean exportMedia = false;
+    for (ExportSink sink : opened) {
+      exportMedia = exportMedia || sink.exportsMedia();
+    }
+    SubmissionLoader loader = new SubmissionLoader(briefcaseLfd, columnPlan, outputDir, exportMedia, startDate, endDate, filter, terminationFuture);
+
+    // do we have a folder with submission.xml inside, that one of
+    // the outputs lacks
+    File[] instances = instancesDir.listFiles(file -> file.isDirectory()
+        && new File(file, "submission.xml").exists()
+        && wantedBy(opened, file));
+    SubmissionIndex index = SubmissionIndex.load(briefcaseLfd, instances);
+    // the submissions out of the date range aren't even read
+    instances = index.inDateRange(instances, startDate, endDate);
+    index.sortBySubmissionDate(instances);
+    totalInstances = instances.length;
+
+    int exportThreads = BriefcasePreferences.getBriefcaseParallelExportsProperty()
+        ? Runtime.getRuntime().availableProcessors() : 1;
+
+    boolean allSuccessful = true;
+    try (SubmissionLoader.LoadAhead loadAhead = loader.loadAhead(instances, exportThreads)) {
+      int processed = 0;
+      for (File instanceDir : instances) {
+        if ( terminationFuture.isCancelled() ) {
+          EventBus.publish(new ExportProgressEvent("Aborted", briefcaseLfd));
+          allSuccessful = false;
+          break;
+        }
+        if (instanceDir.getName().startsWith("."))
+          continue; // Mac OSX
+
+        ++processed;
+        EventBus.publish(new ExportProgressEvent("Processing instance: " + instanceDir.getName(), briefcaseLfd));
+        EventBus.publish(new ExportProgressPercentageEvent((processed * 100.0) / totalInstances, briefcaseLfd));
+
+        LoadedSubmission loaded = loadAhead.load(instanceDir);
+        if (loaded.outcome == LoadedSubmission.Outcome.SKIPPED) {
+          totalFilesSkipped++;
+          continue;
+        }
+        if (loaded.outcome == LoadedSubmission.Outcome.FAILED) {
+          allSuccessful = false;
+          break;
+        }
+        if (loaded.outcome != LoadedSubmission.Outcome.LOADED) {
+          continue;
+        }
+
+        try {
+          for (ExportSink sink : opened) {
+            if (sink.wants(instanceDir) && !sink.write(loaded)) {
+              allSuccessful = false;
+              break;
+            }
+          }
+        } finally {
+          if (loaded.decryptedDir != null) {
+            FileUtils.deleteQuietly(loaded.decryptedDir);
+          }
+        }
+        if (!allSuccessful) {
+          break;
+        }
+      }
+    } finally {
+      loader.cleanUp();
+    }
+    return allSuccessful;
+  }
+
+  private static boolean wantedBy(List<ExportSink> sinks, File instanceDir) {
+    for (ExportSink sink : sinks) {
+      if (sink.wants(instanceDir)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public BriefcaseFormDefinition getFormDefinition() {
+    return briefcaseLfd;
+  }
+
+  @Override
+  public List<File> getOutputFiles() {
+    List<File> outputFiles = new ArrayList<File>();
+    for (ExportSink sink : sinks) {
+      outputFiles.addAll(sink.getOutputFiles());
+    }
+    return outputFiles;
+  }
+
+  @Override
+  public FilesSkipped totalFilesSkipped() {
+    //Determine if all files where skipped or just some
+    //Note that if totalInstances = 0 then no files were skipped
+    if (totalInstances == 0 || totalFilesSkipped == 0) {
+      return FilesSkipped.NONE;
+    }
+    if (totalFilesSkipped == totalInstances) {
+      return FilesSkipped.ALL;
+    } else {
+      return FilesSkipped.SOME;
+    }
+  }
+}
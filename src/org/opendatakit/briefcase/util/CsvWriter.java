@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2018 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.briefcase.util;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Writes the csv files of an export. Characters are gathered in a char
+ * buffer and encoded to UTF-8 into a large byte buffer, which only goes to
+ * the file once it's full, so writing a cell doesn't allocate anything.
+ * Must only be used from one thread at a time.
+ */
+class CsvWriter extends Writer {
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /** Scratch space for escaping cells, one per thread since rows get built on worker threads */
+  private static final ThreadLocal<char[]> CELL_BUFFER = ThreadLocal.withInitial(() -> new char[256]);
+
+  private final File file;
+  private final FileChannel channel;
+  private final CharsetEncoder encoder = UTF_8.newEncoder()
+      .onMalformedInput(CodingErrorAction.REPLACE)
+      .onUnmappableCharacter(CodingErrorAction.REPLACE);
+  private final CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE / 4);
+  private final ByteBuffer bytes = ByteBuffer.allocateDirect(BUFFER_SIZE);
+  private boolean closed = false;
+
+  private CsvWriter(File file, FileChannel channel) {
+    this.file = file;
+    this.channel = channel;
+  }
+
+  /**
+   * Opens a csv file for writing, appending to it unless asked to overwrite
+   * it.
+   */
+  static CsvWriter open(File file, boolean overwrite) throws IOException {
+    return new CsvWriter(file, overwrite
+        ? FileChannel.open(file.toPath(), CREATE, WRITE, TRUNCATE_EXISTING)
+        : FileChannel.open(file.toPath(), CREATE, WRITE, APPEND));
+  }
+
+  /**
+   * Appends a cell to a row, preceded by a comma unless it's the first one
+   * of the row. Cells containing commas, quotes or line breaks, and empty
+   * ones, are quoted. Nothing but the comma is appended for null cells.
+   */
+  static void emitCell(Appendable out, boolean first, String value) throws IOException {
+    if (value == null) {
+      if (!first) {
+        out.append(',');
+      }
+      return;
+    }
+    int length = value.length();
+    char[] buf = CELL_BUFFER.get();
+    if (buf.length < length * 2 + 3) {
+      buf = new char[Math.max(length * 2 + 3, buf.length * 2)];
+      CELL_BUFFER.set(buf);
+    }
+    // the value goes from 2 on, leaving room in front for the comma and
+    // the opening quote, if it turns out to need one
+    int end = 2;
+    boolean quote = length == 0;
+    for (int i = 0; i < length; ++i) {
+      char c = value.charAt(i);
+      if (c == '"') {
+        buf[end++] = '"';
+        quote = true;
+      } else if (c == ',' || c == '\n') {
+        quote = true;
+      }
+      buf[end++] = c;
+    }
+    int start;
+    if (quote) {
+      buf[0] = ',';
+      buf[1] = '"';
+      buf[end++] = '"';
+      start = first ? 1 : 0;
+    } else {
+      buf[1] = ',';
+      start = first ? 2 : 1;
+    }
+    write(out, buf, start, end - start);
+  }
+
+  private static void write(Appendable out, char[] buf, int off, int len) throws IOException {
+    if (out instanceof Writer) {
+      ((Writer) out).write(buf, off, len);
+    } else if (out instanceof SubmissionOutput.Target) {
+      ((SubmissionOutput.Target) out).append(buf, off, len);
+    } else {
+      out.append(CharBuffer.wrap(buf, off, len));
+    }
+  }
+
+  @Override
+  public void write(char[] cbuf, int off, int len) throws IOException {
+    ensureOpen();
+    while (len > 0) {
+      int n = Math.min(len, chars.remaining());
+      chars.put(cbuf, off, n);
+      off += n;
+      len -= n;
+      if (!chars.hasRemaining()) {
+        encode(false);
+      }
+    }
+  }
+
+  @Override
+  public void write(String str, int off, int len) throws IOException {
+    ensureOpen();
+    while (len > 0) {
+      int n = Math.min(len, chars.remaining());
+      // straight into the backing array, String.getChars doesn't copy the string
+      str.getChars(off, off + n, chars.array(), chars.arrayOffset() + chars.position());
+      chars.position(chars.position() + n);
+      off += n;
+      len -= n;
+      if (!chars.hasRemaining()) {
+        encode(false);
+      }
+    }
+  }
+
+  @Override
+  public void write(int c) throws IOException {
+    ensureOpen();
+    if (!chars.hasRemaining()) {
+      encode(false);
+    }
+    chars.put((char) c);
+  }
+
+  @Override
+  public Writer append(CharSequence csq) throws IOException {
+    if (csq == null) {
+      write("null");
+    } else if (csq instanceof String) {
+      write((String) csq, 0, csq.length());
+    } else if (csq instanceof StringBuilder) {
+      append((StringBuilder) csq);
+    } else {
+      for (int i = 0; i < csq.length(); ++i) {
+        write(csq.charAt(i));
+      }
+    }
+    return this;
+  }
+
+  private void append(StringBuilder sb) throws IOException {
+    ensureOpen();
+    int off = 0;
+    int len = sb.length();
+    while (len > 0) {
+      int n = Math.min(len, chars.remaining());
+      sb.getChars(off, off + n, chars.array(), chars.arrayOffset() + chars.position());
+      chars.position(chars.position() + n);
+      off += n;
+      len -= n;
+      if (!chars.hasRemaining()) {
+        encode(false);
+      }
+    }
+  }
+
+  /**
+   * Encodes the buffered characters into the byte buffer, writing it to the
+   * file whenever it fills up. A surrogate whose pair hasn't been written yet
+   * is kept for later.
+   */
+  private void encode(boolean endOfInput) throws IOException {
+    chars.flip();
+    while (true) {
+      CoderResult result = encoder.encode(chars, bytes, endOfInput);
+      if (result.isOverflow()) {
+        drain();
+      } else {
+        break;
+      }
+    }
+    chars.compact();
+  }
+
+  private void drain() throws IOException {
+    bytes.flip();
+    while (bytes.hasRemaining()) {
+      channel.write(bytes);
+    }
+    bytes.clear();
+  }
+
+  /**
+   * The size of the file once everything written so far reaches it,
+   * counting the characters not yet encoded as a byte each.
+   */
+  long size() throws IOException {
+    ensureOpen();
+    return channel.size() + bytes.position() + chars.position();
+  }
+
+  File getFile() {
+    return file;
+  }
+
+  private void ensureOpen() throws IOException {
+    if (closed) {
+      throw new IOException("Stream closed");
+    }
+  }
+
+  @Override
+  public void flush() throws IOException {
+    ensureOpen();
+    encode(false);
+    drain();
+  }
+
+  /**
+   * Flushes what's written so far and waits for it to reach the drive, so
+   * it survives a crash of the computer too.
+   */
+  void sync() throws IOException {
+    flush();
+    channel.force(false);
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    try {
+      encode(true);
+      while (encoder.flush(bytes).isOverflow()) {
+        drain();
+      }
+      drain();
+    } finally {
+      closed = true;
+      channel.close();
+    }
+  }
+}
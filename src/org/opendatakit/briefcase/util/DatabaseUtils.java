@@ -29,8 +29,13 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Types;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.function.BiConsumer;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -55,6 +60,19 @@ public class DatabaseUtils {
   private static final String DELETE_DML = "DELETE FROM recorded_instance WHERE instanceId = ?";
   private static final String RELATIVE_DML = "UPDATE recorded_instance set directory = regexp_replace(directory,'.*(" + INSTANCE_DIR + ")','$1')";
 
+  private static final String CREATE_INDEX_DDL = "CREATE TABLE submission_index (directory varchar(4096) primary key, instanceId varchar(256), submissionDate bigint, lastModified bigint)";
+  private static final String ASSERT_INDEX_SQL = "SELECT directory FROM submission_index limit 1";
+  private static final String SELECT_INDEX_SQL = "SELECT directory, instanceId, submissionDate, lastModified FROM submission_index";
+  private static final String INSERT_INDEX_DML = "INSERT INTO submission_index (directory, instanceId, submissionDate, lastModified) VALUES(?,?,?,?)";
+  private static final String DELETE_INDEX_DML = "DELETE FROM submission_index WHERE directory = ?";
+
+  private static final String CREATE_CURSOR_DDL = "CREATE TABLE pull_cursor (server varchar(4096) primary key, websafeCursor varchar(16384), reconciledAt bigint)";
+  private static final String ASSERT_CURSOR_SQL = "SELECT server FROM pull_cursor limit 1";
+  private static final String SELECT_CURSOR_SQL = "SELECT websafeCursor FROM pull_cursor WHERE server = ? AND reconciledAt >= ?";
+  private static final String SELECT_CURSOR_RECONCILED_SQL = "SELECT reconciledAt FROM pull_cursor WHERE server = ?";
+  private static final String INSERT_CURSOR_DML = "INSERT INTO pull_cursor (server, websafeCursor, reconciledAt) VALUES(?,?,?)";
+  private static final String DELETE_CURSOR_DML = "DELETE FROM pull_cursor WHERE server = ?";
+
   final private File formDir;
   private Connection connection;
 
@@ -63,6 +81,12 @@ public class DatabaseUtils {
   private PreparedStatement insertRecordedInstanceQuery = null;
   private PreparedStatement deleteRecordedInstanceQuery = null;
 
+  private boolean hasSubmissionIndexTable = false;
+  private PreparedStatement insertIndexedSubmissionQuery = null;
+  private PreparedStatement deleteIndexedSubmissionQuery = null;
+
+  private boolean hasPullCursorTable = false;
+
   public DatabaseUtils(File formDir) throws FileSystemException, SQLException {
     this.formDir = formDir;
     connect();
@@ -206,6 +230,216 @@ public class DatabaseUtils {
     putRecordedInstanceDirectory(instanceId, dir);
   }
 
+  // records several instances at once, in a single transaction, and tells
+  // whether it was committed
+  public synchronized boolean assertRecordedInstanceDirectories(Map<String, File> instanceDirs) {
+    boolean autoCommit = true;
+    try {
+      assertRecordedInstanceTable();
+      autoCommit = connection.getAutoCommit();
+      connection.setAutoCommit(false);
+      try (PreparedStatement delete = connection.prepareStatement(DELETE_DML);
+           PreparedStatement insert = connection.prepareStatement(INSERT_DML)) {
+        for (Map.Entry<String, File> entry : instanceDirs.entrySet()) {
+          delete.setString(1, entry.getKey());
+          delete.addBatch();
+          insert.setString(1, entry.getKey());
+          insert.setString(2, makeRelative(formDir, entry.getValue()).toString());
+          insert.addBatch();
+        }
+        delete.executeBatch();
+        insert.executeBatch();
+      }
+      connection.commit();
+      return true;
+    } catch ( SQLException e ) {
+      log.error("failed to record " + instanceDirs.size() + " instances", e);
+      try {
+        connection.rollback();
+      } catch ( SQLException rollbackError ) {
+        log.error("failed to roll back the recorded instances", rollbackError);
+      }
+      return false;
+    } finally {
+      try {
+        connection.setAutoCommit(autoCommit);
+      } catch ( SQLException e ) {
+        log.error("failed to restore auto-commit", e);
+      }
+    }
+  }
+
+  // hands every recorded instance to the consumer, reading them in a single
+  // query without holding them all in memory
+  public synchronized void forEachRecordedInstance(BiConsumer<String, File> consumer) {
+    try (Statement stmt = connection.createStatement()) {
+      assertRecordedInstanceTable();
+      try (ResultSet values = stmt.executeQuery(SELECT_ALL_SQL)) {
+        while (values.next()) {
+          consumer.accept(values.getString(1), new File(formDir, values.getString(2)));
+        }
+      }
+    } catch (SQLException e) {
+      log.error("failure while reading the recorded instances", e);
+    }
+  }
+
+  private void assertSubmissionIndexTable() throws SQLException {
+    if (!hasSubmissionIndexTable) {
+      try (Statement stmt = connection.createStatement();
+           ResultSet ignored = stmt.executeQuery(ASSERT_INDEX_SQL)) {
+        // the table exists
+      } catch (SQLException e) {
+        log.debug("assertion failed, attempting to create submission index table");
+        try (Statement stmt = connection.createStatement()) {
+          stmt.execute(CREATE_INDEX_DDL);
+        }
+      }
+      hasSubmissionIndexTable = true;
+    }
+  }
+
+  // the submission index is keyed by the instance directory, as not every
+  // instance has an instanceId
+  public synchronized void putIndexedSubmission(File instanceDir, SubmissionIndex.Entry entry) {
+    String directory = makeRelative(formDir, instanceDir).toString();
+    try {
+      assertSubmissionIndexTable();
+
+      if ( deleteIndexedSubmissionQuery == null ) {
+        deleteIndexedSubmissionQuery = connection.prepareStatement(DELETE_INDEX_DML);
+      }
+      if ( insertIndexedSubmissionQuery == null ) {
+        insertIndexedSubmissionQuery = connection.prepareStatement(INSERT_INDEX_DML);
+      }
+
+      deleteIndexedSubmissionQuery.setString(1, directory);
+      deleteIndexedSubmissionQuery.executeUpdate();
+
+      insertIndexedSubmissionQuery.setString(1, directory);
+      insertIndexedSubmissionQuery.setString(2, entry.instanceId);
+      if (entry.submissionDate == null) {
+        insertIndexedSubmissionQuery.setNull(3, Types.BIGINT);
+      } else {
+        insertIndexedSubmissionQuery.setLong(3, entry.submissionDate.getTime());
+      }
+      insertIndexedSubmissionQuery.setLong(4, entry.lastModified);
+
+      if ( 1 != insertIndexedSubmissionQuery.executeUpdate() ) {
+        throw new SQLException("Expected one row to be updated");
+      }
+    } catch ( SQLException e ) {
+      log.error("failed to index submission " + directory, e);
+    }
+  }
+
+  public synchronized void deleteIndexedSubmission(File instanceDir) {
+    String directory = makeRelative(formDir, instanceDir).toString();
+    try {
+      assertSubmissionIndexTable();
+
+      if ( deleteIndexedSubmissionQuery == null ) {
+        deleteIndexedSubmissionQuery = connection.prepareStatement(DELETE_INDEX_DML);
+      }
+
+      deleteIndexedSubmissionQuery.setString(1, directory);
+      deleteIndexedSubmissionQuery.executeUpdate();
+    } catch ( SQLException e ) {
+      log.error("failed to remove submission " + directory + " from the index", e);
+    }
+  }
+
+  public synchronized Map<File, SubmissionIndex.Entry> getIndexedSubmissions() {
+    Map<File, SubmissionIndex.Entry> entries = new HashMap<>();
+    try (Statement stmt = connection.createStatement()) {
+      assertSubmissionIndexTable();
+      try (ResultSet values = stmt.executeQuery(SELECT_INDEX_SQL)) {
+        while (values.next()) {
+          long submissionDate = values.getLong(3);
+          entries.put(new File(formDir, values.getString(1)), new SubmissionIndex.Entry(
+              values.getString(2),
+              values.wasNull() ? null : new Date(submissionDate),
+              values.getLong(4)));
+        }
+      }
+    } catch (SQLException e) {
+      log.error("failure while reading submission index", e);
+    }
+    return entries;
+  }
+
+  private void assertPullCursorTable() throws SQLException {
+    if (!hasPullCursorTable) {
+      try (Statement stmt = connection.createStatement();
+           ResultSet ignored = stmt.executeQuery(ASSERT_CURSOR_SQL)) {
+        // the table exists
+      } catch (SQLException e) {
+        log.debug("assertion failed, attempting to create pull cursor table");
+        try (Statement stmt = connection.createStatement()) {
+          stmt.execute(CREATE_CURSOR_DDL);
+        }
+      }
+      hasPullCursorTable = true;
+    }
+  }
+
+  // the cursor of the submission list of the server up to which every
+  // submission has been pulled, or null if none has, or if the list was
+  // last gone through from the start before the given time
+  public synchronized String getPullCursor(String server, long reconciledSince) {
+    try {
+      assertPullCursorTable();
+      try (PreparedStatement stmt = connection.prepareStatement(SELECT_CURSOR_SQL)) {
+        stmt.setString(1, server);
+        stmt.setLong(2, reconciledSince);
+        try (ResultSet values = stmt.executeQuery()) {
+          return values.next() ? values.getString(1) : null;
+        }
+      }
+    } catch (SQLException e) {
+      log.error("failed to read the pull cursor of " + server, e);
+      return null;
+    }
+  }
+
+  // when the submission list of the server was last gone through from the
+  // start, or null if it never was
+  public synchronized Long getPullCursorReconciledAt(String server) {
+    try {
+      assertPullCursorTable();
+      try (PreparedStatement stmt = connection.prepareStatement(SELECT_CURSOR_RECONCILED_SQL)) {
+        stmt.setString(1, server);
+        try (ResultSet values = stmt.executeQuery()) {
+          return values.next() ? values.getLong(1) : null;
+        }
+      }
+    } catch (SQLException e) {
+      log.error("failed to read the pull cursor of " + server, e);
+      return null;
+    }
+  }
+
+  public synchronized void putPullCursor(String server, String websafeCursor, long reconciledAt) {
+    try {
+      assertPullCursorTable();
+      try (PreparedStatement delete = connection.prepareStatement(DELETE_CURSOR_DML);
+           PreparedStatement insert = connection.prepareStatement(INSERT_CURSOR_DML)) {
+        delete.setString(1, server);
+        delete.executeUpdate();
+
+        insert.setString(1, server);
+        insert.setString(2, websafeCursor);
+        insert.setLong(3, reconciledAt);
+        if ( 1 != insert.executeUpdate() ) {
+          throw new SQLException("Expected one row to be updated");
+        }
+      }
+    } catch (SQLException e) {
+      // the next pull will just go through more of the list
+      log.error("failed to record the pull cursor of " + server, e);
+    }
+  }
+
   public synchronized void updateInstanceLists(Set<File> instanceList) {
     Set<File> workingSet = new TreeSet<>(instanceList);
     // scan the database's reported set of directories and remove all that are not in the set
@@ -42,12 +42,8 @@ public class EncryptionInformation {
 
     try {
       // construct the base64-encoded RSA-encrypted symmetric key
-      Cipher pkCipher;
-      pkCipher = Cipher.getInstance(FileSystemUtils.ASYMMETRIC_ALGORITHM);
-      // write AES key
-      pkCipher.init(Cipher.DECRYPT_MODE, rsaPrivateKey);
       byte[] encryptedSymmetricKey = Base64.decodeBase64(base64EncryptedSymmetricKey);
-      byte[] decryptedKey = pkCipher.doFinal(encryptedSymmetricKey);
+      byte[] decryptedKey = CipherFactory.decryptWithPrivateKey(rsaPrivateKey, encryptedSymmetricKey);
       cipherFactory = new CipherFactory(instanceId, decryptedKey);
     } catch (NoSuchAlgorithmException | BadPaddingException | IllegalBlockSizeException | InvalidKeyException
             | NoSuchPaddingException e) {
@@ -57,6 +53,18 @@ public class EncryptionInformation {
     }
   }
   
+  private EncryptionInformation(CipherFactory cipherFactory) {
+    this.cipherFactory = cipherFactory;
+  }
+
+  /**
+   * Returns encryption information whose ciphers follow on from the ones
+   * this one handed out so far, independently of it.
+   */
+  EncryptionInformation copy() {
+    return new EncryptionInformation(cipherFactory.copy());
+  }
+
   Cipher getCipher(String context) throws InvalidKeyException, InvalidAlgorithmParameterException, NoSuchAlgorithmException, NoSuchPaddingException {
     return cipherFactory.getCipher(context);
   }
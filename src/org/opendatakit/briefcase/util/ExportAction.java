@@ -27,11 +27,12 @@ import java.security.PrivateKey;
 import java.time.LocalDate;
 import java.time.ZoneId;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Optional;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.bouncycastle.openssl.PEMReader;
@@ -40,8 +41,6 @@ import org.opendatakit.briefcase.export.ExportConfiguration;
 import org.opendatakit.briefcase.model.BriefcaseFormDefinition;
 import org.opendatakit.briefcase.model.ExportFailedEvent;
 import org.opendatakit.briefcase.model.ExportProgressEvent;
-import org.opendatakit.briefcase.model.ExportSucceededEvent;
-import org.opendatakit.briefcase.model.ExportSucceededWithErrorsEvent;
 import org.opendatakit.briefcase.model.ExportType;
 import org.opendatakit.briefcase.model.TerminationFuture;
 import org.opendatakit.briefcase.ui.ODKOptionPane;
@@ -53,49 +52,22 @@ public class ExportAction {
   static final String SCRATCH_DIR = "scratch";
   static final String UTF_8 = "UTF-8";
 
-  private static ExecutorService backgroundExecutorService = Executors.newCachedThreadPool();
-
-
-  private static class TransformFormRunnable implements Runnable {
-    ITransformFormAction action;
-
-    TransformFormRunnable(ITransformFormAction action) {
-      this.action = action;
-    }
-
-    @Override
-    public void run() {
-      try {
-        boolean allSuccessful = true;
-        allSuccessful = action.doAction();
-        if (allSuccessful) {
-          if (action.totalFilesSkipped() == FilesSkipped.SOME) {
-            EventBus.publish(new ExportSucceededWithErrorsEvent(
-                action.getFormDefinition()));
-          } else if (action.totalFilesSkipped() == FilesSkipped.ALL) {
-            // None of the instances were exported
-            EventBus.publish(new ExportFailedEvent(action.getFormDefinition()));
-          } else {
-            EventBus.publish(new ExportSucceededEvent(action.getFormDefinition()));
-          }
-        } else {
-          EventBus.publish(new ExportFailedEvent(action.getFormDefinition()));
-        }
-      } catch (Exception e) {
-        log.error("export action failed", e);
-        EventBus.publish(new ExportFailedEvent(action.getFormDefinition()));
-      }
+  public static void export(
+      File outputDir, ExportType outputType, BriefcaseFormDefinition lfd, File pemFile,
+      TerminationFuture terminationFuture, ExportOptions options) throws IOException {
+    ITransformFormAction action = prepare(outputDir, Collections.singletonList(outputType), lfd, pemFile, terminationFuture, options);
+    if (action != null) {
+      ExportScheduler.get().schedule(action, terminationFuture);
     }
-
-  }
-
-  private static void backgroundRun(ITransformFormAction action) {
-    backgroundExecutorService.execute(new TransformFormRunnable(action));
   }
 
-  public static void export(
-      File outputDir, ExportType outputType, BriefcaseFormDefinition lfd, File pemFile,
-      TerminationFuture terminationFuture, Date start, Date end) throws IOException {
+  /**
+   * Reads the private key of encrypted forms and returns the action that
+   * exports the form, or null if the form can't be exported.
+   */
+  private static ITransformFormAction prepare(
+      File outputDir, List<ExportType> outputTypes, BriefcaseFormDefinition lfd, File pemFile,
+      TerminationFuture terminationFuture, ExportOptions options) {
 
     if (lfd.isFileEncryptedForm() || lfd.isFieldEncryptedForm()) {
 
@@ -145,39 +117,82 @@ public class ExportAction {
       if (!success) {
         EventBus.publish(new ExportProgressEvent(errorMsg, lfd));
         EventBus.publish(new ExportFailedEvent(lfd));
-        return;
+        return null;
       }
     }
 
-    ITransformFormAction action;
-    if (outputType == ExportType.CSV) {
-      action = new ExportToCsv(outputDir, lfd, terminationFuture, start, end);
-    } else {
-      throw new IllegalStateException("outputType not recognized");
-    }
+    return actionFor(outputDir, outputTypes, lfd, terminationFuture, options);
+  }
 
-    backgroundRun(action);
+  /**
+   * Returns the action that exports a form to the given types. When
+   * exporting to several types at once, their outputs are written in a
+   * single pass over the submissions, and the export is skipped when
+   * nothing changed since it last succeeded. The private key of encrypted
+   * forms must have been read already.
+   */
+  public static ITransformFormAction actionFor(
+      File outputDir, List<ExportType> outputTypes, BriefcaseFormDefinition lfd,
+      TerminationFuture terminationFuture, ExportOptions options) {
+    List<ITransformFormAction> actions = new ArrayList<>();
+    for (ExportType outputType : outputTypes) {
+      if (outputType == ExportType.CSV) {
+        actions.add(new ExportToCsv(outputDir, lfd, terminationFuture, options));
+      } else if (outputType == ExportType.DATABASE) {
+        actions.add(new ExportToDatabase(outputDir, lfd, terminationFuture, options));
+      } else if (outputType == ExportType.JSON_LINES) {
+        actions.add(new ExportToJsonLines(outputDir, lfd, terminationFuture, options));
+      } else {
+        throw new IllegalStateException("outputType not recognized");
+      }
+    }
+    ITransformFormAction action = actions.size() == 1
+        ? actions.get(0)
+        : new CombinedExport(outputDir, lfd, terminationFuture, options.getStartDate(), options.getEndDate(),
+            options.getColumns(), options.getFilter(), actions);
+    // exporting again with nothing new only checks that nothing changed
+    return new CachedExport(outputDir, options.getFilename(lfd), action, "types=" + outputTypes + ",options=" + options);
   }
 
   public static List<String> export(BriefcaseFormDefinition formDefinition, ExportConfiguration configuration, TerminationFuture terminationFuture) {
+    Map<BriefcaseFormDefinition, ExportConfiguration> forms = new LinkedHashMap<>();
+    forms.put(formDefinition, configuration);
+    return export(forms, terminationFuture);
+  }
+
+  /**
+   * Schedules the export of several forms at once, so that the smaller ones
+   * get exported first.
+   */
+  public static List<String> export(Map<BriefcaseFormDefinition, ExportConfiguration> forms, TerminationFuture terminationFuture) {
     List<String> errors = new ArrayList<>();
-    Optional<File> pemFile = configuration.mapPemFile(Path::toFile).filter(File::exists);
-    if ((formDefinition.isFileEncryptedForm() || formDefinition.isFieldEncryptedForm()) && !pemFile.isPresent())
-      errors.add(formDefinition.getFormName() + " form is encrypted");
-    else
-      try {
-        export(
+    List<ITransformFormAction> actions = new ArrayList<>();
+    forms.forEach((formDefinition, configuration) -> {
+      Optional<File> pemFile = configuration.mapPemFile(Path::toFile).filter(File::exists);
+      if ((formDefinition.isFileEncryptedForm() || formDefinition.isFieldEncryptedForm()) && !pemFile.isPresent())
+        errors.add(formDefinition.getFormName() + " form is encrypted");
+      else {
+        ITransformFormAction action = prepare(
             configuration.mapExportDir(Path::toFile).orElseThrow(() -> new RuntimeException("Wrong export configuration")),
-            ExportType.CSV,
+            configuration.getExportTypes(),
             formDefinition,
             pemFile.orElse(null),
             terminationFuture,
-            configuration.mapStartDate((LocalDate ld) -> Date.from(ld.atStartOfDay(ZoneId.systemDefault()).toInstant())).orElse(null),
-            configuration.mapEndDate((LocalDate ld) -> Date.from(ld.atStartOfDay(ZoneId.systemDefault()).toInstant())).orElse(null)
+            ExportOptions.defaults()
+                .withDateRange(
+                    configuration.mapStartDate((LocalDate ld) -> Date.from(ld.atStartOfDay(ZoneId.systemDefault()).toInstant())).orElse(null),
+                    configuration.mapEndDate((LocalDate ld) -> Date.from(ld.atStartOfDay(ZoneId.systemDefault()).toInstant())).orElse(null))
+                .withIncremental(configuration.isIncremental())
+                .withJdbcUrl(configuration.getJdbcUrl().orElse(null))
+                .withColumns(configuration.getColumnsOrAll())
+                .withFilter(configuration.getSubmissionFilter())
+                .withPartitioning(configuration.getExportPartitioning())
         );
-      } catch (IOException ex) {
-        errors.add("Export of form " + formDefinition.getFormName() + " has failed: " + ex.getMessage());
+        if (action != null)
+          actions.add(action);
       }
+    });
+    ExportScheduler.get().scheduleAll(actions, terminationFuture);
     return errors;
   }
 }
@@ -0,0 +1,290 @@
+/*
+ * Copyright (C) 2018 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.briefcase.util;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Keeps a journal of the progress of a csv export, so that an export that is
+ * cancelled, crashes or gets the computer sent to sleep can be resumed where
+ * it was left instead of starting over.
+ * <p>
+ * The journal is a hidden file next to the csv files. It starts with the
+ * options of the export, and the writer of the csv files appends to it the
+ * size of every file it opens, before writing to it, and every so often a
+ * checkpoint: the instances written since the previous one and the size of
+ * the open files once synced to the drive. Everything after the last complete
+ * checkpoint is ignored, as it might not have reached the drive.
+ * <p>
+ * The journal is deleted once the export finishes. When the next export with
+ * the same options finds it, the files are truncated to their size at the last
+ * checkpoint and the instances written before it are skipped. Must only be
+ * used from the thread writing the csv files.
+ */
+class ExportCheckpoint {
+
+  private static final Log log = LogFactory.getLog(ExportCheckpoint.class);
+
+  /** How many submissions are written between checkpoints, at most */
+  static final int CHECKPOINT_SUBMISSIONS = 1000;
+  /** How long it goes between checkpoints, at most */
+  static final long CHECKPOINT_MILLIS = 30 * 1000;
+
+  private static final String OPTIONS = "V";
+  private static final String OPENED = "O";
+  private static final String INSTANCE = "I";
+  private static final String SIZE = "S";
+  private static final String CHECKPOINT = "C";
+
+  private final File file;
+  private final FileChannel journal;
+  private final boolean reset;
+  /** The instances written by the export being resumed, before its last checkpoint */
+  private final Set<String> resumed;
+  /** The files the export being resumed was writing, with their size at its last checkpoint */
+  private final Map<String, Long> resumedSizes;
+  private final List<String> pending = new ArrayList<String>();
+  private long lastCheckpoint = System.currentTimeMillis();
+
+  private ExportCheckpoint(File file, FileChannel journal, boolean reset, Set<String> resumed,
+      Map<String, Long> resumedSizes) {
+    this.file = file;
+    this.journal = journal;
+    this.reset = reset;
+    this.resumed = resumed;
+    this.resumedSizes = resumedSizes;
+  }
+
+  static File fileFor(File outputDir, String baseFilename) {
+    return new File(outputDir, "." + baseFilename + ".checkpoint");
+  }
+
+  /**
+   * Starts the journal of a new export.
+   *
+   * @param options the options of the export, which must be the same for it
+   *                to be resumed
+   * @param reset   whether the export writes its files from scratch
+   */
+  static ExportCheckpoint start(File file, String options, boolean reset) throws IOException {
+    FileChannel journal = FileChannel.open(file.toPath(), CREATE, WRITE, TRUNCATE_EXISTING);
+    ExportCheckpoint checkpoint = new ExportCheckpoint(file, journal, reset, new HashSet<String>(),
+        new HashMap<String, Long>());
+    checkpoint.append(OPTIONS + "\t" + reset + "\t" + options + "\n");
+    return checkpoint;
+  }
+
+  /**
+   * Resumes the export left by the journal, truncating its files to their
+   * size at its last checkpoint.
+   *
+   * @return null if there's no journal, it's for other options or the files
+   *     don't match it, so the export should start over
+   */
+  static ExportCheckpoint resume(File file, String options) throws IOException {
+    if (!file.exists()) {
+      return null;
+    }
+    List<String> lines = Files.readAllLines(file.toPath(), UTF_8);
+    if (lines.isEmpty()) {
+      return null;
+    }
+    String[] header = lines.get(0).split("\t", 3);
+    if (header.length != 3 || !header[0].equals(OPTIONS) || !header[2].equals(options)) {
+      log.info("not resuming the export, its options changed");
+      return null;
+    }
+    boolean reset = Boolean.parseBoolean(header[1]);
+
+    Set<String> written = new HashSet<String>();
+    Map<String, Long> sizes = new HashMap<String, Long>();
+    List<String> pendingInstances = new ArrayList<String>();
+    Map<String, Long> pendingSizes = new HashMap<String, Long>();
+    for (String line : lines.subList(1, lines.size())) {
+      String[] parts = line.split("\t", 3);
+      switch (parts[0]) {
+      case OPENED:
+        if (parts.length == 3) {
+          // these are synced before the file is written
+          sizes.put(parts[2], Long.valueOf(parts[1]));
+        }
+        break;
+      case INSTANCE:
+        if (parts.length == 2) {
+          pendingInstances.add(parts[1]);
+        }
+        break;
+      case SIZE:
+        if (parts.length == 3) {
+          pendingSizes.put(parts[2], Long.valueOf(parts[1]));
+        }
+        break;
+      case CHECKPOINT:
+        written.addAll(pendingInstances);
+        sizes.putAll(pendingSizes);
+        pendingInstances.clear();
+        pendingSizes.clear();
+        break;
+      default:
+        // a line cut short by the interruption
+        break;
+      }
+    }
+
+    for (Map.Entry<String, Long> entry : sizes.entrySet()) {
+      File output = new File(entry.getKey());
+      long size = output.exists() ? output.length() : 0;
+      if (size < entry.getValue()) {
+        log.warn("not resuming the export, " + output.getPath() + " is shorter than at its last checkpoint");
+        return null;
+      }
+    }
+    for (Map.Entry<String, Long> entry : sizes.entrySet()) {
+      File output = new File(entry.getKey());
+      if (output.exists() && output.length() > entry.getValue()) {
+        try (FileChannel channel = FileChannel.open(output.toPath(), WRITE)) {
+          channel.truncate(entry.getValue());
+        }
+      }
+    }
+
+    // the journal is written again, with just what's being resumed
+    ExportCheckpoint checkpoint = start(file, options, reset);
+    checkpoint.resumed.addAll(written);
+    checkpoint.resumedSizes.putAll(sizes);
+    StringBuilder compacted = new StringBuilder();
+    for (Map.Entry<String, Long> entry : sizes.entrySet()) {
+      compacted.append(OPENED).append("\t").append(entry.getValue()).append("\t").append(entry.getKey()).append("\n");
+    }
+    for (String name : written) {
+      compacted.append(INSTANCE).append("\t").append(name).append("\n");
+    }
+    compacted.append(CHECKPOINT).append("\n");
+    checkpoint.append(compacted.toString());
+    log.info("resuming the export after " + written.size() + " submissions");
+    return checkpoint;
+  }
+
+  /**
+   * Whether the export being resumed wrote its files from scratch.
+   */
+  boolean isReset() {
+    return reset;
+  }
+
+  /**
+   * The names of the instances written by the export being resumed.
+   */
+  Set<String> getResumed() {
+    return resumed;
+  }
+
+  boolean wasResumed(File instanceDir) {
+    return resumed.contains(instanceDir.getName());
+  }
+
+  /**
+   * Whether the export being resumed was writing the given file, which
+   * must then be appended to rather than written from scratch.
+   */
+  boolean wasOpened(File output) {
+    return resumedSizes.containsKey(output.getAbsolutePath());
+  }
+
+  /**
+   * Records the size of a file about to be written.
+   */
+  void opened(File output, long size) throws IOException {
+    append(OPENED + "\t" + size + "\t" + output.getAbsolutePath() + "\n");
+  }
+
+  /**
+   * Records an instance whose output has been written, and tells whether
+   * it's time for a checkpoint.
+   */
+  boolean written(File instanceDir) {
+    pending.add(instanceDir.getName());
+    return pending.size() >= CHECKPOINT_SUBMISSIONS
+        || System.currentTimeMillis() - lastCheckpoint >= CHECKPOINT_MILLIS;
+  }
+
+  /**
+   * Syncs the given files to the drive and records their size along with the
+   * instances written since the previous checkpoint.
+   */
+  void checkpoint(Collection<CsvWriter> writers) throws IOException {
+    StringBuilder lines = new StringBuilder();
+    for (CsvWriter writer : writers) {
+      writer.sync();
+      lines.append(SIZE).append("\t").append(writer.size()).append("\t")
+          .append(writer.getFile().getAbsolutePath()).append("\n");
+    }
+    for (String name : pending) {
+      lines.append(INSTANCE).append("\t").append(name).append("\n");
+    }
+    lines.append(CHECKPOINT).append("\n");
+    append(lines.toString());
+    pending.clear();
+    lastCheckpoint = System.currentTimeMillis();
+  }
+
+  /**
+   * Closes the journal, leaving it for the next export to resume this one.
+   */
+  void close() {
+    try {
+      journal.close();
+    } catch (IOException e) {
+      log.warn("failed to close the export checkpoint", e);
+    }
+  }
+
+  /**
+   * Closes and deletes the journal, once the export is complete.
+   */
+  void finish() throws IOException {
+    journal.close();
+    Files.deleteIfExists(file.toPath());
+  }
+
+  private void append(String lines) throws IOException {
+    ByteBuffer bytes = ByteBuffer.wrap(lines.getBytes(UTF_8));
+    while (bytes.hasRemaining()) {
+      journal.write(bytes);
+    }
+    journal.force(false);
+  }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2018 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.briefcase.util;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import org.opendatakit.briefcase.model.BriefcaseFormDefinition;
+
+/**
+ * What an export writes, besides the form and the directory it writes to.
+ * Every export action reads the options that apply to it and ignores the
+ * others, so that the same options can be handed to all the actions of a
+ * form.
+ * <p>
+ * Options are immutable: each {@code with} method returns a copy with one of
+ * them changed, starting from the {@link #defaults()}.
+ */
+public class ExportOptions {
+
+  private static final ExportOptions DEFAULTS = new ExportOptions(null, true, false, null, null, false, null,
+      Collections.emptyList(), SubmissionFilter.none(), ExportPartitioning.none());
+
+  private final String filename;
+  private final boolean exportMedia;
+  private final boolean overwrite;
+  private final Date startDate;
+  private final Date endDate;
+  private final boolean incremental;
+  private final String jdbcUrl;
+  private final List<String> columns;
+  private final SubmissionFilter filter;
+  private final ExportPartitioning partitioning;
+
+  private ExportOptions(String filename, boolean exportMedia, boolean overwrite, Date startDate, Date endDate,
+      boolean incremental, String jdbcUrl, List<String> columns, SubmissionFilter filter,
+      ExportPartitioning partitioning) {
+    this.filename = filename;
+    this.exportMedia = exportMedia;
+    this.overwrite = overwrite;
+    this.startDate = startDate;
+    this.endDate = endDate;
+    this.incremental = incremental;
+    this.jdbcUrl = jdbcUrl;
+    this.columns = columns;
+    this.filter = filter;
+    this.partitioning = partitioning;
+  }
+
+  /**
+   * Exports every field of every submission, with its media files, to files
+   * named after the form, appending to the ones already there.
+   */
+  public static ExportOptions defaults() {
+    return DEFAULTS;
+  }
+
+  /**
+   * @param filename the name of the files or tables to export to, or null
+   *                 to name them after the form
+   */
+  public ExportOptions withFilename(String filename) {
+    return new ExportOptions(filename, exportMedia, overwrite, startDate, endDate, incremental, jdbcUrl, columns,
+        filter, partitioning);
+  }
+
+  public ExportOptions withExportMedia(boolean exportMedia) {
+    return new ExportOptions(filename, exportMedia, overwrite, startDate, endDate, incremental, jdbcUrl, columns,
+        filter, partitioning);
+  }
+
+  public ExportOptions withOverwrite(boolean overwrite) {
+    return new ExportOptions(filename, exportMedia, overwrite, startDate, endDate, incremental, jdbcUrl, columns,
+        filter, partitioning);
+  }
+
+  /**
+   * @param start the earliest submission date to export, or null
+   * @param end   the latest submission date to export, or null
+   */
+  public ExportOptions withDateRange(Date start, Date end) {
+    return new ExportOptions(filename, exportMedia, overwrite, start, end, incremental, jdbcUrl, columns,
+        filter, partitioning);
+  }
+
+  public ExportOptions withIncremental(boolean incremental) {
+    return new ExportOptions(filename, exportMedia, overwrite, startDate, endDate, incremental, jdbcUrl, columns,
+        filter, partitioning);
+  }
+
+  /**
+   * @param jdbcUrl the database to export to, or null for an HSQLDB database
+   *                in the output directory
+   */
+  public ExportOptions withJdbcUrl(String jdbcUrl) {
+    return new ExportOptions(filename, exportMedia, overwrite, startDate, endDate, incremental, jdbcUrl, columns,
+        filter, partitioning);
+  }
+
+  /**
+   * @param columns the full names of the fields to export, or none to export them all
+   */
+  public ExportOptions withColumns(List<String> columns) {
+    return new ExportOptions(filename, exportMedia, overwrite, startDate, endDate, incremental, jdbcUrl, columns,
+        filter, partitioning);
+  }
+
+  /**
+   * @param filter which submissions to export, besides the date range
+   */
+  public ExportOptions withFilter(SubmissionFilter filter) {
+    return new ExportOptions(filename, exportMedia, overwrite, startDate, endDate, incremental, jdbcUrl, columns,
+        filter, partitioning);
+  }
+
+  /**
+   * @param partitioning how to split the files of csv exports
+   */
+  public ExportOptions withPartitioning(ExportPartitioning partitioning) {
+    return new ExportOptions(filename, exportMedia, overwrite, startDate, endDate, incremental, jdbcUrl, columns,
+        filter, partitioning);
+  }
+
+  /**
+   * Returns the name of the files or tables to export the form to.
+   */
+  public String getFilename(BriefcaseFormDefinition lfd) {
+    return filename != null ? filename : lfd.getFormName();
+  }
+
+  public boolean isExportMedia() {
+    return exportMedia;
+  }
+
+  public boolean isOverwrite() {
+    return overwrite;
+  }
+
+  public Date getStartDate() {
+    return startDate;
+  }
+
+  public Date getEndDate() {
+    return endDate;
+  }
+
+  public boolean isIncremental() {
+    return incremental;
+  }
+
+  public String getJdbcUrl() {
+    return jdbcUrl;
+  }
+
+  public List<String> getColumns() {
+    return columns;
+  }
+
+  public SubmissionFilter getFilter() {
+    return filter;
+  }
+
+  public ExportPartitioning getPartitioning() {
+    return partitioning;
+  }
+
+  @Override
+  public String toString() {
+    return "ExportOptions{" +
+        "filename=" + filename +
+        ", exportMedia=" + exportMedia +
+        ", overwrite=" + overwrite +
+        ", startDate=" + (startDate == null ? "" : startDate.getTime()) +
+        ", endDate=" + (endDate == null ? "" : endDate.getTime()) +
+        ", incremental=" + incremental +
+        ", jdbcUrl=" + jdbcUrl +
+        ", columns=" + columns +
+        ", filter=" + filter +
+        ", partitioning=" + partitioning +
+        '}';
+  }
+}
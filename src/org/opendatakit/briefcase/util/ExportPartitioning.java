@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2018 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.briefcase.util;
+
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Splits the csv files of an export into partitions, by the month or the day
+ * of the submission date of the submissions, or into parts of at most a
+ * number of submissions or bytes, or both. Every partition has csv files of
+ * its own, with their headers, so that each one can be loaded by itself.
+ * <p>
+ * Partitionings are written as comma separated options:
+ * <ul>
+ * <li>{@code month} or {@code day} splits the files by submission date</li>
+ * <li>{@code rows=N} starts a new part every N submissions</li>
+ * <li>{@code size=N}, with an optional {@code k}, {@code m} or {@code g}
+ * suffix, starts a new part once one of the files reaches N bytes</li>
+ * </ul>
+ * For example, {@code month,size=1g}. The rows of the repeat groups of a
+ * submission always go in the same partition as the submission.
+ */
+public class ExportPartitioning {
+
+  private static final ExportPartitioning NONE = new ExportPartitioning(Period.NONE, 0, 0);
+
+  /** The partition of the submissions without a submission date */
+  static final String UNDATED = "undated";
+
+  private enum Period {
+    NONE(null), MONTH("yyyy-MM"), DAY("yyyy-MM-dd");
+
+    private final String pattern;
+
+    Period(String pattern) {
+      this.pattern = pattern;
+    }
+  }
+
+  private final Period period;
+  private final long maxRows;
+  private final long maxBytes;
+  /** Formats the submission dates, in the local time zone, into partition names */
+  private final DateTimeFormatter format;
+
+  private ExportPartitioning(Period period, long maxRows, long maxBytes) {
+    this.period = period;
+    this.maxRows = maxRows;
+    this.maxBytes = maxBytes;
+    this.format = period.pattern == null
+        ? null : DateTimeFormatter.ofPattern(period.pattern, Locale.ROOT).withZone(ZoneId.systemDefault());
+  }
+
+  /**
+   * A partitioning that writes all the submissions into the same files.
+   */
+  public static ExportPartitioning none() {
+    return NONE;
+  }
+
+  /**
+   * Parses a partitioning. An empty one doesn't split the files.
+   *
+   * @throws IllegalArgumentException if the value is not a valid partitioning
+   */
+  public static ExportPartitioning parse(String value) {
+    Period period = Period.NONE;
+    long maxRows = 0;
+    long maxBytes = 0;
+    for (String part : value.split(",")) {
+      String option = part.trim().toLowerCase(Locale.ROOT);
+      if (option.isEmpty()) {
+        continue;
+      }
+      if (option.equals("month") || option.equals("day")) {
+        if (period != Period.NONE) {
+          throw new IllegalArgumentException("Only one of month or day can be given");
+        }
+        period = Period.valueOf(option.toUpperCase(Locale.ROOT));
+      } else if (option.startsWith("rows=")) {
+        maxRows = parseSize(option.substring(5), false);
+      } else if (option.startsWith("size=")) {
+        maxBytes = parseSize(option.substring(5), true);
+      } else {
+        throw new IllegalArgumentException("Unknown partitioning option " + part.trim());
+      }
+    }
+    return period == Period.NONE && maxRows == 0 && maxBytes == 0
+        ? NONE : new ExportPartitioning(period, maxRows, maxBytes);
+  }
+
+  private static long parseSize(String value, boolean withUnits) {
+    long multiplier = 1;
+    String number = value.trim();
+    if (withUnits && !number.isEmpty()) {
+      switch (number.charAt(number.length() - 1)) {
+      case 'k':
+        multiplier = 1024L;
+        break;
+      case 'm':
+        multiplier = 1024L * 1024;
+        break;
+      case 'g':
+        multiplier = 1024L * 1024 * 1024;
+        break;
+      default:
+        break;
+      }
+      if (multiplier > 1) {
+        number = number.substring(0, number.length() - 1);
+      }
+    }
+    try {
+      long size = Long.parseLong(number) * multiplier;
+      if (size <= 0) {
+        throw new IllegalArgumentException("Partition limits must be positive: " + value);
+      }
+      return size;
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Not a valid partition limit: " + value);
+    }
+  }
+
+  public boolean isEmpty() {
+    return this == NONE;
+  }
+
+  /**
+   * Whether a partition can be split into several parts.
+   */
+  boolean hasLimits() {
+    return maxRows > 0 || maxBytes > 0;
+  }
+
+  /**
+   * The name of the partition of a submission, which is empty unless the
+   * files are split by submission date.
+   */
+  String partitionOf(Date submissionDate) {
+    if (format == null) {
+      return "";
+    }
+    return submissionDate == null ? UNDATED : format.format(submissionDate.toInstant());
+  }
+
+  /**
+   * Whether a part that holds the given number of submissions, and whose
+   * largest file has the given size, can't take any more submissions.
+   */
+  boolean isFull(long rows, long bytes) {
+    return (maxRows > 0 && rows >= maxRows) || (maxBytes > 0 && bytes >= maxBytes);
+  }
+
+  @Override
+  public String toString() {
+    List<String> options = new ArrayList<String>();
+    if (period != Period.NONE) {
+      options.add(period.name().toLowerCase(Locale.ROOT));
+    }
+    if (maxRows > 0) {
+      options.add("rows=" + maxRows);
+    }
+    if (maxBytes > 0) {
+      options.add("size=" + maxBytes);
+    }
+    return String.join(",", options);
+  }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2018 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.briefcase.util;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.bushe.swing.event.EventBus;
+import org.opendatakit.briefcase.model.BriefcaseFormDefinition;
+import org.opendatakit.briefcase.model.BriefcasePreferences;
+import org.opendatakit.briefcase.model.ExportFailedEvent;
+import org.opendatakit.briefcase.model.ExportProgressEvent;
+import org.opendatakit.briefcase.model.ExportSucceededEvent;
+import org.opendatakit.briefcase.model.ExportSucceededWithErrorsEvent;
+import org.opendatakit.briefcase.model.FileSystemException;
+import org.opendatakit.briefcase.model.TerminationFuture;
+
+/**
+ * Runs the exports of forms in the background, only a limited number of
+ * them at once so that they don't fight over the disk. Waiting exports are
+ * started smallest form first, by number of submissions, so that small forms
+ * don't wait behind big ones.
+ * <p>
+ * The state of each export is published as {@link ExportProgressEvent}s
+ * while it's queued and once it starts, and as the usual success or failure
+ * events when it's done. Exports still queued when their
+ * {@link TerminationFuture} gets cancelled fail without running.
+ */
+public class ExportScheduler {
+
+  private static final Log log = LogFactory.getLog(ExportScheduler.class);
+
+  private static ExportScheduler instance;
+
+  private final ThreadPoolExecutor executor;
+  private final AtomicLong sequence = new AtomicLong();
+
+  ExportScheduler(int maxConcurrentExports) {
+    int threads = Math.max(1, maxConcurrentExports);
+    executor = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.MINUTES,
+        new PriorityBlockingQueue<Runnable>(), new SchedulerThreadFactory());
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Returns the scheduler shared by all the exports of the application,
+   * running as many exports at once as the preferences say.
+   */
+  public static synchronized ExportScheduler get() {
+    if (instance == null) {
+      instance = new ExportScheduler(BriefcasePreferences.getBriefcaseMaxConcurrentExportsProperty());
+    }
+    return instance;
+  }
+
+  /**
+   * Changes how many exports run at once. Running exports are not affected.
+   */
+  public synchronized void setMaxConcurrentExports(int maxConcurrentExports) {
+    int threads = Math.max(1, maxConcurrentExports);
+    if (threads > executor.getMaximumPoolSize()) {
+      executor.setMaximumPoolSize(threads);
+      executor.setCorePoolSize(threads);
+    } else {
+      executor.setCorePoolSize(threads);
+      executor.setMaximumPoolSize(threads);
+    }
+  }
+
+  CompletableFuture<Boolean> schedule(ITransformFormAction action, TerminationFuture terminationFuture) {
+    List<ITransformFormAction> actions = new ArrayList<ITransformFormAction>();
+    actions.add(action);
+    return scheduleAll(actions, terminationFuture).get(0);
+  }
+
+  /**
+   * Queues the exports of several forms at once, so that they start in
+   * order of size rather than in the given order.
+   *
+   * @return a future for each action, in the given order, completed with
+   *     whether the export was successful once it's done
+   */
+  public synchronized List<CompletableFuture<Boolean>> scheduleAll(List<? extends ITransformFormAction> actions,
+      TerminationFuture terminationFuture) {
+    List<Job> jobs = new ArrayList<Job>();
+    List<CompletableFuture<Boolean>> results = new ArrayList<CompletableFuture<Boolean>>();
+    for (ITransformFormAction action : actions) {
+      Job job = new Job(action, terminationFuture, countSubmissions(action.getFormDefinition()),
+          sequence.incrementAndGet());
+      jobs.add(job);
+      results.add(job.result);
+      EventBus.publish(new ExportProgressEvent("Queued for export", action.getFormDefinition()));
+    }
+    // idle threads take jobs as they come, so hand them the smallest first
+    jobs.sort(Comparator.naturalOrder());
+    for (Job job : jobs) {
+      executor.execute(job);
+    }
+    return results;
+  }
+
+  private static long countSubmissions(BriefcaseFormDefinition lfd) {
+    try {
+      String[] instances = FileSystemUtils.getFormInstancesDirectory(lfd.getFormDirectory()).list();
+      return instances == null ? 0 : instances.length;
+    } catch (FileSystemException e) {
+      // the export will report it
+      return 0;
+    }
+  }
+
+  private static class Job implements Runnable, Comparable<Job> {
+    private final ITransformFormAction action;
+    private final TerminationFuture terminationFuture;
+    private final long submissions;
+    private final long sequence;
+    private final CompletableFuture<Boolean> result = new CompletableFuture<Boolean>();
+
+    Job(ITransformFormAction action, TerminationFuture terminationFuture, long submissions, long sequence) {
+      this.action = action;
+      this.terminationFuture = terminationFuture;
+      this.submissions = submissions;
+      this.sequence = sequence;
+    }
+
+    @Override
+    public int compareTo(Job other) {
+      int bySize = Long.compare(submissions, other.submissions);
+      return bySize != 0 ? bySize : Long.compare(sequence, other.sequence);
+    }
+
+    @Override
+    public void run() {
+      if (terminationFuture.isCancelled()) {
+        EventBus.publish(new ExportProgressEvent("Aborted", action.getFormDefinition()));
+        EventBus.publish(new ExportFailedEvent(action.getFormDefinition()));
+        result.complete(false);
+        return;
+      }
+      EventBus.publish(new ExportProgressEvent("Export started", action.getFormDefinition()));
+      boolean successful = false;
+      try {
+        if (action.doAction()) {
+          if (action.totalFilesSkipped() == FilesSkipped.SOME) {
+            EventBus.publish(new ExportSucceededWithErrorsEvent(
+                action.getFormDefinition()));
+            successful = true;
+          } else if (action.totalFilesSkipped() == FilesSkipped.ALL) {
+            // None of the instances were exported
+            EventBus.publish(new ExportFailedEvent(action.getFormDefinition()));
+          } else {
+            EventBus.publish(new ExportSucceededEvent(action.getFormDefinition()));
+            successful = true;
+          }
+        } else {
+          EventBus.publish(new ExportFailedEvent(action.getFormDefinition()));
+        }
+      } catch (Exception e) {
+        log.error("export action failed", e);
+        EventBus.publish(new ExportFailedEvent(action.getFormDefinition()));
+      } finally {
+        result.complete(successful);
+      }
+    }
+  }
+
+  private static class SchedulerThreadFactory implements ThreadFactory {
+    private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread t = new Thread(r, "briefcase-export-scheduler-" + threadNumber.getAndIncrement());
+      t.setDaemon(true);
+      return t;
+    }
+  }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2018 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.briefcase.util;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * One of the outputs of an export, as the csv files, the jsonl file or the
+ * database tables of a form, with its own writer and options. The
+ * submissions are loaded once by the export and handed to each of its
+ * outputs in turn, see {@link CombinedExport}.
+ * <p>
+ * All the methods are called from the thread running the export. Errors are
+ * published as {@link org.opendatakit.briefcase.model.ExportProgressEvent}s
+ * before returning false.
+ */
+public interface ExportSink {
+
+  /**
+   * Creates or opens the output for the given columns. Media files are
+   * exported with the given exporter, shared by all the outputs of the
+   * export.
+   *
+   * @return false if the output can't be written
+   */
+  boolean open(ColumnPlan columnPlan, MediaFileExporter mediaExporter);
+
+  /**
+   * Whether the output still lacks the submission in the given directory,
+   * as it might not when exporting incrementally.
+   */
+  boolean wants(File instanceDir);
+
+  /**
+   * Whether the media files of the submissions get exported with the
+   * output.
+   */
+  boolean exportsMedia();
+
+  /**
+   * The files the output writes to, once it's open, so that changes to them
+   * can be noticed. Database tables aren't files, so they aren't listed.
+   */
+  List<File> getOutputFiles();
+
+  /**
+   * Writes a submission. Its decrypted files, if any, are removed by the
+   * export once all its outputs are written.
+   *
+   * @return false if the submission couldn't be written
+   */
+  boolean write(LoadedSubmission loaded);
+
+  /**
+   * Finishes the output, whether or not all the submissions were written.
+   *
+   * @param complete whether the export went through all its submissions,
+   *                 rather than being cancelled or stopped by an error
+   * @return false if the output couldn't be saved
+   */
+  boolean close(boolean complete);
+}
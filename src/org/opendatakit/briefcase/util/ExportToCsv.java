@@ -16,91 +16,106 @@
 
 package org.opendatakit.briefcase.util;
 
-import java.io.ByteArrayInputStream;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileFilter;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.security.InvalidAlgorithmParameterException;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
+import java.nio.file.Files;
 import java.text.DateFormat;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.Date;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import javax.crypto.Cipher;
-import javax.crypto.CipherInputStream;
-import javax.crypto.NoSuchPaddingException;
-
-import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.bushe.swing.event.EventBus;
-import org.javarosa.core.model.instance.AbstractTreeElement;
-import org.javarosa.core.model.instance.TreeElement;
-import org.kxml2.kdom.Document;
-import org.kxml2.kdom.Element;
-import org.kxml2.kdom.Node;
 import org.opendatakit.briefcase.model.BriefcaseFormDefinition;
-import org.opendatakit.briefcase.model.CryptoException;
+import org.opendatakit.briefcase.model.BriefcasePreferences;
 import org.opendatakit.briefcase.model.ExportProgressEvent;
 import org.opendatakit.briefcase.model.ExportProgressPercentageEvent;
 import org.opendatakit.briefcase.model.FileSystemException;
-import org.opendatakit.briefcase.model.ParsingException;
 import org.opendatakit.briefcase.model.TerminationFuture;
-import org.opendatakit.briefcase.util.XmlManipulationUtils.FormInstanceMetadata;
 
 public class ExportToCsv implements ITransformFormAction {
 
-  private static final String MEDIA_DIR = "media";
-
   private static final Log log = LogFactory.getLog(ExportToCsv.class);
 
   File outputDir;
-  File outputMediaDir;
   String baseFilename;
   BriefcaseFormDefinition briefcaseLfd;
   TerminationFuture terminationFuture;
-  Map<TreeElement, OutputStreamWriter> fileMap = new HashMap<TreeElement, OutputStreamWriter>();
-  Map<String, String> fileHashMap = new HashMap<String, String>();
+  Map<ColumnPlan.Table, CsvWriter> fileMap = new HashMap<ColumnPlan.Table, CsvWriter>();
+  MediaFileExporter mediaExporter;
   
   boolean exportMedia = true;
   Date startDate;
   Date endDate;
   boolean overwrite = false;
+  boolean incremental = false;
+  List<String> columns = Collections.emptyList();
+  SubmissionFilter filter = SubmissionFilter.none();
+  ExportPartitioning partitioning = ExportPartitioning.none();
+  /** The partition the fileMap writes into, null until the first submission of a partitioned export */
+  String partition;
+  int part;
+  long partRows;
+  /** The last part written of each partition */
+  Map<String, Integer> writtenParts = new HashMap<String, Integer>();
+  /** Every csv file opened by the export */
+  Set<File> outputFiles = new LinkedHashSet<File>();
+  ExportWatermark watermark;
+  /** Where the progress of the export is recorded, to resume it if it's interrupted */
+  ExportCheckpoint checkpoint;
+  /** Whether a submission was left half written, so the files are past their last checkpoint */
+  boolean writeFailed = false;
+  ColumnPlan columnPlan;
+  SubmissionLoader loader;
   int totalFilesSkipped = 0;
   int totalInstances = 0;
-  int processedInstances = 0;
+  AtomicInteger processedInstances = new AtomicInteger(0);
 
 
-  public ExportToCsv(File outputDir, BriefcaseFormDefinition lfd, TerminationFuture terminationFuture, Date start, Date end) {
-    this(outputDir, lfd, terminationFuture, lfd.getFormName(), true, false, start, end);
-  }
-
-  public ExportToCsv(File outputDir, BriefcaseFormDefinition lfd, TerminationFuture terminationFuture, String filename, boolean exportMedia, Boolean overwrite, Date start, Date end) {
+  /**
+   * The csv files are named after the filename of the options, and split as
+   * their partitioning says, followed by the month or day and the part
+   * number, as in {@code form-2018-05-part2.csv}.
+   */
+  public ExportToCsv(File outputDir, BriefcaseFormDefinition lfd, TerminationFuture terminationFuture, ExportOptions options) {
      this.outputDir = outputDir;
-     this.outputMediaDir = new File(outputDir, MEDIA_DIR);
      this.briefcaseLfd = lfd;
      this.terminationFuture = terminationFuture;
 
+     String filename = options.getFilename(lfd);
      // Strip .csv, it gets added later
      if (filename.endsWith(".csv")) {
          filename = filename.substring(0, filename.length() - 4);
      }
      this.baseFilename = filename;
-     this.exportMedia = exportMedia;
-     this.overwrite = overwrite;
-     this.startDate = start;
-     this.endDate = end;
+     this.exportMedia = options.isExportMedia();
+     this.overwrite = options.isOverwrite();
+     this.startDate = options.getStartDate();
+     this.endDate = options.getEndDate();
+     this.incremental = options.isIncremental();
+     this.columns = options.getColumns();
+     this.filter = options.getFilter();
+     this.partitioning = options.getPartitioning();
   }
 
   @Override
@@ -123,446 +138,197 @@ public class ExportToCsv implements ITransformFormAction {
       }
     }
 
-    if (!processFormDefinition()) {
+    CsvSink sink = new CsvSink();
+    if (!sink.open(ColumnPlan.forForm(briefcaseLfd, columns), new MediaFileExporter(outputDir, briefcaseLfd))) {
       // weren't able to initialize the csv file...
       return false;
     }
+    loader = new SubmissionLoader(briefcaseLfd, columnPlan, outputDir, exportMedia, startDate, endDate, filter, terminationFuture);
 
     File[] instances = instancesDir.listFiles(new FileFilter() {
       public boolean accept(File file) {
-        // do we have a folder with submission.xml inside
-        return file.isDirectory() && new File(file, "submission.xml").exists();
+        // do we have a folder with submission.xml inside, that
+        // hasn't been exported before when exporting incrementally
+        return file.isDirectory() && new File(file, "submission.xml").exists()
+            && sink.wants(file);
       }
     });
-    totalInstances = instances.length;
-
     // Sorts the instances by the submission date. If no submission date, we
     // assume it to be latest.
-    if (instances != null) {
-      Arrays.sort(instances, new Comparator<File>() {
-        public int compare(File f1, File f2) {
-          try {
-            if (f1.isDirectory() && f2.isDirectory()) {
-              File submission1 = new File(f1, "submission.xml");
-              String submissionDate1String = XmlManipulationUtils.parseXml(submission1).getRootElement()
-                  .getAttributeValue(null, "submissionDate");
-
-              File submission2 = new File(f2, "submission.xml");
-              String submissionDate2String = XmlManipulationUtils.parseXml(submission2).getRootElement()
-                  .getAttributeValue(null, "submissionDate");
-
-              Date submissionDate1 = StringUtils.isNotEmptyNotNull(submissionDate1String)
-                  ? WebUtils.parseDate(submissionDate1String) : new Date();
-              Date submissionDate2 = StringUtils.isNotEmptyNotNull(submissionDate2String)
-                  ? WebUtils.parseDate(submissionDate2String) : new Date();
-              return submissionDate1.compareTo(submissionDate2);
-            }
-          } catch (ParsingException | FileSystemException e) {
-            log.error("failed to sort submissions", e);
-          }
-          return 0;
-        }
-      });
-    }
+    SubmissionIndex index = SubmissionIndex.load(briefcaseLfd, instances);
+    // the submissions out of the date range aren't even read
+    instances = index.inDateRange(instances, startDate, endDate);
+    index.sortBySubmissionDate(instances);
+    totalInstances = instances.length;
 
-    for (File instanceDir : instances) {
-      if ( terminationFuture.isCancelled() ) {
-        EventBus.publish(new ExportProgressEvent("Aborted", briefcaseLfd));
-        allSuccessful = false;
-        break;
+    int exportThreads = BriefcasePreferences.getBriefcaseParallelExportsProperty()
+        ? Runtime.getRuntime().availableProcessors() : 1;
+    if (exportThreads > 1) {
+      allSuccessful = processInstancesInParallel(instances, exportThreads);
+    } else {
+      for (File instanceDir : instances) {
+        if ( terminationFuture.isCancelled() ) {
+          EventBus.publish(new ExportProgressEvent("Aborted", briefcaseLfd));
+          allSuccessful = false;
+          break;
+        }
+        if (instanceDir.getName().startsWith("."))
+          continue; // Mac OSX
+        allSuccessful = allSuccessful && writeInstance(processInstance(instanceDir));
       }
-      if (instanceDir.getName().startsWith("."))
-        continue; // Mac OSX
-      allSuccessful = allSuccessful && processInstance(instanceDir);
     }
 
-    for (OutputStreamWriter w : fileMap.values()) {
-      try {
-        w.flush();
-        w.close();
-      } catch (IOException e) {
-        String msg = "Error flushing csv file";
-        EventBus.publish(new ExportProgressEvent(msg, briefcaseLfd));
-        log.error(msg, e);
-        allSuccessful = false;
-      }
-    }
+    loader.cleanUp();
 
-    return allSuccessful;
-  }
+    allSuccessful = sink.close(allSuccessful) && allSuccessful;
 
-  private void emitString(OutputStreamWriter osw, boolean first, String string) throws IOException {
-    osw.append(first ? "" : ",");
-    if (string == null)
-      return;
-    if (string.length() == 0 || string.contains("\n") || string.contains("\"")
-        || string.contains(",")) {
-      string = string.replace("\"", "\"\"");
-      string = "\"" + string + "\"";
+    try {
+      mediaExporter.save();
+    } catch (IOException e) {
+      // the media files get hashed again on the next export
+      log.warn("Unable to save the media index", e);
     }
-    osw.append(string);
-  }
 
-  private String getFullName(AbstractTreeElement e, TreeElement group) {
-    List<String> names = new ArrayList<String>();
-    while (e != null && e != group) {
-      names.add(e.getName());
-      e = e.getParent();
-    }
-    StringBuilder b = new StringBuilder();
-    Collections.reverse(names);
-    boolean first = true;
-    for (String s : names) {
-      if (!first) {
-        b.append("-");
-      }
-      first = false;
-      b.append(s);
-    }
+    return allSuccessful;
+  }
 
-    return b.toString();
+  @Override
+  public Optional<ExportSink> getSink() {
+    return Optional.of(new CsvSink());
   }
 
-  private Element findElement(Element submissionElement, String name) {
-    if ( submissionElement == null ) {
-      return null;
-    }
-    int maxChildren = submissionElement.getChildCount();
-    for (int i = 0; i < maxChildren; i++) {
-      if (submissionElement.getType(i) == Node.ELEMENT) {
-        Element e = submissionElement.getElement(i);
-        if (name.equals(e.getName())) {
-          return e;
+  /**
+   * Parses, decrypts and flattens the instances on a pool of worker threads
+   * while this thread writes their output in the original order. Only a
+   * bounded number of instances is in flight at any time.
+   */
+  private boolean processInstancesInParallel(File[] instances, int exportThreads) {
+    boolean allSuccessful = true;
+    ExecutorService execSvc = Executors.newFixedThreadPool(exportThreads, new ExportThreadFactory());
+    Deque<Future<ProcessedInstance>> inFlight = new ArrayDeque<Future<ProcessedInstance>>();
+    int next = 0;
+    try {
+      while (next < instances.length || !inFlight.isEmpty()) {
+        while (next < instances.length && inFlight.size() < exportThreads * 2) {
+          final File instanceDir = instances[next++];
+          if (instanceDir.getName().startsWith("."))
+            continue; // Mac OSX
+          inFlight.add(execSvc.submit(() -> processInstance(instanceDir)));
+        }
+        if ( terminationFuture.isCancelled() ) {
+          EventBus.publish(new ExportProgressEvent("Aborted", briefcaseLfd));
+          allSuccessful = false;
+          break;
+        }
+        if (inFlight.isEmpty()) {
+          continue;
+        }
+        if (!writeInstance(awaitInstance(inFlight.poll()))) {
+          allSuccessful = false;
+          break;
         }
       }
-    }
-    return null;
-  }
-
-  private List<Element> findElementList(Element submissionElement, String name) {
-    List<Element> ecl = new ArrayList<Element>();
-    int maxChildren = submissionElement.getChildCount();
-    for (int i = 0; i < maxChildren; i++) {
-      if (submissionElement.getType(i) == Node.ELEMENT) {
-        Element e = submissionElement.getElement(i);
-        if (name.equals(e.getName())) {
-          ecl.add(e);
+    } finally {
+      // discard whatever was processed ahead of a failure or cancellation
+      for (Future<ProcessedInstance> future : inFlight) {
+        if (!future.cancel(false)) {
+          ProcessedInstance processed = awaitInstance(future);
+          if (processed.decryptedDir != null) {
+            FileUtils.deleteQuietly(processed.decryptedDir);
+          }
         }
       }
+      execSvc.shutdown();
+      try {
+        execSvc.awaitTermination(1, TimeUnit.MINUTES);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
     }
-    return ecl;
+    return allSuccessful;
   }
 
-  private String getSubmissionValue(EncryptionInformation ei, TreeElement model, Element element) {
-    // could not find element, return null
-    if (element == null) {
-      return null;
+  private ProcessedInstance awaitInstance(Future<ProcessedInstance> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      EventBus.publish(new ExportProgressEvent("Aborted", briefcaseLfd));
+      return ProcessedInstance.failed();
+    } catch (ExecutionException e) {
+      String msg = "Error processing submission";
+      log.error(msg, e.getCause());
+      EventBus.publish(new ExportProgressEvent(msg + " Cause: " + e.getCause().toString(), briefcaseLfd));
+      return ProcessedInstance.failed();
     }
+  }
 
-    StringBuilder b = new StringBuilder();
-
-    int maxChildren = element.getChildCount();
-    for (int i = 0; i < maxChildren; i++) {
-      if (element.getType(i) == Node.TEXT) {
-        b.append(element.getText(i));
+  /**
+   * Appends the output of a processed instance to the csv files and exports
+   * its media files. Must only be called from the thread owning the fileMap.
+   */
+  private boolean writeInstance(ProcessedInstance processed) {
+    try {
+      if (processed.skipped) {
+        totalFilesSkipped++;
+      }
+      if (processed.output != null) {
+        selectPartition(processed.submissionDate);
+        processed.output.writeTo(fileMap, mediaExporter);
+        watermark.markExported(processed.instanceDir);
+        commit(processed.instanceDir);
+      }
+      return processed.successful;
+    } catch (IOException e) {
+      writeFailed = true;
+      String msg = "Failed writing csv";
+      log.error(msg, e);
+      EventBus.publish(new ExportProgressEvent(msg + ": " + e.getMessage(), briefcaseLfd));
+      return false;
+    } finally {
+      if (processed.decryptedDir != null) {
+        // destroy the temp directory and its contents...
+        try {
+          FileUtils.deleteDirectory(processed.decryptedDir);
+        } catch (IOException e) {
+          String msg = "Unable to remove decrypted files";
+          log.error(msg, e);
+          EventBus.publish(new ExportProgressEvent(msg + ": " + e.getMessage(), briefcaseLfd));
+          return false;
+        }
       }
     }
-    String rawElement = b.toString();
-
-    // Field-level encryption support -- experimental
-    if ( JavaRosaParserWrapper.isEncryptedField(model) ) {
+  }
 
-      InputStreamReader isr = null;
+  /**
+   * Records a written instance in the checkpoint, and every so often syncs
+   * the files so that the export can be resumed from there.
+   */
+  private void commit(File instanceDir) throws IOException {
+    if (checkpoint.written(instanceDir)) {
       try {
-        Cipher c = ei.getCipher("field:" + model.getName(), model.getName());
-
-        isr = new InputStreamReader(new CipherInputStream(
-                  new ByteArrayInputStream(Base64.decodeBase64(rawElement)), c),"UTF-8");
-
-        b.setLength(0);
-        int ch;
-        while ( (ch = isr.read()) != -1 ) {
-          char theChar = (char) ch;
-          b.append(theChar);
-        }
-        return b.toString();
-
+        mediaExporter.save();
       } catch (IOException e) {
-        log.debug(" element name: " + model.getName() + " exception: " + e);
-      } catch (InvalidKeyException | NoSuchPaddingException | NoSuchAlgorithmException | InvalidAlgorithmParameterException e) {
-        log.debug(" element name: " + model.getName() + " exception: " + e, e);
-      } finally {
-        if (isr != null) {
-          try {
-            isr.close();
-          } catch (IOException e) {
-            log.error("failed to close reader", e);
-          }
-        }
+        // the media files get hashed again on the next export
+        log.warn("Unable to save the media index", e);
       }
+      checkpoint.checkpoint(fileMap.values());
     }
-    return rawElement;
   }
 
-  private boolean emitSubmissionCsv(OutputStreamWriter osw, EncryptionInformation ei,
-      Element submissionElement,
-      TreeElement primarySet, TreeElement treeElement, boolean first, String uniquePath,
-      File instanceDir) throws IOException {
-    // OK -- group with at least one element -- assume no value...
-    // TreeElement list has the begin and end tags for the nested groups.
-    // Swallow the end tag by looking to see if the prior and current
-    // field names are the same.
-    TreeElement prior = null;
-    for (int i = 0; i < treeElement.getNumChildren(); ++i) {
-      TreeElement current = (TreeElement) treeElement.getChildAt(i);
-      log.debug(" element name: " + current.getName());
-      if ((prior != null) && (prior.getName().equals(current.getName()))) {
-        // it is the end-group tag... seems to happen with two adjacent repeat
-        // groups
-        log.info("repeating tag at " + i + " skipping " + current.getName());
-        prior = current;
-      } else {
-        Element ec = findElement(submissionElement, current.getName());
-        switch (current.getDataType()) {
-        case org.javarosa.core.model.Constants.DATATYPE_TEXT:/**
-           * Text question
-           * type.
-           */
-        case org.javarosa.core.model.Constants.DATATYPE_INTEGER:/**
-           * Numeric
-           * question type. These are numbers without decimal points
-           */
-        case org.javarosa.core.model.Constants.DATATYPE_DECIMAL:/**
-           * Decimal
-           * question type. These are numbers with decimals
-           */
-        case org.javarosa.core.model.Constants.DATATYPE_CHOICE:/**
-           * This is a
-           * question with alist of options where not more than one option can
-           * be selected at a time.
-           */
-        case org.javarosa.core.model.Constants.DATATYPE_CHOICE_LIST:/**
-           * This is a
-           * question with alist of options where more than one option can be
-           * selected at a time.
-           */
-        case org.javarosa.core.model.Constants.DATATYPE_BOOLEAN:/**
-           * Question with
-           * true and false answers.
-           */
-        case org.javarosa.core.model.Constants.DATATYPE_BARCODE:/**
-           * Question with
-           * barcode string answer.
-           */
-        default:
-        case org.javarosa.core.model.Constants.DATATYPE_UNSUPPORTED:
-          if (ec == null) {
-            emitString(osw, first, null);
-          } else {
-            emitString(osw, first, getSubmissionValue(ei,current,ec));
-          }
-          first = false;
-          break;
-        case org.javarosa.core.model.Constants.DATATYPE_DATE:
-          /**
-           * Date question type. This has only date component without time.
-           */
-          if (ec == null) {
-            emitString(osw, first, null);
-          } else {
-            String value = getSubmissionValue(ei,current,ec);
-            if (value == null || value.length() == 0) {
-              emitString(osw, first, null);
-            } else {
-              Date date = WebUtils.parseDate(value);
-              DateFormat formatter = DateFormat.getDateInstance();
-              emitString(osw, first, formatter.format(date));
-            }
-          }
-          first = false;
-          break;
-        case org.javarosa.core.model.Constants.DATATYPE_TIME:
-          /**
-           * Time question type. This has only time element without date
-           */
-          if (ec == null) {
-            emitString(osw, first, null);
-          } else {
-            String value = getSubmissionValue(ei,current,ec);
-            if (value == null || value.length() == 0) {
-              emitString(osw, first, null);
-            } else {
-              Date date = WebUtils.parseDate(value);
-              DateFormat formatter = DateFormat.getTimeInstance();
-              emitString(osw, first, formatter.format(date));
-            }
-          }
-          first = false;
-          break;
-        case org.javarosa.core.model.Constants.DATATYPE_DATE_TIME:
-          /**
-           * Date and Time question type. This has both the date and time
-           * components
-           */
-          if (ec == null) {
-            emitString(osw, first, null);
-          } else {
-            String value = getSubmissionValue(ei,current,ec);
-            if (value == null || value.length() == 0) {
-              emitString(osw, first, null);
-            } else {
-              Date date = WebUtils.parseDate(value);
-              DateFormat formatter = DateFormat.getDateTimeInstance();
-              emitString(osw, first, formatter.format(date));
-            }
-          }
-          first = false;
-          break;
-        case org.javarosa.core.model.Constants.DATATYPE_GEOPOINT:
-          /**
-           * Question with location answer.
-           */
-          String compositeValue = (ec == null) ? null : getSubmissionValue(ei,current,ec);
-          compositeValue = (compositeValue == null) ? null : compositeValue.trim();
-
-          // emit separate lat, long, alt, acc columns...
-          if (compositeValue == null || compositeValue.length() == 0) {
-            for (int count = 0; count < 4; ++count) {
-              emitString(osw, first, null);
-              first = false;
-            }
-          } else {
-            String[] values = compositeValue.split(" ");
-            for (String value : values) {
-              emitString(osw, first, value);
-              first = false;
-            }
-            for (int count = values.length; count < 4; ++count) {
-              emitString(osw, first, null);
-              first = false;
-            }
-          }
-          break;
-        case org.javarosa.core.model.Constants.DATATYPE_BINARY:
-          /**
-           * Question with external binary answer.
-           */
-          String binaryFilename = getSubmissionValue(ei,current,ec);
-          if (binaryFilename == null || binaryFilename.length() == 0) {
-            emitString(osw, first, null);
-            first = false;
-          } else {
-            if (exportMedia) {
-               if (!outputMediaDir.exists()) {
-                  if (!outputMediaDir.mkdir()) {
-                    EventBus.publish(new ExportProgressEvent("Unable to create destination media directory", briefcaseLfd));
-                    return false;
-                  }
-               }
-
-               int dotIndex = binaryFilename.lastIndexOf(".");
-               String namePart = (dotIndex == -1) ? binaryFilename : binaryFilename.substring(0,
-                   dotIndex);
-               String extPart = (dotIndex == -1) ? "" : binaryFilename.substring(dotIndex);
-   
-               File binaryFile = new File(instanceDir, binaryFilename);
-               String destBinaryFilename = binaryFilename;
-               int version = 1;
-               File destFile = new File(outputMediaDir, destBinaryFilename);
-               boolean exists = false;
-                String binaryFileHash = null;
-                String destFileHash = null;
- 
-                if (destFile.exists() && binaryFile.exists()) {
-                   binaryFileHash = FileSystemUtils.getMd5Hash(binaryFile);
-                     
-                   while (destFile.exists()) {
-                    /* check if the contents of the destFile and binaryFile is same
-                     * if yes, skip the export of such file
-                     */
- 
-                    if (fileHashMap.containsKey(destFile.getName())) {
-                       destFileHash = fileHashMap.get(destFile.getName());
-                    } else {
-                       destFileHash = FileSystemUtils.getMd5Hash(destFile);
-                       if (destFileHash != null) {
-                         fileHashMap.put(destFile.getName(), destFileHash);
-                       }
-                    }
- 
-                    if (binaryFileHash != null && destFileHash != null && destFileHash.equals(binaryFileHash)) {
-                     exists = true;
-                     break;
-                    }
- 
-                    destBinaryFilename = namePart + "-" + (++version) + extPart;
-                    destFile = new File(outputMediaDir, destBinaryFilename);
-                  }
-                }
-               if (binaryFile.exists() && exists == false) {
-                 FileUtils.copyFile(binaryFile, destFile);
-               }
-               emitString(osw, first, MEDIA_DIR + File.separator + destFile.getName());
-            } else {
-                emitString(osw, first, binaryFilename);
-            }
-
-            first = false;
-          }
-          break;
-        case org.javarosa.core.model.Constants.DATATYPE_NULL: /*
-                                                               * for nodes that
-                                                               * have no data,
-                                                               * or data type
-                                                               * otherwise
-                                                               * unknown
-                                                               */
-          if (current.isRepeatable()) {
-            if (prior == null || !current.getName().equals(prior.getName())) {
-              // repeatable group...
-              if (ec == null) {
-                emitString(osw, first, null);
-                first = false;
-              } else {
-                String uniqueGroupPath = uniquePath + "/" + getFullName(current, primarySet);
-                emitString(osw, first, uniqueGroupPath);
-                first = false;
-                // first time processing this repeat group (ignore templates)
-                List<Element> ecl = findElementList(submissionElement, current.getName());
-                emitRepeatingGroupCsv(ei, ecl, current, uniquePath,
-                                                    uniqueGroupPath, instanceDir);
-              }
-            }
-          } else if (current.getNumChildren() == 0 && current != briefcaseLfd.getSubmissionElement()) {
-            // assume fields that don't have children are string fields.
-            if (ec == null) {
-              emitString(osw, first, null);
-              first = false;
-            } else {
-              emitString(osw, first, getSubmissionValue(ei,current,ec));
-              first = false;
-            }
-          } else {
-            /* one or more children -- this is a non-repeating group */
-            first = emitSubmissionCsv(osw, ei, ec, primarySet, current, first, uniquePath, instanceDir);
-          }
-          break;
-        }
-        prior = current;
-      }
-    }
-    return first;
+  static void emitString(Appendable osw, boolean first, String string) throws IOException {
+    CsvWriter.emitCell(osw, first, string);
   }
 
-  private void emitRepeatingGroupCsv(EncryptionInformation ei, List<Element> groupElementList, TreeElement group,
-      String uniqueParentPath, String uniqueGroupPath, File instanceDir)
+  private void emitRepeatingGroupCsv(SubmissionOutput output, LoadedSubmission loaded, List<Object[]> groupValuesList,
+      ColumnPlan.Table table, String uniqueParentPath, String uniqueGroupPath)
       throws IOException {
-    OutputStreamWriter osw = fileMap.get(group);
+    SubmissionOutput.Target osw = output.forTable(table);
     int trueOrdinal = 1;
-    for ( Element groupElement : groupElementList ) {
+    for ( Object[] groupValues : groupValuesList ) {
       String uniqueGroupInstancePath = uniqueGroupPath + "[" + trueOrdinal + "]";
       boolean first = true;
-      first = emitSubmissionCsv(osw, ei, groupElement, group, group, first, uniqueGroupInstancePath, instanceDir);
+      first = table.emitRow(new CsvRow(output, osw, loaded, groupValues, uniqueGroupInstancePath), first);
       emitString(osw, first, uniqueParentPath);
       emitString(osw, false, uniqueGroupInstancePath);
       emitString(osw, false, uniqueGroupPath);
@@ -571,162 +337,19 @@ public class ExportToCsv implements ITransformFormAction {
     }
   }
 
-  private boolean emitCsvHeaders(OutputStreamWriter osw, TreeElement primarySet,
-      TreeElement treeElement, boolean first) throws IOException {
-    // OK -- group with at least one element -- assume no value...
-    // TreeElement list has the begin and end tags for the nested groups.
-    // Swallow the end tag by looking to see if the prior and current
-    // field names are the same.
-    TreeElement prior = null;
-    for (int i = 0; i < treeElement.getNumChildren(); ++i) {
-      TreeElement current = (TreeElement) treeElement.getChildAt(i);
-      if ((prior != null) && (prior.getName().equals(current.getName()))) {
-        // it is the end-group tag... seems to happen with two adjacent repeat
-        // groups
-        log.info("repeating tag at " + i + " skipping " + current.getName());
-        prior = current;
-      } else {
-        switch (current.getDataType()) {
-        case org.javarosa.core.model.Constants.DATATYPE_TEXT:/**
-           * Text question
-           * type.
-           */
-        case org.javarosa.core.model.Constants.DATATYPE_INTEGER:/**
-           * Numeric
-           * question type. These are numbers without decimal points
-           */
-        case org.javarosa.core.model.Constants.DATATYPE_DECIMAL:/**
-           * Decimal
-           * question type. These are numbers with decimals
-           */
-        case org.javarosa.core.model.Constants.DATATYPE_DATE:/**
-           * Date question
-           * type. This has only date component without time.
-           */
-        case org.javarosa.core.model.Constants.DATATYPE_TIME:/**
-           * Time question
-           * type. This has only time element without date
-           */
-        case org.javarosa.core.model.Constants.DATATYPE_DATE_TIME:/**
-           * Date and
-           * Time question type. This has both the date and time components
-           */
-        case org.javarosa.core.model.Constants.DATATYPE_CHOICE:/**
-           * This is a
-           * question with alist of options where not more than one option can
-           * be selected at a time.
-           */
-        case org.javarosa.core.model.Constants.DATATYPE_CHOICE_LIST:/**
-           * This is a
-           * question with alist of options where more than one option can be
-           * selected at a time.
-           */
-        case org.javarosa.core.model.Constants.DATATYPE_BOOLEAN:/**
-           * Question with
-           * true and false answers.
-           */
-        case org.javarosa.core.model.Constants.DATATYPE_BARCODE:/**
-           * Question with
-           * barcode string answer.
-           */
-        case org.javarosa.core.model.Constants.DATATYPE_BINARY:/**
-           * Question with
-           * external binary answer.
-           */
-        default:
-        case org.javarosa.core.model.Constants.DATATYPE_UNSUPPORTED:
-          emitString(osw, first, getFullName(current, primarySet));
-          first = false;
-          break;
-        case org.javarosa.core.model.Constants.DATATYPE_GEOPOINT:
-          /**
-           * Question with location answer.
-           */
-          emitString(osw, first, getFullName(current, primarySet) + "-Latitude");
-          emitString(osw, false, getFullName(current, primarySet) + "-Longitude");
-          emitString(osw, false, getFullName(current, primarySet) + "-Altitude");
-          emitString(osw, false, getFullName(current, primarySet) + "-Accuracy");
-          first = false;
-          break;
-        case org.javarosa.core.model.Constants.DATATYPE_NULL: /*
-                                                               * for nodes that
-                                                               * have no data,
-                                                               * or data type
-                                                               * otherwise
-                                                               * unknown
-                                                               */
-          if (current.isRepeatable()) {
-            // repeatable group...
-            emitString(osw, first, "SET-OF-" + getFullName(current, primarySet));
-            first = false;
-            processRepeatingGroupDefinition(current, primarySet, true);
-          } else if (current.getNumChildren() == 0 && current != briefcaseLfd.getSubmissionElement()) {
-            // assume fields that don't have children are string fields.
-            emitString(osw, first, getFullName(current, primarySet));
-            first = false;
-          } else {
-            /* one or more children -- this is a non-repeating group */
-            first = emitCsvHeaders(osw, primarySet, current, first);
-          }
-          break;
-        }
-        prior = current;
-      }
-    }
-    return first;
-  }
-
-  private void populateRepeatGroupsIntoFileMap(TreeElement primarySet,
-      TreeElement treeElement) throws IOException {
-    // OK -- group with at least one element -- assume no value...
-    // TreeElement list has the begin and end tags for the nested groups.
-    // Swallow the end tag by looking to see if the prior and current
-    // field names are the same.
-    TreeElement prior = null;
-    for (int i = 0; i < treeElement.getNumChildren(); ++i) {
-      TreeElement current = (TreeElement) treeElement.getChildAt(i);
-      if ((prior != null) && (prior.getName().equals(current.getName()))) {
-        // it is the end-group tag... seems to happen with two adjacent repeat
-        // groups
-        log.info("repeating tag at " + i + " skipping " + current.getName());
-        prior = current;
-      } else {
-        switch (current.getDataType()) {
-        default:
-          break;
-        case org.javarosa.core.model.Constants.DATATYPE_NULL: 
-          /* for nodes that have no data, or data type otherwise unknown */
-          if (current.isRepeatable()) {
-            processRepeatingGroupDefinition(current, primarySet, false);
-          } else if (current.getNumChildren() == 0 && current != briefcaseLfd.getSubmissionElement()) {
-            // ignore - string type
-          } else {
-            /* one or more children -- this is a non-repeating group */
-            populateRepeatGroupsIntoFileMap(primarySet, current);
-          }
-          break;
-        }
-        prior = current;
-      }
-    }
-  }
-
-  private void processRepeatingGroupDefinition(TreeElement group, TreeElement primarySet, boolean emitCsvHeaders)
+  private void processRepeatingGroupDefinition(String baseName, ColumnPlan.Table table, boolean truncate)
       throws IOException {
-    String formName = baseFilename + "-" + getFullName(group, primarySet);
+    String formName = baseName + "-" + table.name;
     File topLevelCsv = new File(outputDir, safeFilename(formName) + ".csv");
-    FileOutputStream os = new FileOutputStream(topLevelCsv, !overwrite);
-    OutputStreamWriter osw = new OutputStreamWriter(os, "UTF-8");
-    fileMap.put(group, osw);
-    if ( emitCsvHeaders ) {
+    CsvWriter osw = openCsv(topLevelCsv, truncate);
+    fileMap.put(table, osw);
+    if ( osw.size() == 0 ) {
       boolean first = true;
-      first = emitCsvHeaders(osw, group, group, first);
+      first = table.emitHeaders(osw, first);
       emitString(osw, first, "PARENT_KEY");
       emitString(osw, false, "KEY");
-      emitString(osw, false, "SET-OF-" + group.getName());
+      emitString(osw, false, "SET-OF-" + table.group.element.getName());
       osw.append("\n");
-    } else {
-      populateRepeatGroupsIntoFileMap(group, group);
     }
   }
 
@@ -734,268 +357,561 @@ public class ExportToCsv implements ITransformFormAction {
     return StringUtils.stripIllegalChars(name);
   }
 
-  private boolean processFormDefinition() {
+  private void emitSubmissionHeaders(Appendable osw) throws IOException {
+    emitString(osw, true, "SubmissionDate");
+    columnPlan.getSubmissionTable().emitHeaders(osw, false);
+    emitString(osw, false, "KEY");
+    if ( briefcaseLfd.isFileEncryptedForm() ) {
+        emitString(osw, false, "isValidated");
+    }
+    osw.append("\n");
+  }
 
-    TreeElement submission = briefcaseLfd.getSubmissionElement();
+  /**
+   * Whether the headers of an existing csv file of the submissions aren't
+   * the ones this export would write, as when other columns were exported.
+   */
+  private boolean headersChanged(File topLevelCsv) {
+    try (BufferedReader reader = Files.newBufferedReader(topLevelCsv.toPath(), UTF_8)) {
+      StringBuilder headers = new StringBuilder();
+      emitSubmissionHeaders(headers);
+      String firstLine = reader.readLine();
+      return firstLine == null || !headers.toString().equals(firstLine + "\n");
+    } catch (IOException e) {
+      log.warn("unable to read the headers of " + topLevelCsv.getPath(), e);
+      return true;
+    }
+  }
 
-    String formName = baseFilename;
-    File topLevelCsv = new File(outputDir, safeFilename(formName) + ".csv");
-    boolean exists = topLevelCsv.exists();
-    FileOutputStream os;
+  private boolean processFormDefinition() {
     try {
-      os = new FileOutputStream(topLevelCsv, !overwrite);
-      OutputStreamWriter osw = new OutputStreamWriter(os, "UTF-8");
-      fileMap.put(submission, osw);
-      // only write headers if overwrite is set, or creating file for the first time
-      if (overwrite || !exists) {
-          emitString(osw, true, "SubmissionDate");
-          emitCsvHeaders(osw, submission, submission, false);
-          emitString(osw, false, "KEY");
-          if ( briefcaseLfd.isFileEncryptedForm() ) {
-              emitString(osw, false, "isValidated");
-          }
-          osw.append("\n");
-       } else {
-         populateRepeatGroupsIntoFileMap(submission, submission);
-       }
-
+      openFiles(baseFilename, overwrite);
     } catch (IOException e) {
-      String msg = "Unable to create csv file: " + topLevelCsv.getPath();
+      String msg = "Unable to create csv file: " + new File(outputDir, safeFilename(baseFilename) + ".csv").getPath();
       log.error(msg, e);
       EventBus.publish(new ExportProgressEvent(msg, briefcaseLfd));
-      for (OutputStreamWriter w : fileMap.values()) {
-        try {
-          w.close();
-        } catch (IOException e1) {
-          log.warn("failed to close writer", e1);
-        }
-      }
-      fileMap.clear();
+      closeFiles();
       return false;
     }
     return true;
   }
 
-  private boolean processInstance(File instanceDir) {
-    File submission = new File(instanceDir, "submission.xml");
-    if (!submission.exists() || !submission.isFile()) {
-      EventBus.publish(new ExportProgressEvent("Submission not found for instance directory: "
-          + instanceDir.getPath(), briefcaseLfd));
-      return false;
+  /**
+   * Opens the csv files of the submissions and of their repeat groups,
+   * named after the given name, into the fileMap.
+   */
+  private void openFiles(String formName, boolean truncate) throws IOException {
+    ColumnPlan.Table submission = columnPlan.getSubmissionTable();
+
+    File topLevelCsv = new File(outputDir, safeFilename(formName) + ".csv");
+    CsvWriter osw = openCsv(topLevelCsv, truncate);
+    fileMap.put(submission, osw);
+    // only write headers if overwrite is set, or creating file for the first time
+    if (osw.size() == 0) {
+      emitSubmissionHeaders(osw);
     }
+    for (ColumnPlan.Table repeat : columnPlan.getRepeatTables()) {
+      processRepeatingGroupDefinition(formName, repeat, truncate);
+    }
+  }
 
-    processedInstances++;
+  /**
+   * Opens a csv file, recording its size in the checkpoint before anything
+   * gets written to it. The files of an interrupted export being resumed
+   * are appended to, as they already hold its first submissions.
+   */
+  private CsvWriter openCsv(File csv, boolean truncate) throws IOException {
+    CsvWriter osw = CsvWriter.open(csv, truncate && !checkpoint.wasOpened(csv));
+    checkpoint.opened(csv, osw.size());
+    outputFiles.add(csv);
+    return osw;
+  }
 
-    EventBus.publish(new ExportProgressEvent("Processing instance: " + instanceDir.getName(), briefcaseLfd));
-    EventBus.publish(new ExportProgressPercentageEvent((processedInstances * 100.0) / totalInstances, briefcaseLfd));
-
-    // If we are encrypted, be sure the temporary directory
-    // that will hold the unencrypted files is created and empty.
-    // If we aren't encrypted, the temporary directory
-    // is the same as the instance directory.
-
-    File unEncryptedDir;
-    if (briefcaseLfd.isFileEncryptedForm()) {
-      // create or clean-up the temp directory that will hold the unencrypted
-      // files. Do this in the outputDir so that the briefcase storage location
-      // can be a read-only network mount. issue 676.
-      unEncryptedDir = new File(outputDir, ".temp");
-
-      if (unEncryptedDir.exists()) {
-        // silently delete it...
-        try {
-          FileUtils.deleteDirectory(unEncryptedDir);
-        } catch (IOException e) {
-          String msg = "Unable to delete stale temp directory: " + unEncryptedDir.getAbsolutePath();
-          log.warn(msg, e);
-          EventBus.publish(new ExportProgressEvent(msg, briefcaseLfd));
-          return false;
-        }
+  private boolean closeFiles() {
+    boolean successful = true;
+    for (CsvWriter w : fileMap.values()) {
+      try {
+        w.close();
+      } catch (IOException e) {
+        String msg = "Error flushing csv file";
+        EventBus.publish(new ExportProgressEvent(msg, briefcaseLfd));
+        log.error(msg, e);
+        successful = false;
       }
+    }
+    fileMap.clear();
+    return successful;
+  }
 
-      if (!unEncryptedDir.mkdirs()) {
-        EventBus.publish(new ExportProgressEvent("Unable to create temp directory: "
-            + unEncryptedDir.getAbsolutePath(), briefcaseLfd));
-        return false;
+  /**
+   * Points the fileMap to the files of the partition of a submission about to
+   * be written, closing the ones of the previous partition. Must only be
+   * called from the thread owning the fileMap.
+   */
+  private void selectPartition(Date submissionDate) throws IOException {
+    if (partitioning.isEmpty()) {
+      return;
+    }
+    String next = partitioning.partitionOf(submissionDate);
+    if (next.equals(partition) && !partitioning.isFull(partRows, partSize())) {
+      partRows++;
+      return;
+    }
+    // the files about to be closed won't be in the next checkpoints
+    checkpoint.checkpoint(fileMap.values());
+    if (!closeFiles()) {
+      throw new IOException("Unable to close the csv files of " + partitionName(partition, part));
+    }
+    Integer lastPart = writtenParts.get(next);
+    int resumedPart = lastResumedPart(next);
+    boolean truncate;
+    if (next.equals(partition)) {
+      // the part is full, and the ones after it are left alone unless
+      // overwriting, when they were deleted already
+      do {
+        part++;
+      } while (partExists(next, part));
+      truncate = true;
+    } else if (lastPart != null) {
+      // back to a partition written before during this export
+      part = lastPart;
+      truncate = false;
+    } else if (resumedPart > 0) {
+      // a partition the interrupted export being resumed was writing
+      part = resumedPart;
+      truncate = false;
+      if (partitioning.hasLimits()) {
+        // the submissions already in its last part weren't counted, so
+        // the rest go into a part of their own
+        do {
+          part++;
+        } while (partExists(next, part));
+        truncate = true;
       }
+    } else if (overwrite) {
+      part = 1;
+      truncate = true;
+      deleteParts(next, 2);
     } else {
-      unEncryptedDir = instanceDir;
+      part = 1;
+      // new submissions go into parts of their own when the parts are
+      // limited, and so do the ones with other columns
+      while (partExists(next, part)
+          && (partitioning.hasLimits() || headersChanged(partFile(next, part)))) {
+        part++;
+      }
+      truncate = false;
+    }
+    partition = next;
+    partRows = 1;
+    writtenParts.put(partition, part);
+    openFiles(partitionName(partition, part), truncate);
+  }
+
+  /**
+   * The last part of a partition written by the interrupted export being
+   * resumed, or 0 if it didn't write any.
+   */
+  private int lastResumedPart(String partition) {
+    int resumedPart = 0;
+    for (int n = 1; partExists(partition, n); ++n) {
+      if (checkpoint.wasOpened(partFile(partition, n))) {
+        resumedPart = n;
+      }
+    }
+    return resumedPart;
+  }
+
+  /**
+   * The size of the largest file of the current part.
+   */
+  private long partSize() throws IOException {
+    long size = 0;
+    for (CsvWriter w : fileMap.values()) {
+      size = Math.max(size, w.size());
+    }
+    return size;
+  }
+
+  /**
+   * The name of the csv file of the submissions of a part of a partition,
+   * without extension. The files of its repeat groups are named after it.
+   */
+  private String partitionName(String partition, int part) {
+    String name = partition.isEmpty() ? baseFilename : baseFilename + "-" + partition;
+    return part > 1 ? name + "-part" + part : name;
+  }
+
+  private File partFile(String partition, int part) {
+    return new File(outputDir, safeFilename(partitionName(partition, part)) + ".csv");
+  }
+
+  private boolean partExists(String partition, int part) {
+    return partFile(partition, part).exists();
+  }
+
+  /**
+   * Deletes the csv files of the parts of a partition left by a previous
+   * export, from the given part on.
+   */
+  private void deleteParts(String partition, int firstPart) {
+    for (int n = firstPart; partExists(partition, n); ++n) {
+      String name = partitionName(partition, n);
+      FileUtils.deleteQuietly(new File(outputDir, safeFilename(name) + ".csv"));
+      for (ColumnPlan.Table repeat : columnPlan.getRepeatTables()) {
+        FileUtils.deleteQuietly(new File(outputDir, safeFilename(name + "-" + repeat.name) + ".csv"));
+      }
+    }
+  }
+
+  /**
+   * Parses, decrypts and flattens a single instance. This runs concurrently
+   * with other instances, so it must not touch the fileMap or the media
+   * directory; its output is written afterwards by {@link #writeInstance}.
+   */
+  private ProcessedInstance processInstance(File instanceDir) {
+    File submission = new File(instanceDir, "submission.xml");
+    if (!submission.exists() || !submission.isFile()) {
+      EventBus.publish(new ExportProgressEvent("Submission not found for instance directory: "
+          + instanceDir.getPath(), briefcaseLfd));
+      return ProcessedInstance.failed();
     }
 
-    // parse the xml document (this is the manifest if encrypted)...
-    Document doc;
-    boolean isValidated = false;
+    int processed = processedInstances.incrementAndGet();
+
+    EventBus.publish(new ExportProgressEvent("Processing instance: " + instanceDir.getName(), briefcaseLfd));
+    EventBus.publish(new ExportProgressPercentageEvent((processed * 100.0) / totalInstances, briefcaseLfd));
+
+    LoadedSubmission loaded = loader.load(instanceDir);
+    switch (loaded.outcome) {
+    case IGNORED:
+      return ProcessedInstance.ignored();
+    case SKIPPED:
+      return ProcessedInstance.skipped();
+    case FAILED:
+      return ProcessedInstance.failed();
+    default:
+      break;
+    }
 
     try {
-      doc = XmlManipulationUtils.parseXml(submission);
-    } catch (ParsingException | FileSystemException e) {
-      String msg = "Error parsing submission " + instanceDir.getName();
+      return ProcessedInstance.emitted(instanceDir, loaded.submissionDate, emitInstance(loaded), loaded.decryptedDir);
+    } catch (IOException e) {
+      String msg = "Failed writing csv";
       log.error(msg, e);
-      EventBus.publish(new ExportProgressEvent(msg + " Cause: " + e.toString(), briefcaseLfd));
-      return false;
+      EventBus.publish(new ExportProgressEvent(msg + ": " + e.getMessage(), briefcaseLfd));
+      if (loaded.decryptedDir != null) {
+        FileUtils.deleteQuietly(loaded.decryptedDir);
+      }
+      return ProcessedInstance.failed();
+    }
+  }
+
+  /**
+   * Emits the csv records of a loaded instance, which are written
+   * afterwards, in submission order.
+   */
+  private SubmissionOutput emitInstance(LoadedSubmission loaded) throws IOException {
+    SubmissionOutput output = new SubmissionOutput();
+    SubmissionOutput.Target osw = output.forTable(columnPlan.getSubmissionTable());
+
+    emitString(osw, true, loaded.submissionDate == null
+        ? null : DateFormat.getDateTimeInstance().format(loaded.submissionDate));
+    columnPlan.getSubmissionTable().emitRow(
+        new CsvRow(output, osw, loaded, loaded.parsed.getValues(), loaded.instanceId), false);
+    emitString(osw, false, loaded.instanceId);
+    if ( briefcaseLfd.isFileEncryptedForm() ) {
+      emitString(osw, false, Boolean.toString(loaded.isValidated));
     }
+    osw.append("\n");
+    return output;
+  }
+
+  @Override
+  public BriefcaseFormDefinition getFormDefinition() {
+    return briefcaseLfd;
+  }
 
-    String submissionDate = null;
-    // extract the submissionDate, if present, from the attributes
-    // of the root element of the submission or submission manifest (if encrypted).
-    submissionDate = doc.getRootElement().getAttributeValue(null, "submissionDate");
-    if (submissionDate == null || submissionDate.length() == 0) {
-      submissionDate = null;
+  @Override
+  public FilesSkipped totalFilesSkipped() {
+    //Determine if all files where skipped or just some
+    //Note that if totalInstances = 0 then no files were skipped
+    if (totalInstances == 0 || totalFilesSkipped == 0) {
+      return FilesSkipped.NONE;
+    }
+    if (totalFilesSkipped == totalInstances) {
+      return FilesSkipped.ALL;
     } else {
-      Date theDate = WebUtils.parseDate(submissionDate);
-      DateFormat formatter = DateFormat.getDateTimeInstance();
-      submissionDate = formatter.format(theDate);
-      
-      // just return true to skip records out of range
-      if (startDate != null && theDate.before(startDate)) {
-          log.info("Submission date is before specified, skipping: " + instanceDir.getName());
-          return true;
-      }
-      if (endDate != null && theDate.after(endDate)) {
-          log.info("Submission date is after specified, skipping: " + instanceDir.getName());
-          return true;
-      }
-      // don't export records without dates if either date is set
-      if ((startDate != null || endDate != null) && submissionDate == null) {
-          log.info("No submission date found, skipping: " + instanceDir.getName());
-          return true;
-      }
+     return FilesSkipped.SOME;
     }
-    
-    // Beyond this point, we need to have a finally block that
-    // will clean up any decrypted files whenever there is any
-    // failure.
-    try {
+  }
 
-      if (briefcaseLfd.isFileEncryptedForm()) {
-        // Decrypt the form and all its media files into the
-        // unEncryptedDir and validate the contents of all
-        // those files.
-        // NOTE: this changes the value of 'doc'
+  /**
+   * Writes the csv files of the submissions and of their repeat groups. When
+   * exported by itself, the instances are emitted on worker threads and
+   * written by {@link #writeInstance}; otherwise they are emitted as they
+   * are written.
+   */
+  private class CsvSink implements ExportSink {
+
+    @Override
+    public boolean open(ColumnPlan plan, MediaFileExporter exporter) {
+      columnPlan = plan;
+      mediaExporter = exporter;
+
+      File topLevelCsv = new File(outputDir, safeFilename(baseFilename) + ".csv");
+      File watermarkFile = ExportWatermark.fileFor(outputDir, safeFilename(baseFilename));
+      File checkpointFile = ExportCheckpoint.fileFor(outputDir, safeFilename(baseFilename));
+      String options;
+      try {
+        options = checkpointOptions();
+        checkpoint = ExportCheckpoint.resume(checkpointFile, options);
+      } catch (IOException e) {
+        String msg = "Unable to resume the interrupted export";
+        log.error(msg, e);
+        EventBus.publish(new ExportProgressEvent(msg + ": " + e.getMessage(), briefcaseLfd));
+        return false;
+      }
+      if (checkpoint != null) {
+        // its files were truncated to the last checkpoint, and only
+        // those of the partitions it didn't get to are written from scratch
+        EventBus.publish(new ExportProgressEvent("Resuming the interrupted export after "
+            + checkpoint.getResumed().size() + " submissions", briefcaseLfd));
+        overwrite = checkpoint.isReset();
         try {
-          FileSystemUtils.DecryptOutcome outcome =
-            FileSystemUtils.decryptAndValidateSubmission(doc, briefcaseLfd.getPrivateKey(),
-              instanceDir, unEncryptedDir);
-          doc = outcome.submission;
-          isValidated = outcome.isValidated;
-        } catch (ParsingException | CryptoException | FileSystemException e) {
-          //Was unable to parse file or decrypt file or a file system error occurred
-          //Hence skip this instance
-          EventBus.publish(new ExportProgressEvent("Error decrypting submission "
-                  + instanceDir.getName() + " Cause: " + e.toString() + " skipping....", briefcaseLfd));
-
-          log.info("Error decrypting submission "
-                  + instanceDir.getName() + " Cause: " + e.toString());
-
-          //update total number of files skipped
-          totalFilesSkipped++;
-          return true;
+          watermark = overwrite ? ExportWatermark.reset(watermarkFile) : ExportWatermark.load(watermarkFile);
+        } catch (IOException e) {
+          String msg = "Unable to read the list of exported submissions";
+          log.error(msg, e);
+          EventBus.publish(new ExportProgressEvent(msg + ": " + e.getMessage(), briefcaseLfd));
+          checkpoint.close();
+          return false;
+        }
+        for (String name : checkpoint.getResumed()) {
+          watermark.markExported(new File(name));
         }
+        return openFormFiles();
       }
 
-      String instanceId = null;
-      String base64EncryptedFieldKey = null;
-      // find an instanceId to use...
+      // the files of a partitioned export only exist once there are
+      // submissions in them, and have their headers checked when opened
+      boolean exported = partitioning.isEmpty() ? topLevelCsv.exists() : watermarkFile.exists();
+      if (incremental && exported && !watermarkFile.exists()) {
+        // we can't tell which submissions are already in the csv files,
+        // so they are written again from scratch
+        overwrite = true;
+      }
+      if (incremental && !overwrite && partitioning.isEmpty() && exported && headersChanged(topLevelCsv)) {
+        // the exported columns changed, so the new rows wouldn't fit in
+        overwrite = true;
+      }
       try {
-        FormInstanceMetadata sim = XmlManipulationUtils.getFormInstanceMetadata(doc.getRootElement());
-        instanceId = sim.instanceId;
-        base64EncryptedFieldKey = sim.base64EncryptedFieldKey;
-      } catch (ParsingException e) {
-        String msg = "Could not extract metadata from submission: " + submission.getAbsolutePath();
+        watermark = overwrite || !exported
+            ? ExportWatermark.reset(watermarkFile)
+            : ExportWatermark.load(watermarkFile);
+      } catch (IOException e) {
+        String msg = "Unable to read the list of exported submissions";
         log.error(msg, e);
-        EventBus.publish(new ExportProgressEvent(msg + " Cause: " + e.toString(), briefcaseLfd));
+        EventBus.publish(new ExportProgressEvent(msg + ": " + e.getMessage(), briefcaseLfd));
         return false;
       }
+      try {
+        checkpoint = ExportCheckpoint.start(checkpointFile, options, overwrite);
+      } catch (IOException e) {
+        String msg = "Unable to create the checkpoint of the export";
+        log.error(msg, e);
+        EventBus.publish(new ExportProgressEvent(msg + ": " + e.getMessage(), briefcaseLfd));
+        return false;
+      }
+      return openFormFiles();
+    }
 
-      if (instanceId == null || instanceId.length() == 0) {
-        // if we have no instanceID, and there isn't any in the file,
-        // use the checksum as the id.
-        // NOTE: encrypted submissions always have instanceIDs.
-        // This is for legacy non-OpenRosa forms.
-        long checksum;
-        try {
-          checksum = FileUtils.checksumCRC32(submission);
-        } catch (IOException e1) {
-          String msg = "Failed during computing of crc";
-          log.error(msg, e1);
-          EventBus.publish(new ExportProgressEvent(msg + ": " + e1.getMessage(), briefcaseLfd));
-          return false;
-        }
-        instanceId = "crc32:" + Long.toString(checksum);
+    private boolean openFormFiles() {
+      // the files of each partition are opened along with its first submission
+      if (partitioning.isEmpty() && !processFormDefinition()) {
+        checkpoint.close();
+        return false;
       }
+      return true;
+    }
 
-      if ( terminationFuture.isCancelled() ) {
-        EventBus.publish(new ExportProgressEvent("Aborted", briefcaseLfd));
+    /**
+     * The options an interrupted export must have been run with to be
+     * resumed, as they are when it's run again.
+     */
+    private String checkpointOptions() throws IOException {
+      StringBuilder headers = new StringBuilder();
+      emitSubmissionHeaders(headers);
+      return "incremental=" + incremental
+          + ",overwrite=" + overwrite
+          + ",media=" + exportMedia
+          + ",start=" + (startDate == null ? "" : startDate.getTime())
+          + ",end=" + (endDate == null ? "" : endDate.getTime())
+          + ",filter=" + filter
+          + ",partitioning=" + partitioning
+          + ",columns=" + headers.toString().hashCode();
+    }
+
+    @Override
+    public boolean wants(File instanceDir) {
+      return !(incremental && watermark.wasExported(instanceDir)) && !checkpoint.wasResumed(instanceDir);
+    }
+
+    @Override
+    public boolean exportsMedia() {
+      return exportMedia;
+    }
+
+    @Override
+    public List<File> getOutputFiles() {
+      return new ArrayList<File>(outputFiles);
+    }
+
+    @Override
+    public boolean write(LoadedSubmission loaded) {
+      try {
+        SubmissionOutput output = emitInstance(loaded);
+        selectPartition(loaded.submissionDate);
+        output.writeTo(fileMap, mediaExporter);
+        watermark.markExported(loaded.instanceDir);
+        commit(loaded.instanceDir);
+        return true;
+      } catch (IOException e) {
+        writeFailed = true;
+        String msg = "Failed writing csv";
+        log.error(msg, e);
+        EventBus.publish(new ExportProgressEvent(msg + ": " + e.getMessage(), briefcaseLfd));
         return false;
       }
+    }
 
-      EncryptionInformation ei = null;
-      if ( base64EncryptedFieldKey != null ) {
+    @Override
+    public boolean close(boolean complete) {
+      boolean successful = true;
+      if (!writeFailed) {
+        // the files hold whole submissions, so whatever was written since
+        // the last checkpoint is kept if the export is resumed
         try {
-          ei = new EncryptionInformation(base64EncryptedFieldKey, instanceId, briefcaseLfd.getPrivateKey());
-        } catch (CryptoException e) {
-          String msg = "Error establishing field decryption for submission " + instanceDir.getName();
-          log.error(msg, e);
-          EventBus.publish(new ExportProgressEvent(msg + " Cause: " + e.toString(), briefcaseLfd));
-          return false;
+          checkpoint.checkpoint(fileMap.values());
+        } catch (IOException e) {
+          log.warn("Unable to save the checkpoint of the export", e);
+          complete = false;
         }
       }
+      successful = closeFiles() && successful;
 
-      // emit the csv record...
       try {
-        OutputStreamWriter osw = fileMap.get(briefcaseLfd.getSubmissionElement());
-
-        emitString(osw, true, submissionDate);
-        emitSubmissionCsv(osw, ei, doc.getRootElement(), briefcaseLfd.getSubmissionElement(),
-            briefcaseLfd.getSubmissionElement(), false, instanceId, unEncryptedDir);
-        emitString(osw, false, instanceId);
-        if ( briefcaseLfd.isFileEncryptedForm() ) {
-          emitString(osw, false, Boolean.toString(isValidated));
-          if ( !isValidated ) {
-            EventBus.publish(new ExportProgressEvent("Decrypted submission "
-                + instanceDir.getName() + " may be missing attachments and could not be validated.", briefcaseLfd));
-          }
-        }
-        osw.append("\n");
-        return true;
-
+        watermark.save();
       } catch (IOException e) {
-        String msg = "Failed writing csv";
+        String msg = "Unable to save the list of exported submissions";
         log.error(msg, e);
         EventBus.publish(new ExportProgressEvent(msg + ": " + e.getMessage(), briefcaseLfd));
-        return false;
+        successful = false;
       }
-    } finally {
-      if (briefcaseLfd.isFileEncryptedForm()) {
-        // destroy the temp directory and its contents...
+
+      if (complete && successful) {
         try {
-          FileUtils.deleteDirectory(unEncryptedDir);
+          checkpoint.finish();
         } catch (IOException e) {
-          String msg = "Unable to remove decrypted files";
-          log.error(msg, e);
-          EventBus.publish(new ExportProgressEvent(msg + ": " + e.getMessage(), briefcaseLfd));
-          return false;
+          // it would be resumed with nothing left to write
+          log.warn("Unable to delete the checkpoint of the export", e);
         }
+      } else {
+        // left for the next export to resume this one
+        checkpoint.close();
       }
+      return successful;
     }
   }
 
-  @Override
-  public BriefcaseFormDefinition getFormDefinition() {
-    return briefcaseLfd;
+  /**
+   * The outcome of processing an instance, handed from the worker that
+   * processed it to the writer.
+   */
+  private static class ProcessedInstance {
+    final boolean successful;
+    final boolean skipped;
+    final File instanceDir;
+    final Date submissionDate; // this may be null
+    final SubmissionOutput output;
+    final File decryptedDir;
+
+    private ProcessedInstance(boolean successful, boolean skipped, File instanceDir, Date submissionDate, SubmissionOutput output, File decryptedDir) {
+      this.successful = successful;
+      this.skipped = skipped;
+      this.instanceDir = instanceDir;
+      this.submissionDate = submissionDate;
+      this.output = output;
+      this.decryptedDir = decryptedDir;
+    }
+
+    static ProcessedInstance emitted(File instanceDir, Date submissionDate, SubmissionOutput output, File decryptedDir) {
+      return new ProcessedInstance(true, false, instanceDir, submissionDate, output, decryptedDir);
+    }
+
+    static ProcessedInstance ignored() {
+      return new ProcessedInstance(true, false, null, null, null, null);
+    }
+
+    static ProcessedInstance skipped() {
+      return new ProcessedInstance(true, true, null, null, null, null);
+    }
+
+    static ProcessedInstance failed() {
+      return new ProcessedInstance(false, false, null, null, null, null);
+    }
   }
 
-  @Override
-  public FilesSkipped totalFilesSkipped() {
-    //Determine if all files where skipped or just some
-    //Note that if totalInstances = 0 then no files were skipped
-    if (totalInstances == 0 || totalFilesSkipped == 0) {
-      return FilesSkipped.NONE;
+  /**
+   * A row of one of the csv files, written into the output of a submission.
+   */
+  private class CsvRow implements ColumnPlan.Row {
+    private final SubmissionOutput output;
+    private final SubmissionOutput.Target osw;
+    private final LoadedSubmission loaded;
+    private final Object[] values;
+    private final String uniquePath;
+
+    CsvRow(SubmissionOutput output, SubmissionOutput.Target osw, LoadedSubmission loaded, Object[] values,
+        String uniquePath) {
+      this.output = output;
+      this.osw = osw;
+      this.loaded = loaded;
+      this.values = values;
+      this.uniquePath = uniquePath;
     }
-    if (totalFilesSkipped == totalInstances) {
-      return FilesSkipped.ALL;
-    } else {
-     return FilesSkipped.SOME;
+
+    @Override
+    public String getValue(ColumnPlan.Column column) {
+      return loaded.getValue(column, values);
+    }
+
+    @Override
+    public List<Object[]> getRepeatValues(ColumnPlan.Column column) {
+      return column.getRepeatValues(values);
+    }
+
+    @Override
+    public void emit(boolean first, String value) throws IOException {
+      emitString(osw, first, value);
+    }
+
+    @Override
+    public void emitMedia(boolean first, String binaryFilename) throws IOException {
+      if (exportMedia) {
+        // the media file is exported by the writer, in submission order
+        osw.appendMedia(first, new File(loaded.mediaDir, binaryFilename), binaryFilename);
+      } else {
+        emitString(osw, first, binaryFilename);
+      }
+    }
+
+    @Override
+    public void emitRepeat(boolean first, ColumnPlan.Column column, List<Object[]> instances) throws IOException {
+      String uniqueGroupPath = uniquePath + "/" + column.fullName;
+      emitString(osw, first, uniqueGroupPath);
+      emitRepeatingGroupCsv(output, loaded, instances, column.repeatTable, uniquePath,
+          uniqueGroupPath);
     }
   }
 }
@@ -0,0 +1,560 @@
+/*
+ * Copyright (C) 2018 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.briefcase.util;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.bushe.swing.event.EventBus;
+import org.javarosa.core.model.Constants;
+import org.opendatakit.briefcase.model.BriefcaseFormDefinition;
+import org.opendatakit.briefcase.model.ExportProgressEvent;
+import org.opendatakit.briefcase.model.TerminationFuture;
+
+/**
+ * Exports the submissions of a form into the tables of a database, one for
+ * the submissions and one for every repeat group, with the same columns as
+ * the csv files of an {@link ExportToCsv} but typed after the fields of the
+ * form. Rows of repeat groups refer to their parent row by its KEY.
+ * <p>
+ * Rows are inserted in batches and committed every {@link #COMMIT_SIZE}
+ * submissions. Submissions already in the database are left alone, so an
+ * export can be run again to load the new ones. Media files are not copied;
+ * their columns hold the name of the file in the instance directory.
+ */
+public class ExportToDatabase implements ITransformFormAction {
+
+  private static final Log log = LogFactory.getLog(ExportToDatabase.class);
+
+  /** How many submissions are sent to the database at once */
+  private static final int BATCH_SIZE = 500;
+  /** How many submissions are inserted between commits */
+  private static final int COMMIT_SIZE = 5000;
+
+  private static final String KEY = "KEY";
+  private static final String PARENT_KEY = "PARENT_KEY";
+  private static final String KEY_TYPE = "VARCHAR(4096)";
+  private static final String TEXT_TYPE = "VARCHAR(32768)";
+  private static final String[] GEOPOINT_PARTS = {"Latitude", "Longitude", "Altitude", "Accuracy"};
+
+  private final File outputDir;
+  private final BriefcaseFormDefinition briefcaseLfd;
+  private final TerminationFuture terminationFuture;
+  private final String jdbcUrl;
+  private final String baseTableName;
+  private final boolean overwrite;
+  private final Date startDate;
+  private final Date endDate;
+  private final List<String> columns;
+  private final SubmissionFilter filter;
+
+  private ColumnPlan columnPlan;
+  private Map<ColumnPlan.Table, String> tableNames = new HashMap<ColumnPlan.Table, String>();
+  private Map<ColumnPlan.Table, ColumnPlan.Table> parentTables = new HashMap<ColumnPlan.Table, ColumnPlan.Table>();
+  private Map<ColumnPlan.Table, PreparedStatement> inserts = new HashMap<ColumnPlan.Table, PreparedStatement>();
+  private Set<String> exportedKeys = new HashSet<String>();
+  private CombinedExport export;
+
+  /**
+   * The tables are named after the filename of the options, in the database
+   * of their JDBC URL, or else in an HSQLDB database in the output directory
+   * named after the tables. Tables already in the database must have the
+   * columns of the options.
+   */
+  public ExportToDatabase(File outputDir, BriefcaseFormDefinition lfd, TerminationFuture terminationFuture,
+      ExportOptions options) {
+    this.outputDir = outputDir;
+    this.briefcaseLfd = lfd;
+    this.terminationFuture = terminationFuture;
+    this.baseTableName = options.getFilename(lfd);
+    this.jdbcUrl = options.getJdbcUrl() != null ? options.getJdbcUrl() : defaultJdbcUrl(outputDir, baseTableName);
+    this.overwrite = options.isOverwrite();
+    this.startDate = options.getStartDate();
+    this.endDate = options.getEndDate();
+    this.columns = options.getColumns();
+    this.filter = options.getFilter();
+  }
+
+  /**
+   * The url of the HSQLDB database a form is exported to when no other
+   * database is given.
+   */
+  public static String defaultJdbcUrl(File outputDir, String name) {
+    File dbFile = new File(outputDir, StringUtils.stripIllegalChars(name));
+    return FileSystemUtils.HSQLDB_JDBC_PREFIX + dbFile.getAbsolutePath() + ";shutdown=true";
+  }
+
+  @Override
+  public boolean doAction() {
+    export = new CombinedExport(outputDir, briefcaseLfd, terminationFuture, startDate, endDate, columns, filter, new DatabaseSink());
+    return export.doAction();
+  }
+
+  @Override
+  public Optional<ExportSink> getSink() {
+    return Optional.of(new DatabaseSink());
+  }
+
+  /**
+   * Inserts the submissions into the tables, in a transaction committed
+   * every {@link #COMMIT_SIZE} submissions and when the export finishes.
+   */
+  private class DatabaseSink implements ExportSink {
+    private Connection connection;
+    private int batched = 0;
+    private int uncommitted = 0;
+    private boolean failed = false;
+
+    @Override
+    public boolean open(ColumnPlan plan, MediaFileExporter mediaExporter) {
+      columnPlan = plan;
+      try {
+        connection = DatabaseUtils.getConnection(jdbcUrl);
+        connection.setAutoCommit(false);
+        processFormDefinition(connection);
+        return true;
+      } catch (SQLException e) {
+        fail(e);
+        closeQuietly();
+        return false;
+      }
+    }
+
+    @Override
+    public boolean wants(File instanceDir) {
+      // submissions already in the database are told apart by their KEY
+      return true;
+    }
+
+    @Override
+    public boolean exportsMedia() {
+      return false;
+    }
+
+    @Override
+    public List<File> getOutputFiles() {
+      return Collections.emptyList();
+    }
+
+    @Override
+    public boolean write(LoadedSubmission loaded) {
+      try {
+        if (exportedKeys.add(loaded.instanceId)) {
+          addSubmission(loaded);
+          ++batched;
+          ++uncommitted;
+        }
+        if (batched == BATCH_SIZE) {
+          executeBatches();
+          batched = 0;
+        }
+        if (uncommitted == COMMIT_SIZE) {
+          connection.commit();
+          uncommitted = 0;
+        }
+        return true;
+      } catch (SQLException e) {
+        fail(e);
+        return false;
+      }
+    }
+
+    @Override
+    public boolean close(boolean complete) {
+      try {
+        if (failed) {
+          connection.rollback();
+        } else {
+          executeBatches();
+          connection.commit();
+        }
+      } catch (SQLException e) {
+        fail(e);
+        try {
+          connection.rollback();
+        } catch (SQLException e1) {
+          log.warn("failed to roll back", e1);
+        }
+      } finally {
+        closeQuietly();
+      }
+      return !failed;
+    }
+
+    private void fail(SQLException e) {
+      String msg = "Failed writing to the database";
+      log.error(msg, e);
+      EventBus.publish(new ExportProgressEvent(msg + ": " + e.getMessage(), briefcaseLfd));
+      failed = true;
+    }
+
+    private void closeQuietly() {
+      for (PreparedStatement insert : inserts.values()) {
+        try {
+          insert.close();
+        } catch (SQLException e) {
+          log.warn("failed to close statement", e);
+        }
+      }
+      inserts.clear();
+      if (connection != null) {
+        try {
+          connection.close();
+        } catch (SQLException e) {
+          log.warn("failed to close connection", e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Sends the pending rows to the database, parents before their repeat
+   * groups so the references of the rows of the repeat groups hold.
+   */
+  private void executeBatches() throws SQLException {
+    inserts.get(columnPlan.getSubmissionTable()).executeBatch();
+    for (ColumnPlan.Table table : columnPlan.getRepeatTables()) {
+      inserts.get(table).executeBatch();
+    }
+  }
+
+  private void processFormDefinition(Connection connection) throws SQLException {
+    ColumnPlan.Table submission = columnPlan.getSubmissionTable();
+    List<ColumnPlan.Table> tables = new ArrayList<ColumnPlan.Table>();
+    tables.add(submission);
+    tables.addAll(columnPlan.getRepeatTables());
+
+    for (ColumnPlan.Table table : tables) {
+      tableNames.put(table, table.name == null ? baseTableName : baseTableName + "-" + table.name);
+      for (ColumnPlan.Column column : table.getColumns()) {
+        if (column.repeatTable != null) {
+          parentTables.put(column.repeatTable, table);
+        }
+      }
+    }
+
+    if (overwrite) {
+      // drop the repeat groups first, as they refer to their parents
+      List<ColumnPlan.Table> reversed = new ArrayList<ColumnPlan.Table>(tables);
+      Collections.reverse(reversed);
+      for (ColumnPlan.Table table : reversed) {
+        if (tableExists(connection, tableNames.get(table))) {
+          try (Statement stmt = connection.createStatement()) {
+            stmt.execute("DROP TABLE " + quote(tableNames.get(table)));
+          }
+        }
+      }
+    }
+
+    for (ColumnPlan.Table table : tables) {
+      if (!tableExists(connection, tableNames.get(table))) {
+        try (Statement stmt = connection.createStatement()) {
+          stmt.execute(createTableDdl(table));
+        }
+      }
+    }
+
+    try (Statement stmt = connection.createStatement();
+         ResultSet rs = stmt.executeQuery("SELECT " + quote(KEY) + " FROM " + quote(tableNames.get(submission)))) {
+      while (rs.next()) {
+        exportedKeys.add(rs.getString(1));
+      }
+    }
+
+    for (ColumnPlan.Table table : tables) {
+      inserts.put(table, connection.prepareStatement(insertDml(table)));
+    }
+  }
+
+  private boolean tableExists(Connection connection, String tableName) throws SQLException {
+    try (ResultSet rs = connection.getMetaData().getTables(null, null, tableName, new String[] {"TABLE"})) {
+      return rs.next();
+    }
+  }
+
+  private String createTableDdl(ColumnPlan.Table table) {
+    List<String> definitions = new ArrayList<String>();
+    if (table.name == null) {
+      definitions.add(quote("SubmissionDate") + " TIMESTAMP");
+    }
+    for (ColumnPlan.Column column : table.getColumns()) {
+      List<String> names = columnNames(column);
+      String sqlType = sqlType(column);
+      for (String name : names) {
+        definitions.add(quote(name) + " " + sqlType);
+      }
+    }
+    if (table.name == null) {
+      definitions.add(quote(KEY) + " " + KEY_TYPE + " PRIMARY KEY");
+      if (briefcaseLfd.isFileEncryptedForm()) {
+        definitions.add(quote("isValidated") + " BOOLEAN");
+      }
+    } else {
+      definitions.add(quote(PARENT_KEY) + " " + KEY_TYPE + " REFERENCES "
+          + quote(tableNames.get(parentTables.get(table))) + " (" + quote(KEY) + ")");
+      definitions.add(quote(KEY) + " " + KEY_TYPE + " PRIMARY KEY");
+      definitions.add(quote("SET-OF-" + table.group.element.getName()) + " " + KEY_TYPE);
+    }
+    return "CREATE TABLE " + quote(tableNames.get(table)) + " (" + String.join(", ", definitions) + ")";
+  }
+
+  private String insertDml(ColumnPlan.Table table) {
+    int count = table.name == null
+        ? (briefcaseLfd.isFileEncryptedForm() ? 3 : 2)
+        : 3;
+    for (ColumnPlan.Column column : table.getColumns()) {
+      count += columnNames(column).size();
+    }
+    return "INSERT INTO " + quote(tableNames.get(table))
+        + " VALUES(" + String.join(",", Collections.nCopies(count, "?")) + ")";
+  }
+
+  /**
+   * The names of the columns of a field, the same as the headers of its csv
+   * columns.
+   */
+  private static List<String> columnNames(ColumnPlan.Column column) {
+    switch (column.type) {
+    case GEOPOINT:
+      List<String> names = new ArrayList<String>();
+      for (String part : GEOPOINT_PARTS) {
+        names.add(column.fullName + "-" + part);
+      }
+      return names;
+    case REPEAT:
+      return Collections.singletonList("SET-OF-" + column.fullName);
+    default:
+      return Collections.singletonList(column.fullName);
+    }
+  }
+
+  private static String sqlType(ColumnPlan.Column column) {
+    switch (column.type) {
+    case DATE:
+      return "DATE";
+    case TIME:
+      return "TIME";
+    case DATE_TIME:
+      return "TIMESTAMP";
+    case GEOPOINT:
+      return "DOUBLE";
+    case BINARY:
+    case REPEAT:
+      return KEY_TYPE;
+    default:
+      break;
+    }
+    if (column.encryptedField) {
+      // the values are only known after decrypting them
+      return TEXT_TYPE;
+    }
+    switch (column.node.element.getDataType()) {
+    case Constants.DATATYPE_INTEGER:
+      return "BIGINT";
+    case Constants.DATATYPE_DECIMAL:
+      return "DOUBLE";
+    default:
+      return TEXT_TYPE;
+    }
+  }
+
+  private static String quote(String identifier) {
+    return "\"" + identifier.replace("\"", "\"\"") + "\"";
+  }
+
+  private void addSubmission(LoadedSubmission loaded) throws SQLException {
+    ColumnPlan.Table submission = columnPlan.getSubmissionTable();
+    PreparedStatement insert = inserts.get(submission);
+    int index = 1;
+    if (loaded.submissionDate == null) {
+      insert.setNull(index++, Types.TIMESTAMP);
+    } else {
+      insert.setTimestamp(index++, new Timestamp(loaded.submissionDate.getTime()));
+    }
+    index = bindColumns(insert, index, submission, loaded, loaded.parsed.getValues(), loaded.instanceId);
+    insert.setString(index++, loaded.instanceId);
+    if (briefcaseLfd.isFileEncryptedForm()) {
+      insert.setBoolean(index++, loaded.isValidated);
+    }
+    insert.addBatch();
+  }
+
+  private void addRepeatingGroup(LoadedSubmission loaded, List<Object[]> groupValuesList, ColumnPlan.Table table,
+      String uniqueParentPath, String uniqueGroupPath) throws SQLException {
+    int trueOrdinal = 1;
+    for (Object[] groupValues : groupValuesList) {
+      String uniqueGroupInstancePath = uniqueGroupPath + "[" + trueOrdinal + "]";
+      PreparedStatement insert = inserts.get(table);
+      int index = bindColumns(insert, 1, table, loaded, groupValues, uniqueGroupInstancePath);
+      insert.setString(index++, uniqueParentPath);
+      insert.setString(index++, uniqueGroupInstancePath);
+      insert.setString(index++, uniqueGroupPath);
+      insert.addBatch();
+      ++trueOrdinal;
+    }
+  }
+
+  private int bindColumns(PreparedStatement insert, int index, ColumnPlan.Table table, LoadedSubmission loaded,
+      Object[] values, String uniquePath) throws SQLException {
+    for (ColumnPlan.Column column : table.getColumns()) {
+      switch (column.type) {
+      case REPEAT:
+        List<Object[]> instances = column.getRepeatValues(values);
+        if (instances == null) {
+          insert.setNull(index++, Types.VARCHAR);
+        } else {
+          String uniqueGroupPath = uniquePath + "/" + column.fullName;
+          insert.setString(index++, uniqueGroupPath);
+          addRepeatingGroup(loaded, instances, column.repeatTable, uniquePath, uniqueGroupPath);
+        }
+        break;
+      case GEOPOINT:
+        String compositeValue = loaded.getValue(column, values);
+        String[] parts = (compositeValue == null || compositeValue.trim().length() == 0)
+            ? new String[0] : compositeValue.trim().split(" ");
+        for (int i = 0; i < GEOPOINT_PARTS.length; ++i) {
+          Double part = i < parts.length ? parseDouble(parts[i]) : null;
+          if (part == null) {
+            insert.setNull(index++, Types.DOUBLE);
+          } else {
+            insert.setDouble(index++, part);
+          }
+        }
+        break;
+      default:
+        bindValue(insert, index++, column, loaded.getValue(column, values));
+        break;
+      }
+    }
+    return index;
+  }
+
+  private void bindValue(PreparedStatement insert, int index, ColumnPlan.Column column, String value)
+      throws SQLException {
+    String sqlType = sqlType(column);
+    if (value == null || value.length() == 0) {
+      insert.setNull(index, sqlTypeCode(sqlType));
+      return;
+    }
+    switch (sqlType) {
+    case "DATE":
+    case "TIME":
+    case "TIMESTAMP":
+      Date date = parseDate(value);
+      if (date == null) {
+        insert.setNull(index, sqlTypeCode(sqlType));
+      } else if (sqlType.equals("DATE")) {
+        insert.setDate(index, new java.sql.Date(date.getTime()));
+      } else if (sqlType.equals("TIME")) {
+        insert.setTime(index, new java.sql.Time(date.getTime()));
+      } else {
+        insert.setTimestamp(index, new Timestamp(date.getTime()));
+      }
+      break;
+    case "BIGINT":
+      Long number = parseLong(value);
+      if (number == null) {
+        insert.setNull(index, Types.BIGINT);
+      } else {
+        insert.setLong(index, number);
+      }
+      break;
+    case "DOUBLE":
+      Double decimal = parseDouble(value);
+      if (decimal == null) {
+        insert.setNull(index, Types.DOUBLE);
+      } else {
+        insert.setDouble(index, decimal);
+      }
+      break;
+    default:
+      insert.setString(index, value);
+      break;
+    }
+  }
+
+  private static int sqlTypeCode(String sqlType) {
+    switch (sqlType) {
+    case "DATE":
+      return Types.DATE;
+    case "TIME":
+      return Types.TIME;
+    case "TIMESTAMP":
+      return Types.TIMESTAMP;
+    case "BIGINT":
+      return Types.BIGINT;
+    case "DOUBLE":
+      return Types.DOUBLE;
+    default:
+      return Types.VARCHAR;
+    }
+  }
+
+  // values that don't fit the type of their column are stored as nulls
+
+  private Date parseDate(String value) {
+    try {
+      return WebUtils.parseDate(value);
+    } catch (IllegalArgumentException e) {
+      log.warn("unable to parse date " + value, e);
+      return null;
+    }
+  }
+
+  private static Long parseLong(String value) {
+    try {
+      return Long.valueOf(value.trim());
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  private static Double parseDouble(String value) {
+    try {
+      return Double.valueOf(value.trim());
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  @Override
+  public BriefcaseFormDefinition getFormDefinition() {
+    return briefcaseLfd;
+  }
+
+  @Override
+  public FilesSkipped totalFilesSkipped() {
+    return export == null ? FilesSkipped.NONE : export.totalFilesSkipped();
+  }
+}
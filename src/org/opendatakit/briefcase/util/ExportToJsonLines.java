@@ -0,0 +1,327 @@
+/*
+ * Copyright (C) 2018 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.briefcase.util;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.bushe.swing.event.EventBus;
+import org.opendatakit.briefcase.model.BriefcaseFormDefinition;
+import org.opendatakit.briefcase.model.ExportProgressEvent;
+import org.opendatakit.briefcase.model.TerminationFuture;
+
+/**
+ * Exports the submissions of a form into a single JSON Lines file, one
+ * object per line and submission, with the instances of its repeat groups
+ * nested in arrays instead of in files of their own.
+ * <p>
+ * Members are named after the csv headers of an {@link ExportToCsv}, and
+ * values are written as found in the submission. Each submission is written
+ * as it is read, so the export never holds more than one of them in memory.
+ */
+public class ExportToJsonLines implements ITransformFormAction {
+
+  private static final Log log = LogFactory.getLog(ExportToJsonLines.class);
+
+  private static final String EXTENSION = ".jsonl";
+  private static final String[] GEOPOINT_PARTS = {"Latitude", "Longitude", "Altitude", "Accuracy"};
+
+  private final File outputDir;
+  private final BriefcaseFormDefinition briefcaseLfd;
+  private final TerminationFuture terminationFuture;
+  private final String baseFilename;
+  private final boolean exportMedia;
+  private boolean overwrite;
+  private final Date startDate;
+  private final Date endDate;
+  private final boolean incremental;
+  private final List<String> columns;
+  private final SubmissionFilter filter;
+
+  private ColumnPlan columnPlan;
+  private MediaFileExporter mediaExporter;
+  private ExportWatermark watermark;
+  private Writer writer;
+  private CombinedExport export;
+
+  public ExportToJsonLines(File outputDir, BriefcaseFormDefinition lfd, TerminationFuture terminationFuture,
+      ExportOptions options) {
+    this.outputDir = outputDir;
+    this.briefcaseLfd = lfd;
+    this.terminationFuture = terminationFuture;
+
+    String filename = options.getFilename(lfd);
+    // Strip the extension, it gets added later
+    if (filename.endsWith(EXTENSION)) {
+      filename = filename.substring(0, filename.length() - EXTENSION.length());
+    }
+    this.baseFilename = filename;
+    this.exportMedia = options.isExportMedia();
+    this.overwrite = options.isOverwrite();
+    this.startDate = options.getStartDate();
+    this.endDate = options.getEndDate();
+    this.incremental = options.isIncremental();
+    this.columns = options.getColumns();
+    this.filter = options.getFilter();
+  }
+
+  @Override
+  public boolean doAction() {
+    export = new CombinedExport(outputDir, briefcaseLfd, terminationFuture, startDate, endDate, columns, filter, new JsonLinesSink());
+    return export.doAction();
+  }
+
+  @Override
+  public Optional<ExportSink> getSink() {
+    return Optional.of(new JsonLinesSink());
+  }
+
+  private String safeFilename() {
+    return StringUtils.stripIllegalChars(baseFilename) + EXTENSION;
+  }
+
+  /**
+   * Writes the submissions into the jsonl file, leaving out the ones
+   * already in it when exporting incrementally.
+   */
+  private class JsonLinesSink implements ExportSink {
+
+    @Override
+    public boolean open(ColumnPlan plan, MediaFileExporter exporter) {
+      columnPlan = plan;
+      mediaExporter = exporter;
+      File outputFile = new File(outputDir, safeFilename());
+      File watermarkFile = ExportWatermark.fileFor(outputDir, safeFilename());
+      if (incremental && outputFile.exists() && !watermarkFile.exists()) {
+        // we can't tell which submissions are already in the file,
+        // so it is written again from scratch
+        overwrite = true;
+      }
+      try {
+        watermark = overwrite || !outputFile.exists()
+            ? ExportWatermark.reset(watermarkFile)
+            : ExportWatermark.load(watermarkFile);
+      } catch (IOException e) {
+        String msg = "Unable to read the list of exported submissions";
+        log.error(msg, e);
+        EventBus.publish(new ExportProgressEvent(msg + ": " + e.getMessage(), briefcaseLfd));
+        return false;
+      }
+      try {
+        writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outputFile, !overwrite), UTF_8));
+      } catch (IOException e) {
+        String msg = "Failed writing " + safeFilename();
+        log.error(msg, e);
+        EventBus.publish(new ExportProgressEvent(msg + ": " + e.getMessage(), briefcaseLfd));
+        return false;
+      }
+      return true;
+    }
+
+    @Override
+    public boolean wants(File instanceDir) {
+      return !(incremental && watermark.wasExported(instanceDir));
+    }
+
+    @Override
+    public boolean exportsMedia() {
+      return exportMedia;
+    }
+
+    @Override
+    public List<File> getOutputFiles() {
+      return Collections.singletonList(new File(outputDir, safeFilename()));
+    }
+
+    @Override
+    public boolean write(LoadedSubmission loaded) {
+      try {
+        emitSubmission(writer, loaded);
+        watermark.markExported(loaded.instanceDir);
+        return true;
+      } catch (IOException e) {
+        String msg = "Failed writing " + safeFilename();
+        log.error(msg, e);
+        EventBus.publish(new ExportProgressEvent(msg + ": " + e.getMessage(), briefcaseLfd));
+        return false;
+      }
+    }
+
+    @Override
+    public boolean close(boolean complete) {
+      boolean successful = true;
+      try {
+        writer.close();
+      } catch (IOException e) {
+        String msg = "Failed writing " + safeFilename();
+        log.error(msg, e);
+        EventBus.publish(new ExportProgressEvent(msg + ": " + e.getMessage(), briefcaseLfd));
+        successful = false;
+      }
+      try {
+        watermark.save();
+      } catch (IOException e) {
+        String msg = "Unable to save the list of exported submissions";
+        log.error(msg, e);
+        EventBus.publish(new ExportProgressEvent(msg + ": " + e.getMessage(), briefcaseLfd));
+        successful = false;
+      }
+      return successful;
+    }
+  }
+
+  private void emitSubmission(Writer writer, LoadedSubmission loaded) throws IOException {
+    writer.write('{');
+    emitMember(writer, true, "SubmissionDate");
+    emitString(writer, loaded.submissionDate == null
+        ? null : WebUtils.asSubmissionDateTimeString(loaded.submissionDate));
+    emitColumns(writer, columnPlan.getSubmissionTable(), loaded, loaded.parsed.getValues(), loaded.instanceId);
+    emitMember(writer, false, "KEY");
+    emitString(writer, loaded.instanceId);
+    if ( briefcaseLfd.isFileEncryptedForm() ) {
+      emitMember(writer, false, "isValidated");
+      writer.write(Boolean.toString(loaded.isValidated));
+    }
+    writer.write("}\n");
+  }
+
+  private void emitColumns(Writer writer, ColumnPlan.Table table, LoadedSubmission loaded, Object[] values,
+      String uniquePath) throws IOException {
+    for (ColumnPlan.Column column : table.getColumns()) {
+      switch (column.type) {
+      case REPEAT:
+        emitMember(writer, false, column.fullName);
+        List<Object[]> instances = column.getRepeatValues(values);
+        if (instances == null) {
+          writer.write("null");
+        } else {
+          emitRepeatingGroup(writer, loaded, instances, column.repeatTable, uniquePath + "/" + column.fullName);
+        }
+        break;
+      case GEOPOINT:
+        String compositeValue = loaded.getValue(column, values);
+        String[] parts = (compositeValue == null || compositeValue.trim().length() == 0)
+            ? new String[0] : compositeValue.trim().split(" ");
+        for (int i = 0; i < GEOPOINT_PARTS.length; ++i) {
+          emitMember(writer, false, column.fullName + "-" + GEOPOINT_PARTS[i]);
+          emitString(writer, i < parts.length ? parts[i] : null);
+        }
+        break;
+      case BINARY:
+        emitMember(writer, false, column.fullName);
+        String binaryFilename = loaded.getValue(column, values);
+        if (binaryFilename == null || binaryFilename.length() == 0) {
+          emitString(writer, null);
+        } else if (exportMedia) {
+          emitString(writer, mediaExporter.export(new File(loaded.mediaDir, binaryFilename), binaryFilename));
+        } else {
+          emitString(writer, binaryFilename);
+        }
+        break;
+      default:
+        emitMember(writer, false, column.fullName);
+        emitString(writer, loaded.getValue(column, values));
+        break;
+      }
+    }
+  }
+
+  private void emitRepeatingGroup(Writer writer, LoadedSubmission loaded, List<Object[]> groupValuesList,
+      ColumnPlan.Table table, String uniqueGroupPath) throws IOException {
+    writer.write('[');
+    int trueOrdinal = 1;
+    for (Object[] groupValues : groupValuesList) {
+      String uniqueGroupInstancePath = uniqueGroupPath + "[" + trueOrdinal + "]";
+      if (trueOrdinal > 1) {
+        writer.write(',');
+      }
+      writer.write('{');
+      emitMember(writer, true, "KEY");
+      emitString(writer, uniqueGroupInstancePath);
+      emitColumns(writer, table, loaded, groupValues, uniqueGroupInstancePath);
+      writer.write('}');
+      ++trueOrdinal;
+    }
+    writer.write(']');
+  }
+
+  private static void emitMember(Writer writer, boolean first, String name) throws IOException {
+    if (!first) {
+      writer.write(',');
+    }
+    emitString(writer, name);
+    writer.write(':');
+  }
+
+  static void emitString(Writer writer, String value) throws IOException {
+    if (value == null) {
+      writer.write("null");
+      return;
+    }
+    writer.write('"');
+    for (int i = 0; i < value.length(); ++i) {
+      char c = value.charAt(i);
+      switch (c) {
+      case '"':
+        writer.write("\\\"");
+        break;
+      case '\\':
+        writer.write("\\\\");
+        break;
+      case '\n':
+        writer.write("\\n");
+        break;
+      case '\r':
+        writer.write("\\r");
+        break;
+      case '\t':
+        writer.write("\\t");
+        break;
+      default:
+        if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+          writer.write(String.format("\\u%04x", (int) c));
+        } else {
+          writer.write(c);
+        }
+        break;
+      }
+    }
+    writer.write('"');
+  }
+
+  @Override
+  public BriefcaseFormDefinition getFormDefinition() {
+    return briefcaseLfd;
+  }
+
+  @Override
+  public FilesSkipped totalFilesSkipped() {
+    return export == null ? FilesSkipped.NONE : export.totalFilesSkipped();
+  }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2018 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.briefcase.util;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Keeps track of the instances that have been written to the csv files of an
+ * export, so that an incremental export only appends the new ones.
+ * <p>
+ * The names of the exported instance directories are stored one per line in
+ * a hidden file next to the csv files, so that they go away together.
+ */
+class ExportWatermark {
+  private final File file;
+  private final Set<String> exported;
+  private final List<String> newlyExported = new ArrayList<String>();
+  private final boolean reset;
+
+  private ExportWatermark(File file, Set<String> exported, boolean reset) {
+    this.file = file;
+    this.exported = exported;
+    this.reset = reset;
+  }
+
+  static File fileFor(File outputDir, String baseFilename) {
+    return new File(outputDir, "." + baseFilename + ".exported");
+  }
+
+  /**
+   * Reads the instances exported by previous runs.
+   */
+  static ExportWatermark load(File file) throws IOException {
+    Set<String> exported = new HashSet<String>();
+    if (file.exists()) {
+      for (String line : Files.readAllLines(file.toPath(), UTF_8)) {
+        if (!line.isEmpty()) {
+          exported.add(line);
+        }
+      }
+    }
+    return new ExportWatermark(file, exported, false);
+  }
+
+  /**
+   * Starts over, for when the csv files are being rewritten from scratch.
+   */
+  static ExportWatermark reset(File file) {
+    return new ExportWatermark(file, new HashSet<String>(), true);
+  }
+
+  boolean wasExported(File instanceDir) {
+    return exported.contains(instanceDir.getName());
+  }
+
+  void markExported(File instanceDir) {
+    if (exported.add(instanceDir.getName())) {
+      newlyExported.add(instanceDir.getName());
+    }
+  }
+
+  /**
+   * Persists the instances marked as exported during this run. This must
+   * only be called once the csv files have been flushed.
+   */
+  void save() throws IOException {
+    StringBuilder lines = new StringBuilder();
+    for (String name : newlyExported) {
+      lines.append(name).append("\n");
+    }
+    if (reset) {
+      Files.write(file.toPath(), lines.toString().getBytes(UTF_8));
+    } else {
+      Files.write(file.toPath(), lines.toString().getBytes(UTF_8),
+          StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+    newlyExported.clear();
+  }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2018 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.briefcase.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+import org.javarosa.core.model.instance.TreeElement;
+
+/**
+ * The fields of a form, derived once from its {@link TreeElement} model, that
+ * tell a {@link SubmissionReader} which elements of a submission to keep and
+ * where to put their values.
+ * <p>
+ * The values of a group are kept in an {@code Object[]} with one slot per
+ * distinct child name: a {@code String} for values, an {@code Object[]} for
+ * groups and a {@code List<Object[]>} for repeat groups. Slots of elements
+ * missing in the submission stay {@code null}.
+ * <p>
+ * A plan can leave out some of the elements of the form, in which case they
+ * are skipped like the elements that aren't part of the form.
+ */
+class FieldPlan {
+
+  enum Kind { VALUE, GROUP, REPEAT }
+
+  private final Node root;
+
+  private FieldPlan(Node root) {
+    this.root = root;
+  }
+
+  static FieldPlan compile(TreeElement submissionElement) {
+    return compile(submissionElement, element -> true);
+  }
+
+  /**
+   * Compiles a plan of only the elements of the form the given predicate
+   * accepts. The children of an element that isn't accepted are left out too.
+   */
+  static FieldPlan compile(TreeElement submissionElement, Predicate<TreeElement> included) {
+    return new FieldPlan(new Node(submissionElement, Kind.GROUP, 0, submissionElement, included));
+  }
+
+  Node getRoot() {
+    return root;
+  }
+
+  static class Node {
+    final TreeElement element;
+    final Kind kind;
+    final int slot;
+    private final List<Node> children = new ArrayList<Node>();
+    private final Map<String, Node> childrenByName = new HashMap<String, Node>();
+    private int slotCount = 0;
+
+    private Node(TreeElement element, Kind kind, int slot, TreeElement submissionElement,
+        Predicate<TreeElement> included) {
+      this.element = element;
+      this.kind = kind;
+      this.slot = slot;
+      if (kind != Kind.VALUE) {
+        addChildren(submissionElement, included);
+      }
+    }
+
+    private void addChildren(TreeElement submissionElement, Predicate<TreeElement> included) {
+      // TreeElement list has the begin and end tags for the nested groups.
+      // Swallow the end tag by looking to see if the prior and current
+      // field names are the same.
+      TreeElement prior = null;
+      for (int i = 0; i < element.getNumChildren(); ++i) {
+        TreeElement current = element.getChildAt(i);
+        if ((prior == null || !prior.getName().equals(current.getName())) && included.test(current)) {
+          // non adjacent children with the same name read the same element
+          Node sameName = childrenByName.get(current.getName());
+          int childSlot = sameName != null ? sameName.slot : slotCount++;
+          Node child = new Node(current, kindOf(current, submissionElement), childSlot, submissionElement,
+              included);
+          children.add(child);
+          if (sameName == null) {
+            childrenByName.put(current.getName(), child);
+          }
+        }
+        prior = current;
+      }
+    }
+
+    private static Kind kindOf(TreeElement element, TreeElement submissionElement) {
+      if (element.getDataType() != org.javarosa.core.model.Constants.DATATYPE_NULL) {
+        return Kind.VALUE;
+      }
+      if (element.isRepeatable()) {
+        return Kind.REPEAT;
+      }
+      if (element.getNumChildren() == 0 && element != submissionElement) {
+        // assume fields that don't have children are string fields.
+        return Kind.VALUE;
+      }
+      return Kind.GROUP;
+    }
+
+    /**
+     * The children of a group or repeat group, in form order.
+     */
+    List<Node> getChildren() {
+      return Collections.unmodifiableList(children);
+    }
+
+    Node getChild(String name) {
+      return childrenByName.get(name);
+    }
+
+    Object[] newValues() {
+      return new Object[slotCount];
+    }
+
+    String getValue(Object[] values) {
+      return values != null && values[slot] instanceof String ? (String) values[slot] : null;
+    }
+
+    Object[] getGroupValues(Object[] values) {
+      return values != null && values[slot] instanceof Object[] ? (Object[]) values[slot] : null;
+    }
+
+    @SuppressWarnings("unchecked")
+    List<Object[]> getRepeatValues(Object[] values) {
+      return values != null && values[slot] instanceof List ? (List<Object[]>) values[slot] : null;
+    }
+  }
+}
@@ -16,6 +16,7 @@
 
 package org.opendatakit.briefcase.util;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -26,6 +27,7 @@ import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.math.BigInteger;
 import java.nio.file.Path;
+import java.security.DigestInputStream;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
@@ -36,6 +38,7 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.function.Predicate;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -78,6 +81,7 @@ public class FileSystemUtils {
   static final String UTF_8 = "UTF-8";
   static final String ENCRYPTED_FILE_EXTENSION = ".enc";
   static final String MISSING_FILE_EXTENSION = ".missing";
+  private static final int DECRYPT_BUFFER_SIZE = 16 * 1024;
 
   public static final String getMountPoint() {
     return System.getProperty("os.name").startsWith("Win") ? File.separator + ".." : (System
@@ -429,7 +433,12 @@ public class FileSystemUtils {
 
   }
 
-  private static final void decryptFile(EncryptionInformation ei, File original, File unencryptedDir)
+  /**
+   * Decrypts a media file of a submission into the given directory, or only
+   * reads it through if there's none, and returns the md5 hash of its
+   * decrypted contents. Returns null for missing files.
+   */
+  private static final String decryptFile(EncryptionInformation ei, File original, File unencryptedDir)
           throws IOException, NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException,
           InvalidAlgorithmParameterException {
 
@@ -438,18 +447,10 @@ public class FileSystemUtils {
       // need to get a Cipher to update the cipher initialization vector.
       ei.getCipher("missing.enc");
       log.info("Missing file (pre-ODK Aggregate 1.4.5 mark-as-complete on server)");
-      return;
-    }
-
-    String name = original.getName();
-    if (!name.endsWith(ENCRYPTED_FILE_EXTENSION)) {
-      String errMsg = "Unexpected non-" + ENCRYPTED_FILE_EXTENSION + " extension " + name
-              + " -- ignoring file";
-      throw new IllegalArgumentException(errMsg);
+      return null;
     }
-    name = name.substring(0, name.length() - ENCRYPTED_FILE_EXTENSION.length());
-    File decryptedFile = new File(unencryptedDir, name);
 
+    String name = decryptedName(original);
     Cipher c = ei.getCipher(name);
 
     // name is now the decrypted file name
@@ -459,39 +460,86 @@ public class FileSystemUtils {
     // page.
     if (name.endsWith(MISSING_FILE_EXTENSION)) {
       log.info("Missing file (ODK Aggregate 1.4.5 and higher):" + original.getName());
-      return;
+      return null;
     }
 
-    try (InputStream fin = new CipherInputStream(new FileInputStream(original), c);
-         OutputStream fout = new FileOutputStream(decryptedFile)) {
-      byte[] buffer = new byte[2048];
+    MessageDigest md = MessageDigest.getInstance("MD5");
+    byte[] buffer = new byte[DECRYPT_BUFFER_SIZE];
+    try (InputStream fin = new DigestInputStream(new CipherInputStream(new FileInputStream(original), c), md)) {
+      if (unencryptedDir == null) {
+        // only needed for the signature of the submission
+        while (fin.read(buffer) != -1) {
+          // the digest gets updated as it's read
+        }
+      } else {
+        if (!unencryptedDir.exists() && !unencryptedDir.mkdirs()) {
+          throw new IOException("unable to create directory: " + unencryptedDir.getAbsolutePath());
+        }
+        File decryptedFile = new File(unencryptedDir, name);
+        try (OutputStream fout = new FileOutputStream(decryptedFile)) {
+          int len = fin.read(buffer);
+          while (len != -1) {
+            fout.write(buffer, 0, len);
+            len = fin.read(buffer);
+          }
+        }
+        log.debug("Decrypted:" + original.getName() + " -> " + decryptedFile.getName());
+      }
+    }
+    return toMd5String(md.digest());
+  }
+
+  /**
+   * Decrypts the xml file of a submission into memory.
+   */
+  private static byte[] decryptSubmissionFile(EncryptionInformation ei, File original)
+          throws IOException, NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException,
+          InvalidAlgorithmParameterException {
+    Cipher c = ei.getCipher(decryptedName(original));
+    ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(original.length() + 16, Integer.MAX_VALUE));
+    byte[] buffer = new byte[DECRYPT_BUFFER_SIZE];
+    try (InputStream fin = new CipherInputStream(new FileInputStream(original), c)) {
       int len = fin.read(buffer);
       while (len != -1) {
-        fout.write(buffer, 0, len);
+        out.write(buffer, 0, len);
         len = fin.read(buffer);
       }
-      fout.flush();
-      log.debug("Decrypted:" + original.getName() + " -> " + decryptedFile.getName());
     }
+    log.debug("Decrypted:" + original.getName());
+    return out.toByteArray();
   }
 
-  private static boolean decryptSubmissionFiles(String base64EncryptedSymmetricKey,
+  private static String decryptedName(File original) {
+    String name = original.getName();
+    if (!name.endsWith(ENCRYPTED_FILE_EXTENSION)) {
+      String errMsg = "Unexpected non-" + ENCRYPTED_FILE_EXTENSION + " extension " + name
+              + " -- ignoring file";
+      throw new IllegalArgumentException(errMsg);
+    }
+    return name.substring(0, name.length() - ENCRYPTED_FILE_EXTENSION.length());
+  }
+
+  private static String toMd5String(byte[] messageDigest) {
+    BigInteger number = new BigInteger(1, messageDigest);
+    String md5 = number.toString(16);
+    while (md5.length() < 32)
+      md5 = "0" + md5;
+    return md5;
+  }
+
+  private static DecryptOutcome decryptSubmissionFiles(String base64EncryptedSymmetricKey,
       FormInstanceMetadata fim, List<String> mediaNames,
       String encryptedSubmissionFile, String base64EncryptedElementSignature,
-      PrivateKey rsaPrivateKey, File instanceDir, File unencryptedDir) throws FileSystemException,
-      CryptoException, ParsingException {
+      PrivateKey rsaPrivateKey, File instanceDir, File mediaDir, Predicate<Document> accept)
+      throws FileSystemException, CryptoException, ParsingException {
 
     EncryptionInformation ei = new EncryptionInformation(base64EncryptedSymmetricKey, fim.instanceId, rsaPrivateKey);
 
     byte[] elementDigest;
     try {
-      // construct the base64-encoded RSA-encrypted symmetric key
-      Cipher pkCipher;
-      pkCipher = Cipher.getInstance(ASYMMETRIC_ALGORITHM);
       // extract digest
-      pkCipher.init(Cipher.DECRYPT_MODE, rsaPrivateKey);
       byte[] encryptedElementSignature = Base64.decodeBase64(base64EncryptedElementSignature);
-      elementDigest = pkCipher.doFinal(encryptedElementSignature);
+      elementDigest = CipherFactory.decryptWithPrivateKey(rsaPrivateKey, encryptedElementSignature);
     } catch (NoSuchAlgorithmException | BadPaddingException | IllegalBlockSizeException | InvalidKeyException
             | NoSuchPaddingException e) {
       String msg = "Error decrypting base64EncryptedElementSignature";
@@ -542,28 +590,29 @@ public class FileSystemUtils {
       }
     }
 
-    // decrypt the media files IN ORDER.
-    for (String mediaName : mediaNames) {
-      String displayedName = (mediaName == null) ? "<missing .enc file>" : mediaName;
-      File f = (mediaName == null) ? null : new File(instanceDir, mediaName);
-      try {
-        decryptFile(ei, f, unencryptedDir);
-      } catch (InvalidKeyException | NoSuchPaddingException | InvalidAlgorithmParameterException
-              | NoSuchAlgorithmException e) {
-        String msg = "Error decrypting:" + displayedName;
-        log.error(msg, e);
-        throw new CryptoException(msg + " Cause: " + e.toString());
-      } catch (IOException e) {
-        String msg = "Error decrypting:" + displayedName;
-        log.error(msg, e);
-        throw new FileSystemException(msg + " Cause: " + e.toString());
+    // the media files are encrypted IN ORDER before the submission file,
+    // each with the next iv, but the submission is decrypted first so that
+    // the media files aren't decrypted for a submission that isn't wanted:
+    // their ivs are kept aside and skipped
+    EncryptionInformation mediaEi = ei.copy();
+    try {
+      for (String mediaName : mediaNames) {
+        ei.getCipher(mediaName == null ? "missing.enc" : mediaName);
       }
+    } catch (InvalidKeyException | NoSuchPaddingException | InvalidAlgorithmParameterException
+            | NoSuchAlgorithmException e) {
+      String msg = "Error decrypting:" + instanceDir.getName();
+      log.error(msg, e);
+      throw new CryptoException(msg + " Cause: " + e.toString());
     }
 
     // decrypt the submission file
     File f = new File(instanceDir, encryptedSubmissionFile);
+    byte[] submissionXml;
+    long decryptedBytes;
     try {
-      decryptFile(ei, f, unencryptedDir);
+      submissionXml = decryptSubmissionFile(ei, f);
+      decryptedBytes = f.length();
     } catch (InvalidKeyException | NoSuchPaddingException | InvalidAlgorithmParameterException
             | NoSuchAlgorithmException e) {
       String msg = "Error decrypting:" + f.getName();
@@ -576,15 +625,15 @@ public class FileSystemUtils {
     }
 
     // get the FIM for the decrypted submission file
-    File submissionFile = new File( unencryptedDir,
-        encryptedSubmissionFile.substring(0, encryptedSubmissionFile.lastIndexOf(".enc")));
+    String submissionFileName = decryptedName(f);
 
+    Document subDoc;
     FormInstanceMetadata submissionFim;
     try {
-      Document subDoc = XmlManipulationUtils.parseXml(submissionFile);
+      subDoc = XmlManipulationUtils.parseXml(submissionXml);
       submissionFim = XmlManipulationUtils.getFormInstanceMetadata(subDoc.getRootElement());
     } catch (ParsingException | FileSystemException e) {
-      String msg = "Error decrypting: " + submissionFile.getName();
+      String msg = "Error decrypting: " + submissionFileName;
       log.error(msg, e);
       throw new FileSystemException(msg + " Cause: " + e);
     }
@@ -592,10 +641,35 @@ public class FileSystemUtils {
     boolean same = submissionFim.xparam.formId.equals(fim.xparam.formId);
 
     if ( !same ) {
-      throw new FileSystemException("Error decrypting:" + unencryptedDir.getName()
+      throw new FileSystemException("Error decrypting:" + instanceDir.getName()
           + " Cause: form instance metadata differs from that in manifest");
     }
 
+    // the media files aren't worth decrypting if the submission isn't wanted
+    if (!accept.test(subDoc)) {
+      return DecryptOutcome.rejected(decryptedBytes);
+    }
+
+    // decrypt the media files IN ORDER.
+    List<String> mediaHashes = new ArrayList<String>();
+    for (String mediaName : mediaNames) {
+      String displayedName = (mediaName == null) ? "<missing .enc file>" : mediaName;
+      File mediaFile = (mediaName == null) ? null : new File(instanceDir, mediaName);
+      try {
+        mediaHashes.add(decryptFile(mediaEi, mediaFile, mediaDir));
+        decryptedBytes += mediaFile == null ? 0 : mediaFile.length();
+      } catch (InvalidKeyException | NoSuchPaddingException | InvalidAlgorithmParameterException
+              | NoSuchAlgorithmException e) {
+        String msg = "Error decrypting:" + displayedName;
+        log.error(msg, e);
+        throw new CryptoException(msg + " Cause: " + e.toString());
+      } catch (IOException e) {
+        String msg = "Error decrypting:" + displayedName;
+        log.error(msg, e);
+        throw new FileSystemException(msg + " Cause: " + e.toString());
+      }
+    }
+
     // Construct the element signature string
     StringBuilder b = new StringBuilder();
     appendElementSignatureSource(b, fim.xparam.formId);
@@ -607,25 +681,32 @@ public class FileSystemUtils {
     appendElementSignatureSource(b, fim.instanceId);
 
     boolean missingFile = false;
-    for ( String encFilename : mediaNames ) {
+    for ( int i = 0 ; i < mediaNames.size() ; ++i ) {
+      String encFilename = mediaNames.get(i);
       if ( encFilename == null ) {
         missingFile = true;
         continue;
       }
-      File decryptedFile = new File( unencryptedDir,
-          encFilename.substring(0, encFilename.lastIndexOf(".enc")));
-      if ( decryptedFile.getName().endsWith(".missing")) {
+      String decryptedName = encFilename.substring(0, encFilename.lastIndexOf(".enc"));
+      if ( decryptedName.endsWith(".missing")) {
         // this is a missing file -- we will not be able to 
         // confirm the signature of the submission.
         missingFile = true;
         continue;
       }
-      String md5 = FileSystemUtils.getMd5Hash(decryptedFile);
-      appendElementSignatureSource(b, decryptedFile.getName() + "::" + md5 );
+      String md5 = mediaHashes.get(i);
+      appendElementSignatureSource(b, decryptedName + "::" + md5 );
     }
 
-    String md5 = FileSystemUtils.getMd5Hash(submissionFile);
-    appendElementSignatureSource(b, submissionFile.getName() + "::" + md5);
+    String md5;
+    try {
+      md5 = toMd5String(MessageDigest.getInstance("MD5").digest(submissionXml));
+    } catch (NoSuchAlgorithmException e) {
+      String msg = "Error computing xml signature";
+      log.error(msg, e);
+      throw new CryptoException(msg + " Cause: " + e);
+    }
+    appendElementSignatureSource(b, submissionFileName + "::" + md5);
 
     // compute the digest of the element signature string
     byte[] messageDigest;
@@ -647,7 +728,7 @@ public class FileSystemUtils {
       }
     }
 
-    return same;
+    return new DecryptOutcome(subDoc, same, decryptedBytes);
   }
 
   private static void appendElementSignatureSource(StringBuilder b, String value) {
@@ -657,15 +738,50 @@ public class FileSystemUtils {
   public static class DecryptOutcome {
     public final Document submission;
     public final boolean isValidated;
+    /** Whether the submission was left out before its media files were decrypted */
+    public final boolean isRejected;
+    /** The size of the encrypted files that were decrypted */
+    public final long decryptedBytes;
+
+    DecryptOutcome(Document submission, boolean isValidated, long decryptedBytes) {
+      this(submission, isValidated, false, decryptedBytes);
+    }
 
-    DecryptOutcome(Document submission, boolean isValidated) {
+    private DecryptOutcome(Document submission, boolean isValidated, boolean isRejected, long decryptedBytes) {
       this.submission = submission;
       this.isValidated = isValidated;
+      this.isRejected = isRejected;
+      this.decryptedBytes = decryptedBytes;
+    }
+
+    static DecryptOutcome rejected(long decryptedBytes) {
+      return new DecryptOutcome(null, false, true, decryptedBytes);
     }
   }
 
+  /**
+   * Decrypts and validates the submission whose manifest is given. The
+   * decrypted submission is never written to disk, and its media files are
+   * only written to the given directory if there's one, so that they are
+   * decrypted for nothing more than validating the submission when they
+   * aren't needed.
+   *
+   * @param mediaDir where to decrypt the media files of the submission, or null
+   */
   public static DecryptOutcome decryptAndValidateSubmission(Document doc,
-      PrivateKey rsaPrivateKey, File instanceDir, File unEncryptedDir)
+      PrivateKey rsaPrivateKey, File instanceDir, File mediaDir)
+          throws ParsingException, FileSystemException, CryptoException {
+    return decryptAndValidateSubmission(doc, rsaPrivateKey, instanceDir, mediaDir, submission -> true);
+  }
+
+  /**
+   * Decrypts and validates the submission whose manifest is given, as
+   * {@link #decryptAndValidateSubmission(Document, PrivateKey, File, File)},
+   * unless the decrypted submission isn't accepted, in which case neither its
+   * media files nor the submission get validated and the outcome is rejected.
+   */
+  public static DecryptOutcome decryptAndValidateSubmission(Document doc,
+      PrivateKey rsaPrivateKey, File instanceDir, File mediaDir, Predicate<Document> accept)
           throws ParsingException, FileSystemException, CryptoException {
 
     Element rootElement = doc.getRootElement();
@@ -751,13 +867,15 @@ public class FileSystemUtils {
       throw new ParsingException("InstanceID within metadata does not match that on top level element.");
     }
 
-    boolean isValidated = FileSystemUtils.decryptSubmissionFiles(base64EncryptedSymmetricKey, fim,
+    DecryptOutcome outcome = FileSystemUtils.decryptSubmissionFiles(base64EncryptedSymmetricKey, fim,
           mediaNames, encryptedSubmissionFile,
-          base64EncryptedElementSignature, rsaPrivateKey, instanceDir, unEncryptedDir);
+          base64EncryptedElementSignature, rsaPrivateKey, instanceDir, mediaDir, accept);
+    if (outcome.isRejected) {
+      return outcome;
+    }
 
     // and change doc to be the decrypted submission document
-    File decryptedSubmission = new File(unEncryptedDir, "submission.xml");
-    doc = XmlManipulationUtils.parseXml(decryptedSubmission);
+    doc = outcome.submission;
     if (doc == null) {
       return null;
     }
@@ -774,6 +892,6 @@ public class FileSystemUtils {
           "InstanceId in decrypted submission does not match that in manifest!");
     }
 
-    return new DecryptOutcome(doc, isValidated);
+    return outcome;
   }
 }
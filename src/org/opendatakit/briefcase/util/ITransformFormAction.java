@@ -16,6 +16,11 @@
 
 package org.opendatakit.briefcase.util;
 
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
 import org.opendatakit.briefcase.model.BriefcaseFormDefinition;
 
 /**
@@ -27,7 +32,7 @@ import org.opendatakit.briefcase.model.BriefcaseFormDefinition;
  * @author mitchellsundt@gmail.com
  *
  */
-interface ITransformFormAction {
+public interface ITransformFormAction {
   /**
    * 
    * @return true if successful, false if there were one or more problems
@@ -41,6 +46,25 @@ interface ITransformFormAction {
   FilesSkipped totalFilesSkipped();
 
   BriefcaseFormDefinition getFormDefinition();
+
+  /**
+   * The output this action writes, so that it can be written along with the
+   * outputs of other actions on the same form in a single pass over its
+   * submissions, see {@link CombinedExport}.
+   *
+   * @return empty if the action can only run by itself
+   */
+  default Optional<ExportSink> getSink() {
+    return Optional.empty();
+  }
+
+  /**
+   * The files written by the action once it's done, see
+   * {@link ExportSink#getOutputFiles()}.
+   */
+  default List<File> getOutputFiles() {
+    return getSink().map(ExportSink::getOutputFiles).orElse(Collections.emptyList());
+  }
 }
 
 enum FilesSkipped {
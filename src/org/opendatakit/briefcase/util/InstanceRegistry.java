@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2018 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.briefcase.util;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The instances recorded in the form database, loaded at once when a form
+ * starts being pulled, so that the downloads can tell which submissions
+ * were pulled before without going to the database for each of them.
+ * <p>
+ * Only a 64 bit fingerprint of each instance's uri is kept, in an open
+ * addressing table that's read without locking. Instances are stored in a
+ * directory named after their uri, except the few whose instanceID differs
+ * from it, so the directory is worked out from the uri and only those few
+ * are kept aside. A fingerprint shared by two uris can't be taken for a
+ * pulled submission, as the submission is then looked for in the directory
+ * of the uri being pulled.
+ * <p>
+ * New instances are kept in memory and written to the database in batches.
+ * Must only be written to from a single thread, the writer of the form.
+ */
+class InstanceRegistry {
+
+  /** How many new instances are recorded in the database at a time */
+  static final int BATCH_SIZE = 500;
+
+  private final DatabaseUtils formDatabase;
+  private final File formInstancesDir;
+  private final Fingerprints fingerprints = new Fingerprints();
+  /** The directories that aren't named after the uri of their instance */
+  private final Map<String, File> otherDirs = new ConcurrentHashMap<>();
+  private final Map<String, File> pending = new LinkedHashMap<>();
+
+  private InstanceRegistry(DatabaseUtils formDatabase, File formInstancesDir) {
+    this.formDatabase = formDatabase;
+    this.formInstancesDir = formInstancesDir;
+  }
+
+  static InstanceRegistry load(DatabaseUtils formDatabase, File formInstancesDir) {
+    InstanceRegistry registry = new InstanceRegistry(formDatabase, formInstancesDir);
+    formDatabase.forEachRecordedInstance(registry::add);
+    return registry;
+  }
+
+  /**
+   * The directory of the instance with the given uri, or null if it wasn't
+   * pulled before. The directory might have been deleted since.
+   */
+  File get(String uri) {
+    if (!fingerprints.contains(fingerprint(uri))) {
+      return null;
+    }
+    File dir = otherDirs.get(uri);
+    return dir != null ? dir : defaultDir(uri);
+  }
+
+  /**
+   * Records the directory of a pulled instance, writing the pending ones to
+   * the database once there are enough of them.
+   */
+  void put(String uri, File instanceDir) {
+    add(uri, instanceDir);
+    pending.put(uri, instanceDir);
+    if (pending.size() >= BATCH_SIZE) {
+      flush();
+    }
+  }
+
+  /**
+   * Writes the pending instances to the database, keeping them pending if
+   * that fails so that the next flush tries them again.
+   *
+   * @return whether every instance put so far is in the database
+   */
+  boolean flush() {
+    if (pending.isEmpty()) {
+      return true;
+    }
+    if (!formDatabase.assertRecordedInstanceDirectories(pending)) {
+      return false;
+    }
+    pending.clear();
+    return true;
+  }
+
+  private void add(String uri, File instanceDir) {
+    if (instanceDir.getPath().equals(defaultDir(uri).getPath())) {
+      otherDirs.remove(uri);
+    } else {
+      otherDirs.put(uri, instanceDir);
+    }
+    fingerprints.add(fingerprint(uri));
+  }
+
+  private File defaultDir(String uri) {
+    return new File(formInstancesDir, FileSystemUtils.asFilesystemSafeName(uri));
+  }
+
+  /**
+   * The 64 bit FNV-1a hash of the uri, never 0 as that marks the free slots.
+   */
+  static long fingerprint(String uri) {
+    long hash = 0xcbf29ce484222325L;
+    for (byte b : uri.getBytes(UTF_8)) {
+      hash ^= b & 0xff;
+      hash *= 0x100000001b3L;
+    }
+    return hash == 0 ? 1 : hash;
+  }
+
+  /**
+   * A set of fingerprints, read by any thread without locking and written by
+   * a single one. Growing it copies the table, so readers keep going through
+   * the old one until the new one is in place.
+   */
+  static class Fingerprints {
+    private volatile AtomicLongArray table = new AtomicLongArray(1024);
+    private int size = 0;
+
+    boolean contains(long fingerprint) {
+      AtomicLongArray table = this.table;
+      int mask = table.length() - 1;
+      for (int i = slot(fingerprint, mask); ; i = (i + 1) & mask) {
+        long value = table.get(i);
+        if (value == fingerprint) {
+          return true;
+        }
+        if (value == 0) {
+          return false;
+        }
+      }
+    }
+
+    void add(long fingerprint) {
+      if ((size + 1) * 4L > table.length() * 3L) {
+        AtomicLongArray grown = new AtomicLongArray(table.length() * 2);
+        for (int i = 0; i < table.length(); i++) {
+          long value = table.get(i);
+          if (value != 0) {
+            insert(grown, value);
+          }
+        }
+        table = grown;
+      }
+      if (insert(table, fingerprint)) {
+        size++;
+      }
+    }
+
+    int size() {
+      return size;
+    }
+
+    private static boolean insert(AtomicLongArray table, long fingerprint) {
+      int mask = table.length() - 1;
+      for (int i = slot(fingerprint, mask); ; i = (i + 1) & mask) {
+        long value = table.get(i);
+        if (value == fingerprint) {
+          return false;
+        }
+        if (value == 0) {
+          table.set(i, fingerprint);
+          return true;
+        }
+      }
+    }
+
+    private static int slot(long fingerprint, int mask) {
+      return (int) (fingerprint ^ (fingerprint >>> 32)) & mask;
+    }
+  }
+}
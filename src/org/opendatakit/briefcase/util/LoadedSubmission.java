@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2018 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.briefcase.util;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.util.Date;
+
+import javax.crypto.Cipher;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.javarosa.core.model.instance.TreeElement;
+
+/**
+ * The outcome of loading a submission with a {@link SubmissionLoader}.
+ */
+class LoadedSubmission {
+
+  private static final Log log = LogFactory.getLog(LoadedSubmission.class);
+
+  /** Where encrypted fields get decrypted, one per thread as rows are built on worker threads */
+  private static final ThreadLocal<byte[]> fieldBuffers = ThreadLocal.withInitial(() -> new byte[1024]);
+
+  enum Outcome {
+    /** The submission is ready to be exported. */
+    LOADED,
+    /** The submission is out of the date range of the export. */
+    IGNORED,
+    /** The submission couldn't be decrypted. */
+    SKIPPED,
+    FAILED
+  }
+
+  final Outcome outcome;
+  final File instanceDir;
+  final String instanceId;
+  final Date submissionDate; // this may be null
+  final ParsedSubmission parsed;
+  final EncryptionInformation ei; // this may be null
+  final boolean isValidated;
+  /** Where the media files of the submission are. */
+  final File mediaDir;
+  /** The directory the submission was decrypted into, or null. */
+  final File decryptedDir;
+
+  private LoadedSubmission(Outcome outcome, File instanceDir, String instanceId, Date submissionDate,
+      ParsedSubmission parsed, EncryptionInformation ei, boolean isValidated, File mediaDir, File decryptedDir) {
+    this.outcome = outcome;
+    this.instanceDir = instanceDir;
+    this.instanceId = instanceId;
+    this.submissionDate = submissionDate;
+    this.parsed = parsed;
+    this.ei = ei;
+    this.isValidated = isValidated;
+    this.mediaDir = mediaDir;
+    this.decryptedDir = decryptedDir;
+  }
+
+  static LoadedSubmission loaded(File instanceDir, String instanceId, Date submissionDate, ParsedSubmission parsed,
+      EncryptionInformation ei, boolean isValidated, File mediaDir, File decryptedDir) {
+    return new LoadedSubmission(Outcome.LOADED, instanceDir, instanceId, submissionDate, parsed, ei,
+        isValidated, mediaDir, decryptedDir);
+  }
+
+  static LoadedSubmission ignored() {
+    return new LoadedSubmission(Outcome.IGNORED, null, null, null, null, null, false, null, null);
+  }
+
+  static LoadedSubmission skipped() {
+    return new LoadedSubmission(Outcome.SKIPPED, null, null, null, null, null, false, null, null);
+  }
+
+  static LoadedSubmission failed() {
+    return new LoadedSubmission(Outcome.FAILED, null, null, null, null, null, false, null, null);
+  }
+
+  /**
+   * Returns the value of a column in the given values of a row of this
+   * submission, decrypting it if needed.
+   */
+  String getValue(ColumnPlan.Column column, Object[] values) {
+    String rawElement = column.getRawValue(values);
+    // could not find element, return null
+    if (rawElement == null) {
+      return null;
+    }
+
+    // Field-level encryption support -- experimental
+    if ( column.encryptedField ) {
+      TreeElement model = column.node.element;
+
+      try {
+        Cipher c = ei.getCipher("field:" + model.getName(), model.getName());
+
+        // decrypt the whole value at once, it's small enough
+        byte[] encrypted = Base64.decodeBase64(rawElement);
+        byte[] decrypted = fieldBuffer(c.getOutputSize(encrypted.length));
+        int length = c.doFinal(encrypted, 0, encrypted.length, decrypted);
+        return new String(decrypted, 0, length, UTF_8);
+
+      } catch (GeneralSecurityException | UnsupportedEncodingException e) {
+        log.debug(" element name: " + model.getName() + " exception: " + e, e);
+      }
+    }
+    return rawElement;
+  }
+
+  private static byte[] fieldBuffer(int size) {
+    byte[] buffer = fieldBuffers.get();
+    if (buffer.length < size) {
+      buffer = new byte[Math.max(size, buffer.length * 2)];
+      fieldBuffers.set(buffer);
+    }
+    return buffer;
+  }
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2018 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.briefcase.util;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.bushe.swing.event.EventBus;
+import org.opendatakit.briefcase.model.BriefcaseFormDefinition;
+import org.opendatakit.briefcase.model.BriefcasePreferences;
+import org.opendatakit.briefcase.model.ExportProgressEvent;
+
+/**
+ * Copies the media files of the submissions of an export into its media
+ * directory. Must only be used from one thread at a time.
+ * <p>
+ * The hashes of the media files, exported or not, are kept in an index in
+ * the media directory and only computed again when a file changes size or
+ * modification time, so exporting a form again doesn't read its media files.
+ * When asked to, new media files are hard linked to the originals instead of
+ * copied, falling back to copying when the drive doesn't allow it. Decrypted
+ * media files are moved into the media directory.
+ */
+class MediaFileExporter implements SubmissionOutput.MediaExporter {
+
+  private static final Log log = LogFactory.getLog(MediaFileExporter.class);
+
+  static final String MEDIA_DIR = "media";
+  private static final String INDEX_FILE = ".media-index";
+  private static final String DESTINATION = "D";
+  private static final String SOURCE = "S";
+
+  private final File outputMediaDir;
+  private final File decryptedDir;
+  private final BriefcaseFormDefinition briefcaseLfd;
+  private final boolean linkFiles;
+  /** The hashes of the files in the media directory, by name */
+  private final Map<String, HashEntry> destinationHashes = new HashMap<String, HashEntry>();
+  /** The hashes of the media files of the submissions, by path */
+  private final Map<String, HashEntry> sourceHashes = new HashMap<String, HashEntry>();
+  /**
+   * What was emitted for the decrypted files moved into the media directory,
+   * by path, for the other outputs of the export to emit the same
+   */
+  private final Map<String, String> movedFiles = new HashMap<String, String>();
+  private boolean indexLoaded = false;
+  private boolean indexChanged = false;
+  private boolean linkFailed = false;
+
+  MediaFileExporter(File outputDir, BriefcaseFormDefinition briefcaseLfd) {
+    this(outputDir, briefcaseLfd, BriefcasePreferences.getBriefcaseLinkMediaExportsProperty());
+  }
+
+  MediaFileExporter(File outputDir, BriefcaseFormDefinition briefcaseLfd, boolean linkFiles) {
+    this.outputMediaDir = new File(outputDir, MEDIA_DIR);
+    this.decryptedDir = new File(outputDir, SubmissionLoader.TEMP_DIR);
+    this.briefcaseLfd = briefcaseLfd;
+    this.linkFiles = linkFiles;
+  }
+
+  /**
+   * Copies a media file into the media directory of the export, reusing an
+   * identical file already there or picking a new "-N" versioned name, and
+   * returns the value to emit for it.
+   */
+  @Override
+  public String export(File binaryFile, String binaryFilename) throws IOException {
+    String moved = movedFiles.get(binaryFile.getAbsolutePath());
+    if (moved != null) {
+      return moved;
+    }
+    if (!outputMediaDir.exists()) {
+      if (!outputMediaDir.mkdir()) {
+        EventBus.publish(new ExportProgressEvent("Unable to create destination media directory", briefcaseLfd));
+        throw new IOException("Unable to create destination media directory");
+      }
+    }
+    loadIndex();
+
+    int dotIndex = binaryFilename.lastIndexOf(".");
+    String namePart = (dotIndex == -1) ? binaryFilename : binaryFilename.substring(0,
+        dotIndex);
+    String extPart = (dotIndex == -1) ? "" : binaryFilename.substring(dotIndex);
+
+    String destBinaryFilename = binaryFilename;
+    int version = 1;
+    File destFile = new File(outputMediaDir, destBinaryFilename);
+    boolean exists = false;
+    String binaryFileHash = null;
+    String destFileHash = null;
+
+    if (destFile.exists() && binaryFile.exists()) {
+      binaryFileHash = isDecrypted(binaryFile)
+          // decrypted files are gone after the export, there's no point indexing them
+          ? FileSystemUtils.getMd5Hash(binaryFile)
+          : getHash(sourceHashes, binaryFile.getAbsolutePath(), binaryFile);
+
+      while (destFile.exists()) {
+        /* check if the contents of the destFile and binaryFile is same
+         * if yes, skip the export of such file
+         */
+        destFileHash = getHash(destinationHashes, destFile.getName(), destFile);
+
+        if (binaryFileHash != null && destFileHash != null && destFileHash.equals(binaryFileHash)) {
+          exists = true;
+          break;
+        }
+
+        destBinaryFilename = namePart + "-" + (++version) + extPart;
+        destFile = new File(outputMediaDir, destBinaryFilename);
+      }
+    }
+    String emitted = MEDIA_DIR + File.separator + destFile.getName();
+    if (binaryFile.exists() && exists == false) {
+      if (isDecrypted(binaryFile)) {
+        movedFiles.put(binaryFile.getAbsolutePath(), emitted);
+      }
+      linkOrCopy(binaryFile, destFile);
+      if (binaryFileHash != null) {
+        putHash(destinationHashes, destFile.getName(), destFile, binaryFileHash);
+      }
+    }
+    return emitted;
+  }
+
+  private boolean isDecrypted(File binaryFile) {
+    return binaryFile.getAbsoluteFile().toPath().startsWith(decryptedDir.getAbsoluteFile().toPath());
+  }
+
+  private void linkOrCopy(File binaryFile, File destFile) throws IOException {
+    if (isDecrypted(binaryFile)) {
+      // decrypted files are thrown away after the export, so they can
+      // be moved into place, which is a rename on the same drive
+      FileUtils.moveFile(binaryFile, destFile);
+      return;
+    }
+    if (linkFiles && !linkFailed) {
+      try {
+        Files.createLink(destFile.toPath(), binaryFile.toPath());
+        return;
+      } catch (IOException | UnsupportedOperationException | SecurityException e) {
+        // most likely on different drives, which won't change for this export
+        log.info("unable to link media files, copying them instead", e);
+        linkFailed = true;
+      }
+    }
+    FileUtils.copyFile(binaryFile, destFile);
+  }
+
+  /**
+   * Saves the hashes of the media files for the next export, if they
+   * changed.
+   */
+  void save() throws IOException {
+    if (!indexChanged) {
+      return;
+    }
+    File index = new File(outputMediaDir, INDEX_FILE);
+    File temp = new File(outputMediaDir, INDEX_FILE + ".tmp");
+    try (BufferedWriter writer = Files.newBufferedWriter(temp.toPath(), UTF_8)) {
+      for (Map.Entry<String, HashEntry> e : destinationHashes.entrySet()) {
+        if (!new File(outputMediaDir, e.getKey()).exists()) {
+          continue;
+        }
+        writeEntry(writer, DESTINATION, e.getKey(), e.getValue());
+      }
+      for (Map.Entry<String, HashEntry> e : sourceHashes.entrySet()) {
+        writeEntry(writer, SOURCE, e.getKey(), e.getValue());
+      }
+    }
+    try {
+      Files.move(temp.toPath(), index.toPath(), ATOMIC_MOVE, REPLACE_EXISTING);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(temp.toPath(), index.toPath(), REPLACE_EXISTING);
+    }
+    indexChanged = false;
+  }
+
+  private static void writeEntry(BufferedWriter writer, String kind, String key, HashEntry entry) throws IOException {
+    writer.write(kind + "\t" + entry.length + "\t" + entry.lastModified + "\t" + entry.hash + "\t" + key);
+    writer.newLine();
+  }
+
+  private void loadIndex() {
+    if (indexLoaded) {
+      return;
+    }
+    indexLoaded = true;
+    File index = new File(outputMediaDir, INDEX_FILE);
+    if (!index.exists()) {
+      return;
+    }
+    try {
+      for (String line : Files.readAllLines(index.toPath(), UTF_8)) {
+        String[] fields = line.split("\t", 5);
+        if (fields.length != 5) {
+          continue;
+        }
+        try {
+          HashEntry entry = new HashEntry(Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[3]);
+          if (DESTINATION.equals(fields[0])) {
+            destinationHashes.put(fields[4], entry);
+          } else if (SOURCE.equals(fields[0])) {
+            sourceHashes.put(fields[4], entry);
+          }
+        } catch (NumberFormatException e) {
+          // ignore the entry, the file gets hashed again
+        }
+      }
+    } catch (IOException e) {
+      // not a problem, the media files get hashed again
+      log.warn("unable to read media index " + index.getAbsolutePath(), e);
+    }
+  }
+
+  /**
+   * Returns the hash of a file from the index, or computes it if the file
+   * changed since it was indexed.
+   */
+  private String getHash(Map<String, HashEntry> hashes, String key, File file) {
+    HashEntry entry = hashes.get(key);
+    if (entry != null && entry.length == file.length() && entry.lastModified == file.lastModified()) {
+      return entry.hash;
+    }
+    String hash = FileSystemUtils.getMd5Hash(file);
+    if (hash != null) {
+      putHash(hashes, key, file, hash);
+    }
+    return hash;
+  }
+
+  private void putHash(Map<String, HashEntry> hashes, String key, File file, String hash) {
+    hashes.put(key, new HashEntry(file.length(), file.lastModified(), hash));
+    indexChanged = true;
+  }
+
+  private static class HashEntry {
+    final long length;
+    final long lastModified;
+    final String hash;
+
+    HashEntry(long length, long lastModified, String hash) {
+      this.length = length;
+      this.lastModified = lastModified;
+      this.hash = hash;
+    }
+  }
+}
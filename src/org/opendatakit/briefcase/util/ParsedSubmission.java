@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2018 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.briefcase.util;
+
+import java.util.Map;
+
+import org.opendatakit.briefcase.model.ParsingException;
+import org.opendatakit.briefcase.util.XmlManipulationUtils.FormInstanceMetadata;
+
+/**
+ * What the export needs from a submission: the attributes of its root
+ * element, its OpenRosa metadata and the values of the fields of a
+ * {@link FieldPlan}.
+ */
+class ParsedSubmission {
+  private final Map<String, String> rootAttributes;
+  private final String openRosaInstanceId;
+  private final String base64EncryptedFieldKey;
+  private final Object[] values;
+
+  ParsedSubmission(Map<String, String> rootAttributes, String openRosaInstanceId, String base64EncryptedFieldKey, Object[] values) {
+    this.rootAttributes = rootAttributes;
+    this.openRosaInstanceId = openRosaInstanceId;
+    this.base64EncryptedFieldKey = base64EncryptedFieldKey;
+    this.values = values;
+  }
+
+  String getRootAttribute(String name) {
+    return rootAttributes.get(name);
+  }
+
+  FormInstanceMetadata getFormInstanceMetadata() throws ParsingException {
+    return XmlManipulationUtils.getFormInstanceMetadata(rootAttributes::get, openRosaInstanceId, base64EncryptedFieldKey);
+  }
+
+  /**
+   * The values of the root group of the {@link FieldPlan} used to read this
+   * submission.
+   */
+  Object[] getValues() {
+    return values;
+  }
+}
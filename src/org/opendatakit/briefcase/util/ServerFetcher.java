@@ -16,25 +16,35 @@
 
 package org.opendatakit.briefcase.util;
 
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
 import static org.opendatakit.briefcase.util.WebUtils.MAX_CONNECTIONS_PER_ROUTE;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
+import java.io.InterruptedIOException;
 import java.net.SocketTimeoutException;
 import java.net.URISyntaxException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
-import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -64,10 +74,30 @@ public class ServerFetcher {
   
   private static final int MAX_ENTRIES = 100;
 
+  /**
+   * How long a pull resumes the submission list before going through it
+   * from the start again, to get the submissions edited on the server
+   */
+  private static final long RECONCILE_INTERVAL_MILLIS = TimeUnit.DAYS.toMillis(7);
+
+  /** Form definitions are parsed one at a time, as JavaRosa isn't thread safe */
+  private static final Object FORM_DEFINITION_LOCK = new Object();
+
   ServerConnectionInfo serverInfo;
 
   private TerminationFuture terminationFuture;
 
+  /** The most connections to the server, if set by the user */
+  private final Optional<Integer> maxConnections;
+  /** Whether to go through all the submissions on the server, instead of the ones since the last pull */
+  private final boolean reconcile;
+  /** The connections to the server, shared by the forms being pulled */
+  private AdaptiveConcurrencyLimit connections;
+  /** Downloads the submissions of the forms being pulled */
+  private ExecutorService downloadPool;
+  /** Runs the writer of each form being pulled */
+  private ExecutorService writerPool;
+
   public static String SUCCESS_STATUS = "Success.";
   public static String FAILED_STATUS = "Failed.";
 
@@ -119,133 +149,180 @@ public class ServerFetcher {
   }
 
   ServerFetcher(ServerConnectionInfo serverInfo, TerminationFuture future) {
+    this(serverInfo, future, Optional.empty(), false);
+  }
+
+  ServerFetcher(ServerConnectionInfo serverInfo, TerminationFuture future, Optional<Integer> maxConnections,
+      boolean reconcile) {
     AnnotationProcessor.process(this);// if not using AOP
     this.serverInfo = serverInfo;
     this.terminationFuture = future;
+    this.maxConnections = maxConnections;
+    this.reconcile = reconcile;
   }
 
   public boolean isCancelled() {
     return terminationFuture.isCancelled();
   }
 
+  /**
+   * Pulls the given forms at once, each on a thread of its own, sharing the
+   * connections to the server: their submissions are downloaded by a single
+   * pool of workers, and each form only has a few downloads queued at a time
+   * so that the forms take turns. How many connections are open at once
+   * adapts to how the server copes with them, and never goes over the limit
+   * set by the user or the limit per route of the server.
+   */
   public boolean downloadFormAndSubmissionFiles(List<FormStatus> formsToTransfer) {
-    boolean allSuccessful = true;
-
-    // boolean error = false;
-    int total = formsToTransfer.size();
-
-    for (int i = 0; i < total; i++) {
-      FormStatus fs = formsToTransfer.get(i);
+    int connectionLimit = getDownloadThreads();
+    connections = new AdaptiveConcurrencyLimit(connectionLimit);
+    ExecutorService formPool = Executors.newFixedThreadPool(
+        Math.max(1, Math.min(formsToTransfer.size(), connectionLimit)), new DownloadThreadFactory());
+    downloadPool = Executors.newFixedThreadPool(connectionLimit, new DownloadThreadFactory());
+    writerPool = Executors.newCachedThreadPool(new DownloadThreadFactory());
+
+    List<Future<Boolean>> results = new ArrayList<>();
+    for (FormStatus fs : formsToTransfer) {
+      results.add(formPool.submit(() -> downloadFormAndSubmissionFiles(fs)));
+    }
 
-      if ( isCancelled() ) {
-        fs.setStatusString("Aborted. Skipping fetch of form and submissions...", true);
-        EventBus.publish(new FormStatusEvent(fs));
-        return false;
+    boolean allSuccessful = true;
+    try {
+      for (Future<Boolean> result : results) {
+        try {
+          allSuccessful = result.get() && allSuccessful;
+        } catch (ExecutionException e) {
+          log.error("failure while pulling a form", e.getCause());
+          allSuccessful = false;
+        }
       }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      formPool.shutdownNow();
+      downloadPool.shutdownNow();
+      writerPool.shutdownNow();
+      return false;
+    } finally {
+      formPool.shutdown();
+      downloadPool.shutdown();
+      writerPool.shutdown();
+    }
+    return allSuccessful;
+  }
 
-      RemoteFormDefinition fd = (RemoteFormDefinition) fs.getFormDefinition();
-      fs.setStatusString("Fetching form definition", true);
+  private boolean downloadFormAndSubmissionFiles(FormStatus fs) {
+    boolean allSuccessful = true;
+
+    if ( isCancelled() ) {
+      fs.setStatusString("Aborted. Skipping fetch of form and submissions...", true);
       EventBus.publish(new FormStatusEvent(fs));
-      try {
+      return false;
+    }
 
-        File tmpdl = FileSystemUtils.getTempFormDefinitionFile();
-        AggregateUtils.commonDownloadFile(serverInfo, tmpdl, fd.getDownloadUrl());
+    RemoteFormDefinition fd = (RemoteFormDefinition) fs.getFormDefinition();
+    fs.setStatusString("Fetching form definition", true);
+    EventBus.publish(new FormStatusEvent(fs));
+    try {
 
-        fs.setStatusString("resolving against briefcase form definitions", true);
-        EventBus.publish(new FormStatusEvent(fs));
+      File tmpdl = FileSystemUtils.getTempFormDefinitionFile();
+      downloadFile(tmpdl, fd.getDownloadUrl());
+
+      fs.setStatusString("resolving against briefcase form definitions", true);
+      EventBus.publish(new FormStatusEvent(fs));
 
-        boolean successful = false;
-        BriefcaseFormDefinition briefcaseLfd;
-        DatabaseUtils formDatabase = null;
+      boolean successful = false;
+      BriefcaseFormDefinition briefcaseLfd;
+      DatabaseUtils formDatabase = null;
+      try {
         try {
-          try {
+          synchronized (FORM_DEFINITION_LOCK) {
             briefcaseLfd = BriefcaseFormDefinition.resolveAgainstBriefcaseDefn(tmpdl);
-            if ( briefcaseLfd.needsMediaUpdate() ) {
-
-              if (fd.getManifestUrl() != null) {
-                File mediaDir = FileSystemUtils.getMediaDirectory(briefcaseLfd.getFormDirectory());
-                String error = downloadManifestAndMediaFiles(mediaDir, fs);
-                if (error != null) {
-                  allSuccessful = false;
-                  fs.setStatusString("Error fetching form definition: " + error, false);
-                  EventBus.publish(new FormStatusEvent(fs));
-                  continue;
-                }
+          }
+          if ( briefcaseLfd.needsMediaUpdate() ) {
+
+            if (fd.getManifestUrl() != null) {
+              File mediaDir = FileSystemUtils.getMediaDirectory(briefcaseLfd.getFormDirectory());
+              String error = downloadManifestAndMediaFiles(mediaDir, fs);
+              if (error != null) {
+                allSuccessful = false;
+                fs.setStatusString("Error fetching form definition: " + error, false);
+                EventBus.publish(new FormStatusEvent(fs));
+                return false;
               }
-
             }
-            formDatabase = DatabaseUtils.newInstance(briefcaseLfd.getFormDirectory());
 
-          } catch (BadFormDefinition e) {
-            allSuccessful = false;
-            String msg = "Error parsing form definition";
-            log.error(msg, e);
-            fs.setStatusString(msg + ": " + e.getMessage(), false);
-            EventBus.publish(new FormStatusEvent(fs));
-            continue;
           }
+          formDatabase = DatabaseUtils.newInstance(briefcaseLfd.getFormDirectory());
 
-          fs.setStatusString("preparing to retrieve instance data", true);
-          EventBus.publish(new FormStatusEvent(fs));
-
-          File formInstancesDir = FileSystemUtils.getFormInstancesDirectory(briefcaseLfd.getFormDirectory());
-
-          // this will publish events
-          successful = downloadAllSubmissionsForForm(formInstancesDir, formDatabase, briefcaseLfd, fs);
-        } catch ( SQLException | FileSystemException e ) {
+        } catch (BadFormDefinition e) {
           allSuccessful = false;
-          String msg = "unable to open form database";
+          String msg = "Error parsing form definition";
           log.error(msg, e);
           fs.setStatusString(msg + ": " + e.getMessage(), false);
           EventBus.publish(new FormStatusEvent(fs));
-          continue;
-        } finally {
-          if ( formDatabase != null ) {
-            try {
-              formDatabase.close();
-            } catch ( SQLException e) {
-              allSuccessful = false;
-              String msg = "unable to close form database";
-              log.error(msg, e);
-              fs.setStatusString(msg + ": " + e.getMessage(), false);
-              EventBus.publish(new FormStatusEvent(fs));
-              continue;
-            }
-          }
+          return false;
         }
 
-        allSuccessful = allSuccessful && successful;
+        fs.setStatusString("preparing to retrieve instance data", true);
+        EventBus.publish(new FormStatusEvent(fs));
 
-        // on success, we haven't actually set a success event (because we don't know we're done)
-        if ( successful ) {
-          fs.setStatusString(SUCCESS_STATUS, true);
-          EventBus.publish(new FormStatusEvent(fs));
-        } else {
-          fs.setStatusString(FAILED_STATUS, true);
-          EventBus.publish(new FormStatusEvent(fs));
-        }
+        File formInstancesDir = FileSystemUtils.getFormInstancesDirectory(briefcaseLfd.getFormDirectory());
 
-      } catch (SocketTimeoutException se) {
+        // this will publish events
+        successful = downloadAllSubmissionsForForm(formInstancesDir, formDatabase, briefcaseLfd, fs);
+      } catch ( SQLException | FileSystemException e ) {
         allSuccessful = false;
-        log.error("error accessing " + fd.getDownloadUrl(), se);
-        fs.setStatusString("Communications to the server timed out. Detailed message: "
-            + se.getLocalizedMessage() + " while accessing: " + fd.getDownloadUrl()
-            + " A network login screen may be interfering with the transmission to the server.", false);
+        String msg = "unable to open form database";
+        log.error(msg, e);
+        fs.setStatusString(msg + ": " + e.getMessage(), false);
         EventBus.publish(new FormStatusEvent(fs));
-      } catch (IOException e) {
-        allSuccessful = false;
-        log.error("error accessing " + fd.getDownloadUrl(), e);
-        fs.setStatusString("Unexpected error: " + e.getLocalizedMessage() + " while accessing: "
-            + fd.getDownloadUrl()
-            + " A network login screen may be interfering with the transmission to the server.", false);
+        return false;
+      } finally {
+        if ( formDatabase != null ) {
+          try {
+            formDatabase.close();
+          } catch ( SQLException e) {
+            allSuccessful = false;
+            String msg = "unable to close form database";
+            log.error(msg, e);
+            fs.setStatusString(msg + ": " + e.getMessage(), false);
+            EventBus.publish(new FormStatusEvent(fs));
+            return false;
+          }
+        }
+      }
+
+      allSuccessful = allSuccessful && successful;
+
+      // on success, we haven't actually set a success event (because we don't know we're done)
+      if ( successful ) {
+        fs.setStatusString(SUCCESS_STATUS, true);
         EventBus.publish(new FormStatusEvent(fs));
-      } catch (FileSystemException | TransmissionException | URISyntaxException e) {
-        allSuccessful = false;
-        log.error("error accessing " + fd.getDownloadUrl(), e);
-        fs.setStatusString("Unexpected error: " + e.getLocalizedMessage() + " while accessing: "
-            + fd.getDownloadUrl(), false);
+      } else {
+        fs.setStatusString(FAILED_STATUS, true);
         EventBus.publish(new FormStatusEvent(fs));
       }
+
+    } catch (SocketTimeoutException se) {
+      allSuccessful = false;
+      log.error("error accessing " + fd.getDownloadUrl(), se);
+      fs.setStatusString("Communications to the server timed out. Detailed message: "
+          + se.getLocalizedMessage() + " while accessing: " + fd.getDownloadUrl()
+          + " A network login screen may be interfering with the transmission to the server.", false);
+      EventBus.publish(new FormStatusEvent(fs));
+    } catch (IOException e) {
+      allSuccessful = false;
+      log.error("error accessing " + fd.getDownloadUrl(), e);
+      fs.setStatusString("Unexpected error: " + e.getLocalizedMessage() + " while accessing: "
+          + fd.getDownloadUrl()
+          + " A network login screen may be interfering with the transmission to the server.", false);
+      EventBus.publish(new FormStatusEvent(fs));
+    } catch (FileSystemException | TransmissionException | URISyntaxException e) {
+      allSuccessful = false;
+      log.error("error accessing " + fd.getDownloadUrl(), e);
+      fs.setStatusString("Unexpected error: " + e.getLocalizedMessage() + " while accessing: "
+          + fd.getDownloadUrl(), false);
+      EventBus.publish(new FormStatusEvent(fs));
     }
     return allSuccessful;
   }
@@ -275,94 +352,111 @@ public class ServerFetcher {
     }
   }
 
-  private ExecutorService getFetchExecutorService() {
-    int downloadThreads = BriefcasePreferences.getBriefcaseParallelPullsProperty() ? MAX_CONNECTIONS_PER_ROUTE : 1;
-    return Executors.newFixedThreadPool(downloadThreads, new DownloadThreadFactory());
+  // the ceiling of the connections to the server: the one asked for, as
+  // many as the server copes with on parallel pulls, or the one set in the
+  // settings, shared by the GUI and the CLI, which is a single connection
+  // unless the user raised it
+  private int getDownloadThreads() {
+    int max = maxConnections.orElseGet(() -> BriefcasePreferences.getBriefcaseParallelPullsProperty()
+        ? MAX_CONNECTIONS_PER_ROUTE
+        : BriefcasePreferences.getBriefcaseMaxPullConnectionsProperty());
+    return Math.max(1, Math.min(max, MAX_CONNECTIONS_PER_ROUTE));
   }
 
+  /**
+   * Pulls the submissions of a form through a pipeline, so that a slow
+   * submission never holds up the others: this thread pages through the
+   * list of submissions, queueing their downloads on the workers shared by
+   * all the forms being pulled, and a writer of its own stores what they
+   * fetch and records it in the form database. Only a few downloads of the
+   * form are queued at a time, so the list is never read far ahead of the
+   * downloads and the other forms get their turn.
+   * <p>
+   * The list is read from where the last pull of the form from the server
+   * left it, unless reconciling: submissions edited on the server after
+   * they were pulled are only listed again from the start. The list is also
+   * gone through from the start when that was last done too long ago, so
+   * that the GUI, which never asks to reconcile, gets the edits as well.
+   */
   private boolean downloadAllSubmissionsForForm(File formInstancesDir, DatabaseUtils formDatabase, BriefcaseFormDefinition lfd,
                                                 FormStatus fs) {
-    int submissionCount = 1;
-    int chunkCount = 1;
     boolean allSuccessful = true;
     RemoteFormDefinition fd = (RemoteFormDefinition) fs.getFormDefinition();
-    ExecutorService execSvc = getFetchExecutorService();
-    CompletionService<SubmissionChunk> chunkCompleter = new ExecutorCompletionService<>(execSvc);
-    CompletionService<String> submissionCompleter = new ExecutorCompletionService<>(execSvc);
+    String server = serverInfo.getUrl();
+    long now = System.currentTimeMillis();
+    String cursor = reconcile ? null : formDatabase.getPullCursor(server, now - RECONCILE_INTERVAL_MILLIS);
+    // the cursors recorded on the way keep when the list was last gone through from the start
+    long reconciledAt = now;
+    if (cursor != null) {
+      log.info("resuming the submission list of " + fd.getFormId() + " where the last pull left it");
+      reconciledAt = Optional.ofNullable(formDatabase.getPullCursorReconciledAt(server)).orElse(now);
+    }
+    FormDownloads downloads = new FormDownloads(formInstancesDir, formDatabase, lfd, fs, getDownloadThreads() * 2,
+        server, reconciledAt);
+    Future<Boolean> writer = writerPool.submit(downloads::write);
 
-    String oldWebsafeCursorString;
-    String websafeCursorString = "";
+    try {
+      allSuccessful = listSubmissions(fs, fd.getFormId(), cursor == null ? "" : cursor, downloads);
+      downloads.finish();
+      allSuccessful = writer.get() && allSuccessful;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      writer.cancel(true);
+      return false;
+    } catch (ExecutionException e) {
+      log.error("failure while storing submissions", e.getCause());
+      fs.setStatusString("Not all submissions retrieved: " + e.getCause().getMessage(), false);
+      EventBus.publish(new FormStatusEvent(fs));
+      return false;
+    } catch (RuntimeException e) {
+      writer.cancel(true);
+      throw e;
+    }
 
-    chunkCompleter.submit(new SubmissionChunkDownload(fs, fd.getFormId(), websafeCursorString));
+    if (isCancelled()) {
+      fs.setStatusString("aborting fetching submissions...", true);
+      EventBus.publish(new FormStatusEvent(fs));
+      return false;
+    }
+    return allSuccessful;
+  }
 
+  /**
+   * Pages through the list of submissions of a form, queueing their
+   * downloads. Blocks while the form has too many downloads queued.
+   *
+   * @return false if the list couldn't be read to its end
+   */
+  private boolean listSubmissions(FormStatus fs, String formId, String websafeCursorString, FormDownloads downloads)
+      throws InterruptedException {
+    int chunkCount = 1;
     boolean cursorFinished;
-
-    try {
-      do {
-        if (isCancelled()) {
-          fs.setStatusString("aborting fetching submission chunks...", true);
-          EventBus.publish(new FormStatusEvent(fs));
-          return false;
-        }
-
-        fs.setStatusString("processing chunk " + chunkCount + "...", true);
+    do {
+      if (isCancelled()) {
+        fs.setStatusString("aborting fetching submission chunks...", true);
         EventBus.publish(new FormStatusEvent(fs));
+        return false;
+      }
 
-        oldWebsafeCursorString = websafeCursorString; // remember what we had...
-        SubmissionChunk chunk;
-        try {
-          chunk = chunkCompleter.take().get();
-          chunkCount += 1;
-          websafeCursorString = chunk.websafeCursorString;
-          cursorFinished = oldWebsafeCursorString.equals(websafeCursorString);
-        } catch (InterruptedException | ExecutionException e) {
-          return false;
-        }
-
-        if (!cursorFinished) {
-          // submit another chunk request so it's ready by the time we finish processing this chunk
-          chunkCompleter.submit(new SubmissionChunkDownload(fs, fd.getFormId(), websafeCursorString));
-        }
-
-        // submit a download job for each uri in the chunk
-        for (String uri : chunk.uriList) {
-          if (isCancelled()) {
-            fs.setStatusString("aborting requesting submissions...", true);
-            EventBus.publish(new FormStatusEvent(fs));
-            return false;
-          }
-          submissionCompleter.submit(new SubmissionDownload(formInstancesDir, formDatabase, lfd, fs, uri));
-        }
+      fs.setStatusString("processing chunk " + chunkCount++ + "...", true);
+      EventBus.publish(new FormStatusEvent(fs));
 
-        // call take() and get() exactly once for each download submitted above (we don't need the uri)
-        for (int i = 0; i < chunk.uriList.size(); i++) {
-          if (isCancelled()) {
-            fs.setStatusString("aborting processing submissions...", true);
-            EventBus.publish(new FormStatusEvent(fs));
-            return false;
-          }
-          try {
-            submissionCompleter.take().get();
-            fs.setStatusString(String.format("fetched instance %s...", submissionCount++), true);
-            EventBus.publish(new FormStatusEvent(fs));
-          } catch (InterruptedException | ExecutionException e) {
-            log.error("failure during submission download", e);
-            allSuccessful = false;
-            fs.setStatusString("Submission not retrieved: " + e.getMessage(), false);
-            EventBus.publish(new FormStatusEvent(fs));
-            // but try to get the next one...
-          }
-        }
-      } while (!cursorFinished);
-    } finally {
-      execSvc.shutdown();
+      SubmissionChunk chunk;
       try {
-        execSvc.awaitTermination(1, TimeUnit.MINUTES);
-      } catch (InterruptedException e) {
-        log.warn("interrupted while waiting for pull to complete");
+        chunk = new SubmissionChunkDownload(fs, formId, websafeCursorString).call();
+      } catch (ParsingException | XmlDocumentFetchException e) {
+        // already reported by the chunk download
+        return false;
       }
-    }
-    return allSuccessful;
+      cursorFinished = websafeCursorString.equals(chunk.websafeCursorString);
+      websafeCursorString = chunk.websafeCursorString;
+
+      for (String uri : chunk.uriList) {
+        downloads.queue(uri);
+      }
+      downloads.listed(websafeCursorString);
+    } while (!cursorFinished);
+    return true;
   }
 
   private class SubmissionChunkDownload implements Callable<SubmissionChunk> {
@@ -389,7 +483,7 @@ public class ServerFetcher {
         DocumentDescription submissionChunkDescription = new DocumentDescription("Fetch of submission download chunk failed.  Detailed error: ",
                 "Fetch of submission download chunk failed.", "submission download chunk",
                 terminationFuture);
-        AggregateUtils.DocumentFetchResult fetchResult = AggregateUtils.getXmlDocument(fullUrl, serverInfo, false, submissionChunkDescription, null);
+        AggregateUtils.DocumentFetchResult fetchResult = getXmlDocument(fullUrl, submissionChunkDescription);
         return XmlManipulationUtils.parseSubmissionDownloadListResponse(fetchResult.doc);
       } catch (XmlDocumentFetchException e) {
         fs.setStatusString("Not all submissions retrieved: Error fetching list of submissions: " + e.getMessage(), false);
@@ -403,52 +497,223 @@ public class ServerFetcher {
     }
   }
 
-  private class SubmissionDownload implements Callable<String> {
-
-    private File formInstancesDir;
-    private DatabaseUtils formDatabase;
-    private BriefcaseFormDefinition lfd;
-    private FormStatus fs;
-    private String uri;
-
-    SubmissionDownload(File formInstancesDir, DatabaseUtils formDatabase, BriefcaseFormDefinition lfd, FormStatus fs, String uri)  {
+  /**
+   * The downloads of the submissions of a form, queued on the workers shared
+   * by all the forms being pulled, and their writer.
+   * <p>
+   * The submissions are numbered in the order they are listed, and the
+   * writer records the cursor of the list once every submission listed
+   * before it is stored, so that the next pull can resume the list from
+   * there. A submission that fails holds the cursor back for the rest of
+   * the pull, and is listed again by the next one.
+   */
+  private class FormDownloads {
+
+    private final File formInstancesDir;
+    private final DatabaseUtils formDatabase;
+    private final InstanceRegistry registry;
+    private final BriefcaseFormDefinition lfd;
+    private final FormStatus fs;
+    private final int maxQueued;
+    private final String server;
+    private final long reconciledAt;
+    /** Taken by each download until its submission is stored */
+    private final Semaphore queued;
+    private final BlockingQueue<FetchedSubmission> fetched = new LinkedBlockingQueue<>();
+    /** The cursors of the list, with how many submissions were listed before them */
+    private final Queue<ListedCursor> cursors = new ConcurrentLinkedQueue<>();
+    private long listedCount = 0;
+
+    FormDownloads(File formInstancesDir, DatabaseUtils formDatabase, BriefcaseFormDefinition lfd, FormStatus fs,
+        int maxQueued, String server, long reconciledAt) {
       this.formInstancesDir = formInstancesDir;
       this.formDatabase = formDatabase;
+      this.registry = InstanceRegistry.load(formDatabase, formInstancesDir);
       this.lfd = lfd;
       this.fs = fs;
+      this.maxQueued = maxQueued;
+      this.server = server;
+      this.reconciledAt = reconciledAt;
+      this.queued = new Semaphore(maxQueued);
+    }
+
+    /**
+     * Queues the download of a submission, waiting while the form has too
+     * many downloads queued.
+     */
+    void queue(String uri) throws InterruptedException {
+      queued.acquire();
+      long sequence = listedCount++;
+      downloadPool.execute(() -> {
+        FetchedSubmission submission;
+        try {
+          submission = fetchSubmission(formInstancesDir, registry, lfd, fs, uri);
+        } catch (Exception e) {
+          submission = FetchedSubmission.failed(uri, e);
+        }
+        submission.sequence = sequence;
+        fetched.add(submission);
+      });
+    }
+
+    /**
+     * Hands the writer the cursor of the list after the submissions queued
+     * so far.
+     */
+    void listed(String websafeCursorString) {
+      cursors.add(new ListedCursor(listedCount, websafeCursorString));
+    }
+
+    /**
+     * Waits for the queued submissions to be stored, and stops the writer.
+     */
+    void finish() throws InterruptedException {
+      queued.acquire(maxQueued);
+      fetched.add(FetchedSubmission.END);
+    }
+
+    /**
+     * Stores the fetched submissions in the order they arrive, until the
+     * downloads are finished.
+     */
+    Boolean write() throws InterruptedException {
+      boolean allSuccessful = true;
+      int submissionCount = 1;
+      // every submission listed before this one is stored
+      long storedUpTo = 0;
+      Set<Long> storedAhead = new HashSet<>();
+      FetchedSubmission submission;
+      while ((submission = fetched.take()) != FetchedSubmission.END) {
+        Exception error = submission.error;
+        if (error == null && submission.manifest != null) {
+          try {
+            storeSubmission(formDatabase, registry, submission);
+          } catch (IOException | RuntimeException e) {
+            // the writer must keep going, or the downloads would never finish
+            error = e;
+          }
+        }
+        queued.release();
+        if (error != null) {
+          log.error("failure during submission download", error);
+          allSuccessful = false;
+          fs.setStatusString("Submission not retrieved: " + error.getMessage(), false);
+          EventBus.publish(new FormStatusEvent(fs));
+          // but try to get the next one...
+          continue;
+        }
+        if (submission.sequence == storedUpTo) {
+          storedUpTo++;
+          while (storedAhead.remove(storedUpTo)) {
+            storedUpTo++;
+          }
+          recordCursor(storedUpTo);
+        } else {
+          storedAhead.add(submission.sequence);
+        }
+        fs.setStatusString(String.format("fetched instance %s... (%s downloads at once)",
+            submissionCount++, connections.getWindow()), true);
+        EventBus.publish(new FormStatusEvent(fs));
+      }
+      // the cursors after the last submissions, or after chunks with none
+      recordCursor(storedUpTo);
+      if (!registry.flush()) {
+        allSuccessful = false;
+        fs.setStatusString("Failed to record the pulled submissions in the form database", false);
+        EventBus.publish(new FormStatusEvent(fs));
+      }
+      return allSuccessful;
+    }
+
+    private void recordCursor(long storedUpTo) {
+      String websafeCursorString = null;
+      while (!cursors.isEmpty() && cursors.peek().listedCount <= storedUpTo) {
+        websafeCursorString = cursors.poll().websafeCursorString;
+      }
+      // the submissions before the cursor must be recorded before it, or the
+      // next pull would skip them; a later cursor covers them once they are
+      if (websafeCursorString != null && registry.flush()) {
+        formDatabase.putPullCursor(server, websafeCursorString, reconciledAt);
+      }
+    }
+  }
+
+  private static class ListedCursor {
+    final long listedCount;
+    final String websafeCursorString;
+
+    ListedCursor(long listedCount, String websafeCursorString) {
+      this.listedCount = listedCount;
+      this.websafeCursorString = websafeCursorString;
+    }
+  }
+
+  /**
+   * A submission handed from the download worker that fetched it to the
+   * writer of its form.
+   */
+  private static class FetchedSubmission {
+    /** Sent to the writer once all the submissions are stored */
+    static final FetchedSubmission END = new FetchedSubmission(null, null, null, null);
+
+    final String uri;
+    final File instanceDir;
+    final SubmissionManifest manifest; // null if it was pulled before
+    final Exception error;
+    /** The position of the submission in the list, set by the download that fetched it */
+    long sequence;
+
+    private FetchedSubmission(String uri, File instanceDir, SubmissionManifest manifest, Exception error) {
       this.uri = uri;
+      this.instanceDir = instanceDir;
+      this.manifest = manifest;
+      this.error = error;
     }
 
-    @Override
-    public String call() throws Exception {
-      downloadSubmission(formInstancesDir, formDatabase, lfd, fs, uri);
-      return uri;
+    static FetchedSubmission fetched(String uri, File instanceDir, SubmissionManifest manifest) {
+      return new FetchedSubmission(uri, instanceDir, manifest, null);
+    }
+
+    static FetchedSubmission present(String uri) {
+      return new FetchedSubmission(uri, null, null, null);
+    }
+
+    static FetchedSubmission failed(String uri, Exception error) {
+      return new FetchedSubmission(uri, null, null, error);
     }
   }
 
   public static class SubmissionManifest {
     final List<MediaFile> attachmentList;
-    final String submissionXml;
+    final File submissionFile; // a temporary file, until it's stored
     final String instanceID;
+    final String submissionDate; // this may be null
 
-    SubmissionManifest(String instanceID, String submissionXml, List<MediaFile> attachmentList) {
+    SubmissionManifest(String instanceID, String submissionDate, File submissionFile, List<MediaFile> attachmentList) {
       this.instanceID = instanceID;
-      this.submissionXml = submissionXml;
+      this.submissionDate = submissionDate;
+      this.submissionFile = submissionFile;
       this.attachmentList = attachmentList;
     }
   }
 
-  private void downloadSubmission(File formInstancesDir, DatabaseUtils formDatabase, BriefcaseFormDefinition lfd, FormStatus fs,
-      String uri) throws Exception {
+  /**
+   * Fetches a submission and its attachments into its instance directory,
+   * unless it was pulled before. Its submission.xml is streamed to a
+   * temporary file next to the instance directories, which the writer moves
+   * into place, see {@link #storeSubmission}.
+   */
+  private FetchedSubmission fetchSubmission(File formInstancesDir, InstanceRegistry registry, BriefcaseFormDefinition lfd,
+      FormStatus fs, String uri) throws Exception {
 
-      File instanceFolder = formDatabase.hasRecordedInstance(uri);
+      File instanceFolder = registry.get(uri);
       if ( instanceFolder != null ) {
           //check if the submission file is present in the folder before skipping
           File instance = new File(instanceFolder, "submission.xml");
           File instanceEncrypted = new File(instanceFolder, "submission.xml.enc");
           if (instance.exists() || instanceEncrypted.exists()) {
               log.info("already present - skipping fetch: " + uri );
-              return;
+              return FetchedSubmission.present(uri);
           }
       }
 
@@ -465,49 +730,23 @@ public class ServerFetcher {
     Map<String, String> params = new HashMap<String, String>();
     params.put("formId", formId);
     String fullUrl = WebUtils.createLinkWithProperties(baseUrl, params);
-    AggregateUtils.DocumentFetchResult result;
-    try {
-      DocumentDescription submissionDescription = new DocumentDescription("Fetch of a submission failed.  Detailed error: ",
-          "Fetch of a submission failed.", "submission", terminationFuture);
-      result = AggregateUtils.getXmlDocument(fullUrl, serverInfo, false,
-          submissionDescription, null);
-    } catch (XmlDocumentFetchException e) {
-      throw new SubmissionDownloadException(e.getMessage());
-    }
-
-    // and parse the document...
-    SubmissionManifest submissionManifest;
+    // a dot-file, so that it's never taken for an instance directory
+    File submissionFile = File.createTempFile(".submission", ".xml", formInstancesDir);
     try {
-      submissionManifest = XmlManipulationUtils.parseDownloadSubmissionResponse(result.doc);
-    } catch (ParsingException e) {
-      throw new SubmissionDownloadException(e.getMessage());
-    }
-
-    String msg = "Fetched instanceID=" + submissionManifest.instanceID;
-    log.info(msg);
-
-    if ( FileSystemUtils.hasFormSubmissionDirectory(formInstancesDir, submissionManifest.instanceID)) {
-      // create instance directory...
-      File instanceDir = FileSystemUtils.assertFormSubmissionDirectory(formInstancesDir,
-          submissionManifest.instanceID);
-
-      // fetch attachments
-      for (MediaFile m : submissionManifest.attachmentList) {
-        downloadMediaFileIfChanged(instanceDir, m, fs);
+      // parse the document as it arrives...
+      SubmissionManifest submissionManifest;
+      try {
+        DocumentDescription submissionDescription = new DocumentDescription("Fetch of a submission failed.  Detailed error: ",
+            "Fetch of a submission failed.", "submission", terminationFuture);
+        submissionManifest = streamXmlDocument(fullUrl, submissionDescription,
+            parser -> XmlManipulationUtils.parseDownloadSubmissionResponse(parser, submissionFile));
+      } catch (XmlDocumentFetchException e) {
+        throw new SubmissionDownloadException(e.getMessage());
       }
 
-      // write submission file -- we rely on instanceId being unique...
-      File submissionFile = new File(instanceDir, "submission.xml");
-      OutputStreamWriter fo = new OutputStreamWriter(new FileOutputStream(submissionFile), "UTF-8");
-      fo.write(submissionManifest.submissionXml);
-      fo.close();
-
-      // if we get here, we know that this is a completed submission
-      // (because it was in /view/submissionList) and that we safely
-      // copied it into the storage area (because we didn't get any
-      // exceptions).
-      formDatabase.assertRecordedInstanceDirectory(uri, instanceDir);
-    } else {
+      String msg = "Fetched instanceID=" + submissionManifest.instanceID;
+      log.info(msg);
+
       // create instance directory...
       File instanceDir = FileSystemUtils.assertFormSubmissionDirectory(formInstancesDir,
           submissionManifest.instanceID);
@@ -517,19 +756,36 @@ public class ServerFetcher {
         downloadMediaFileIfChanged(instanceDir, m, fs);
       }
 
-      // write submission file
-      File submissionFile = new File(instanceDir, "submission.xml");
-      OutputStreamWriter fo = new OutputStreamWriter(new FileOutputStream(submissionFile), "UTF-8");
-      fo.write(submissionManifest.submissionXml);
-      fo.close();
+      return FetchedSubmission.fetched(uri, instanceDir, submissionManifest);
+    } catch (Exception e) {
+      Files.deleteIfExists(submissionFile.toPath());
+      throw e;
+    }
+  }
 
-      // if we get here, we know that this is a completed submission
-      // (because it was in /view/submissionList) and that we safely
-      // copied it into the storage area (because we didn't get any
-      // exceptions).
-      formDatabase.assertRecordedInstanceDirectory(uri, instanceDir);
+  /**
+   * Writes the submission.xml of a fetched submission and records it in the
+   * form database. Only called from the writer.
+   */
+  private void storeSubmission(DatabaseUtils formDatabase, InstanceRegistry registry, FetchedSubmission submission)
+      throws IOException {
+    // move submission file into place -- we rely on instanceId being unique...
+    File submissionFile = new File(submission.instanceDir, "submission.xml");
+    try {
+      Files.move(submission.manifest.submissionFile.toPath(), submissionFile.toPath(), ATOMIC_MOVE, REPLACE_EXISTING);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(submission.manifest.submissionFile.toPath(), submissionFile.toPath(), REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(submission.manifest.submissionFile.toPath());
     }
 
+    // if we get here, we know that this is a completed submission
+    // (because it was in /view/submissionList) and that we safely
+    // copied it into the storage area (because we didn't get any
+    // exceptions).
+    registry.put(submission.uri, submission.instanceDir);
+    SubmissionIndex.record(formDatabase, submission.instanceDir, submission.manifest.instanceID,
+        submission.manifest.submissionDate);
   }
 
   public static class MediaFile {
@@ -556,8 +812,7 @@ public class ServerFetcher {
     try {
       DocumentDescription formManifestDescription = new DocumentDescription("Fetch of manifest failed. Detailed reason: ",
           "Fetch of manifest failed ", "form manifest", terminationFuture);
-      result = AggregateUtils.getXmlDocument(fd.getManifestUrl(), serverInfo, false,
-          formManifestDescription, null);
+      result = getXmlDocument(fd.getManifestUrl(), formManifestDescription);
     } catch (XmlDocumentFetchException e) {
       return e.getMessage();
     }
@@ -607,7 +862,94 @@ public class ServerFetcher {
       throw new TransmissionException("Transfer cancelled by user.");
     }
 
-    AggregateUtils.commonDownloadFile(serverInfo, mediaFile, m.downloadUrl);
+    downloadFile(mediaFile, m.downloadUrl);
+  }
+
+  /**
+   * Fetches a document from the server once one of the connections shared
+   * by the forms being pulled is free.
+   */
+  private AggregateUtils.DocumentFetchResult getXmlDocument(String url, DocumentDescription description)
+      throws XmlDocumentFetchException {
+    return withConnection(AdaptiveConcurrencyLimit.Outcome.SUCCESS,
+        () -> AggregateUtils.getXmlDocument(url, serverInfo, false, description, null));
+  }
+
+  /**
+   * Streams a document from the server to the reader once one of the
+   * connections shared by the forms being pulled is free. Its time depends
+   * on the size of the document and on the reader, so it says nothing about
+   * the latency of the server.
+   */
+  private <T> T streamXmlDocument(String url, DocumentDescription description, AggregateUtils.ResponseReader<T> reader)
+      throws XmlDocumentFetchException {
+    return withConnection(AdaptiveConcurrencyLimit.Outcome.TRANSFER,
+        () -> AggregateUtils.streamXmlDocument(url, serverInfo, description, reader));
+  }
+
+  private interface XmlRequest<T> {
+    T send() throws XmlDocumentFetchException;
+  }
+
+  private <T> T withConnection(AdaptiveConcurrencyLimit.Outcome success, XmlRequest<T> request)
+      throws XmlDocumentFetchException {
+    AdaptiveConcurrencyLimit.Outcome outcome = AdaptiveConcurrencyLimit.Outcome.FAILURE;
+    long start = connections.acquire();
+    try {
+      T result = request.send();
+      outcome = success;
+      return result;
+    } catch (XmlDocumentFetchException e) {
+      if (isOverload(e)) {
+        outcome = AdaptiveConcurrencyLimit.Outcome.OVERLOAD;
+      }
+      throw e;
+    } finally {
+      connections.release(start, outcome);
+    }
+  }
+
+  /**
+   * Downloads a file from the server once one of the connections shared by
+   * the forms being pulled is free.
+   */
+  private void downloadFile(File file, String url) throws URISyntaxException, IOException, TransmissionException {
+    AdaptiveConcurrencyLimit.Outcome outcome = AdaptiveConcurrencyLimit.Outcome.FAILURE;
+    long start = connections.acquire();
+    try {
+      AggregateUtils.commonDownloadFile(serverInfo, file, url);
+      outcome = AdaptiveConcurrencyLimit.Outcome.TRANSFER;
+    } catch (IOException | TransmissionException e) {
+      if (isOverload(e)) {
+        outcome = AdaptiveConcurrencyLimit.Outcome.OVERLOAD;
+      }
+      throw e;
+    } finally {
+      connections.release(start, outcome);
+    }
+  }
+
+  /**
+   * Whether a request failed because the server or the link can't take
+   * more requests: server errors, rate limiting and timeouts.
+   */
+  private static boolean isOverload(Throwable e) {
+    for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+      if (cause instanceof InterruptedIOException) {
+        // socket and connect timeouts
+        return true;
+      }
+      int statusCode = 0;
+      if (cause instanceof XmlDocumentFetchException) {
+        statusCode = ((XmlDocumentFetchException) cause).getStatusCode();
+      } else if (cause instanceof TransmissionException) {
+        statusCode = ((TransmissionException) cause).getStatusCode();
+      }
+      if (statusCode >= 500 || statusCode == 429) {
+        return true;
+      }
+    }
+    return false;
   }
 
   public static final List<RemoteFormDefinition> retrieveAvailableFormsFromServer(ServerConnectionInfo serverInfo, TerminationFuture terminationFuture) throws XmlDocumentFetchException, ParsingException {
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2018 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.briefcase.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Decides which submissions get exported from the attributes of their root
+ * element and the values of their top-level fields, so that the ones left
+ * out can be told apart before they are parsed or decrypted.
+ * <p>
+ * Filters are written as conditions separated by {@code ;}, all of which
+ * must hold. Each condition names a root attribute, prefixed by {@code @},
+ * or a top-level field, followed by an operator and one or more values
+ * separated by {@code |}:
+ * <ul>
+ * <li>{@code name=a|b} holds when the value is one of the given ones</li>
+ * <li>{@code name!=a|b} holds when the value is none of the given ones</li>
+ * <li>{@code name~=a|b} holds when any of the space separated values, as the
+ * ones of a select multiple field, is one of the given ones</li>
+ * </ul>
+ * For example, {@code @version=2018052101;deviceid!=imei:123|imei:456}.
+ * Missing attributes and fields have an empty value.
+ */
+public class SubmissionFilter {
+
+  private static final SubmissionFilter NONE = new SubmissionFilter(Collections.<Condition>emptyList());
+
+  private final List<Condition> conditions;
+  private final Set<String> fieldNames = new LinkedHashSet<String>();
+
+  private SubmissionFilter(List<Condition> conditions) {
+    this.conditions = conditions;
+    for (Condition condition : conditions) {
+      if (!condition.isAttribute()) {
+        fieldNames.add(condition.name);
+      }
+    }
+  }
+
+  /**
+   * A filter that lets every submission through.
+   */
+  public static SubmissionFilter none() {
+    return NONE;
+  }
+
+  /**
+   * Parses a filter expression. An empty expression lets every submission
+   * through.
+   *
+   * @throws IllegalArgumentException if the expression is not a valid filter
+   */
+  public static SubmissionFilter parse(String expression) {
+    List<Condition> conditions = new ArrayList<Condition>();
+    for (String part : expression.split(";")) {
+      if (!part.trim().isEmpty()) {
+        conditions.add(Condition.parse(part.trim()));
+      }
+    }
+    return conditions.isEmpty() ? NONE : new SubmissionFilter(conditions);
+  }
+
+  public boolean isEmpty() {
+    return conditions.isEmpty();
+  }
+
+  /**
+   * The names of the top-level fields the filter needs the values of.
+   */
+  Set<String> getFieldNames() {
+    return Collections.unmodifiableSet(fieldNames);
+  }
+
+  /**
+   * Whether the submission holds all the conditions, given the values of its
+   * root attributes, keyed by their name prefixed by {@code @}, and of the
+   * top-level fields the filter needs.
+   */
+  boolean matches(Map<String, String> values) {
+    for (Condition condition : conditions) {
+      if (!condition.holds(values.get(condition.name))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Whether the submission holds the conditions on root attributes, before
+   * its fields are known.
+   */
+  boolean matchesAttributes(Map<String, String> values) {
+    for (Condition condition : conditions) {
+      if (condition.isAttribute() && !condition.holds(values.get(condition.name))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public String toString() {
+    return conditions.toString();
+  }
+
+  private enum Operator {
+    EQUALS("="), NOT_EQUALS("!="), CONTAINS("~=");
+
+    private final String symbol;
+
+    Operator(String symbol) {
+      this.symbol = symbol;
+    }
+  }
+
+  private static class Condition {
+    final String name;
+    final Operator operator;
+    final Set<String> values;
+
+    private Condition(String name, Operator operator, Set<String> values) {
+      this.name = name;
+      this.operator = operator;
+      this.values = values;
+    }
+
+    static Condition parse(String condition) {
+      int index = condition.indexOf('=');
+      if (index <= 0) {
+        throw new IllegalArgumentException("Missing operator in filter condition " + condition);
+      }
+      Operator operator = Operator.EQUALS;
+      int nameEnd = index;
+      char previous = condition.charAt(index - 1);
+      if (previous == '!') {
+        operator = Operator.NOT_EQUALS;
+        nameEnd--;
+      } else if (previous == '~') {
+        operator = Operator.CONTAINS;
+        nameEnd--;
+      }
+      String name = condition.substring(0, nameEnd).trim();
+      if (name.isEmpty() || name.equals("@")) {
+        throw new IllegalArgumentException("Missing name in filter condition " + condition);
+      }
+      Set<String> values = new LinkedHashSet<String>();
+      for (String value : Arrays.asList(condition.substring(index + 1).split("\\|", -1))) {
+        values.add(value.trim());
+      }
+      return new Condition(name, operator, values);
+    }
+
+    boolean isAttribute() {
+      return name.startsWith("@");
+    }
+
+    boolean holds(String value) {
+      String actual = value == null ? "" : value.trim();
+      switch (operator) {
+      case EQUALS:
+        return values.contains(actual);
+      case NOT_EQUALS:
+        return !values.contains(actual);
+      case CONTAINS:
+        for (String token : actual.split("\\s+")) {
+          if (!token.isEmpty() && values.contains(token)) {
+            return true;
+          }
+        }
+        return false;
+      default:
+        throw new IllegalStateException("Unknown operator " + operator);
+      }
+    }
+
+    @Override
+    public String toString() {
+      return name + operator.symbol + String.join("|", values);
+    }
+  }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2018 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.briefcase.util;
+
+import java.io.File;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.kxml2.kdom.Element;
+import org.opendatakit.briefcase.model.BriefcaseFormDefinition;
+import org.opendatakit.briefcase.model.FileSystemException;
+import org.opendatakit.briefcase.model.ParsingException;
+import org.opendatakit.briefcase.util.XmlManipulationUtils.FormInstanceMetadata;
+
+/**
+ * Per-form index of the submission date and instance ID of every instance in
+ * the briefcase storage, persisted in the form database.
+ * <p>
+ * Pull and import record instances as they write them. Instances that are
+ * missing from the index, or whose submission.xml changed since they were
+ * recorded, are parsed once when the index is loaded and recorded then.
+ * Instances that were deleted from the storage are dropped from the index
+ * then too.
+ */
+public class SubmissionIndex {
+
+  private static final Log log = LogFactory.getLog(SubmissionIndex.class);
+
+  private final Map<File, Entry> entries;
+
+  private SubmissionIndex(Map<File, Entry> entries) {
+    this.entries = entries;
+  }
+
+  /**
+   * Loads the index of the given form, bringing it up to date for the given
+   * instance directories. If the form database can't be used, the index is
+   * built in memory only.
+   */
+  public static SubmissionIndex load(BriefcaseFormDefinition lfd, File[] instanceDirs) {
+    DatabaseUtils formDatabase = null;
+    try {
+      formDatabase = DatabaseUtils.newInstance(lfd.getFormDirectory());
+    } catch (SQLException | FileSystemException e) {
+      log.warn("unable to open form database, indexing submissions in memory", e);
+    }
+    try {
+      Map<File, Entry> entries = formDatabase != null
+          ? formDatabase.getIndexedSubmissions()
+          : new HashMap<File, Entry>();
+      for (File instanceDir : instanceDirs) {
+        Entry entry = entries.get(instanceDir);
+        File submission = new File(instanceDir, "submission.xml");
+        if (entry == null || entry.lastModified != submission.lastModified()) {
+          entry = readEntry(submission);
+          entries.put(instanceDir, entry);
+          if (formDatabase != null) {
+            formDatabase.putIndexedSubmission(instanceDir, entry);
+          }
+        }
+      }
+      // the instances not given may just have been left out, as when
+      // exporting incrementally, so only the deleted ones are dropped
+      Set<File> given = new HashSet<File>(Arrays.asList(instanceDirs));
+      for (Iterator<File> it = entries.keySet().iterator(); it.hasNext(); ) {
+        File instanceDir = it.next();
+        if (!given.contains(instanceDir) && !new File(instanceDir, "submission.xml").exists()) {
+          it.remove();
+          if (formDatabase != null) {
+            formDatabase.deleteIndexedSubmission(instanceDir);
+          }
+        }
+      }
+      return new SubmissionIndex(entries);
+    } finally {
+      if (formDatabase != null) {
+        try {
+          formDatabase.close();
+        } catch (SQLException e) {
+          log.warn("failed to close form database", e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Records an instance that has just been written to the briefcase storage.
+   */
+  public static void record(DatabaseUtils formDatabase, File instanceDir, String instanceId, String submissionDate) {
+    File submission = new File(instanceDir, "submission.xml");
+    formDatabase.putIndexedSubmission(instanceDir,
+        new Entry(instanceId, parseSubmissionDate(submissionDate), submission.lastModified()));
+  }
+
+  public Entry get(File instanceDir) {
+    return entries.get(instanceDir);
+  }
+
+  /**
+   * Sorts the instance directories by submission date. Instances without a
+   * submission date are assumed to be the latest.
+   */
+  public void sortBySubmissionDate(File[] instanceDirs) {
+    Arrays.sort(instanceDirs, Comparator.comparingLong(this::sortKey));
+  }
+
+  /**
+   * Leaves out the instance directories whose submission date is out of the
+   * given range, so that they don't even get read. Instances without a
+   * submission date are kept.
+   *
+   * @param start the start of the range, or null
+   * @param end   the end of the range, or null
+   */
+  public File[] inDateRange(File[] instanceDirs, Date start, Date end) {
+    if (start == null && end == null) {
+      return instanceDirs;
+    }
+    return Arrays.stream(instanceDirs).filter(instanceDir -> {
+      Entry entry = entries.get(instanceDir);
+      if (entry == null || entry.submissionDate == null) {
+        return true;
+      }
+      return !(start != null && entry.submissionDate.before(start))
+          && !(end != null && entry.submissionDate.after(end));
+    }).toArray(File[]::new);
+  }
+
+  private long sortKey(File instanceDir) {
+    Entry entry = entries.get(instanceDir);
+    return entry == null || entry.submissionDate == null ? Long.MAX_VALUE : entry.submissionDate.getTime();
+  }
+
+  private static Entry readEntry(File submission) {
+    String instanceId = null;
+    String submissionDate = null;
+    try {
+      Element root = XmlManipulationUtils.parseXml(submission).getRootElement();
+      submissionDate = root.getAttributeValue(null, "submissionDate");
+      FormInstanceMetadata sim = XmlManipulationUtils.getFormInstanceMetadata(root);
+      instanceId = sim.instanceId;
+    } catch (ParsingException | FileSystemException e) {
+      log.error("failed to index submission " + submission.getAbsolutePath(), e);
+    }
+    return new Entry(instanceId, parseSubmissionDate(submissionDate), submission.lastModified());
+  }
+
+  private static Date parseSubmissionDate(String submissionDate) {
+    return StringUtils.isNotEmptyNotNull(submissionDate) ? WebUtils.parseDate(submissionDate) : null;
+  }
+
+  public static class Entry {
+    public final String instanceId; // this may be null
+    public final Date submissionDate; // this may be null
+    final long lastModified;
+
+    Entry(String instanceId, Date submissionDate, long lastModified) {
+      this.instanceId = instanceId;
+      this.submissionDate = submissionDate;
+      this.lastModified = lastModified;
+    }
+  }
+}
@@ -0,0 +1,423 @@
+/*
+ * Copyright (C) 2018 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.briefcase.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Date;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.bushe.swing.event.EventBus;
+import org.kxml2.kdom.Document;
+import org.opendatakit.briefcase.model.BriefcaseFormDefinition;
+import org.opendatakit.briefcase.model.CryptoException;
+import org.opendatakit.briefcase.model.ExportProgressEvent;
+import org.opendatakit.briefcase.model.FileSystemException;
+import org.opendatakit.briefcase.model.ParsingException;
+import org.opendatakit.briefcase.model.TerminationFuture;
+import org.opendatakit.briefcase.util.XmlManipulationUtils.FormInstanceMetadata;
+
+/**
+ * Reads, filters and decrypts the submissions of a form for an export,
+ * whatever the format the export writes them in.
+ * <p>
+ * This is safe to use from several threads at once, and can load the
+ * submissions ahead of the export on a pool of threads by itself. How fast
+ * the submissions were decrypted is published once the export is done.
+ */
+class SubmissionLoader {
+
+  static final String TEMP_DIR = ".temp";
+
+  private static final Log log = LogFactory.getLog(SubmissionLoader.class);
+
+  private final BriefcaseFormDefinition briefcaseLfd;
+  private final ColumnPlan columnPlan;
+  private final File outputDir;
+  private final boolean exportMedia;
+  private final Date startDate;
+  private final Date endDate;
+  private final SubmissionFilter filter;
+  private final TerminationFuture terminationFuture;
+
+  private final AtomicLong decryptedSubmissions = new AtomicLong();
+  private final AtomicLong decryptedBytes = new AtomicLong();
+  private final AtomicLong firstDecryptStart = new AtomicLong(Long.MAX_VALUE);
+  private final AtomicLong lastDecryptEnd = new AtomicLong(Long.MIN_VALUE);
+
+  /**
+   * @param outputDir   where the media files of encrypted submissions get decrypted, as the
+   *                    briefcase storage location can be a read-only network mount
+   * @param exportMedia whether the media files of encrypted submissions are needed, or
+   *                    only decrypted to validate the submissions. They aren't needed
+   *                    either when the plan has no media columns.
+   * @param filter      which submissions to load, the others being ignored
+   */
+  SubmissionLoader(BriefcaseFormDefinition briefcaseLfd, ColumnPlan columnPlan, File outputDir,
+      boolean exportMedia, Date startDate, Date endDate, SubmissionFilter filter,
+      TerminationFuture terminationFuture) {
+    this.briefcaseLfd = briefcaseLfd;
+    this.columnPlan = columnPlan;
+    this.outputDir = outputDir;
+    this.exportMedia = exportMedia && columnPlan.hasMediaColumns();
+    this.startDate = startDate;
+    this.endDate = endDate;
+    this.filter = filter;
+    this.terminationFuture = terminationFuture;
+  }
+
+  /**
+   * Loads the submission of an instance directory. Problems are published as
+   * {@link ExportProgressEvent}s and reflected in the outcome.
+   */
+  LoadedSubmission load(File instanceDir) {
+    File submission = new File(instanceDir, "submission.xml");
+
+    // parse the xml document if encrypted, as it is the manifest, or
+    // otherwise stream the values of the fields straight out of it...
+    Document doc = null;
+    ParsedSubmission parsed = null;
+    boolean isValidated = false;
+
+    try {
+      if (briefcaseLfd.isFileEncryptedForm()) {
+        doc = XmlManipulationUtils.parseXml(submission);
+        // only the attributes of the manifest can be checked before decrypting
+        if (!filter.isEmpty() && !filter.matchesAttributes(SubmissionReader.peek(doc, filter.getFieldNames()))) {
+          return LoadedSubmission.ignored();
+        }
+      } else {
+        // check the filter by reading only what it needs before reading the rest
+        if (!filter.isEmpty() && !filter.matches(SubmissionReader.peek(submission, filter.getFieldNames()))) {
+          return LoadedSubmission.ignored();
+        }
+        parsed = SubmissionReader.read(submission, columnPlan.getFieldPlan());
+      }
+    } catch (ParsingException | FileSystemException e) {
+      String msg = "Error parsing submission " + instanceDir.getName();
+      log.error(msg, e);
+      EventBus.publish(new ExportProgressEvent(msg + " Cause: " + e.toString(), briefcaseLfd));
+      return LoadedSubmission.failed();
+    }
+
+    // extract the submissionDate, if present, from the attributes
+    // of the root element of the submission or submission manifest (if encrypted).
+    String submissionDateString = doc != null
+        ? doc.getRootElement().getAttributeValue(null, "submissionDate")
+        : parsed.getRootAttribute("submissionDate");
+    Date submissionDate = null;
+    if (submissionDateString != null && submissionDateString.length() != 0) {
+      submissionDate = WebUtils.parseDate(submissionDateString);
+
+      // just return true to skip records out of range
+      if (startDate != null && submissionDate.before(startDate)) {
+          log.info("Submission date is before specified, skipping: " + instanceDir.getName());
+          return LoadedSubmission.ignored();
+      }
+      if (endDate != null && submissionDate.after(endDate)) {
+          log.info("Submission date is after specified, skipping: " + instanceDir.getName());
+          return LoadedSubmission.ignored();
+      }
+    }
+
+    // If we are encrypted, the media files are decrypted into a temporary
+    // directory, but only if they are exported; the submission itself is
+    // decrypted in memory. If we aren't encrypted, the media files are
+    // in the instance directory.
+
+    File unEncryptedDir;
+    if (briefcaseLfd.isFileEncryptedForm()) {
+      // The temp directory is in the outputDir so that the briefcase storage
+      // location can be a read-only network mount. issue 676.
+      // Each instance gets its own directory as several are decrypted at once.
+      // It is only created once there's a media file to put in it.
+      unEncryptedDir = new File(new File(outputDir, TEMP_DIR), instanceDir.getName());
+
+      if (unEncryptedDir.exists()) {
+        // silently delete it...
+        try {
+          FileUtils.deleteDirectory(unEncryptedDir);
+        } catch (IOException e) {
+          String msg = "Unable to delete stale temp directory: " + unEncryptedDir.getAbsolutePath();
+          log.warn(msg, e);
+          EventBus.publish(new ExportProgressEvent(msg, briefcaseLfd));
+          return LoadedSubmission.failed();
+        }
+      }
+    } else {
+      unEncryptedDir = instanceDir;
+    }
+    File decryptedDir = briefcaseLfd.isFileEncryptedForm() ? unEncryptedDir : null;
+
+    // Beyond this point, we need to have a finally block that
+    // will clean up any decrypted files whenever there is any
+    // failure. On success, the caller cleans them up once it
+    // is done with the media files.
+    boolean handedOff = false;
+    try {
+
+      if (briefcaseLfd.isFileEncryptedForm()) {
+        // Decrypt the form, and its media files into the
+        // unEncryptedDir if they are exported, and validate
+        // the contents of all those files.
+        try {
+          long start = System.nanoTime();
+          FileSystemUtils.DecryptOutcome outcome =
+            FileSystemUtils.decryptAndValidateSubmission(doc, briefcaseLfd.getPrivateKey(),
+              instanceDir, exportMedia ? unEncryptedDir : null,
+              decrypted -> filter.isEmpty() || filter.matches(SubmissionReader.peek(decrypted, filter.getFieldNames())));
+          recordDecryption(start, System.nanoTime(), outcome.decryptedBytes);
+          if (outcome.isRejected) {
+            return LoadedSubmission.ignored();
+          }
+          parsed = SubmissionReader.fromDocument(outcome.submission, columnPlan.getFieldPlan());
+          isValidated = outcome.isValidated;
+        } catch (ParsingException | CryptoException | FileSystemException e) {
+          //Was unable to parse file or decrypt file or a file system error occurred
+          //Hence skip this instance
+          EventBus.publish(new ExportProgressEvent("Error decrypting submission "
+                  + instanceDir.getName() + " Cause: " + e.toString() + " skipping....", briefcaseLfd));
+
+          log.info("Error decrypting submission "
+                  + instanceDir.getName() + " Cause: " + e.toString());
+
+          //update total number of files skipped
+          return LoadedSubmission.skipped();
+        }
+      }
+
+      String instanceId = null;
+      String base64EncryptedFieldKey = null;
+      // find an instanceId to use...
+      try {
+        FormInstanceMetadata sim = parsed.getFormInstanceMetadata();
+        instanceId = sim.instanceId;
+        base64EncryptedFieldKey = sim.base64EncryptedFieldKey;
+      } catch (ParsingException e) {
+        String msg = "Could not extract metadata from submission: " + submission.getAbsolutePath();
+        log.error(msg, e);
+        EventBus.publish(new ExportProgressEvent(msg + " Cause: " + e.toString(), briefcaseLfd));
+        return LoadedSubmission.failed();
+      }
+
+      if (instanceId == null || instanceId.length() == 0) {
+        // if we have no instanceID, and there isn't any in the file,
+        // use the checksum as the id.
+        // NOTE: encrypted submissions always have instanceIDs.
+        // This is for legacy non-OpenRosa forms.
+        long checksum;
+        try {
+          checksum = FileUtils.checksumCRC32(submission);
+        } catch (IOException e1) {
+          String msg = "Failed during computing of crc";
+          log.error(msg, e1);
+          EventBus.publish(new ExportProgressEvent(msg + ": " + e1.getMessage(), briefcaseLfd));
+          return LoadedSubmission.failed();
+        }
+        instanceId = "crc32:" + Long.toString(checksum);
+      }
+
+      if ( terminationFuture.isCancelled() ) {
+        EventBus.publish(new ExportProgressEvent("Aborted", briefcaseLfd));
+        return LoadedSubmission.failed();
+      }
+
+      EncryptionInformation ei = null;
+      if ( base64EncryptedFieldKey != null ) {
+        try {
+          ei = new EncryptionInformation(base64EncryptedFieldKey, instanceId, briefcaseLfd.getPrivateKey());
+        } catch (CryptoException e) {
+          String msg = "Error establishing field decryption for submission " + instanceDir.getName();
+          log.error(msg, e);
+          EventBus.publish(new ExportProgressEvent(msg + " Cause: " + e.toString(), briefcaseLfd));
+          return LoadedSubmission.failed();
+        }
+      }
+
+      if ( briefcaseLfd.isFileEncryptedForm() && !isValidated ) {
+        EventBus.publish(new ExportProgressEvent("Decrypted submission "
+            + instanceDir.getName() + " may be missing attachments and could not be validated.", briefcaseLfd));
+      }
+
+      handedOff = true;
+      return LoadedSubmission.loaded(instanceDir, instanceId, submissionDate, parsed, ei,
+          isValidated, unEncryptedDir, decryptedDir != null && decryptedDir.exists() ? decryptedDir : null);
+    } finally {
+      if (decryptedDir != null && decryptedDir.exists() && !handedOff) {
+        // destroy the temp directory and its contents...
+        try {
+          FileUtils.deleteDirectory(decryptedDir);
+        } catch (IOException e) {
+          String msg = "Unable to remove decrypted files";
+          log.error(msg, e);
+          EventBus.publish(new ExportProgressEvent(msg + ": " + e.getMessage(), briefcaseLfd));
+          return LoadedSubmission.failed();
+        }
+      }
+    }
+  }
+
+  private void recordDecryption(long start, long end, long bytes) {
+    decryptedSubmissions.incrementAndGet();
+    decryptedBytes.addAndGet(bytes);
+    firstDecryptStart.accumulateAndGet(start, Math::min);
+    lastDecryptEnd.accumulateAndGet(end, Math::max);
+  }
+
+  /**
+   * Removes whatever is left of the decrypted submissions, once the export
+   * is done, and reports how fast they were decrypted.
+   */
+  void cleanUp() {
+    if (briefcaseLfd.isFileEncryptedForm()) {
+      FileUtils.deleteQuietly(new File(outputDir, TEMP_DIR));
+      reportDecryption();
+    }
+  }
+
+  private void reportDecryption() {
+    long submissions = decryptedSubmissions.get();
+    if (submissions == 0) {
+      return;
+    }
+    // wall time, from the first decryption to the last, whatever the number of threads
+    double seconds = Math.max(lastDecryptEnd.get() - firstDecryptStart.get(), 1L) / 1e9;
+    double megabytes = decryptedBytes.get() / (1024.0 * 1024.0);
+    String msg = String.format("Decrypted %d submissions (%.1f MB) in %.1f s: %.1f submissions/s, %.1f MB/s",
+        submissions, megabytes, seconds, submissions / seconds, megabytes / seconds);
+    log.info(msg + " for form " + briefcaseLfd.getFormName());
+    EventBus.publish(new ExportProgressEvent(msg, briefcaseLfd));
+  }
+
+  /**
+   * Starts loading the given instances on a pool of threads, a bounded
+   * number of them ahead of the export, so that parsing and decrypting them
+   * makes use of every core while the export writes them out. With a single
+   * thread, instances are just loaded when asked for.
+   */
+  LoadAhead loadAhead(File[] instances, int threads) {
+    return new LoadAhead(instances, threads);
+  }
+
+  /**
+   * Instances loaded ahead of the export. They must be asked for in the
+   * order they were given in, from a single thread; the ones that aren't
+   * asked for are thrown away.
+   */
+  class LoadAhead implements AutoCloseable {
+    private final File[] instances;
+    private final int threads;
+    private final ExecutorService execSvc;
+    private final Deque<Pending> inFlight = new ArrayDeque<Pending>();
+    private int next = 0;
+
+    private LoadAhead(File[] instances, int threads) {
+      this.instances = instances;
+      this.threads = threads;
+      this.execSvc = threads > 1 ? Executors.newFixedThreadPool(threads, new ExportThreadFactory()) : null;
+    }
+
+    LoadedSubmission load(File instanceDir) {
+      if (execSvc == null) {
+        return SubmissionLoader.this.load(instanceDir);
+      }
+      while (true) {
+        fill();
+        Pending pending = inFlight.poll();
+        if (pending == null) {
+          return SubmissionLoader.this.load(instanceDir);
+        }
+        if (pending.instanceDir.equals(instanceDir)) {
+          return await(pending.future);
+        }
+        discard(pending);
+      }
+    }
+
+    private void fill() {
+      while (next < instances.length && inFlight.size() < threads * 2) {
+        final File instanceDir = instances[next++];
+        if (instanceDir.getName().startsWith("."))
+          continue; // Mac OSX
+        inFlight.add(new Pending(instanceDir, execSvc.submit(() -> SubmissionLoader.this.load(instanceDir))));
+      }
+    }
+
+    private LoadedSubmission await(Future<LoadedSubmission> future) {
+      try {
+        return future.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        EventBus.publish(new ExportProgressEvent("Aborted", briefcaseLfd));
+        return LoadedSubmission.failed();
+      } catch (ExecutionException e) {
+        String msg = "Error processing submission";
+        log.error(msg, e.getCause());
+        EventBus.publish(new ExportProgressEvent(msg + " Cause: " + e.getCause().toString(), briefcaseLfd));
+        return LoadedSubmission.failed();
+      }
+    }
+
+    private void discard(Pending pending) {
+      if (!pending.future.cancel(false)) {
+        LoadedSubmission loaded = await(pending.future);
+        if (loaded.decryptedDir != null) {
+          FileUtils.deleteQuietly(loaded.decryptedDir);
+        }
+      }
+    }
+
+    /**
+     * Throws away whatever was loaded ahead of a failure or cancellation.
+     */
+    @Override
+    public void close() {
+      if (execSvc == null) {
+        return;
+      }
+      while (!inFlight.isEmpty()) {
+        discard(inFlight.poll());
+      }
+      execSvc.shutdown();
+      try {
+        execSvc.awaitTermination(1, TimeUnit.MINUTES);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private static class Pending {
+    final File instanceDir;
+    final Future<LoadedSubmission> future;
+
+    Pending(File instanceDir, Future<LoadedSubmission> future) {
+      this.instanceDir = instanceDir;
+      this.future = future;
+    }
+  }
+}
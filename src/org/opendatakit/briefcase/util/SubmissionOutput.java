@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2018 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.briefcase.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Buffers everything a single submission contributes to the csv files of an
+ * export, so that it can be produced on a worker thread and written later, in
+ * submission order, by the thread that owns the output files.
+ * <p>
+ * Media cells are kept apart because the name a media file gets in the export
+ * depends on the files already exported before it.
+ */
+class SubmissionOutput {
+
+  interface MediaExporter {
+    /**
+     * Exports the given media file and returns the value to emit for it.
+     */
+    String export(File binaryFile, String binaryFilename) throws IOException;
+  }
+
+  private final List<Part> parts = new ArrayList<Part>();
+
+  Target forTable(ColumnPlan.Table table) {
+    return new Target(table);
+  }
+
+  /**
+   * Writes the buffered output to the writers of the corresponding
+   * tables, in the same order it was produced.
+   */
+  void writeTo(Map<ColumnPlan.Table, ? extends Writer> fileMap, MediaExporter mediaExporter) throws IOException {
+    for (Part part : parts) {
+      Writer writer = fileMap.get(part.table);
+      if (part.binaryFile != null) {
+        ExportToCsv.emitString(writer, part.first, mediaExporter.export(part.binaryFile, part.binaryFilename));
+      } else {
+        writer.append(part.text);
+      }
+    }
+  }
+
+  private Part textPart(ColumnPlan.Table table) {
+    Part last = parts.isEmpty() ? null : parts.get(parts.size() - 1);
+    if (last == null || last.table != table || last.binaryFile != null) {
+      last = new Part(table);
+      parts.add(last);
+    }
+    return last;
+  }
+
+  /**
+   * The output of one table (the submissions or a repeat group) of the form.
+   */
+  class Target implements Appendable {
+    private final ColumnPlan.Table table;
+
+    private Target(ColumnPlan.Table table) {
+      this.table = table;
+    }
+
+    void appendMedia(boolean first, File binaryFile, String binaryFilename) {
+      Part part = new Part(table);
+      part.first = first;
+      part.binaryFile = binaryFile;
+      part.binaryFilename = binaryFilename;
+      parts.add(part);
+    }
+
+    @Override
+    public Appendable append(CharSequence csq) {
+      textPart(table).text.append(csq);
+      return this;
+    }
+
+    @Override
+    public Appendable append(CharSequence csq, int start, int end) {
+      textPart(table).text.append(csq, start, end);
+      return this;
+    }
+
+    @Override
+    public Appendable append(char c) {
+      textPart(table).text.append(c);
+      return this;
+    }
+
+    Appendable append(char[] str, int offset, int len) {
+      textPart(table).text.append(str, offset, len);
+      return this;
+    }
+  }
+
+  private static class Part {
+    private final ColumnPlan.Table table;
+    private final StringBuilder text = new StringBuilder();
+    private boolean first;
+    private File binaryFile;
+    private String binaryFilename;
+
+    private Part(ColumnPlan.Table table) {
+      this.table = table;
+    }
+  }
+}
@@ -0,0 +1,317 @@
+/*
+ * Copyright (C) 2018 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.briefcase.util;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.kxml2.io.KXmlParser;
+import org.kxml2.kdom.Document;
+import org.kxml2.kdom.Element;
+import org.kxml2.kdom.Node;
+import org.opendatakit.briefcase.model.FileSystemException;
+import org.opendatakit.briefcase.model.ParsingException;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+/**
+ * Reads the values of the fields of a {@link FieldPlan} from a submission
+ * with a pull parser, without building a document in memory. Elements that
+ * are not part of the plan are skipped, except for the OpenRosa metadata.
+ * <p>
+ * As with the kxml document, only the first element with a given name is
+ * read for a field or a group, and every element is read for a repeat group.
+ */
+class SubmissionReader {
+
+  private static final Log log = LogFactory.getLog(SubmissionReader.class);
+
+  private final XmlPullParser parser;
+  private String rootUri;
+  private boolean metaFound = false;
+  private String openRosaInstanceId;
+  private boolean openRosaInstanceIdFound = false;
+  private String base64EncryptedFieldKey;
+  private boolean base64EncryptedFieldKeyFound = false;
+
+  private SubmissionReader(XmlPullParser parser) {
+    this.parser = parser;
+  }
+
+  static ParsedSubmission read(File submission, FieldPlan plan) throws ParsingException, FileSystemException {
+    try (Reader reader = new InputStreamReader(new FileInputStream(submission), UTF_8)) {
+      KXmlParser parser = new KXmlParser();
+      parser.setInput(reader);
+      parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+      return new SubmissionReader(parser).readSubmission(plan);
+    } catch (XmlPullParserException e) {
+      // let the document parser deal with it, as it knows how to fix some bad xml
+      log.warn("unable to stream submission " + submission.getAbsolutePath() + ", parsing it as a document", e);
+      return fromDocument(XmlManipulationUtils.parseXml(submission), plan);
+    } catch (IOException e) {
+      throw new FileSystemException("Failed while reading submission xml: " + e.toString());
+    }
+  }
+
+  /**
+   * Reads the attributes of the root element of a submission, keyed by their
+   * name prefixed by {@code @}, and the values of the given top-level fields.
+   * Reading stops as soon as they are all found, right after the root element
+   * starts if no field is asked for.
+   */
+  static Map<String, String> peek(File submission, Set<String> fields) throws ParsingException, FileSystemException {
+    try (Reader reader = new InputStreamReader(new FileInputStream(submission), UTF_8)) {
+      KXmlParser parser = new KXmlParser();
+      parser.setInput(reader);
+      parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+      return new SubmissionReader(parser).peekSubmission(fields);
+    } catch (XmlPullParserException e) {
+      log.warn("unable to stream submission " + submission.getAbsolutePath() + ", parsing it as a document", e);
+      return peek(XmlManipulationUtils.parseXml(submission), fields);
+    } catch (IOException e) {
+      throw new FileSystemException("Failed while reading submission xml: " + e.toString());
+    }
+  }
+
+  /**
+   * Reads the attributes of the root element and the values of the given
+   * top-level fields of an already parsed submission, as {@link #peek(File, Set)}.
+   */
+  static Map<String, String> peek(Document doc, Set<String> fields) {
+    Element root = doc.getRootElement();
+    Map<String, String> values = new HashMap<String, String>();
+    for (int i = 0; i < root.getAttributeCount(); ++i) {
+      values.putIfAbsent("@" + root.getAttributeName(i), root.getAttributeValue(i));
+    }
+    for (int i = 0; i < root.getChildCount(); ++i) {
+      if (root.getType(i) == Node.ELEMENT) {
+        Element child = root.getElement(i);
+        if (fields.contains(child.getName()) && !values.containsKey(child.getName())) {
+          values.put(child.getName(), getText(child));
+        }
+      }
+    }
+    return values;
+  }
+
+  /**
+   * Reads the values of the fields of a {@link FieldPlan} from an already
+   * parsed submission, such as the one produced by decrypting a submission.
+   */
+  static ParsedSubmission fromDocument(Document doc, FieldPlan plan) {
+    Element root = doc.getRootElement();
+    Map<String, String> rootAttributes = new HashMap<String, String>();
+    for (int i = 0; i < root.getAttributeCount(); ++i) {
+      rootAttributes.putIfAbsent(root.getAttributeName(i), root.getAttributeValue(i));
+    }
+    FieldPlan.Node rootNode = plan.getRoot();
+    Object[] values = rootNode.newValues();
+    readElement(root, rootNode, values);
+    return new ParsedSubmission(rootAttributes, XmlManipulationUtils.getOpenRosaInstanceId(root),
+        XmlManipulationUtils.getBase64EncryptedFieldKey(root), values);
+  }
+
+  private static void readElement(Element element, FieldPlan.Node group, Object[] values) {
+    for (int i = 0; i < element.getChildCount(); ++i) {
+      if (element.getType(i) != Node.ELEMENT) {
+        continue;
+      }
+      Element child = element.getElement(i);
+      FieldPlan.Node node = group.getChild(child.getName());
+      if (node == null) {
+        continue;
+      }
+      switch (node.kind) {
+      case VALUE:
+        if (values[node.slot] == null) {
+          values[node.slot] = getText(child);
+        }
+        break;
+      case GROUP:
+        if (values[node.slot] == null) {
+          Object[] groupValues = node.newValues();
+          values[node.slot] = groupValues;
+          readElement(child, node, groupValues);
+        }
+        break;
+      case REPEAT:
+        Object[] instanceValues = node.newValues();
+        repeatValues(node, values).add(instanceValues);
+        readElement(child, node, instanceValues);
+        break;
+      }
+    }
+  }
+
+  private static String getText(Element element) {
+    StringBuilder b = new StringBuilder();
+    for (int i = 0; i < element.getChildCount(); ++i) {
+      if (element.getType(i) == Node.TEXT) {
+        b.append(element.getText(i));
+      }
+    }
+    return b.toString();
+  }
+
+  @SuppressWarnings("unchecked")
+  private static List<Object[]> repeatValues(FieldPlan.Node node, Object[] values) {
+    if (values[node.slot] == null) {
+      values[node.slot] = new ArrayList<Object[]>();
+    }
+    return (List<Object[]>) values[node.slot];
+  }
+
+  private void moveToRoot() throws XmlPullParserException, IOException {
+    int event = parser.next();
+    while (event != XmlPullParser.START_TAG) {
+      if (event == XmlPullParser.END_DOCUMENT) {
+        throw new XmlPullParserException("submission has no root element");
+      }
+      event = parser.next();
+    }
+    rootUri = parser.getNamespace();
+  }
+
+  private Map<String, String> peekSubmission(Set<String> fields) throws XmlPullParserException, IOException {
+    moveToRoot();
+    Map<String, String> values = new HashMap<String, String>();
+    for (int i = 0; i < parser.getAttributeCount(); ++i) {
+      values.putIfAbsent("@" + parser.getAttributeName(i), parser.getAttributeValue(i));
+    }
+    int remaining = fields.size();
+    while (remaining > 0) {
+      int event = parser.next();
+      if (event == XmlPullParser.START_TAG) {
+        String name = parser.getName();
+        boolean wanted = fields.contains(name) && !values.containsKey(name);
+        String text = readElement(null, null, false, wanted);
+        if (wanted) {
+          values.put(name, text == null ? "" : text);
+          remaining--;
+        }
+      } else if (event == XmlPullParser.END_TAG || event == XmlPullParser.END_DOCUMENT) {
+        break;
+      }
+    }
+    return values;
+  }
+
+  private ParsedSubmission readSubmission(FieldPlan plan) throws XmlPullParserException, IOException {
+    moveToRoot();
+    Map<String, String> rootAttributes = new HashMap<String, String>();
+    for (int i = 0; i < parser.getAttributeCount(); ++i) {
+      rootAttributes.putIfAbsent(parser.getAttributeName(i), parser.getAttributeValue(i));
+    }
+    FieldPlan.Node rootNode = plan.getRoot();
+    Object[] values = rootNode.newValues();
+    readElement(rootNode, values, false, false);
+    // make sure the rest of the document is well-formed too
+    while (parser.next() != XmlPullParser.END_DOCUMENT) {
+      // skip trailing comments and whitespace
+    }
+    return new ParsedSubmission(rootAttributes, openRosaInstanceId, base64EncryptedFieldKey, values);
+  }
+
+  /**
+   * Reads the content of the current element up to its end tag and returns
+   * its text, if asked for. The group is null for elements outside the plan.
+   */
+  private String readElement(FieldPlan.Node group, Object[] values, boolean isMeta, boolean wantText)
+      throws XmlPullParserException, IOException {
+    StringBuilder text = null;
+    while (true) {
+      switch (parser.next()) {
+      case XmlPullParser.TEXT:
+        if (wantText) {
+          if (text == null) {
+            text = new StringBuilder();
+          }
+          text.append(parser.getText());
+        }
+        break;
+      case XmlPullParser.START_TAG:
+        readChild(group, values, isMeta);
+        break;
+      case XmlPullParser.END_TAG:
+        return text == null ? null : text.toString();
+      case XmlPullParser.END_DOCUMENT:
+        throw new XmlPullParserException("unexpected end of submission");
+      default:
+        break;
+      }
+    }
+  }
+
+  private void readChild(FieldPlan.Node group, Object[] values, boolean parentIsMeta)
+      throws XmlPullParserException, IOException {
+    String name = parser.getName();
+    String uri = parser.getNamespace();
+
+    boolean isMeta = !metaFound && XmlManipulationUtils.isOpenRosaMetaTag(name, uri, rootUri);
+    if (isMeta) {
+      metaFound = true;
+    }
+    boolean isInstanceId = parentIsMeta && !openRosaInstanceIdFound
+        && XmlManipulationUtils.isOpenRosaInstanceId(name, uri, rootUri);
+    boolean isFieldKey = parentIsMeta && !base64EncryptedFieldKeyFound
+        && XmlManipulationUtils.isBase64EncryptedFieldKey(name, uri, rootUri);
+
+    FieldPlan.Node node = group == null ? null : group.getChild(name);
+    if (node != null && node.kind != FieldPlan.Kind.REPEAT && values[node.slot] != null) {
+      // only the first element with this name is read
+      node = null;
+    }
+
+    String text;
+    if (node != null && node.kind == FieldPlan.Kind.GROUP) {
+      Object[] groupValues = node.newValues();
+      values[node.slot] = groupValues;
+      text = readElement(node, groupValues, isMeta, false);
+    } else if (node != null && node.kind == FieldPlan.Kind.REPEAT) {
+      Object[] instanceValues = node.newValues();
+      repeatValues(node, values).add(instanceValues);
+      text = readElement(node, instanceValues, isMeta, false);
+    } else {
+      boolean isValue = node != null;
+      text = readElement(null, null, isMeta, isValue || isInstanceId || isFieldKey);
+      if (isValue) {
+        values[node.slot] = text == null ? "" : text;
+      }
+    }
+
+    if (isInstanceId) {
+      openRosaInstanceIdFound = true;
+      openRosaInstanceId = text == null ? null : text.trim();
+    }
+    if (isFieldKey) {
+      base64EncryptedFieldKeyFound = true;
+      base64EncryptedFieldKey = text == null ? null : text.trim();
+    }
+  }
+}
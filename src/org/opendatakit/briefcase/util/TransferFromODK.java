@@ -308,6 +308,9 @@ public class TransferFromODK implements ITransferFromSourceAction {
                     odkSubmissionFile.delete();
                 }
 
+                // ODK Collect instances don't carry a submission date
+                SubmissionIndex.record(formDatabase, scratchInstance, instanceId, null);
+
                 fs.setStatusString(String.format("retrieving (%1$d)", instanceCount), true);
                 EventBus.publish(new FormStatusEvent(fs));
                 ++instanceCount;
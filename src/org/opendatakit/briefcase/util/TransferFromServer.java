@@ -17,6 +17,7 @@
 package org.opendatakit.briefcase.util;
 
 import java.util.List;
+import java.util.Optional;
 
 import org.opendatakit.briefcase.model.FormStatus;
 import org.opendatakit.briefcase.model.ServerConnectionInfo;
@@ -27,18 +28,32 @@ public class TransferFromServer implements ITransferFromSourceAction {
   final ServerConnectionInfo originServerInfo;
   final TerminationFuture terminationFuture;
   final List<FormStatus> formsToTransfer;
+  final Optional<Integer> maxConnections;
+  final boolean reconcile;
 
   public TransferFromServer(ServerConnectionInfo originServerInfo, 
       TerminationFuture terminationFuture, List<FormStatus> formsToTransfer) {
+    this(originServerInfo, terminationFuture, formsToTransfer, Optional.empty(), false);
+  }
+
+  /**
+   * @param reconcile whether to go through all the submissions on the server,
+   *                  instead of just the ones since the last pull
+   */
+  public TransferFromServer(ServerConnectionInfo originServerInfo,
+      TerminationFuture terminationFuture, List<FormStatus> formsToTransfer, Optional<Integer> maxConnections,
+      boolean reconcile) {
     this.originServerInfo = originServerInfo;
     this.terminationFuture = terminationFuture;
     this.formsToTransfer = formsToTransfer;
+    this.maxConnections = maxConnections;
+    this.reconcile = reconcile;
   }
 
   @Override
   public boolean doAction() {
     
-    ServerFetcher fetcher = new ServerFetcher(originServerInfo, terminationFuture);
+    ServerFetcher fetcher = new ServerFetcher(originServerInfo, terminationFuture, maxConnections, reconcile);
     
     return fetcher.downloadFormAndSubmissionFiles(formsToTransfer);
   }
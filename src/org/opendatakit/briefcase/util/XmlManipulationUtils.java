@@ -16,6 +16,8 @@
 
 package org.opendatakit.briefcase.util;
 
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -23,12 +25,14 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.StringWriter;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.function.Function;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.logging.Log;
@@ -105,15 +109,7 @@ public class XmlManipulationUtils {
     for (int i = 0; i < parent.getChildCount(); ++i) {
       if (parent.getType(i) == Node.ELEMENT) {
         Element child = parent.getElement(i);
-        String cnUri = child.getNamespace();
-        String cnName = child.getName();
-        if (cnName.equals(OPEN_ROSA_METADATA_TAG)
-            && (cnUri == null || 
-                cnUri.equals(EMPTY_STRING) || 
-                cnUri.equals(rootUri) ||
-                cnUri.equalsIgnoreCase(OPEN_ROSA_NAMESPACE) || 
-                cnUri.equalsIgnoreCase(OPEN_ROSA_NAMESPACE_SLASH) || 
-                cnUri.equalsIgnoreCase(OPEN_ROSA_NAMESPACE_PRELIM))) {
+        if (isOpenRosaMetaTag(child.getName(), child.getNamespace(), rootUri)) {
           return child;
         } else {
           Element descendent = findMetaTag(child, rootUri);
@@ -137,15 +133,7 @@ public class XmlManipulationUtils {
       for (int i = 0; i < meta.getChildCount(); ++i) {
         if (meta.getType(i) == Node.ELEMENT) {
           Element child = meta.getElement(i);
-          String cnUri = child.getNamespace();
-          String cnName = child.getName();
-          if (cnName.equals(OPEN_ROSA_INSTANCE_ID)
-              && (cnUri == null || 
-                  cnUri.equals(EMPTY_STRING) || 
-                  cnUri.equals(rootUri) ||
-                  cnUri.equalsIgnoreCase(OPEN_ROSA_NAMESPACE) || 
-                  cnUri.equalsIgnoreCase(OPEN_ROSA_NAMESPACE_SLASH) || 
-                  cnUri.equalsIgnoreCase(OPEN_ROSA_NAMESPACE_PRELIM))) {
+          if (isOpenRosaInstanceId(child.getName(), child.getNamespace(), rootUri)) {
             return XFormParser.getXMLText(child, true);
           }
         }
@@ -167,14 +155,7 @@ public class XmlManipulationUtils {
       for (int i = 0; i < meta.getChildCount(); ++i) {
         if (meta.getType(i) == Node.ELEMENT) {
           Element child = meta.getElement(i);
-          String cnUri = child.getNamespace();
-          String cnName = child.getName();
-          if (cnName.equals(BASE64_ENCRYPTED_FIELD_KEY)
-              && (cnUri == null || 
-                  cnUri.equals(EMPTY_STRING) || 
-                  cnUri.equals(rootUri) ||
-                  cnUri.equalsIgnoreCase(OPEN_ROSA_NAMESPACE) || 
-                  cnUri.equalsIgnoreCase(OPEN_ROSA_NAMESPACE_SLASH))) {
+          if (isBase64EncryptedFieldKey(child.getName(), child.getNamespace(), rootUri)) {
             return XFormParser.getXMLText(child, true);
           }
         }
@@ -183,6 +164,27 @@ public class XmlManipulationUtils {
     return null;
   }
   
+  static boolean isOpenRosaMetaTag(String name, String uri, String rootUri) {
+    return name.equals(OPEN_ROSA_METADATA_TAG) && isOpenRosaMetadataNamespace(uri, rootUri, true);
+  }
+
+  static boolean isOpenRosaInstanceId(String name, String uri, String rootUri) {
+    return name.equals(OPEN_ROSA_INSTANCE_ID) && isOpenRosaMetadataNamespace(uri, rootUri, true);
+  }
+
+  static boolean isBase64EncryptedFieldKey(String name, String uri, String rootUri) {
+    return name.equals(BASE64_ENCRYPTED_FIELD_KEY) && isOpenRosaMetadataNamespace(uri, rootUri, false);
+  }
+
+  private static boolean isOpenRosaMetadataNamespace(String uri, String rootUri, boolean allowPrelim) {
+    return uri == null ||
+        uri.equals(EMPTY_STRING) ||
+        uri.equals(rootUri) ||
+        uri.equalsIgnoreCase(OPEN_ROSA_NAMESPACE) ||
+        uri.equalsIgnoreCase(OPEN_ROSA_NAMESPACE_SLASH) ||
+        (allowPrelim && uri.equalsIgnoreCase(OPEN_ROSA_NAMESPACE_PRELIM));
+  }
+
   public static class FormInstanceMetadata {
     public final XFormParameters xparam;
     public final String instanceId; // this may be null
@@ -201,13 +203,19 @@ public class XmlManipulationUtils {
   private static final String MODEL_VERSION_ATTRIBUTE_NAME = "version";
 
   public static FormInstanceMetadata getFormInstanceMetadata(Element root) throws ParsingException {
+    return getFormInstanceMetadata(name -> root.getAttributeValue(null, name),
+        getOpenRosaInstanceId(root), getBase64EncryptedFieldKey(root));
+  }
+
+  static FormInstanceMetadata getFormInstanceMetadata(Function<String, String> rootAttributes,
+      String openRosaInstanceId, String base64EncryptedFieldKey) throws ParsingException {
 
     // check for odk id
-    String formId = root.getAttributeValue(null, FORM_ID_ATTRIBUTE_NAME);
+    String formId = rootAttributes.apply(FORM_ID_ATTRIBUTE_NAME);
 
     // if odk id is not present use namespace
     if (formId == null || formId.equalsIgnoreCase(EMPTY_STRING)) {
-      String schema = root.getAttributeValue(null, NAMESPACE_ATTRIBUTE);
+      String schema = rootAttributes.apply(NAMESPACE_ATTRIBUTE);
 
       // TODO: move this into FormDefinition?
       if (schema == null) {
@@ -217,13 +225,12 @@ public class XmlManipulationUtils {
       formId = schema;
     }
 
-    String modelVersionString = root.getAttributeValue(null, MODEL_VERSION_ATTRIBUTE_NAME);
+    String modelVersionString = rootAttributes.apply(MODEL_VERSION_ATTRIBUTE_NAME);
 
-    String instanceId = getOpenRosaInstanceId(root);
+    String instanceId = openRosaInstanceId;
     if (instanceId == null) {
-      instanceId = root.getAttributeValue(null, INSTANCE_ID_ATTRIBUTE_NAME);
+      instanceId = rootAttributes.apply(INSTANCE_ID_ATTRIBUTE_NAME);
     }
-    String base64EncryptedFieldKey = getBase64EncryptedFieldKey(root);
     return new FormInstanceMetadata(new XFormParameters(formId, modelVersionString), instanceId, base64EncryptedFieldKey);
   }
 
@@ -285,6 +292,35 @@ public class XmlManipulationUtils {
     return doc;
   }
 
+  /**
+   * Parses a submission that is only in memory, such as a decrypted one.
+   * Bad xml is handed over to {@link #parseXml(File)} through a temporary
+   * file, as that's what the fixing needs.
+   */
+  static Document parseXml(byte[] submission) throws ParsingException, FileSystemException {
+    try {
+      Document doc = new Document();
+      KXmlParser parser = new KXmlParser();
+      parser.setInput(new InputStreamReader(new ByteArrayInputStream(submission), UTF_8));
+      parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+      doc.parse(parser);
+      return doc;
+    } catch (XmlPullParserException e) {
+      File temp = null;
+      try {
+        temp = File.createTempFile("submission", ".xml");
+        FileUtils.writeByteArrayToFile(temp, submission);
+        return parseXml(temp);
+      } catch (IOException e1) {
+        throw new FileSystemException("Failed while writing submission xml: " + e1.toString());
+      } finally {
+        FileUtils.deleteQuietly(temp);
+      }
+    } catch (IOException e) {
+      throw new FileSystemException("Failed while reading submission xml: " + e.toString());
+    }
+  }
+
   public static final List<RemoteFormDefinition> parseFormListResponse(boolean isOpenRosaResponse,
       Document formListDoc) throws ParsingException {
     // This gets a list of available forms from the specified server.
@@ -612,117 +648,202 @@ public class XmlManipulationUtils {
     return new SubmissionChunk(uriList, websafeCursorString);
   }
 
-  public static final SubmissionManifest parseDownloadSubmissionResponse(Document doc)
-      throws ParsingException {
+  /**
+   * Reads a downloadSubmission response as it arrives, writing the submission
+   * in it to the given file, so that it's never held in memory whole: only
+   * its instanceID, its submission date and the list of its attachments are
+   * kept.
+   */
+  public static final SubmissionManifest parseDownloadSubmissionResponse(XmlPullParser parser, File submissionFile)
+      throws XmlPullParserException, IOException, ParsingException {
 
-    // and parse the document...
     List<MediaFile> attachmentList = new ArrayList<MediaFile>();
-    Element rootSubmissionElement = null;
     String instanceID = null;
+    String submissionDate = null;
+    boolean submissionFound = false;
 
     // Attempt parsing
-    Element submissionElement = doc.getRootElement();
-    if (!submissionElement.getName().equals("submission")) {
+    parser.nextTag();
+    if (!parser.getName().equals("submission")) {
       String msg = "Parsing downloadSubmission reply -- root element is not <submission> :"
-          + submissionElement.getName();
+          + parser.getName();
       log.error(msg);
       throw new ParsingException(msg);
     }
-    String namespace = submissionElement.getNamespace();
+    String namespace = parser.getNamespace();
     if (!namespace.equalsIgnoreCase(NAMESPACE_OPENDATAKIT_ORG_SUBMISSIONS)) {
       String msg = "Parsing downloadSubmission reply -- root element namespace is incorrect:"
           + namespace;
       log.error(msg);
       throw new ParsingException(msg);
     }
-    int nElements = submissionElement.getChildCount();
-    for (int i = 0; i < nElements; ++i) {
-      if (submissionElement.getType(i) != Element.ELEMENT) {
-        // e.g., whitespace (text)
-        continue;
-      }
-      Element subElement = (Element) submissionElement.getElement(i);
-      namespace = subElement.getNamespace();
+    int submissionDepth = parser.getDepth();
+    while (nextChildElement(parser, submissionDepth)) {
+      namespace = parser.getNamespace();
       if (!namespace.equalsIgnoreCase(NAMESPACE_OPENDATAKIT_ORG_SUBMISSIONS)) {
         // someone else's extension?
+        skipElement(parser);
         continue;
       }
-      String name = subElement.getName();
+      String name = parser.getName();
       if (name.equalsIgnoreCase("data")) {
         // find the root submission element and get its instanceID attribute
-        int nIdElements = subElement.getChildCount();
-        for (int j = 0; j < nIdElements; ++j) {
-          if (subElement.getType(j) != Element.ELEMENT) {
-            // e.g., whitespace (text)
-            continue;
-          }
-          rootSubmissionElement = (Element) subElement.getElement(j);
-          break;
-        }
-        if (rootSubmissionElement == null) {
+        int dataDepth = parser.getDepth();
+        if (!nextChildElement(parser, dataDepth)) {
           throw new ParsingException("no submission body found in submissionDownload response");
         }
-
-        instanceID = rootSubmissionElement.getAttributeValue(null, "instanceID");
+        instanceID = parser.getAttributeValue(null, "instanceID");
         if (instanceID == null) {
           throw new ParsingException("instanceID attribute value is null");
         }
+        submissionDate = parser.getAttributeValue(null, SUBMISSION_DATE_ATTRIBUTE_NAME);
+        writeSubmission(parser, submissionFile);
+        submissionFound = true;
+        while (nextChildElement(parser, dataDepth)) {
+          skipElement(parser);
+        }
       } else if (name.equalsIgnoreCase("mediaFile")) {
-        int nIdElements = subElement.getChildCount();
+        int mediaFileDepth = parser.getDepth();
         String filename = null;
         String hash = null;
         String downloadUrl = null;
-        for (int j = 0; j < nIdElements; ++j) {
-          if (subElement.getType(j) != Element.ELEMENT) {
-            // e.g., whitespace (text)
-            continue;
-          }
-          Element mediaSubElement = (Element) subElement.getElement(j);
-          name = mediaSubElement.getName();
+        while (nextChildElement(parser, mediaFileDepth)) {
+          name = parser.getName();
           if (name.equalsIgnoreCase("filename")) {
-            filename = XFormParser.getXMLText(mediaSubElement, true);
+            filename = readText(parser);
           } else if (name.equalsIgnoreCase("hash")) {
-            hash = XFormParser.getXMLText(mediaSubElement, true);
+            hash = readText(parser);
           } else if (name.equalsIgnoreCase("downloadUrl")) {
-            downloadUrl = XFormParser.getXMLText(mediaSubElement, true);
+            downloadUrl = readText(parser);
+          } else {
+            skipElement(parser);
           }
         }
         attachmentList.add(new MediaFile(filename, hash, downloadUrl));
       } else {
         log.warn("Unrecognized tag inside submission: " + name);
+        skipElement(parser);
       }
     }
 
-    if (rootSubmissionElement == null) {
+    if (!submissionFound) {
       throw new ParsingException("No submission body found");
     }
-    if (instanceID == null) {
-      throw new ParsingException("instanceID attribute value is null");
+
+    return new SubmissionManifest(instanceID, submissionDate, submissionFile, attachmentList);
+  }
+
+  /**
+   * Moves to the next child element of the element at the given depth.
+   *
+   * @return false once at the end of the element instead
+   */
+  private static boolean nextChildElement(XmlPullParser parser, int depth) throws XmlPullParserException, IOException {
+    while (true) {
+      int eventType = parser.next();
+      if (eventType == XmlPullParser.START_TAG && parser.getDepth() == depth + 1) {
+        return true;
+      }
+      if (eventType == XmlPullParser.END_TAG && parser.getDepth() == depth) {
+        return false;
+      }
+      if (eventType == XmlPullParser.END_DOCUMENT) {
+        throw new XmlPullParserException("unexpected end of document");
+      }
     }
+  }
 
-    // write submission to a string
-    StringWriter fo = new StringWriter();
-    KXmlSerializer serializer = new KXmlSerializer();
-
-    serializer.setOutput(fo);
-    // setting the response content type emits the xml header.
-    // just write the body here...
-    // this has the xmlns of the submissions download, indicating that it
-    // originated from a briefcase download. Might be useful for discriminating
-    // real vs. recovered data?
-    rootSubmissionElement.setPrefix(null, NAMESPACE_OPENDATAKIT_ORG_SUBMISSIONS);
-    try {
-      rootSubmissionElement.write(serializer);
+  /**
+   * Moves to the end of the current element.
+   */
+  private static void skipElement(XmlPullParser parser) throws XmlPullParserException, IOException {
+    int depth = parser.getDepth();
+    while (nextChildElement(parser, depth)) {
+      skipElement(parser);
+    }
+  }
+
+  /**
+   * Reads the text of the current element, trimmed, or null if it has none.
+   */
+  private static String readText(XmlPullParser parser) throws XmlPullParserException, IOException {
+    int depth = parser.getDepth();
+    StringBuilder text = new StringBuilder();
+    int eventType;
+    while ((eventType = parser.next()) != XmlPullParser.END_TAG || parser.getDepth() != depth) {
+      if (eventType == XmlPullParser.TEXT) {
+        text.append(parser.getText());
+      } else if (eventType == XmlPullParser.END_DOCUMENT) {
+        throw new XmlPullParserException("unexpected end of document");
+      }
+    }
+    String trimmed = text.toString().trim();
+    return trimmed.isEmpty() ? null : trimmed;
+  }
+
+  /**
+   * Writes the current element to the file as it's read, the way a parsed
+   * document would be written. This has the xmlns of the submissions
+   * download, indicating that it originated from a briefcase download. Might
+   * be useful for discriminating real vs. recovered data?
+   */
+  private static void writeSubmission(XmlPullParser parser, File submissionFile)
+      throws XmlPullParserException, IOException {
+    try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(submissionFile), UTF_8))) {
+      KXmlSerializer serializer = new KXmlSerializer();
+      serializer.setOutput(writer);
+      int depth = parser.getDepth();
+      while (true) {
+        int eventType = parser.getEventType();
+        switch (eventType) {
+        case XmlPullParser.START_TAG:
+          for (int i = parser.getNamespaceCount(parser.getDepth() - 1); i < parser.getNamespaceCount(parser.getDepth()); i++) {
+            serializer.setPrefix(parser.getNamespacePrefix(i), parser.getNamespaceUri(i));
+          }
+          if (parser.getDepth() == depth) {
+            serializer.setPrefix("", NAMESPACE_OPENDATAKIT_ORG_SUBMISSIONS);
+          }
+          serializer.startTag(parser.getNamespace(), parser.getName());
+          for (int i = 0; i < parser.getAttributeCount(); i++) {
+            serializer.attribute(parser.getAttributeNamespace(i), parser.getAttributeName(i), parser.getAttributeValue(i));
+          }
+          break;
+        case XmlPullParser.END_TAG:
+          serializer.endTag(parser.getNamespace(), parser.getName());
+          break;
+        case XmlPullParser.TEXT:
+        case XmlPullParser.ENTITY_REF:
+          if (parser.getText() != null) {
+            serializer.text(parser.getText());
+          } else if (parser.getName() != null) {
+            serializer.entityRef(parser.getName());
+          }
+          break;
+        case XmlPullParser.CDSECT:
+          serializer.cdsect(parser.getText());
+          break;
+        case XmlPullParser.IGNORABLE_WHITESPACE:
+          serializer.ignorableWhitespace(parser.getText());
+          break;
+        case XmlPullParser.COMMENT:
+          serializer.comment(parser.getText());
+          break;
+        case XmlPullParser.PROCESSING_INSTRUCTION:
+          serializer.processingInstruction(parser.getText());
+          break;
+        case XmlPullParser.END_DOCUMENT:
+          throw new XmlPullParserException("unexpected end of document");
+        default:
+          break;
+        }
+        if (eventType == XmlPullParser.END_TAG && parser.getDepth() == depth) {
+          break;
+        }
+        parser.nextToken();
+      }
       serializer.flush();
       serializer.endDocument();
-      fo.close();
-    } catch (IOException e) {
-      String msg = "Unexpected IOException";
-      log.error(msg, e);
-      throw new ParsingException(msg + ": " + e.getMessage());
     }
-
-    return new SubmissionManifest(instanceID, fo.toString(), attachmentList);
   }
 
   public static final String updateSubmissionMetadata(File submissionFile, Document doc)
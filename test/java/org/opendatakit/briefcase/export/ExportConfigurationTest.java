@@ -30,11 +30,13 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.LocalDate;
+import java.util.Arrays;
 import java.util.concurrent.atomic.AtomicInteger;
 import org.hamcrest.Matchers;
 import org.junit.Before;
 import org.junit.Test;
 import org.opendatakit.briefcase.model.BriefcasePreferences;
+import org.opendatakit.briefcase.model.ExportType;
 import org.opendatakit.briefcase.model.InMemoryPreferences;
 
 @SuppressWarnings("checkstyle:MethodName")
@@ -63,6 +65,13 @@ public class ExportConfigurationTest {
     validConfig.setPemFile(VALID_PEM_FILE);
     validConfig.setStartDate(START_DATE);
     validConfig.setEndDate(END_DATE);
+    validConfig.setIncremental(true);
+    validConfig.setExportType(ExportType.DATABASE);
+    validConfig.setJdbcUrl("jdbc:hsqldb:mem:briefcase_test");
+    validConfig.setColumns(Arrays.asList("name", "location"));
+    validConfig.setFilter("@version=2;deviceid!=imei:123");
+    validConfig.setAdditionalExportTypes(Arrays.asList(ExportType.JSON_LINES));
+    validConfig.setPartitioning("month,size=1g");
   }
 
   @Test
@@ -95,6 +104,11 @@ public class ExportConfigurationTest {
     assertThat(clonedConfig.getPemFile(), is(validConfig.getPemFile()));
     assertThat(clonedConfig.getStartDate(), is(validConfig.getStartDate()));
     assertThat(clonedConfig.getEndDate(), is(validConfig.getEndDate()));
+    assertThat(clonedConfig.getIncremental(), is(validConfig.getIncremental()));
+    assertThat(clonedConfig.getExportType(), is(validConfig.getExportType()));
+    assertThat(clonedConfig.getJdbcUrl(), is(validConfig.getJdbcUrl()));
+    assertThat(clonedConfig.getColumns(), is(validConfig.getColumns()));
+    assertThat(clonedConfig.getFilter(), is(validConfig.getFilter()));
   }
 
   @Test
@@ -151,6 +165,80 @@ public class ExportConfigurationTest {
     assertThat(config.isValid(), is(false));
   }
 
+  @Test
+  public void a_configuration_is_not_valid_when_the_jdbc_url_is_not_a_jdbc_url() {
+    ExportConfiguration config = ExportConfiguration.empty();
+    config.setExportDir(VALID_EXPORT_DIR);
+    assertThat(config.isValid(), is(true));
+
+    config.setJdbcUrl("/some/database");
+
+    assertThat(config.isValid(), is(false));
+  }
+
+  @Test
+  public void a_configuration_is_not_valid_when_the_filter_is_not_valid() {
+    ExportConfiguration config = ExportConfiguration.empty();
+    config.setExportDir(VALID_EXPORT_DIR);
+    config.setFilter("@version=2;deviceid!=imei:123");
+    assertThat(config.isValid(), is(true));
+
+    config.setFilter("@version");
+
+    assertThat(config.isValid(), is(false));
+  }
+
+  @Test
+  public void a_configuration_is_not_valid_when_the_partitioning_is_not_valid() {
+    ExportConfiguration config = ExportConfiguration.empty();
+    config.setExportDir(VALID_EXPORT_DIR);
+    config.setPartitioning("day,rows=5000");
+    assertThat(config.isValid(), is(true));
+
+    config.setPartitioning("week");
+
+    assertThat(config.isValid(), is(false));
+  }
+
+  @Test
+  public void it_exports_to_csv_unless_told_otherwise() {
+    ExportConfiguration config = ExportConfiguration.empty();
+    assertThat(config.getExportTypeOrDefault(), is(ExportType.CSV));
+
+    config.setExportType(ExportType.DATABASE);
+
+    assertThat(config.getExportTypeOrDefault(), is(ExportType.DATABASE));
+  }
+
+  @Test
+  public void it_exports_to_the_chosen_type_first_and_then_to_the_additional_ones() {
+    ExportConfiguration config = ExportConfiguration.empty();
+    assertThat(config.getExportTypes(), is(Arrays.asList(ExportType.CSV)));
+
+    config.setExportType(ExportType.DATABASE);
+    config.setAdditionalExportTypes(ExportConfiguration.parseExportTypes("json_lines, database,csv"));
+
+    assertThat(config.getExportTypes(), is(Arrays.asList(ExportType.DATABASE, ExportType.JSON_LINES, ExportType.CSV)));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void it_rejects_unknown_export_types() {
+    ExportConfiguration.parseExportTypes("csv,xlsx");
+  }
+
+  @Test
+  public void it_parses_comma_separated_columns() {
+    assertThat(ExportConfiguration.parseColumns(" name, group-age ,,name"), is(Arrays.asList("name", "group-age")));
+  }
+
+  @Test
+  public void it_exports_all_columns_unless_told_otherwise() {
+    ExportConfiguration config = ExportConfiguration.empty();
+    assertThat(config.getColumnsOrAll().isEmpty(), is(true));
+    config.setColumns(Arrays.asList());
+    assertThat(config.getColumns(), isEmpty());
+  }
+
   @Test
   public void has_an_API_similar_to_Optional_for_its_members() {
     ExportConfiguration emptyConfig = ExportConfiguration.empty();
@@ -163,6 +251,13 @@ public class ExportConfigurationTest {
     emptyConfig.ifPemFilePresent(value -> fail());
     emptyConfig.ifStartDatePresent(value -> fail());
     emptyConfig.ifEndDatePresent(value -> fail());
+    emptyConfig.ifIncrementalPresent(value -> fail());
+    emptyConfig.ifExportTypePresent(value -> fail());
+    emptyConfig.ifJdbcUrlPresent(value -> fail());
+    emptyConfig.ifColumnsPresent(value -> fail());
+    emptyConfig.ifFilterPresent(value -> fail());
+    emptyConfig.ifAdditionalExportTypesPresent(value -> fail());
+    emptyConfig.ifPartitioningPresent(value -> fail());
 
     assertThat(validConfig.mapExportDir(Object::toString), isPresent());
     assertThat(validConfig.mapPemFile(Object::toString), isPresent());
@@ -174,7 +269,14 @@ public class ExportConfigurationTest {
     validConfig.ifPemFilePresent(value -> count.incrementAndGet());
     validConfig.ifStartDatePresent(value -> count.incrementAndGet());
     validConfig.ifEndDatePresent(value -> count.incrementAndGet());
-    assertThat(count.get(), is(4));
+    validConfig.ifIncrementalPresent(value -> count.incrementAndGet());
+    validConfig.ifExportTypePresent(value -> count.incrementAndGet());
+    validConfig.ifJdbcUrlPresent(value -> count.incrementAndGet());
+    validConfig.ifColumnsPresent(value -> count.incrementAndGet());
+    validConfig.ifFilterPresent(value -> count.incrementAndGet());
+    validConfig.ifAdditionalExportTypesPresent(value -> count.incrementAndGet());
+    validConfig.ifPartitioningPresent(value -> count.incrementAndGet());
+    assertThat(count.get(), is(11));
   }
 
   @Test
@@ -23,9 +23,11 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.time.LocalDate;
+import java.util.Arrays;
 import java.util.concurrent.atomic.AtomicInteger;
 import org.junit.Test;
 import org.opendatakit.briefcase.export.ExportConfiguration;
+import org.opendatakit.briefcase.model.ExportType;
 
 public class ConfigurationPanelUnitTest {
   @Test
@@ -35,6 +37,13 @@ public class ConfigurationPanelUnitTest {
     expectedConfiguration.setPemFile(Paths.get("/some/file.pem"));
     expectedConfiguration.setStartDate(LocalDate.of(2018, 1, 1));
     expectedConfiguration.setEndDate(LocalDate.of(2019, 1, 1));
+    expectedConfiguration.setIncremental(true);
+    expectedConfiguration.setExportType(ExportType.DATABASE);
+    expectedConfiguration.setJdbcUrl("jdbc:hsqldb:mem:some_database");
+    expectedConfiguration.setColumns(Arrays.asList("name", "location"));
+    expectedConfiguration.setFilter("@version=2");
+    expectedConfiguration.setAdditionalExportTypes(Arrays.asList(ExportType.CSV, ExportType.JSON_LINES));
+    expectedConfiguration.setPartitioning("month,rows=1000");
     FakeConfigurationPanelForm view = new FakeConfigurationPanelForm(false);
     ConfigurationPanel panel = new ConfigurationPanel(ExportConfiguration.empty(), view);
 
@@ -42,6 +51,13 @@ public class ConfigurationPanelUnitTest {
     view.setPemFile(expectedConfiguration.getPemFile().get());
     view.setStartDate(expectedConfiguration.getStartDate().get());
     view.setEndDate(expectedConfiguration.getEndDate().get());
+    view.setIncremental(expectedConfiguration.getIncremental().get());
+    view.setExportType(expectedConfiguration.getExportType().get());
+    view.setJdbcUrl(expectedConfiguration.getJdbcUrl().get());
+    view.setColumns(expectedConfiguration.getColumns().get());
+    view.setFilter(expectedConfiguration.getFilter().get());
+    view.setAdditionalExportTypes(expectedConfiguration.getAdditionalExportTypes().get());
+    view.setPartitioning(expectedConfiguration.getPartitioning().get());
 
     assertThat(panel.getConfiguration(), equalTo(expectedConfiguration));
   }
@@ -53,6 +69,13 @@ public class ConfigurationPanelUnitTest {
     initialConfiguration.setPemFile(Paths.get("/some/file.pem"));
     initialConfiguration.setStartDate(LocalDate.of(2018, 1, 1));
     initialConfiguration.setEndDate(LocalDate.of(2019, 1, 1));
+    initialConfiguration.setIncremental(true);
+    initialConfiguration.setExportType(ExportType.DATABASE);
+    initialConfiguration.setJdbcUrl("jdbc:hsqldb:mem:some_database");
+    initialConfiguration.setColumns(Arrays.asList("name", "location"));
+    initialConfiguration.setFilter("@version=2");
+    initialConfiguration.setAdditionalExportTypes(Arrays.asList(ExportType.CSV, ExportType.JSON_LINES));
+    initialConfiguration.setPartitioning("month,rows=1000");
     FakeConfigurationPanelForm view = new FakeConfigurationPanelForm(false);
     new ConfigurationPanel(initialConfiguration, view);
 
@@ -60,6 +83,13 @@ public class ConfigurationPanelUnitTest {
     assertThat(view.getPemFile(), is(initialConfiguration.getPemFile().get()));
     assertThat(view.getDateRangeStart(), is(initialConfiguration.getStartDate().get()));
     assertThat(view.getDateRangeEnd(), is(initialConfiguration.getEndDate().get()));
+    assertThat(view.isIncremental(), is(initialConfiguration.getIncremental().get()));
+    assertThat(view.getExportType(), is(initialConfiguration.getExportType().get()));
+    assertThat(view.getJdbcUrl(), is(initialConfiguration.getJdbcUrl().get()));
+    assertThat(view.getColumns(), is("name,location"));
+    assertThat(view.getFilter(), is(initialConfiguration.getFilter().get()));
+    assertThat(view.getAdditionalExportTypes(), is("csv,json_lines"));
+    assertThat(view.getPartitioning(), is(initialConfiguration.getPartitioning().get()));
   }
 
   @Test
@@ -111,8 +141,15 @@ public class ConfigurationPanelUnitTest {
     view.setPemFile(Paths.get("/some/file.pem"));
     view.setStartDate(LocalDate.of(2018, 1, 1));
     view.setEndDate(LocalDate.of(2019, 1, 1));
-
-    assertThat(counter.get(), is(4));
+    view.setIncremental(true);
+    view.setExportType(ExportType.DATABASE);
+    view.setJdbcUrl("jdbc:hsqldb:mem:some_database");
+    view.setColumns(Arrays.asList("name", "location"));
+    view.setFilter("@version=2");
+    view.setAdditionalExportTypes(Arrays.asList(ExportType.JSON_LINES));
+    view.setPartitioning("day");
+
+    assertThat(counter.get(), is(11));
   }
 
 }
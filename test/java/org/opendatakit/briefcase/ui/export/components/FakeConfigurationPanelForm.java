@@ -18,6 +18,7 @@ package org.opendatakit.briefcase.ui.export.components;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.LocalDate;
+import org.opendatakit.briefcase.model.ExportType;
 
 class FakeConfigurationPanelForm extends ConfigurationPanelForm {
   public boolean errorShown = false;
@@ -55,4 +56,32 @@ class FakeConfigurationPanelForm extends ConfigurationPanelForm {
         endDatePicker.getDate().getDayOfMonth()
     );
   }
+
+  public boolean isIncremental() {
+    return incrementalField.isSelected();
+  }
+
+  public ExportType getExportType() {
+    return (ExportType) exportTypeField.getSelectedItem();
+  }
+
+  public String getJdbcUrl() {
+    return jdbcUrlField.getText();
+  }
+
+  public String getColumns() {
+    return columnsField.getText();
+  }
+
+  public String getFilter() {
+    return filterField.getText();
+  }
+
+  public String getAdditionalExportTypes() {
+    return additionalExportTypesField.getText();
+  }
+
+  public String getPartitioning() {
+    return partitioningField.getText();
+  }
 }
@@ -0,0 +1,113 @@
+package org.opendatakit.briefcase.util;
+
+import static org.opendatakit.briefcase.util.AdaptiveConcurrencyLimit.Outcome.FAILURE;
+import static org.opendatakit.briefcase.util.AdaptiveConcurrencyLimit.Outcome.OVERLOAD;
+import static org.opendatakit.briefcase.util.AdaptiveConcurrencyLimit.Outcome.SUCCESS;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AdaptiveConcurrencyLimitTest {
+
+    @Test
+    public void release_shouldGrowTheWindowUpToTheCeiling() {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(4);
+
+        for (int i = 0; i < 10; i++) {
+            fillAndRelease(limit, SUCCESS);
+        }
+
+        Assert.assertEquals(4, limit.getWindow());
+    }
+
+    @Test
+    public void release_shouldHalveTheWindowOnOverload() {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(8);
+        for (int i = 0; i < 10; i++) {
+            fillAndRelease(limit, SUCCESS);
+        }
+
+        fillAndRelease(limit, OVERLOAD);
+
+        Assert.assertEquals(4, limit.getWindow());
+    }
+
+    @Test
+    public void release_shouldHalveTheWindowOncePerRoundTrip() {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(8);
+        for (int i = 0; i < 10; i++) {
+            fillAndRelease(limit, SUCCESS);
+        }
+        long first = limit.acquire();
+        long second = limit.acquire();
+
+        limit.release(first, OVERLOAD);
+        limit.release(second, OVERLOAD);
+
+        Assert.assertEquals(4, limit.getWindow());
+    }
+
+    @Test
+    public void release_shouldNotChangeTheWindowOnOtherFailures() {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(8);
+
+        fillAndRelease(limit, FAILURE);
+
+        Assert.assertEquals(2, limit.getWindow());
+    }
+
+    @Test
+    public void release_shouldNeverShrinkTheWindowUnderOne() {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(8);
+
+        for (int i = 0; i < 5; i++) {
+            fillAndRelease(limit, OVERLOAD);
+        }
+
+        Assert.assertEquals(1, limit.getWindow());
+    }
+
+    @Test
+    public void release_shouldRecoverWhenTheLatencyStaysHighAfterAFastRequest() {
+        long[] now = {0};
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(8, () -> now[0]);
+        fillAndRelease(limit, now, 10);
+
+        for (int i = 0; i < 10; i++) {
+            fillAndRelease(limit, now, 500);
+        }
+        Assert.assertEquals(1, limit.getWindow());
+
+        for (int i = 0; i < 100; i++) {
+            fillAndRelease(limit, now, 500);
+        }
+        Assert.assertEquals(8, limit.getWindow());
+    }
+
+    /**
+     * Fills the window with requests that all take the given time.
+     */
+    private static void fillAndRelease(AdaptiveConcurrencyLimit limit, long[] now, long latencyMillis) {
+        int window = limit.getWindow();
+        long[] starts = new long[window];
+        for (int i = 0; i < window; i++) {
+            starts[i] = limit.acquire();
+        }
+        now[0] += latencyMillis * 1_000_000;
+        for (long start : starts) {
+            limit.release(start, SUCCESS);
+        }
+    }
+
+    private static void fillAndRelease(AdaptiveConcurrencyLimit limit, AdaptiveConcurrencyLimit.Outcome outcome) {
+        int window = limit.getWindow();
+        long[] starts = new long[window];
+        for (int i = 0; i < window; i++) {
+            starts[i] = limit.acquire();
+        }
+        for (long start : starts) {
+            limit.release(start, outcome);
+        }
+    }
+
+}
@@ -0,0 +1,105 @@
+package org.opendatakit.briefcase.util;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opendatakit.briefcase.model.BriefcaseFormDefinition;
+
+public class CachedExportTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private BriefcaseFormDefinition lfd;
+    private File outputDir;
+
+    @Before
+    public void setUp() throws Exception {
+        File formDir = temp.newFolder("form");
+        File formFile = new File(formDir, "form.xml");
+        Files.copy(Paths.get(CachedExportTest.class.getResource("/basic.xml").toURI()), formFile.toPath());
+        lfd = new BriefcaseFormDefinition(formDir, formFile);
+        Files.createDirectories(new File(FileSystemUtils.getFormInstancesDirectory(formDir), "uuid1").toPath());
+        outputDir = temp.newFolder("output");
+    }
+
+    @Test
+    public void doAction_shouldSkipAnExportWhenNothingChanged() {
+        CountingExport export = new CountingExport(FilesSkipped.NONE);
+
+        Assert.assertTrue(new CachedExport(outputDir, "form", export, "options").doAction());
+        Assert.assertTrue(new CachedExport(outputDir, "form", export, "options").doAction());
+
+        Assert.assertEquals(1, export.runs);
+    }
+
+    @Test
+    public void doAction_shouldNotSkipAnExportAfterOneThatSkippedSubmissions() {
+        CountingExport export = new CountingExport(FilesSkipped.SOME);
+
+        Assert.assertTrue(new CachedExport(outputDir, "form", export, "options").doAction());
+        Assert.assertTrue(new CachedExport(outputDir, "form", export, "options").doAction());
+
+        Assert.assertEquals(2, export.runs);
+        Assert.assertFalse(CachedExport.fileFor(outputDir, "form").exists());
+    }
+
+    @Test
+    public void doAction_shouldNotSkipAnExportWhoseOutputWasDeleted() throws Exception {
+        CountingExport export = new CountingExport(FilesSkipped.NONE);
+
+        new CachedExport(outputDir, "form", export, "options").doAction();
+        Files.delete(new File(outputDir, "form.csv").toPath());
+        new CachedExport(outputDir, "form", export, "options").doAction();
+
+        Assert.assertEquals(2, export.runs);
+    }
+
+    /**
+     * Writes a single csv file and skips the given files.
+     */
+    private class CountingExport implements ITransformFormAction {
+        private final FilesSkipped skipped;
+        private int runs = 0;
+
+        CountingExport(FilesSkipped skipped) {
+            this.skipped = skipped;
+        }
+
+        @Override
+        public boolean doAction() {
+            runs++;
+            try {
+                Files.write(new File(outputDir, "form.csv").toPath(), ("run " + runs).getBytes(UTF_8));
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+            return true;
+        }
+
+        @Override
+        public FilesSkipped totalFilesSkipped() {
+            return skipped;
+        }
+
+        @Override
+        public BriefcaseFormDefinition getFormDefinition() {
+            return lfd;
+        }
+
+        @Override
+        public List<File> getOutputFiles() {
+            return Collections.singletonList(new File(outputDir, "form.csv"));
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package org.opendatakit.briefcase.util;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CsvWriterTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void emitCell_shouldOnlyEmitTheSeparatorForNullInput() throws IOException {
+        Assert.assertEquals("", emit(true, null));
+        Assert.assertEquals(",", emit(false, null));
+    }
+
+    @Test
+    public void emitCell_shouldQuoteEmptyCells() throws IOException {
+        Assert.assertEquals(",\"\"", emit(false, ""));
+    }
+
+    @Test
+    public void emitCell_shouldLeavePlainCellsAlone() throws IOException {
+        Assert.assertEquals("plain text", emit(true, "plain text"));
+        Assert.assertEquals(",plain text", emit(false, "plain text"));
+    }
+
+    @Test
+    public void emitCell_shouldQuoteCellsWithSeparatorsOrLineBreaks() throws IOException {
+        Assert.assertEquals("\"one,two\"", emit(true, "one,two"));
+        Assert.assertEquals(",\"one\ntwo\"", emit(false, "one\ntwo"));
+    }
+
+    @Test
+    public void emitCell_shouldDoubleQuotes() throws IOException {
+        Assert.assertEquals("\"say \"\"hi\"\"\"", emit(true, "say \"hi\""));
+    }
+
+    @Test
+    public void writer_shouldEncodeUnicodeCharactersAcrossBufferBoundaries() throws IOException {
+        File file = temp.newFile("out.csv");
+        StringBuilder expected = new StringBuilder();
+        try (CsvWriter writer = CsvWriter.open(file, true)) {
+            for (int i = 0; i < 50000; ++i) {
+                String value = "シャンプー 😀 " + i;
+                CsvWriter.emitCell(writer, i % 3 == 0, value);
+                CsvWriter.emitCell(expected, i % 3 == 0, value);
+            }
+        }
+        Assert.assertEquals(expected.toString(), new String(Files.readAllBytes(file.toPath()), UTF_8));
+    }
+
+    @Test
+    public void writer_shouldAppendUnlessOverwriting() throws IOException {
+        File file = temp.newFile("out.csv");
+        try (CsvWriter writer = CsvWriter.open(file, true)) {
+            writer.append("one\n");
+        }
+        try (CsvWriter writer = CsvWriter.open(file, false)) {
+            writer.append("two\n");
+        }
+        Assert.assertEquals("one\ntwo\n", new String(Files.readAllBytes(file.toPath()), UTF_8));
+
+        try (CsvWriter writer = CsvWriter.open(file, true)) {
+            writer.append("three\n");
+        }
+        Assert.assertEquals("three\n", new String(Files.readAllBytes(file.toPath()), UTF_8));
+    }
+
+    private static String emit(boolean first, String value) throws IOException {
+        StringBuilder out = new StringBuilder();
+        CsvWriter.emitCell(out, first, value);
+        return out.toString();
+    }
+
+}
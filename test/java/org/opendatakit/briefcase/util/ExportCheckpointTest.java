@@ -0,0 +1,83 @@
+package org.opendatakit.briefcase.util;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ExportCheckpointTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void resume_shouldTruncateTheFilesToTheLastCheckpoint() throws IOException {
+        File journal = new File(temp.getRoot(), ".form.checkpoint");
+        File csv = new File(temp.getRoot(), "form.csv");
+        ExportCheckpoint checkpoint = ExportCheckpoint.start(journal, "options", true);
+        CsvWriter writer = CsvWriter.open(csv, true);
+        checkpoint.opened(csv, writer.size());
+        writer.write("headers\nfirst\n");
+        checkpoint.written(new File("uuid1"));
+        checkpoint.checkpoint(Collections.singletonList(writer));
+        writer.write("second\n");
+        checkpoint.written(new File("uuid2"));
+        writer.close();
+        checkpoint.close();
+
+        ExportCheckpoint resumed = ExportCheckpoint.resume(journal, "options");
+
+        Assert.assertNotNull(resumed);
+        Assert.assertTrue(resumed.isReset());
+        Assert.assertTrue(resumed.wasResumed(new File("uuid1")));
+        Assert.assertFalse(resumed.wasResumed(new File("uuid2")));
+        Assert.assertTrue(resumed.wasOpened(csv));
+        Assert.assertEquals("headers\nfirst\n", new String(Files.readAllBytes(csv.toPath()), UTF_8));
+        resumed.close();
+    }
+
+    @Test
+    public void resume_shouldTruncateTheFilesOpenedAfterTheLastCheckpointToTheirOriginalSize() throws IOException {
+        File journal = new File(temp.getRoot(), ".form.checkpoint");
+        File csv = new File(temp.getRoot(), "form.csv");
+        Files.write(csv.toPath(), "headers\nprevious\n".getBytes(UTF_8));
+        ExportCheckpoint checkpoint = ExportCheckpoint.start(journal, "options", false);
+        CsvWriter writer = CsvWriter.open(csv, false);
+        checkpoint.opened(csv, writer.size());
+        writer.write("next\n");
+        writer.close();
+        checkpoint.close();
+
+        ExportCheckpoint resumed = ExportCheckpoint.resume(journal, "options");
+
+        Assert.assertNotNull(resumed);
+        Assert.assertFalse(resumed.isReset());
+        Assert.assertEquals("headers\nprevious\n", new String(Files.readAllBytes(csv.toPath()), UTF_8));
+        resumed.close();
+    }
+
+    @Test
+    public void resume_shouldStartOverWhenTheOptionsChanged() throws IOException {
+        File journal = new File(temp.getRoot(), ".form.checkpoint");
+        ExportCheckpoint.start(journal, "options", false).close();
+
+        Assert.assertNull(ExportCheckpoint.resume(journal, "other options"));
+    }
+
+    @Test
+    public void resume_shouldStartOverWhenTheExportFinished() throws IOException {
+        File journal = new File(temp.getRoot(), ".form.checkpoint");
+        ExportCheckpoint.start(journal, "options", false).finish();
+
+        Assert.assertFalse(journal.exists());
+        Assert.assertNull(ExportCheckpoint.resume(journal, "options"));
+    }
+
+}
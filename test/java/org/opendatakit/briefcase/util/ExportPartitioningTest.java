@@ -0,0 +1,60 @@
+package org.opendatakit.briefcase.util;
+
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ExportPartitioningTest {
+
+    @Test
+    public void parse_shouldNotSplitForEmptyValues() {
+        Assert.assertTrue(ExportPartitioning.parse("").isEmpty());
+        Assert.assertTrue(ExportPartitioning.parse(" , ").isEmpty());
+        Assert.assertEquals("", ExportPartitioning.none().partitionOf(new Date()));
+        Assert.assertFalse(ExportPartitioning.none().isFull(Long.MAX_VALUE, Long.MAX_VALUE));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parse_shouldRejectUnknownOptions() {
+        ExportPartitioning.parse("week");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parse_shouldRejectSeveralPeriods() {
+        ExportPartitioning.parse("month,day");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parse_shouldRejectLimitsThatAreNotPositive() {
+        ExportPartitioning.parse("rows=0");
+    }
+
+    @Test
+    public void parse_shouldReadSizesWithUnits() {
+        Assert.assertEquals("size=2048", ExportPartitioning.parse("size=2k").toString());
+        Assert.assertEquals("month,rows=10,size=1073741824", ExportPartitioning.parse(" Month, rows=10,size=1G").toString());
+    }
+
+    @Test
+    public void partitionOf_shouldNameThePartitionsAfterTheSubmissionDate() {
+        Date date = new GregorianCalendar(2018, Calendar.MAY, 7, 13, 30).getTime();
+
+        Assert.assertEquals("2018-05", ExportPartitioning.parse("month").partitionOf(date));
+        Assert.assertEquals("2018-05-07", ExportPartitioning.parse("day").partitionOf(date));
+        Assert.assertEquals(ExportPartitioning.UNDATED, ExportPartitioning.parse("day").partitionOf(null));
+        Assert.assertEquals("", ExportPartitioning.parse("rows=10").partitionOf(date));
+    }
+
+    @Test
+    public void isFull_shouldHoldOnceAnyLimitIsReached() {
+        ExportPartitioning partitioning = ExportPartitioning.parse("rows=10,size=1k");
+
+        Assert.assertFalse(partitioning.isFull(9, 1023));
+        Assert.assertTrue(partitioning.isFull(10, 0));
+        Assert.assertTrue(partitioning.isFull(0, 1024));
+    }
+
+}
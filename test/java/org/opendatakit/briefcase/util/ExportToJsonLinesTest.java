@@ -0,0 +1,41 @@
+package org.opendatakit.briefcase.util;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ExportToJsonLinesTest {
+
+    @Test
+    public void emitString_shouldEmitNullForNullInput() throws IOException {
+        Assert.assertEquals("null", emit(null));
+    }
+
+    @Test
+    public void emitString_shouldEscapeQuotesAndBackslashes() throws IOException {
+        Assert.assertEquals("\"say \\\"hi\\\" \\\\o/\"", emit("say \"hi\" \\o/"));
+    }
+
+    @Test
+    public void emitString_shouldKeepEachSubmissionOnOneLine() throws IOException {
+        String output = emit("one\ntwo\r\nthree\u2028four");
+
+        Assert.assertFalse(output.contains("\n"));
+        Assert.assertFalse(output.contains("\r"));
+        Assert.assertEquals("\"one\\ntwo\\r\\nthree\\u2028four\"", output);
+    }
+
+    @Test
+    public void emitString_shouldWorkWithUnicodeCharacters() throws IOException {
+        Assert.assertEquals("\"シャンプー\"", emit("シャンプー"));
+    }
+
+    private static String emit(String value) throws IOException {
+        StringWriter writer = new StringWriter();
+        ExportToJsonLines.emitString(writer, value);
+        return writer.toString();
+    }
+
+}
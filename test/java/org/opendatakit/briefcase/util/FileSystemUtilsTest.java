@@ -0,0 +1,150 @@
+package org.opendatakit.briefcase.util;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.security.Security;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.codec.binary.Base64;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.kxml2.kdom.Document;
+import org.opendatakit.briefcase.util.FileSystemUtils.DecryptOutcome;
+
+public class FileSystemUtilsTest {
+
+    private static final String FORM_ID = "encrypted";
+    private static final String INSTANCE_ID = "uuid:6d5bd0a3-5b8a-4a1e-9a0c-3b0f2c1d4e5f";
+    private static final String SUBMISSION = "<data id=\"" + FORM_ID + "\" instanceID=\"" + INSTANCE_ID + "\">"
+        + "<name>Jane</name>"
+        + "<meta><instanceID>" + INSTANCE_ID + "</instanceID></meta>"
+        + "</data>";
+
+    private static KeyPair keyPair;
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @BeforeClass
+    public static void generateKeyPair() throws Exception {
+        Security.addProvider(new BouncyCastleProvider());
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        keyPair = generator.generateKeyPair();
+    }
+
+    @Test
+    public void decryptAndValidateSubmission_shouldDecryptTheMediaFilesWithTheIvsTheyWereEncryptedWith() throws Exception {
+        byte[] first = randomBytes(1000);
+        byte[] second = randomBytes(3000);
+        File instanceDir = temp.newFolder("instance");
+        File mediaDir = temp.newFolder("media");
+        Document manifest = encryptSubmission(instanceDir, first, second);
+
+        DecryptOutcome outcome = FileSystemUtils.decryptAndValidateSubmission(manifest, keyPair.getPrivate(),
+            instanceDir, mediaDir);
+
+        Assert.assertTrue(outcome.isValidated);
+        Assert.assertFalse(outcome.isRejected);
+        Assert.assertEquals("Jane", outcome.submission.getRootElement().getElement(null, "name").getText(0));
+        Assert.assertArrayEquals(first, Files.readAllBytes(new File(mediaDir, "a.jpg").toPath()));
+        Assert.assertArrayEquals(second, Files.readAllBytes(new File(mediaDir, "b.jpg").toPath()));
+    }
+
+    @Test
+    public void decryptAndValidateSubmission_shouldNotDecryptTheMediaFilesOfARejectedSubmission() throws Exception {
+        File instanceDir = temp.newFolder("instance");
+        File mediaDir = temp.newFolder("media");
+        Document manifest = encryptSubmission(instanceDir, randomBytes(1000), randomBytes(3000));
+
+        DecryptOutcome outcome = FileSystemUtils.decryptAndValidateSubmission(manifest, keyPair.getPrivate(),
+            instanceDir, mediaDir, submission -> false);
+
+        Assert.assertTrue(outcome.isRejected);
+        Assert.assertEquals(0, mediaDir.list().length);
+    }
+
+    /**
+     * Encrypts the submission and its media files the way Collect does: each
+     * file with the next iv, the media files in order and the submission last.
+     */
+    private Document encryptSubmission(File instanceDir, byte[] first, byte[] second) throws Exception {
+        byte[] symmetricKey = randomBytes(32);
+        MessageDigest md = MessageDigest.getInstance("MD5");
+        md.update(INSTANCE_ID.getBytes(UTF_8));
+        md.update(symmetricKey);
+        byte[] digest = md.digest();
+        byte[] iv = new byte[16];
+        for (int i = 0; i < iv.length; ++i) {
+            iv[i] = digest[i % digest.length];
+        }
+
+        byte[] submission = SUBMISSION.getBytes(UTF_8);
+        encrypt(symmetricKey, iv, 0, first, new File(instanceDir, "a.jpg.enc"));
+        encrypt(symmetricKey, iv, 1, second, new File(instanceDir, "b.jpg.enc"));
+        encrypt(symmetricKey, iv, 2, submission, new File(instanceDir, "submission.xml.enc"));
+
+        String base64EncryptedKey = Base64.encodeBase64String(encryptWithPublicKey(symmetricKey));
+        String signature = FORM_ID + "\n"
+            + base64EncryptedKey + "\n"
+            + INSTANCE_ID + "\n"
+            + "a.jpg::" + md5(first) + "\n"
+            + "b.jpg::" + md5(second) + "\n"
+            + "submission.xml::" + md5(submission) + "\n";
+        byte[] signatureDigest = MessageDigest.getInstance("MD5").digest(signature.getBytes(UTF_8));
+
+        String manifest = "<data id=\"" + FORM_ID + "\" encrypted=\"yes\" instanceID=\"" + INSTANCE_ID + "\">"
+            + "<base64EncryptedKey>" + base64EncryptedKey + "</base64EncryptedKey>"
+            + "<meta><instanceID>" + INSTANCE_ID + "</instanceID></meta>"
+            + "<media><file>a.jpg.enc</file></media>"
+            + "<media><file>b.jpg.enc</file></media>"
+            + "<encryptedXmlFile>submission.xml.enc</encryptedXmlFile>"
+            + "<base64EncryptedElementSignature>"
+            + Base64.encodeBase64String(encryptWithPublicKey(signatureDigest))
+            + "</base64EncryptedElementSignature>"
+            + "</data>";
+        return XmlManipulationUtils.parseXml(manifest.getBytes(UTF_8));
+    }
+
+    private static void encrypt(byte[] symmetricKey, byte[] iv, int counter, byte[] contents, File file)
+        throws Exception {
+        ++iv[counter % iv.length];
+        Cipher c = Cipher.getInstance("AES/CFB/PKCS5Padding");
+        c.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(symmetricKey, "AES/CFB/PKCS5Padding"), new IvParameterSpec(iv));
+        Files.write(file.toPath(), c.doFinal(contents));
+    }
+
+    private static byte[] encryptWithPublicKey(byte[] contents) throws Exception {
+        Cipher c = Cipher.getInstance(FileSystemUtils.ASYMMETRIC_ALGORITHM);
+        c.init(Cipher.ENCRYPT_MODE, keyPair.getPublic());
+        return c.doFinal(contents);
+    }
+
+    private static String md5(byte[] contents) throws Exception {
+        String md5 = new BigInteger(1, MessageDigest.getInstance("MD5").digest(contents)).toString(16);
+        while (md5.length() < 32) {
+            md5 = "0" + md5;
+        }
+        return md5;
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new SecureRandom().nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,39 @@
+package org.opendatakit.briefcase.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class InstanceRegistryTest {
+
+    @Test
+    public void fingerprints_shouldContainWhatWasAddedAfterGrowing() {
+        InstanceRegistry.Fingerprints fingerprints = new InstanceRegistry.Fingerprints();
+
+        for (int i = 0; i < 10000; i++) {
+            fingerprints.add(InstanceRegistry.fingerprint("uuid:" + i));
+        }
+
+        Assert.assertEquals(10000, fingerprints.size());
+        for (int i = 0; i < 10000; i++) {
+            Assert.assertTrue(fingerprints.contains(InstanceRegistry.fingerprint("uuid:" + i)));
+        }
+        Assert.assertFalse(fingerprints.contains(InstanceRegistry.fingerprint("uuid:10000")));
+    }
+
+    @Test
+    public void fingerprints_shouldNotCountTheSameFingerprintTwice() {
+        InstanceRegistry.Fingerprints fingerprints = new InstanceRegistry.Fingerprints();
+
+        fingerprints.add(InstanceRegistry.fingerprint("uuid:1"));
+        fingerprints.add(InstanceRegistry.fingerprint("uuid:1"));
+
+        Assert.assertEquals(1, fingerprints.size());
+    }
+
+    @Test
+    public void fingerprint_shouldNeverBeZero() {
+        Assert.assertTrue(InstanceRegistry.fingerprint("") != 0);
+        Assert.assertTrue(InstanceRegistry.fingerprint("uuid:1") != 0);
+    }
+
+}
@@ -0,0 +1,66 @@
+package org.opendatakit.briefcase.util;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SubmissionFilterTest {
+
+    @Test
+    public void parse_shouldLetEverythingThroughForEmptyExpressions() {
+        Assert.assertTrue(SubmissionFilter.parse("").isEmpty());
+        Assert.assertTrue(SubmissionFilter.parse(" ; ").isEmpty());
+        Assert.assertTrue(SubmissionFilter.parse("").matches(new HashMap<String, String>()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parse_shouldRejectConditionsWithoutOperator() {
+        SubmissionFilter.parse("@version");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parse_shouldRejectConditionsWithoutName() {
+        SubmissionFilter.parse("!=2");
+    }
+
+    @Test
+    public void matches_shouldHoldAllTheConditions() {
+        SubmissionFilter filter = SubmissionFilter.parse("@version=2|3; deviceid!=imei:1");
+
+        Assert.assertTrue(filter.matches(values("@version", "2", "deviceid", "imei:2")));
+        Assert.assertTrue(filter.matches(values("@version", "3")));
+        Assert.assertFalse(filter.matches(values("@version", "2", "deviceid", "imei:1")));
+        Assert.assertFalse(filter.matches(values("@version", "1", "deviceid", "imei:2")));
+    }
+
+    @Test
+    public void matches_shouldFindValuesOfSelectMultipleFields() {
+        SubmissionFilter filter = SubmissionFilter.parse("fruits~=apple|pear");
+
+        Assert.assertTrue(filter.matches(values("fruits", "banana pear")));
+        Assert.assertFalse(filter.matches(values("fruits", "banana pineapple")));
+        Assert.assertFalse(filter.matches(values()));
+    }
+
+    @Test
+    public void matchesAttributes_shouldIgnoreTheConditionsOnFields() {
+        SubmissionFilter filter = SubmissionFilter.parse("@version=2;deviceid=imei:1");
+
+        Assert.assertTrue(filter.matchesAttributes(values("@version", "2")));
+        Assert.assertFalse(filter.matchesAttributes(values("@version", "1")));
+        Assert.assertEquals(new LinkedHashSet<String>(Arrays.asList("deviceid")), filter.getFieldNames());
+    }
+
+    private static Map<String, String> values(String... namesAndValues) {
+        Map<String, String> values = new HashMap<String, String>();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            values.put(namesAndValues[i], namesAndValues[i + 1]);
+        }
+        return values;
+    }
+
+}
@@ -0,0 +1,205 @@
+package org.opendatakit.briefcase.util;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.javarosa.core.model.instance.TreeElement;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SubmissionReaderTest {
+
+    private static final FieldPlan PLAN = FieldPlan.compile(element("data",
+        element("name"),
+        element("group", element("a")),
+        repeat("repeat", element("x"), repeat("nested", element("y"))),
+        element("meta", element("instanceID"))));
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void read_shouldOnlyReadTheFirstElementOfAFieldOrGroup() throws Exception {
+        ParsedSubmission submission = readBothWays("<data id=\"form\">"
+            + "<name>first</name>"
+            + "<group><a>1</a></group>"
+            + "<name>second</name>"
+            + "<group><a>2</a></group>"
+            + "</data>");
+
+        Object[] values = submission.getValues();
+        Assert.assertEquals("first", node("name").getValue(values));
+        Assert.assertEquals("1", node("group").getChild("a").getValue(node("group").getGroupValues(values)));
+    }
+
+    @Test
+    public void read_shouldReadEveryInstanceOfNestedRepeatGroups() throws Exception {
+        ParsedSubmission submission = readBothWays("<data id=\"form\">"
+            + "<repeat><x>1</x><nested><y>a</y></nested><nested><y>b</y></nested></repeat>"
+            + "<name>name</name>"
+            + "<repeat><x>2</x></repeat>"
+            + "</data>");
+
+        List<Object[]> repeats = node("repeat").getRepeatValues(submission.getValues());
+        Assert.assertEquals(2, repeats.size());
+        Assert.assertEquals("2", node("repeat").getChild("x").getValue(repeats.get(1)));
+        List<Object[]> nested = node("repeat").getChild("nested").getRepeatValues(repeats.get(0));
+        Assert.assertEquals(2, nested.size());
+        Assert.assertEquals("b", node("repeat").getChild("nested").getChild("y").getValue(nested.get(1)));
+        Assert.assertNull(node("repeat").getChild("nested").getRepeatValues(repeats.get(1)));
+    }
+
+    @Test
+    public void read_shouldFindTheInstanceIdInTheRootNamespace() throws Exception {
+        ParsedSubmission submission = readBothWays("<data xmlns=\"http://example.org/form\" id=\"form\">"
+            + "<meta><instanceID>uuid:1</instanceID></meta>"
+            + "</data>");
+
+        Assert.assertEquals("uuid:1", submission.getFormInstanceMetadata().instanceId);
+    }
+
+    @Test
+    public void read_shouldFindTheInstanceIdInTheOpenRosaNamespace() throws Exception {
+        ParsedSubmission submission = readBothWays("<data xmlns=\"http://example.org/form\" id=\"form\">"
+            + "<orx:meta xmlns:orx=\"http://openrosa.org/xforms\">"
+            + "<orx:instanceID> uuid:2 </orx:instanceID>"
+            + "</orx:meta>"
+            + "</data>");
+
+        Assert.assertEquals("uuid:2", submission.getFormInstanceMetadata().instanceId);
+    }
+
+    @Test
+    public void read_shouldFindTheFirstMetaBlockInAGroup() throws Exception {
+        ParsedSubmission submission = readBothWays("<data id=\"form\">"
+            + "<group><meta><instanceID>uuid:3</instanceID></meta></group>"
+            + "<meta><instanceID>uuid:4</instanceID></meta>"
+            + "</data>");
+
+        Assert.assertEquals("uuid:3", submission.getFormInstanceMetadata().instanceId);
+    }
+
+    @Test
+    public void read_shouldIgnoreMetaBlocksInOtherNamespaces() throws Exception {
+        ParsedSubmission submission = readBothWays("<data id=\"form\">"
+            + "<x:meta xmlns:x=\"http://example.org/other\"><x:instanceID>uuid:5</x:instanceID></x:meta>"
+            + "</data>");
+
+        Assert.assertNull(submission.getFormInstanceMetadata().instanceId);
+    }
+
+    @Test
+    public void read_shouldParseBadXmlAsADocument() throws Exception {
+        // truncated, as by the Android 4.3 bug the document parser fixes
+        ParsedSubmission submission = readBothWays("<?xml version='1.0' ?><data id=\"form\">"
+            + "<name>name</name>"
+            + "<meta><instanceID>uuid:6</instanceID></meta>"
+            + "</da");
+
+        Assert.assertEquals("name", node("name").getValue(submission.getValues()));
+        Assert.assertEquals("uuid:6", submission.getFormInstanceMetadata().instanceId);
+    }
+
+    @Test
+    public void peek_shouldStopOnceTheFieldsAreFound() throws Exception {
+        // anything past the fields would fail to parse
+        File submission = write("<data id=\"form\" version=\"2\"><name>name</name><broken");
+
+        Map<String, String> values = SubmissionReader.peek(submission, Collections.singleton("name"));
+
+        Map<String, String> expected = new HashMap<String, String>();
+        expected.put("@id", "form");
+        expected.put("@version", "2");
+        expected.put("name", "name");
+        Assert.assertEquals(expected, values);
+    }
+
+    @Test
+    public void peek_shouldOnlyReadTheRootElementWhenNoFieldIsAskedFor() throws Exception {
+        File submission = write("<data id=\"form\"><broken");
+
+        Map<String, String> values = SubmissionReader.peek(submission, new HashSet<String>());
+
+        Assert.assertEquals(Collections.singletonMap("@id", "form"), values);
+    }
+
+    @Test
+    public void peek_shouldReadTheSameValuesAsTheDocument() throws Exception {
+        File submission = write("<data id=\"form\"><group><name>nested</name></group><name>first</name>"
+            + "<name>second</name></data>");
+
+        Map<String, String> values = SubmissionReader.peek(submission, new HashSet<String>(Arrays.asList("name")));
+
+        Assert.assertEquals(SubmissionReader.peek(XmlManipulationUtils.parseXml(submission),
+            Collections.singleton("name")), values);
+        Assert.assertEquals("first", values.get("name"));
+    }
+
+    /**
+     * Reads the submission with the pull parser and from its document, and
+     * checks that both read the same.
+     */
+    private ParsedSubmission readBothWays(String xml) throws Exception {
+        File file = write(xml);
+
+        ParsedSubmission streamed = SubmissionReader.read(file, PLAN);
+        ParsedSubmission parsed = SubmissionReader.fromDocument(XmlManipulationUtils.parseXml(file), PLAN);
+
+        Assert.assertEquals(describe(parsed.getValues()), describe(streamed.getValues()));
+        Assert.assertEquals(parsed.getRootAttribute("id"), streamed.getRootAttribute("id"));
+        Assert.assertEquals(parsed.getFormInstanceMetadata().instanceId, streamed.getFormInstanceMetadata().instanceId);
+        return streamed;
+    }
+
+    private File write(String xml) throws Exception {
+        File file = temp.newFile("submission.xml");
+        Files.write(file.toPath(), xml.getBytes(UTF_8));
+        return file;
+    }
+
+    private static FieldPlan.Node node(String name) {
+        return PLAN.getRoot().getChild(name);
+    }
+
+    private static String describe(Object value) {
+        if (value instanceof Object[]) {
+            StringBuilder b = new StringBuilder("[");
+            for (Object child : (Object[]) value) {
+                b.append(describe(child)).append(',');
+            }
+            return b.append(']').toString();
+        }
+        if (value instanceof List) {
+            StringBuilder b = new StringBuilder("{");
+            for (Object child : (List<?>) value) {
+                b.append(describe(child)).append(',');
+            }
+            return b.append('}').toString();
+        }
+        return value == null ? "null" : "'" + value + "'";
+    }
+
+    private static TreeElement element(String name, TreeElement... children) {
+        TreeElement element = new TreeElement(name);
+        for (TreeElement child : children) {
+            element.addChild(child);
+        }
+        return element;
+    }
+
+    private static TreeElement repeat(String name, TreeElement... children) {
+        TreeElement element = element(name, children);
+        element.setRepeatable(true);
+        return element;
+    }
+}
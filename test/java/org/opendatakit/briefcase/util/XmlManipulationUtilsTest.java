@@ -0,0 +1,74 @@
+package org.opendatakit.briefcase.util;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.File;
+import java.io.StringReader;
+import java.nio.file.Files;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.kxml2.io.KXmlParser;
+import org.opendatakit.briefcase.model.ParsingException;
+import org.opendatakit.briefcase.util.ServerFetcher.SubmissionManifest;
+import org.xmlpull.v1.XmlPullParser;
+
+public class XmlManipulationUtilsTest {
+
+    private static final String DOWNLOAD_SUBMISSION_RESPONSE = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+        + "<submission xmlns=\"http://opendatakit.org/submissions\" xmlns:orx=\"http://openrosa.org/xforms\">"
+        + "<data>"
+        + "<household id=\"household\" instanceID=\"uuid:1234\" submissionDate=\"2018-02-01T10:00:00.000Z\">"
+        + "<name>Jane &amp; John</name>"
+        + "<photo>photo.jpg</photo>"
+        + "<orx:meta><orx:instanceID>uuid:1234</orx:instanceID></orx:meta>"
+        + "</household>"
+        + "</data>"
+        + "<mediaFile>"
+        + "<filename>photo.jpg</filename>"
+        + "<hash>md5:abcd</hash>"
+        + "<downloadUrl>http://example.org/photo.jpg</downloadUrl>"
+        + "</mediaFile>"
+        + "</submission>";
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void parseDownloadSubmissionResponse_shouldStreamTheSubmissionToTheFile() throws Exception {
+        File submissionFile = temp.newFile("submission.xml");
+
+        SubmissionManifest manifest = XmlManipulationUtils.parseDownloadSubmissionResponse(parser(DOWNLOAD_SUBMISSION_RESPONSE), submissionFile);
+
+        Assert.assertEquals("uuid:1234", manifest.instanceID);
+        Assert.assertEquals("2018-02-01T10:00:00.000Z", manifest.submissionDate);
+        Assert.assertEquals(1, manifest.attachmentList.size());
+        Assert.assertEquals("photo.jpg", manifest.attachmentList.get(0).filename);
+        Assert.assertEquals("md5:abcd", manifest.attachmentList.get(0).hash);
+        Assert.assertEquals("http://example.org/photo.jpg", manifest.attachmentList.get(0).downloadUrl);
+        String submission = new String(Files.readAllBytes(submissionFile.toPath()), UTF_8);
+        Assert.assertTrue(submission.startsWith("<household "));
+        Assert.assertTrue(submission.contains("xmlns=\"http://opendatakit.org/submissions\""));
+        Assert.assertTrue(submission.contains("instanceID=\"uuid:1234\""));
+        Assert.assertTrue(submission.contains("<name>Jane &amp; John</name>"));
+        Assert.assertTrue(submission.contains("uuid:1234</"));
+        Assert.assertTrue(submission.endsWith("</household>"));
+    }
+
+    @Test(expected = ParsingException.class)
+    public void parseDownloadSubmissionResponse_shouldFailWithoutASubmission() throws Exception {
+        String response = "<submission xmlns=\"http://opendatakit.org/submissions\"><data></data></submission>";
+
+        XmlManipulationUtils.parseDownloadSubmissionResponse(parser(response), temp.newFile("submission.xml"));
+    }
+
+    private static XmlPullParser parser(String xml) throws Exception {
+        KXmlParser parser = new KXmlParser();
+        parser.setInput(new StringReader(xml));
+        parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+        return parser;
+    }
+
+}
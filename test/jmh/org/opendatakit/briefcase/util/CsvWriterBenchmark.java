@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2018 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.briefcase.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares writing csv rows with {@link CsvWriter} against the way
+ * {@link ExportToCsv} used to write them: escaping each cell with
+ * {@code contains}, {@code replace} and concatenation, and appending it to an
+ * unbuffered {@link OutputStreamWriter} around a {@link FileOutputStream}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class CsvWriterBenchmark {
+
+  private static final int COLUMNS = 40;
+
+  /** Share of the cells that need quoting, in percent */
+  @Param({"5", "50"})
+  public int quotedPercent;
+
+  @Param({"16", "256"})
+  public int cellLength;
+
+  private String[] row;
+  private File legacyFile;
+  private File csvFile;
+  private Writer legacyWriter;
+  private CsvWriter csvWriter;
+
+  @Setup(Level.Trial)
+  public void createRow() {
+    Random random = new Random(42);
+    String alphabet = "abcdefghijklmnopqrstuvwxyz ABCDEFGHIJKLMNOPQRSTUVWXYZ 0123456789 áéíóú ñ シャンプー";
+    row = new String[COLUMNS];
+    for (int i = 0; i < COLUMNS; ++i) {
+      StringBuilder cell = new StringBuilder();
+      for (int j = 0; j < cellLength; ++j) {
+        cell.append(alphabet.charAt(random.nextInt(alphabet.length())));
+      }
+      if (random.nextInt(100) < quotedPercent) {
+        cell.setCharAt(cellLength / 2, random.nextBoolean() ? ',' : '"');
+      }
+      row[i] = cell.toString();
+    }
+  }
+
+  @Setup(Level.Iteration)
+  public void openWriters() throws IOException {
+    legacyFile = File.createTempFile("briefcase-legacy", ".csv");
+    csvFile = File.createTempFile("briefcase-csv", ".csv");
+    legacyWriter = new OutputStreamWriter(new FileOutputStream(legacyFile, false), "UTF-8");
+    csvWriter = CsvWriter.open(csvFile, true);
+  }
+
+  @TearDown(Level.Iteration)
+  public void closeWriters() throws IOException {
+    legacyWriter.close();
+    csvWriter.close();
+    legacyFile.delete();
+    csvFile.delete();
+  }
+
+  @Benchmark
+  public void legacyWriter() throws IOException {
+    boolean first = true;
+    for (String cell : row) {
+      legacyEmitString(legacyWriter, first, cell);
+      first = false;
+    }
+    legacyWriter.append("\n");
+  }
+
+  @Benchmark
+  public void csvWriter() throws IOException {
+    boolean first = true;
+    for (String cell : row) {
+      CsvWriter.emitCell(csvWriter, first, cell);
+      first = false;
+    }
+    csvWriter.append("\n");
+  }
+
+  /** The escaping {@link ExportToCsv} did before {@link CsvWriter} */
+  private static void legacyEmitString(Appendable osw, boolean first, String string) throws IOException {
+    osw.append(first ? "" : ",");
+    if (string == null)
+      return;
+    if (string.length() == 0 || string.contains("\n") || string.contains("\"")
+        || string.contains(",")) {
+      string = string.replace("\"", "\"\"");
+      string = "\"" + string + "\"";
+    }
+    osw.append(string);
+  }
+}